@@ -28,6 +28,7 @@
 
 package com.elasticinbox.config;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -58,17 +59,35 @@ public class Config
 	public Boolean store_html_message;
 	public Boolean store_plain_message;
 	public Long database_blob_max_size;
+	public Long database_inline_blob_max_size = 0L;
 
 	// Cassandra settings
 	public List<String> cassandra_hosts;
 	public Boolean cassandra_autodiscovery;
+	public String cassandra_load_balancing = "roundrobin";
 	public String cassandra_cluster_name;
 	public String cassandra_keyspace;
+	public Integer cassandra_native_port = 9042;
+	public Boolean cassandra_composite_metadata = false;
+	public Boolean cassandra_bucketed_label_index = false;
+	public Integer cassandra_counters_flush_interval = 0;
+	public String cassandra_counters_log = null;
+	public Integer cassandra_read_chunk_size = 25;
+	public Boolean cassandra_hedged_reads = false;
+	public Long cassandra_speculative_read_threshold = 50L;
+	public Integer cassandra_metadata_cache_size = 32;
+	public Long cassandra_metadata_cache_ttl = 2000L;
+	public Long cassandra_labels_snapshot_ttl = 1000L;
+	public List<String> cassandra_maintenance_tasks = new ArrayList<String>();
+	public Integer cassandra_maintenance_io_budget = 1000;
+	public Long cassandra_maintenance_interval = 86400L;
+	public Integer cassandra_maintenance_purge_age = 30;
 
 	// Blob store settings
 	public Map<String, BlobStoreProfile> blobstore_profiles;
 	public String blobstore_write_profile;
 	public Boolean blobstore_enable_compression;
+	public Integer blobstore_max_concurrency = 16;
 	
 	// Blob store encryption
 	public Boolean blobstore_enable_encryption = false;
@@ -33,6 +33,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -118,18 +119,85 @@ public class Configurator
 						+ DatabaseConstants.MAX_BLOB_SIZE + " bytes cannot be stored in the database");
 			}
 
+			// verify max inline blob size
+			if(conf.database_inline_blob_max_size > DatabaseConstants.MAX_BLOB_SIZE) {
+				throw new ConfigurationException("Blobs larger than "
+						+ DatabaseConstants.MAX_BLOB_SIZE + " bytes cannot be stored inline with metadata");
+			}
+
 			// verify that blobstore profile name is not conflicting with internal name
 			if (conf.blobstore_profiles.containsKey(DatabaseConstants.DATABASE_PROFILE)) {
 				throw new ConfigurationException("BlobStore profile name cannot be '"
 						+ DatabaseConstants.DATABASE_PROFILE + "'");
 			}
 
+			if (conf.blobstore_profiles.containsKey(DatabaseConstants.INLINE_PROFILE)) {
+				throw new ConfigurationException("BlobStore profile name cannot be '"
+						+ DatabaseConstants.INLINE_PROFILE + "'");
+			}
+
 			// verify that default blobstore profile exists
 			if (!conf.blobstore_profiles.containsKey(conf.blobstore_write_profile)) {
 				throw new ConfigurationException("Default BlobStore Profile '"
 						+ conf.blobstore_write_profile + "' not found");
 			}
 
+			// verify that aggregated counter deltas can be persisted locally
+			if (conf.cassandra_counters_flush_interval > 0 && conf.cassandra_counters_log == null) {
+				throw new ConfigurationException(
+						"cassandra_counters_log is required when counter aggregation is enabled");
+			}
+
+			if (!conf.cassandra_load_balancing.equals("roundrobin")
+					&& !conf.cassandra_load_balancing.equals("leastactive")
+					&& !conf.cassandra_load_balancing.equals("tokenaware")) {
+				throw new ConfigurationException("Unknown cassandra_load_balancing policy '"
+						+ conf.cassandra_load_balancing + "'");
+			}
+
+			if (conf.cassandra_read_chunk_size < 1) {
+				throw new ConfigurationException("cassandra_read_chunk_size should be positive");
+			}
+
+			if (conf.cassandra_speculative_read_threshold < 0) {
+				throw new ConfigurationException("cassandra_speculative_read_threshold should not be negative");
+			}
+
+			if (conf.cassandra_metadata_cache_size < 0) {
+				throw new ConfigurationException("cassandra_metadata_cache_size should not be negative");
+			}
+
+			if (conf.cassandra_metadata_cache_ttl < 1) {
+				throw new ConfigurationException("cassandra_metadata_cache_ttl should be positive");
+			}
+
+			if (conf.cassandra_labels_snapshot_ttl < 0) {
+				throw new ConfigurationException("cassandra_labels_snapshot_ttl should not be negative");
+			}
+
+			if (conf.cassandra_maintenance_tasks == null) {
+				conf.cassandra_maintenance_tasks = new ArrayList<String>(0);
+			}
+
+			for (String task : conf.cassandra_maintenance_tasks) {
+				if (!task.equals("purge") && !task.equals("counters") && !task.equals("indexes")) {
+					throw new ConfigurationException("Unknown cassandra_maintenance_tasks task '"
+							+ task + "'");
+				}
+			}
+
+			if (conf.cassandra_maintenance_io_budget < 1) {
+				throw new ConfigurationException("cassandra_maintenance_io_budget should be positive");
+			}
+
+			if (conf.cassandra_maintenance_interval < 1) {
+				throw new ConfigurationException("cassandra_maintenance_interval should be positive");
+			}
+
+			if (conf.cassandra_maintenance_purge_age < 0) {
+				throw new ConfigurationException("cassandra_maintenance_purge_age should not be negative");
+			}
+
 			if (conf.encryption.keystore != null)
 			{
 				// keystore path is relative to the config file
@@ -180,13 +248,23 @@ public class Configurator
 	}
 
 	public static String getDatabaseDriver() {
-		return (conf.database_driver.equalsIgnoreCase("cassandra")) ? "CASSANDRA" : "UNKNOWN";
+		return conf.database_driver.toLowerCase();
 	}
 	
 	public static Long getDatabaseBlobMaxSize() {
 		return conf.database_blob_max_size;
 	}
 
+	/**
+	 * Maximum blob size (after compression) which can be stored inline with
+	 * message metadata. Zero disables inlining.
+	 * 
+	 * @return
+	 */
+	public static Long getDatabaseInlineBlobMaxSize() {
+		return conf.database_inline_blob_max_size;
+	}
+
 	public static List<String> getCassandraHosts() {
 		return conf.cassandra_hosts;
 	}
@@ -195,6 +273,175 @@ public class Configurator
 		return conf.cassandra_autodiscovery;
 	}
 
+	/**
+	 * Load balancing policy used to select Cassandra host for each query:
+	 * "roundrobin", "leastactive" or "tokenaware". Used only by "cassandra"
+	 * database driver.
+	 * 
+	 * @return
+	 */
+	public static String getCassandraLoadBalancing() {
+		return conf.cassandra_load_balancing;
+	}
+
+	/**
+	 * Port of the Cassandra native protocol (CQL) transport. Used only by
+	 * "cassandra-cql" database driver.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraNativePort() {
+		return conf.cassandra_native_port;
+	}
+
+	/**
+	 * Whether composite column layout for message metadata is enabled. When
+	 * enabled, metadata of mailboxes which are not migrated yet is written in
+	 * both super column and composite column layouts. Used only by "cassandra"
+	 * database driver.
+	 * 
+	 * @return
+	 */
+	public static Boolean isCassandraCompositeMetadataEnabled() {
+		return conf.cassandra_composite_metadata;
+	}
+
+	/**
+	 * Whether label indexes split into monthly bucket rows are enabled. When
+	 * enabled, label indexes of mailboxes which are not migrated yet are
+	 * written in both single row and bucketed layouts. Used only by
+	 * "cassandra" database driver.
+	 * 
+	 * @return
+	 */
+	public static Boolean isCassandraBucketedLabelIndexEnabled() {
+		return conf.cassandra_bucketed_label_index;
+	}
+
+	/**
+	 * Interval in milliseconds at which label counter deltas aggregated on
+	 * this node are flushed to Cassandra. Zero disables aggregation and
+	 * counters are written with each update. Used only by "cassandra"
+	 * database driver.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraCountersFlushInterval() {
+		return conf.cassandra_counters_flush_interval;
+	}
+
+	/**
+	 * Local file where aggregated label counter deltas are logged until they
+	 * are flushed to Cassandra.
+	 * 
+	 * @return
+	 */
+	public static String getCassandraCountersLog() {
+		return conf.cassandra_counters_log;
+	}
+
+	/**
+	 * Number of messages which metadata is read by a single query. Larger
+	 * reads are split into chunks of this size and read concurrently. Used
+	 * only by "cassandra" database driver.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraReadChunkSize() {
+		return conf.cassandra_read_chunk_size;
+	}
+
+	/**
+	 * Whether metadata read chunk should be requested again when it takes
+	 * longer than 95th percentile of recent reads.
+	 * 
+	 * @return
+	 */
+	public static Boolean isCassandraHedgedReadsEnabled() {
+		return conf.cassandra_hedged_reads;
+	}
+
+	/**
+	 * Time after which blob block read at consistency level ONE is sent
+	 * again to another replica. In MILLISECONDS. Zero disables speculative
+	 * reads.
+	 * 
+	 * @return
+	 */
+	public static Long getCassandraSpeculativeReadThreshold() {
+		return conf.cassandra_speculative_read_threshold;
+	}
+
+	/**
+	 * Maximum size of message metadata cached on this node. In MEGABYTES.
+	 * Zero disables metadata cache.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraMetadataCacheSize() {
+		return conf.cassandra_metadata_cache_size;
+	}
+
+	/**
+	 * Time for which message metadata is cached. Changes made on other nodes
+	 * are not visible during this time. In MILLISECONDS.
+	 * 
+	 * @return
+	 */
+	public static Long getCassandraMetadataCacheTTL() {
+		return conf.cassandra_metadata_cache_ttl;
+	}
+
+	/**
+	 * Time for which labels with counters returned by mailbox listing are
+	 * cached. In MILLISECONDS. Zero disables cache.
+	 * 
+	 * @return
+	 */
+	public static Long getCassandraLabelsSnapshotTTL() {
+		return conf.cassandra_labels_snapshot_ttl;
+	}
+
+	/**
+	 * Maintenance tasks run by the cluster-wide maintenance runner for all
+	 * mailboxes: "purge", "counters" and "indexes". Empty list disables
+	 * maintenance runner.
+	 * 
+	 * @return
+	 */
+	public static List<String> getCassandraMaintenanceTasks() {
+		return conf.cassandra_maintenance_tasks;
+	}
+
+	/**
+	 * Number of messages per second processed by maintenance tasks, shared by
+	 * all nodes of the cluster.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraMaintenanceIOBudget() {
+		return conf.cassandra_maintenance_io_budget;
+	}
+
+	/**
+	 * Time between maintenance passes over the same mailbox. In SECONDS.
+	 * 
+	 * @return
+	 */
+	public static Long getCassandraMaintenanceInterval() {
+		return conf.cassandra_maintenance_interval;
+	}
+
+	/**
+	 * Deleted messages are purged by maintenance runner after this time. In
+	 * DAYS.
+	 * 
+	 * @return
+	 */
+	public static Integer getCassandraMaintenancePurgeAge() {
+		return conf.cassandra_maintenance_purge_age;
+	}
+
 	public static String getCassandraClusterName() {
 		return conf.cassandra_cluster_name;
 	}
@@ -268,6 +515,15 @@ public class Configurator
 		return conf.blobstore_enable_compression;
 	}
 	
+	/**
+	 * Maximum number of concurrent blob operations per blob store profile
+	 * 
+	 * @return
+	 */
+	public static Integer getBlobStoreMaxConcurrency() {
+		return conf.blobstore_max_concurrency;
+	}
+
 	public static Boolean isBlobStoreEncryptionEnabled() {
 		return conf.blobstore_enable_encryption;
 	}
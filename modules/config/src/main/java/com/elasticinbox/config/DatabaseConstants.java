@@ -38,4 +38,7 @@ public class DatabaseConstants
 
 	/** Reserved profile name for internal database storage (e.g. Cassandra) */
 	public static final String DATABASE_PROFILE = "db";
+
+	/** Reserved profile name for blobs stored inline with message metadata */
+	public static final String INLINE_PROFILE = "inline";
 }
@@ -28,7 +28,9 @@
 
 package com.elasticinbox.core;
 
+import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
 
 /**
  * Core Data Access Factory
@@ -39,6 +41,7 @@ public abstract class DAOFactory
 {
 	// List of metadata DAO types supported by ElasticInbox
 	public static final String CASSANDRA = "cassandra";
+	public static final String CASSANDRA_CQL = "cassandra-cql";
 	public static final String HBASE = "hbase";
 
 	// Data Access decomposed into the following DAOs:
@@ -46,19 +49,28 @@ public abstract class DAOFactory
 	public abstract MessageDAO getMessageDAO();
 	public abstract LabelDAO getLabelDAO();
 
+	/**
+	 * Get DAO for background mailbox jobs. Jobs checkpoint their state through
+	 * the Thrift persistence and are available only with
+	 * {@link #CASSANDRA} driver.
+	 * 
+	 * @return DAO or <code>null</code> if database driver does not support
+	 *         background jobs
+	 */
+	public JobDAO getJobDAO() {
+		return null;
+	}
+
 	public static DAOFactory getDAOFactory()
 	{
-		// Currently only Cassandra supported, ignore config
-		return new CassandraDAOFactory();
-
-		/*
-		String driver = Configurator.getMetadataStorageDriver();
+		String driver = Configurator.getDatabaseDriver();
 
-		if (driver.equalsIgnoreCase(CASSANDRA)) {
+		if (driver.equals(CASSANDRA_CQL)) {
+			return new CqlDAOFactory();
+		} else if (driver.equals(CASSANDRA)) {
 			return new CassandraDAOFactory();
 		} else {
-			return null;
+			throw new IllegalStateException("Unsupported database driver: " + driver);
 		}
-		*/
 	}
 }
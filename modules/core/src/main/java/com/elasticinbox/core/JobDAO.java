@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core;
+
+import java.util.UUID;
+
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.MigrationJob;
+import com.elasticinbox.core.model.ScrubJob;
+
+/**
+ * Interface for background mailbox jobs. Job state is checkpointed to the
+ * metadata store, so that job is resumed after failure or restart.
+ * <p>
+ * Background jobs are not supported by all database drivers, see
+ * {@link DAOFactory#getJobDAO()}.
+ */
+public interface JobDAO
+{
+	/**
+	 * Start scrub of the given mailbox in background. Recalculated counters
+	 * are updated in metadata store when job completes.
+	 * 
+	 * If scrub job of the mailbox is already running, returns running job.
+	 * 
+	 * @param mailbox
+	 * @param rebuildIndex
+	 * @return Started job
+	 */
+	public ScrubJob startScrub(Mailbox mailbox, boolean rebuildIndex);
+
+	/**
+	 * Get state of the background scrub job
+	 * 
+	 * @param mailbox
+	 * @param jobId
+	 * @return Job state or <code>null</code> if job not found
+	 */
+	public ScrubJob getScrubJob(Mailbox mailbox, UUID jobId);
+
+	/**
+	 * Start migration of the given mailbox to the storage layout enabled in
+	 * configuration. Migration is performed online, updates made
+	 * concurrently with migration are preserved.
+	 * 
+	 * If migration job of the mailbox is already running, returns running
+	 * job.
+	 * 
+	 * @param mailbox
+	 * @param type
+	 * @return Started job or <code>null</code> if mailbox is already migrated
+	 * @throws IllegalStateException
+	 *             If target layout is not enabled in configuration
+	 */
+	public MigrationJob startMigration(Mailbox mailbox, MigrationJob.Type type);
+
+	/**
+	 * Get state of the background migration job
+	 * 
+	 * @param mailbox
+	 * @param type
+	 * @param jobId
+	 * @return Job state or <code>null</code> if job not found
+	 */
+	public MigrationJob getMigrationJob(Mailbox mailbox, MigrationJob.Type type, UUID jobId);
+}
@@ -39,6 +39,7 @@ import com.elasticinbox.core.blob.BlobDataSource;
 import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
 
 /**
  * Interface for Message operations
@@ -127,6 +128,86 @@ public interface MessageDAO
 	public Map<UUID, Message> getMessageIdsWithMetadata(Mailbox mailbox, int labelId,
 			UUID start, int count, boolean reverse, boolean includeBody);
 
+	/**
+	 * Get message IDs and given message fields from the given label. Only
+	 * fields included in the projection are read from metadata store.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 *            Label ID where to lookup messages.
+	 * @param start
+	 *            Starting message <code>UUID</code>. If set to
+	 *            <code>null</code>, will start from the most recent message.
+	 * @param count
+	 *            Number of message IDs to retrieve.
+	 * @param reverse
+	 *            Defines order of the retrieval.
+	 * @param projection
+	 *            Message fields to return.
+	 * @return
+	 */
+	public Map<UUID, Message> getMessageIdsWithMetadata(Mailbox mailbox, int labelId,
+			UUID start, int count, boolean reverse, MessageProjection projection);
+
+	/**
+	 * Get IDs of unread messages from the given label.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 *            Label ID where to lookup messages.
+	 * @param start
+	 *            Starting message <code>UUID</code>. If set to
+	 *            <code>null</code>, will start from the most recent message.
+	 * @param count
+	 *            Number of message IDs to retrieve.
+	 * @param reverse
+	 *            Defines order of the retrieval.
+	 * @return
+	 */
+	public List<UUID> getUnreadMessageIds(Mailbox mailbox, int labelId, UUID start,
+			int count, boolean reverse);
+
+	/**
+	 * Get IDs and given message fields of unread messages from the given
+	 * label.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 *            Label ID where to lookup messages.
+	 * @param start
+	 *            Starting message <code>UUID</code>. If set to
+	 *            <code>null</code>, will start from the most recent message.
+	 * @param count
+	 *            Number of message IDs to retrieve.
+	 * @param reverse
+	 *            Defines order of the retrieval.
+	 * @param projection
+	 *            Message fields to return.
+	 * @return
+	 */
+	public Map<UUID, Message> getUnreadMessageIdsWithMetadata(Mailbox mailbox, int labelId,
+			UUID start, int count, boolean reverse, MessageProjection projection);
+
+	/**
+	 * Get message IDs and message summaries (size, date, seen flag and
+	 * attachments flag) from the given label. Summaries are read from the
+	 * label index where available.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 *            Label ID where to lookup messages.
+	 * @param start
+	 *            Starting message <code>UUID</code>. If set to
+	 *            <code>null</code>, will start from the most recent message.
+	 * @param count
+	 *            Number of message IDs to retrieve.
+	 * @param reverse
+	 *            Defines order of the retrieval.
+	 * @return
+	 */
+	public Map<UUID, MessageSummary> getMessageSummaries(Mailbox mailbox, int labelId,
+			UUID start, int count, boolean reverse);
+
 	/**
 	 * Modify message labels and markers.
 	 * 
@@ -180,11 +261,12 @@ public interface MessageDAO
 	 * 
 	 * Recalculated counters are returned but not actually updated in metadata
 	 * store. Label indexes, on the other hand, are actually updated with
-	 * message IDs by this operation.
+	 * message IDs by this operation. Unread indexes are rebuilt from scratch.
 	 * 
 	 * @param mailbox
 	 * @param rebuildIndex
 	 * @return
 	 */
 	public LabelMap scrub(Mailbox mailbox, boolean rebuildIndex);
+
 }
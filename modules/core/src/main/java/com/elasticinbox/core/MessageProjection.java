@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Set of message fields which should be read from the metadata store. Fields
+ * which are not part of the projection are left unset in the resulting
+ * message.
+ * <p>
+ * Only the composite metadata layout and the CQL schema read the columns of
+ * the projected fields. Super columns of the legacy layout are always read
+ * as a whole, and the projection is only applied as a filter when the
+ * columns are decoded.
+ */
+public final class MessageProjection
+{
+	public enum Field
+	{
+		DATE("date"),
+		SIZE("size"),
+		FROM("from"),
+		TO("to"),
+		CC("cc"),
+		BCC("bcc"),
+		REPLY_TO("replyTo"),
+		MESSAGE_ID("messageId"),
+		SUBJECT("subject"),
+		LOCATION("location"),
+		PARTS("parts"),
+		LABELS("labels"),
+		MARKERS("markers"),
+		HTML_BODY("htmlBody"),
+		PLAIN_BODY("plainBody");
+
+		private final String name;
+
+		Field(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Field name as it appears in message JSON
+		 */
+		public String toString() {
+			return name;
+		}
+
+		public static Field fromString(final String value)
+		{
+			for (Field field : values()) {
+				if (field.name.equals(value))
+					return field;
+			}
+
+			throw new IllegalArgumentException("Unknown message field " + value);
+		}
+	}
+
+	/** All fields including message body */
+	public final static MessageProjection ALL = 
+			new MessageProjection(EnumSet.allOf(Field.class));
+
+	/** All fields except message body */
+	public final static MessageProjection HEADERS = 
+			new MessageProjection(EnumSet.complementOf(EnumSet.of(Field.HTML_BODY, Field.PLAIN_BODY)));
+
+	/** Fields required for label counters calculation */
+	public final static MessageProjection COUNTERS = 
+			new MessageProjection(EnumSet.of(Field.SIZE, Field.LABELS, Field.MARKERS));
+
+	/** Fields required for label counters and label index summaries */
+	public final static MessageProjection SUMMARY = 
+			new MessageProjection(EnumSet.of(Field.SIZE, Field.DATE, Field.PARTS,
+					Field.LABELS, Field.MARKERS));
+
+	/** Blob location only */
+	public final static MessageProjection LOCATION = 
+			new MessageProjection(EnumSet.of(Field.LOCATION));
+
+	private final EnumSet<Field> fields;
+
+	private MessageProjection(final EnumSet<Field> fields) {
+		this.fields = fields;
+	}
+
+	public static MessageProjection of(final Field first, final Field... rest) {
+		return new MessageProjection(EnumSet.of(first, rest));
+	}
+
+	/**
+	 * Parse comma separated list of field names, e.g.
+	 * <code>"from,subject,labels"</code>
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             If unknown field name given
+	 */
+	public static MessageProjection fromString(final String value)
+	{
+		EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+
+		for (String name : value.split(",")) {
+			if (!name.trim().isEmpty()) {
+				fields.add(Field.fromString(name.trim()));
+			}
+		}
+
+		if (fields.isEmpty()) {
+			throw new IllegalArgumentException("No message fields specified");
+		}
+
+		return new MessageProjection(fields);
+	}
+
+	public boolean includes(final Field field) {
+		return fields.contains(field);
+	}
+
+	/**
+	 * Check whether all fields of the given projection are included
+	 * 
+	 * @param projection
+	 * @return
+	 */
+	public boolean includes(final MessageProjection projection) {
+		return fields.containsAll(projection.fields);
+	}
+
+	public boolean includesBody() {
+		return includes(Field.HTML_BODY) || includes(Field.PLAIN_BODY);
+	}
+
+	public Set<Field> getFields() {
+		return Collections.unmodifiableSet(fields);
+	}
+
+	@Override
+	public String toString() {
+		return fields.toString();
+	}
+}
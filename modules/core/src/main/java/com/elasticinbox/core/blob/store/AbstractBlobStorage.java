@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.blob.store;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import com.elasticinbox.core.blob.BlobDataSource;
+import com.elasticinbox.core.blob.BlobURI;
+import com.elasticinbox.core.model.Mailbox;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A partial implementation of the {@link AsyncBlobStorage} interface which
+ * runs blocking operations on the I/O executor of the target blob store
+ * profile.
+ */
+public abstract class AbstractBlobStorage implements AsyncBlobStorage
+{
+	@Override
+	public ListenableFuture<BlobURI> writeAsync(final UUID messageId, final Mailbox mailbox,
+			final String profileName, final InputStream in, final Long size)
+	{
+		return BlobStoreExecutors.get(getWriteProfileName(profileName)).submit(
+				new Callable<BlobURI>() {
+					@Override
+					public BlobURI call() throws Exception {
+						return write(messageId, mailbox, profileName, in, size);
+					}
+				});
+	}
+
+	@Override
+	public ListenableFuture<BlobDataSource> readAsync(final URI uri)
+	{
+		return BlobStoreExecutors.get(uri).submit(
+				new Callable<BlobDataSource>() {
+					@Override
+					public BlobDataSource call() throws Exception {
+						return read(uri);
+					}
+				});
+	}
+
+	@Override
+	public ListenableFuture<Void> deleteAsync(final URI uri)
+	{
+		return BlobStoreExecutors.get(uri).submit(
+				new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						delete(uri);
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Resolve name of the profile which will be used to write new blob.
+	 * 
+	 * @param profileName
+	 *            Profile name requested by the caller
+	 * @return
+	 */
+	protected String getWriteProfileName(final String profileName) {
+		return profileName;
+	}
+}
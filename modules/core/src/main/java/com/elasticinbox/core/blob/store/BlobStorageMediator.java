@@ -30,8 +30,10 @@ package com.elasticinbox.core.blob.store;
 
 import static com.elasticinbox.core.blob.store.BlobStoreConstants.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.util.UUID;
@@ -48,8 +50,11 @@ import com.elasticinbox.core.blob.compression.CompressionHandler;
 import com.elasticinbox.core.blob.compression.DeflateCompressionHandler;
 import com.elasticinbox.core.blob.encryption.EncryptionHandler;
 import com.elasticinbox.core.model.Mailbox;
+import com.google.common.base.Function;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.FileBackedOutputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Blob storage mediator is an abstraction layer containing logic which
@@ -57,15 +62,15 @@ import com.google.common.io.FileBackedOutputStream;
  * 
  * @author Rustam Aliyev
  */
-public final class BlobStorageMediator implements BlobStorage
+public final class BlobStorageMediator extends AbstractBlobStorage
 {
 	private static final Logger logger = 
 			LoggerFactory.getLogger(BlobStorageMediator.class);
 
 	protected final CompressionHandler compressionHandler;
 
-	private BlobStorage cloudBlobStorage;
-	private BlobStorage dbBlobStorage;
+	private AsyncBlobStorage cloudBlobStorage;
+	private AsyncBlobStorage dbBlobStorage;
 
 	/**
 	 * Initialise mediator with compression and encryption handlers for writes.
@@ -86,6 +91,31 @@ public final class BlobStorageMediator implements BlobStorage
 	public BlobURI write(final UUID messageId, final Mailbox mailbox, final String profileName,
 			final InputStream in, final Long size) throws IOException,
 			GeneralSecurityException
+	{
+		return write(messageId, mailbox, profileName, in, size, null);
+	}
+
+	/**
+	 * Write blob. If blob size (after compression) does not exceed inline
+	 * threshold, blob is not stored, but written to the given output stream
+	 * instead. Such blobs have {@link DatabaseConstants#INLINE_PROFILE} profile
+	 * and should be persisted by the caller together with message metadata.
+	 * 
+	 * @param messageId
+	 * @param mailbox
+	 * @param profileName
+	 * @param in
+	 * @param size
+	 * @param inlineOut
+	 *            Output stream for inlined blob data. Set to null to disable
+	 *            inlining.
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public BlobURI write(final UUID messageId, final Mailbox mailbox, final String profileName,
+			final InputStream in, final Long size, final OutputStream inlineOut)
+			throws IOException, GeneralSecurityException
 	{
 		Assert.notNull(in, "No data to store");
 
@@ -106,7 +136,18 @@ public final class BlobStorageMediator implements BlobStorage
 			in1 = in;
 		}
 
-		if (updatedSize <= Configurator.getDatabaseBlobMaxSize())
+		if ((inlineOut != null) && (Configurator.getDatabaseInlineBlobMaxSize() > 0)
+				&& (updatedSize <= Configurator.getDatabaseInlineBlobMaxSize()))
+		{
+			logger.debug(
+					"Storing Blob inline with metadata because size ({}B) was less than inline threshold {}B",
+					updatedSize, Configurator.getDatabaseInlineBlobMaxSize());
+			ByteStreams.copy(in1, inlineOut);
+			blobUri = new BlobURI()
+					.setProfile(DatabaseConstants.INLINE_PROFILE)
+					.setName(messageId.toString());
+		}
+		else if (updatedSize <= Configurator.getDatabaseBlobMaxSize())
 		{
 			logger.debug(
 					"Storing Blob in the database because size ({}KB) was less than database threshold {}KB",
@@ -131,44 +172,135 @@ public final class BlobStorageMediator implements BlobStorage
 	{
 		// check if blob was stored for the message
 		Assert.notNull(uri, "URI cannot be null");
+		Assert.isFalse(isInlineProfile(uri), "Inline blob should be read with message metadata");
 
 		BlobDataSource blobDS;
-		BlobURI blobUri = new BlobURI().fromURI(uri);
 
-		if (blobUri.getProfile().equals(DatabaseConstants.DATABASE_PROFILE)) {
+		if (isDbProfile(uri)) {
 			blobDS = dbBlobStorage.read(uri);
 		} else {
 			blobDS = cloudBlobStorage.read(uri);
 		}
 
-		// if compressed, add compression handler to data source
-		if ((blobUri.getCompression() != null && blobUri.getCompression()
-				.equals(DeflateCompressionHandler.COMPRESSION_TYPE_DEFLATE)) ||
-				// TODO: deprecated suffix based compression detection
-				// kept for backward compatibility with 0.3
-				blobUri.getName().endsWith(BlobStoreConstants.COMPRESS_SUFFIX))
-		{
-			CompressionHandler ch = new DeflateCompressionHandler();
-			return new BlobDataSource(uri, blobDS.getInputStream(), ch);
+		return addCompressionHandler(uri, blobDS);
+	}
+
+	@Override
+	public ListenableFuture<BlobDataSource> readAsync(final URI uri)
+	{
+		// check if blob was stored for the message
+		Assert.notNull(uri, "URI cannot be null");
+		Assert.isFalse(isInlineProfile(uri), "Inline blob should be read with message metadata");
+
+		ListenableFuture<BlobDataSource> future;
+
+		if (isDbProfile(uri)) {
+			future = dbBlobStorage.readAsync(uri);
 		} else {
-			return blobDS;
+			future = cloudBlobStorage.readAsync(uri);
 		}
+
+		return Futures.transform(future, new Function<BlobDataSource, BlobDataSource>() {
+			@Override
+			public BlobDataSource apply(BlobDataSource blobDS) {
+				return addCompressionHandler(uri, blobDS);
+			}
+		});
+	}
+
+	/**
+	 * Read blob stored inline with message metadata
+	 * 
+	 * @param uri
+	 * @param data
+	 *            Inlined blob data
+	 * @return
+	 */
+	public BlobDataSource readInline(final URI uri, final byte[] data)
+	{
+		Assert.isTrue(isInlineProfile(uri), "Blob is not inlined");
+		Assert.notNull(data, "Inline blob data not found");
+
+		BlobDataSource blobDS = new BlobDataSource(uri, new ByteArrayInputStream(data));
+		return addCompressionHandler(uri, blobDS);
 	}
 
 	public void delete(final URI uri) throws IOException
 	{
 		// check if blob was stored for the message, silently skip otherwise
-		if (uri == null) {
+		// inlined blobs are deleted together with message metadata
+		if (uri == null || isInlineProfile(uri)) {
 			return; 
 		}
 
-		boolean isDbProfile = new BlobURI().fromURI(uri).getProfile()
-				.equals(DatabaseConstants.DATABASE_PROFILE);
-
-		if (isDbProfile) {
+		if (isDbProfile(uri)) {
 			dbBlobStorage.delete(uri);
 		} else {
 			cloudBlobStorage.delete(uri);
 		}
 	}
+
+	@Override
+	public ListenableFuture<Void> deleteAsync(final URI uri)
+	{
+		// check if blob was stored for the message, silently skip otherwise
+		// inlined blobs are deleted together with message metadata
+		if (uri == null || isInlineProfile(uri)) {
+			return Futures.<Void>immediateFuture(null);
+		}
+
+		if (isDbProfile(uri)) {
+			return dbBlobStorage.deleteAsync(uri);
+		} else {
+			return cloudBlobStorage.deleteAsync(uri);
+		}
+	}
+
+	/**
+	 * Check if blob stored in the database
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	private static boolean isDbProfile(final URI uri)
+	{
+		return new BlobURI().fromURI(uri).getProfile()
+				.equals(DatabaseConstants.DATABASE_PROFILE);
+	}
+
+	/**
+	 * Check if blob stored inline with message metadata
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	public static boolean isInlineProfile(final URI uri)
+	{
+		return new BlobURI().fromURI(uri).getProfile()
+				.equals(DatabaseConstants.INLINE_PROFILE);
+	}
+
+	/**
+	 * If blob is compressed, add compression handler to data source
+	 * 
+	 * @param uri
+	 * @param blobDS
+	 * @return
+	 */
+	private static BlobDataSource addCompressionHandler(final URI uri, final BlobDataSource blobDS)
+	{
+		BlobURI blobUri = new BlobURI().fromURI(uri);
+
+		if ((blobUri.getCompression() != null && blobUri.getCompression()
+				.equals(DeflateCompressionHandler.COMPRESSION_TYPE_DEFLATE)) ||
+				// TODO: deprecated suffix based compression detection
+				// kept for backward compatibility with 0.3
+				blobUri.getName().endsWith(BlobStoreConstants.COMPRESS_SUFFIX))
+		{
+			CompressionHandler ch = new DeflateCompressionHandler();
+			return new BlobDataSource(uri, blobDS.getInputStream(), ch);
+		} else {
+			return blobDS;
+		}
+	}
 }
\ No newline at end of file
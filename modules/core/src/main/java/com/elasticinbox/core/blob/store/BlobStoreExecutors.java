@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.blob.store;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.config.DatabaseConstants;
+import com.elasticinbox.core.blob.BlobURI;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Registry of the I/O executors used for asynchronous blob operations.
+ * <p>
+ * Each blob store profile (including internal database profile) has its own
+ * executor. Number of threads in each executor limits concurrent operations
+ * against the profile (see <code>blobstore_max_concurrency</code>). When
+ * executor queue is full, operation is executed by the calling thread which
+ * slows down the producer.
+ */
+public final class BlobStoreExecutors
+{
+	private static final Logger logger = 
+			LoggerFactory.getLogger(BlobStoreExecutors.class);
+
+	/** Maximum number of queued operations per profile */
+	private static final int MAX_QUEUED_OPERATIONS = 1000;
+
+	/** Time after which idle I/O threads are terminated. In SECONDS. */
+	private static final long KEEP_ALIVE_TIME = 60L;
+
+	/** Time to wait for pending operations on shutdown. In SECONDS. */
+	private static final long SHUTDOWN_TIMEOUT = 30L;
+
+	private static ConcurrentHashMap<String, ListeningExecutorService> executors = 
+			new ConcurrentHashMap<String, ListeningExecutorService>();
+
+	static
+	{
+		// I/O threads are daemons, let pending operations complete on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("blobstore-shutdown") {
+			@Override
+			public void run() {
+				shutdownAll();
+			}
+		});
+	}
+
+	/**
+	 * Get executor for the given blob store profile
+	 * 
+	 * @param profileName
+	 *            Blob store profile name. If <code>null</code>, database
+	 *            profile is used.
+	 * @return
+	 */
+	public static ListeningExecutorService get(final String profileName)
+	{
+		String profile = (profileName == null) ? DatabaseConstants.DATABASE_PROFILE : profileName;
+
+		ListeningExecutorService executor = executors.get(profile);
+
+		if (executor == null)
+		{
+			executor = createExecutor(profile);
+			ListeningExecutorService existing = executors.putIfAbsent(profile, executor);
+
+			// executor created concurrently by other thread
+			if (existing != null) {
+				executor.shutdown();
+				executor = existing;
+			}
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Get executor for the profile which stores given blob
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	public static ListeningExecutorService get(final URI uri)
+	{
+		return get(new BlobURI().fromURI(uri).getProfile());
+	}
+
+	/**
+	 * Wait until all given operations complete. First failure is rethrown as
+	 * {@link IOException}.
+	 * 
+	 * @param futures
+	 * @throws IOException
+	 */
+	public static <T> List<T> waitForAll(final List<ListenableFuture<T>> futures)
+			throws IOException
+	{
+		try {
+			return Futures.allAsList(futures).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for blob operations", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Blob operation failed: ", e.getCause());
+		}
+	}
+
+	/**
+	 * Shutdown all executors and wait until pending operations complete.
+	 * Invoked automatically on JVM shutdown.
+	 */
+	public static synchronized void shutdownAll()
+	{
+		List<ListeningExecutorService> stopped = new ArrayList<ListeningExecutorService>();
+
+		for (String profileName : executors.keySet()) {
+			ListeningExecutorService executor = executors.remove(profileName);
+			if (executor != null) {
+				executor.shutdown();
+				stopped.add(executor);
+			}
+		}
+
+		try {
+			for (ListeningExecutorService executor : stopped) {
+				if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+					logger.warn("Blob store operations did not complete within {} seconds", SHUTDOWN_TIMEOUT);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ListeningExecutorService createExecutor(final String profileName)
+	{
+		int threads = Configurator.getBlobStoreMaxConcurrency();
+
+		logger.debug("Creating I/O executor with {} threads for '{}' blob store.", threads, profileName);
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_QUEUED_OPERATIONS),
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("blobstore-" + profileName + "-%d").build(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+
+		return MoreExecutors.listeningDecorator(executor);
+	}
+}
@@ -52,7 +52,7 @@ import com.google.common.io.ByteStreams;
  * 
  * @author Rustam Aliyev
  */
-public final class CassandraBlobStorage implements BlobStorage
+public final class CassandraBlobStorage extends AbstractBlobStorage
 {
 	private static final Logger logger = 
 			LoggerFactory.getLogger(CassandraBlobStorage.class);
@@ -97,6 +97,11 @@ public final class CassandraBlobStorage implements BlobStorage
 
 		UUID messageId = UUID.fromString(blobUri.getName());
 		byte[] messageBlock = BlobPersistence.readBlock(messageId, DATABASE_DEFAULT_BLOCK_ID);
+
+		if (messageBlock == null) {
+			throw new IOException("Blob " + uri + " not found");
+		}
+
 		InputStream in = ByteStreams.newInputStreamSupplier(messageBlock).getInput();
 
 		return new BlobDataSource(uri, in);
@@ -113,5 +118,11 @@ public final class CassandraBlobStorage implements BlobStorage
 		UUID messageId = UUID.fromString(blobUri.getName());
 		BlobPersistence.deleteBlock(messageId, BlobStoreConstants.DATABASE_DEFAULT_BLOCK_ID);
 	}
-	
+
+	@Override
+	protected String getWriteProfileName(final String profileName) {
+		// database blobs are always written to the database profile
+		return DATABASE_PROFILE;
+	}
+
 }
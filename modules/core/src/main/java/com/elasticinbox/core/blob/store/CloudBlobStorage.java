@@ -51,7 +51,7 @@ import com.elasticinbox.core.model.Mailbox;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.FileBackedOutputStream;
 
-public final class CloudBlobStorage implements BlobStorage
+public final class CloudBlobStorage extends AbstractBlobStorage
 {
 	private static final Logger logger = 
 			LoggerFactory.getLogger(CloudBlobStorage.class);
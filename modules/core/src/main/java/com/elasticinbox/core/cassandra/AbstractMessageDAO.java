@@ -28,17 +28,31 @@
 
 package com.elasticinbox.core.cassandra;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import com.elasticinbox.core.IllegalLabelException;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.MessageModification;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.cassandra.persistence.Marshaller;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.Marker;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
 import com.google.common.collect.ImmutableList;
 
 /**
  * A partial implementation of the {@link MessageDAO} interface which translates
- * single message operations into multi-message.
+ * single message operations into multi-message. Modification planning and
+ * message aggregation are shared by the drivers, which only provide reads of
+ * message summaries and writes through {@link ModificationWriter}.
  * 
  * @author Rustam Aliyev
  */
@@ -53,4 +67,304 @@ public abstract class AbstractMessageDAO implements MessageDAO
 	public void delete(final Mailbox mailbox, final UUID messageId) {
 		delete(mailbox, ImmutableList.of(messageId));
 	}
+
+	@Override
+	public Map<UUID, Message> getMessageIdsWithMetadata(Mailbox mailbox, int labelId,
+			UUID start, int count, boolean reverse, boolean includeBody)
+	{
+		return getMessageIdsWithMetadata(mailbox, labelId, start, count, reverse,
+				includeBody ? MessageProjection.ALL : MessageProjection.HEADERS);
+	}
+
+	/**
+	 * Fetch summaries of multiple messages. Messages which were not found are
+	 * not included.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @return
+	 */
+	protected abstract Map<UUID, Message> fetchSummaries(Mailbox mailbox, List<UUID> messageIds);
+
+	/**
+	 * Adds driver specific mutations of the single message planned by
+	 * {@link AbstractMessageDAO#planModification}
+	 */
+	protected interface ModificationWriter
+	{
+		void persistAttributes(UUID messageId, Set<String> attributes);
+
+		void deleteAttributes(UUID messageId, Set<String> attributes);
+
+		void addToIndexes(UUID messageId, Set<Integer> labelIds, MessageSummary summary);
+
+		void removeFromIndexes(UUID messageId, Set<Integer> labelIds);
+
+		void addToUnreadIndexes(UUID messageId, Set<Integer> labelIds);
+
+		void removeFromUnreadIndexes(UUID messageId, Set<Integer> labelIds);
+	}
+
+	/**
+	 * Names of the attributes added to and removed from the single message
+	 */
+	protected static final class AttributeChanges
+	{
+		private final Set<String> added;
+		private final Set<String> removed;
+
+		AttributeChanges(final Set<String> added, final Set<String> removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public Set<String> getAdded() {
+			return added;
+		}
+
+		public Set<String> getRemoved() {
+			return removed;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	/**
+	 * Add mutations required to apply modification to the single message.
+	 * Only labels and markers which message does not have yet are added, and
+	 * only those which message has are removed. Removal wins if label or
+	 * marker is both added and removed. Counter deltas are accumulated into
+	 * the given map instead of being written.
+	 * 
+	 * @param writer
+	 * @param messageId
+	 * @param message
+	 * @param mod
+	 * @param counterDeltas
+	 * @return Message attributes added and removed
+	 */
+	protected static AttributeChanges planModification(ModificationWriter writer,
+			final UUID messageId, final Message message, final MessageModification mod,
+			Map<Integer, LabelCounters> counterDeltas)
+	{
+		Set<Marker> markers = (message.getMarkers() == null) ? 
+				new HashSet<Marker>(0) : message.getMarkers();
+
+		// effective changes of this message
+		Set<Integer> labelsToAdd = new HashSet<Integer>(mod.getLabelsToAdd());
+		labelsToAdd.removeAll(mod.getLabelsToRemove());
+		labelsToAdd.removeAll(message.getLabels());
+
+		Set<Integer> labelsToRemove = new HashSet<Integer>(mod.getLabelsToRemove());
+		labelsToRemove.retainAll(message.getLabels());
+
+		Set<Marker> markersToAdd = new HashSet<Marker>(mod.getMarkersToAdd());
+		markersToAdd.removeAll(mod.getMarkersToRemove());
+		markersToAdd.removeAll(markers);
+
+		Set<Marker> markersToRemove = new HashSet<Marker>(mod.getMarkersToRemove());
+		markersToRemove.retainAll(markers);
+
+		// Seen flag is taken from the modification whenever it sets or clears
+		// SEEN, so that new index entries match the markers being written.
+		// Otherwise, and for all other summary fields, the message read from
+		// MetadataCache is used, which can be stale across nodes. Such stale
+		// summaries are only repaired by scrub.
+		boolean seen = markers.contains(Marker.SEEN);
+		boolean seenAfter;
+		if (mod.getMarkersToRemove().contains(Marker.SEEN)) {
+			seenAfter = false;
+		} else if (mod.getMarkersToAdd().contains(Marker.SEEN)) {
+			seenAfter = true;
+		} else {
+			seenAfter = seen;
+		}
+
+		// message attributes
+		Set<String> attributesToAdd = labelsToMessageAttibutes(labelsToAdd);
+		attributesToAdd.addAll(markersToMessageAttibutes(markersToAdd));
+		if (!attributesToAdd.isEmpty()) {
+			writer.persistAttributes(messageId, attributesToAdd);
+		}
+
+		Set<String> attributesToRemove = labelsToMessageAttibutes(labelsToRemove);
+		attributesToRemove.addAll(markersToMessageAttibutes(markersToRemove));
+		if (!attributesToRemove.isEmpty()) {
+			writer.deleteAttributes(messageId, attributesToRemove);
+		}
+
+		// message summary and counters before and after modification
+		MessageSummary summary = MessageSummary.fromMessage(message).withSeen(seenAfter);
+		LabelCounters counters = message.getLabelCounters();
+		LabelCounters countersAfter = new LabelCounters(counters);
+		countersAfter.setUnreadMessages(seenAfter ? 0L : 1L);
+
+		// add messages to label and unread indexes
+		if (!labelsToAdd.isEmpty())
+		{
+			writer.addToIndexes(messageId, labelsToAdd, summary);
+			if (!seenAfter) {
+				writer.addToUnreadIndexes(messageId, labelsToAdd);
+			}
+			addCounterDelta(counterDeltas, labelsToAdd, countersAfter);
+		}
+
+		// remove messages from label and unread indexes
+		if (!labelsToRemove.isEmpty())
+		{
+			writer.removeFromIndexes(messageId, labelsToRemove);
+			addCounterDelta(counterDeltas, labelsToRemove, counters.getInverse());
+		}
+
+		// update summary, unread indexes and counters of remaining labels if seen flag changed
+		if (seenAfter != seen)
+		{
+			Set<Integer> labels = new HashSet<Integer>(message.getLabels());
+			labels.removeAll(labelsToRemove);
+			writer.addToIndexes(messageId, labels, summary);
+
+			LabelCounters unread = new LabelCounters();
+			unread.setUnreadMessages(seenAfter ? -1L : 1L);
+			addCounterDelta(counterDeltas, labels, unread);
+
+			if (seenAfter) {
+				writer.removeFromUnreadIndexes(messageId, labels);
+			} else {
+				writer.addToUnreadIndexes(messageId, labels);
+			}
+		}
+
+		return new AttributeChanges(attributesToAdd, attributesToRemove);
+	}
+
+	private static void addCounterDelta(Map<Integer, LabelCounters> counterDeltas,
+			final Set<Integer> labelIds, final LabelCounters delta)
+	{
+		for (Integer labelId : labelIds)
+		{
+			if (counterDeltas.containsKey(labelId)) {
+				counterDeltas.get(labelId).add(delta);
+			} else {
+				counterDeltas.put(labelId, new LabelCounters(delta));
+			}
+		}
+	}
+
+	/**
+	 * Convert label IDs to message attributes.
+	 *  
+	 * @param labelIds
+	 * @return
+	 */
+	private static Set<String> labelsToMessageAttibutes(Set<Integer> labelIds)
+	{
+		Set<String> attributes = new HashSet<String>(labelIds.size());
+		for (Integer labelId : labelIds) {
+			attributes.add(Marshaller.CN_LABEL_PREFIX + labelId);
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Convert markers to message attributes.
+	 *  
+	 * @param labelIds
+	 * @return
+	 */
+	private static Set<String> markersToMessageAttibutes(Set<Marker> markers)
+	{
+		Set<String> attributes = new HashSet<String>(markers.size());
+		for (Marker marker : markers)
+		{
+			String a = new StringBuilder(Marshaller.CN_MARKER_PREFIX)
+					.append(marker.toInt()).toString();
+			attributes.add(a);
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Aggregate messages to provide stats
+	 */
+	protected class MessageAggregator
+	{
+		private final Map<UUID, Message> messages;
+		private final HashSet<UUID> invalidMessageIds;
+
+		public MessageAggregator(final Mailbox mailbox, final List<UUID> messageIds)
+		{
+			// get message stats
+			messages = fetchSummaries(mailbox, messageIds);
+
+			invalidMessageIds = new HashSet<UUID>(messageIds);
+			invalidMessageIds.removeAll(this.getValidMessageIds());
+		}
+
+		/**
+		 * Get message
+		 * 
+		 * @param messageId
+		 * @return
+		 */
+		public Message getMessage(UUID messageId)
+		{
+			return messages.get(messageId);
+		}
+
+		/**
+		 * Get aggregated {@link LabelCounter} stats for each label in the list of
+		 * messages. Results aggregated by label ID.
+		 * 
+		 * @return
+		 */
+		public LabelMap aggregateCountersByLabel()
+		{
+			LabelMap labels = new LabelMap();
+
+			// get all labels of all messages, including label "all"
+			for (UUID messageId : this.messages.keySet())
+			{
+				Set<Integer> messageLabels = this.messages.get(messageId).getLabels();
+	
+				for (int labelId : messageLabels)
+				{
+					if (!labels.containsId(labelId)) {
+						Label label = new Label(labelId).
+								setCounters(this.messages.get(messageId).getLabelCounters());
+						labels.put(label);
+					} else {
+						labels.get(labelId).getCounters().add(
+								this.messages.get(messageId).getLabelCounters());
+					}
+				}
+			}
+
+			return labels;
+		}
+
+		/**
+		 * Returns message IDs which exist in message metadata.
+		 * 
+		 * In some cases, message can be deleted from metadata but not from
+		 * index. Use this method to filter out such messages.
+		 * 
+		 * @return
+		 */
+		public Set<UUID> getValidMessageIds() {
+			return messages.keySet();
+		}
+
+		/**
+		 * Returns message IDs which do not exist in message metadata.
+		 * 
+		 * @return
+		 */
+		public Set<UUID> getInvalidMessageIds() {
+			return invalidMessageIds;
+		}
+	}
 }
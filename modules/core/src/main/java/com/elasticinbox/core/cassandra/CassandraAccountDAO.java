@@ -31,7 +31,9 @@ package com.elasticinbox.core.cassandra;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -46,23 +48,29 @@ import org.slf4j.LoggerFactory;
 import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.AccountDAO;
 import com.elasticinbox.core.MessageDAO;
-import com.elasticinbox.core.blob.store.BlobStorage;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.blob.store.AsyncBlobStorage;
 import com.elasticinbox.core.blob.store.BlobStorageMediator;
+import com.elasticinbox.core.blob.store.BlobStoreExecutors;
 import com.elasticinbox.core.cassandra.persistence.AccountPersistence;
 import com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence;
 import com.elasticinbox.core.cassandra.persistence.LabelIndexPersistence;
 import com.elasticinbox.core.cassandra.persistence.MessagePersistence;
+import com.elasticinbox.core.cassandra.persistence.MetadataLayout;
 import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.core.model.Message;
 import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public final class CassandraAccountDAO implements AccountDAO
 {
 	private final Keyspace keyspace;
 	private final static StringSerializer strSe = StringSerializer.get();
 
-	private final BlobStorage blobStorage;
+	private final AsyncBlobStorage blobStorage;
 
 	@SuppressWarnings("unused")
 	private final static Logger logger = LoggerFactory
@@ -76,7 +84,15 @@ public final class CassandraAccountDAO implements AccountDAO
 	@Override
 	public void add(final Mailbox mailbox) throws IOException, IllegalArgumentException
 	{
-		// currently nothing happens here
+		RoutingKey.set(mailbox.getId());
+
+		// new mailboxes start with composite metadata layout, no migration needed
+		if (Configurator.isCassandraCompositeMetadataEnabled()
+				&& AccountPersistence.getMetadataLayout(mailbox.getId()) == MetadataLayout.SUPER
+				&& MessagePersistence.getRange(mailbox.getId(), null, 1).isEmpty())
+		{
+			AccountPersistence.setMetadataLayout(mailbox.getId(), MetadataLayout.COMPOSITE);
+		}
 
 		//Map<String, Object> attributes = new HashMap<String, Object>();
 
@@ -91,6 +107,8 @@ public final class CassandraAccountDAO implements AccountDAO
 	@Override
 	public void delete(final Mailbox mailbox) throws IOException
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// purge all previously deleted objects
 		// TODO: we should not instantiate here
 		MessageDAO messageDAO = new CassandraMessageDAO(keyspace);
@@ -98,29 +116,28 @@ public final class CassandraAccountDAO implements AccountDAO
 
 		// delete all objects from object store
 		try {
-			List<UUID> messageIds = null;
-			UUID start = null;
-	
+			Iterator<List<UUID>> batches = Iterators.partition(
+					LabelIndexPersistence.getCursor(mailbox.getId(), ReservedLabels.ALL_MAILS.getId(), true),
+					BatchConstants.BATCH_READS);
+
 			// loop until we delete all items
-			do {
+			while (batches.hasNext())
+			{
 				// get all message ids
-				messageIds = LabelIndexPersistence.get(mailbox.getId(),
-						ReservedLabels.ALL_MAILS.getId(), start,
-						BatchConstants.BATCH_READS, true);
-	
-				// get all message headers
+				List<UUID> messageIds = batches.next();
+
+				// get blob locations
 				Map<UUID, Message> messages = 
-						MessagePersistence.fetch(mailbox.getId(), messageIds, false);
+						MessagePersistence.fetch(mailbox.getId(), messageIds, MessageProjection.LOCATION);
 	
-				// delete message sources from object store
+				// delete message sources from object store, concurrently
+				List<ListenableFuture<Void>> deletions = 
+						new ArrayList<ListenableFuture<Void>>(messages.size());
 				for(UUID messageId : messages.keySet()) {
-					blobStorage.delete(messages.get(messageId).getLocation());
+					deletions.add(blobStorage.deleteAsync(messages.get(messageId).getLocation()));
 				}
-	
-				// set start element for the next loop
-				start = messageIds.isEmpty() ? null : messageIds.get(messageIds.size()-1);
+				BlobStoreExecutors.waitForAll(deletions);
 			}
-			while (messageIds.size() >= BatchConstants.BATCH_READS);
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
@@ -142,6 +159,7 @@ public final class CassandraAccountDAO implements AccountDAO
 		
 		// commit batch operation
 		m.execute();
+		AccountPersistence.invalidateLabels(mailbox.getId());
 	}
 
 	/**
@@ -28,6 +28,9 @@
 
 package com.elasticinbox.core.cassandra;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,11 +38,16 @@ import org.slf4j.LoggerFactory;
 import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.AccountDAO;
 import com.elasticinbox.core.DAOFactory;
+import com.elasticinbox.core.JobDAO;
 import com.elasticinbox.core.LabelDAO;
 import com.elasticinbox.core.MessageDAO;
-import com.elasticinbox.core.cassandra.utils.QuorumConsistencyLevel;
+import com.elasticinbox.core.cassandra.persistence.LabelCounterAggregator;
+import com.elasticinbox.core.cassandra.utils.OperationConsistencyLevel;
 import com.elasticinbox.core.cassandra.utils.Speed4jOpTimer;
+import com.elasticinbox.core.cassandra.utils.TokenAwareBalancingPolicy;
+import com.elasticinbox.core.cassandra.utils.TokenRing;
 
+import me.prettyprint.cassandra.connection.LeastActiveBalancingPolicy;
 import me.prettyprint.cassandra.service.CassandraHostConfigurator;
 import me.prettyprint.cassandra.service.FailoverPolicy;
 import me.prettyprint.hector.api.Cluster;
@@ -56,6 +64,7 @@ public final class CassandraDAOFactory extends DAOFactory
 
 	public final static String CF_ACCOUNTS = "Accounts";
 	public final static String CF_METADATA = "MessageMetadata";
+	public final static String CF_MESSAGE_ATTRIBUTES = "MessageAttributes";
 	public final static String CF_BLOB = "MessageBlob";
 	public final static String CF_LABEL_INDEX = "IndexLabels";
 	public final static String CF_COUNTERS = "Counters";
@@ -89,6 +98,11 @@ public final class CassandraDAOFactory extends DAOFactory
 		return new CassandraLabelDAO(keyspace);
 	}
 
+	@Override
+	public JobDAO getJobDAO() {
+		return new CassandraJobDAO(keyspace);
+	}
+
 	static
 	{
 		// Build connection string
@@ -98,19 +112,27 @@ public final class CassandraDAOFactory extends DAOFactory
 		// Create host configuration
 		CassandraHostConfigurator cassConfig = new CassandraHostConfigurator(hosts);
 
-		// Load Balancing Policy
-		//config.setLoadBalancingPolicy(new LeastActiveBalancingPolicy());
-
 		// Auto-discover Cassandra hosts
 		if(Configurator.isCassandraAutodiscoveryEnabled()) {
 			cassConfig.setAutoDiscoverHosts(true);
 		}
 
 		// Enable performance logging
+		Speed4jOpTimer opTimer = null;
 		if (Configurator.isPerformanceCountersEnabled()) {
-			cassConfig.setOpTimer(new Speed4jOpTimer());
+			opTimer = new Speed4jOpTimer();
+			cassConfig.setOpTimer(opTimer);
 		}
 
+		// Load Balancing Policy
+		String loadBalancing = Configurator.getCassandraLoadBalancing();
+		if (loadBalancing.equals("leastactive")) {
+			cassConfig.setLoadBalancingPolicy(new LeastActiveBalancingPolicy());
+		} else if (loadBalancing.equals("tokenaware")) {
+			cassConfig.setLoadBalancingPolicy(new TokenAwareBalancingPolicy(opTimer));
+		}
+		logger.info("Using {} load balancing policy", loadBalancing);
+
 		// Create cluster connections
 		Cluster cluster = HFactory.getOrCreateCluster(
 				Configurator.getCassandraClusterName(), cassConfig);
@@ -119,10 +141,34 @@ public final class CassandraDAOFactory extends DAOFactory
 		FailoverPolicy fp = new FailoverPolicy(Configurator.getCassandraHosts().size(), 0);
 
 		// Consistency Level Policy
-		ConsistencyLevelPolicy clp = new QuorumConsistencyLevel();
+		ConsistencyLevelPolicy clp = new OperationConsistencyLevel();
 
 		// Use/Create keyspace and set Consistency Level
 		keyspace = HFactory.createKeyspace(Configurator.getCassandraKeyspace(), cluster, clp, fp);
+
+		// Replicas of the rows for token aware routing
+		if (loadBalancing.equals("tokenaware")) {
+			TokenRing.start(keyspace, Configurator.getCassandraKeyspace());
+		}
+
+		// Aggregate label counter updates on this node
+		if (Configurator.getCassandraCountersFlushInterval() > 0) {
+			try {
+				LabelCounterAggregator.start(new File(Configurator.getCassandraCountersLog()),
+						Configurator.getCassandraCountersFlushInterval());
+			} catch (IOException e) {
+				logger.error("Unable to open counters log, counters will be written directly: ", e);
+			}
+		}
+
+		// Purge and scrub all mailboxes in background
+		if (!Configurator.getCassandraMaintenanceTasks().isEmpty()) {
+			MaintenanceRunner.start(keyspace, Configurator.getCassandraKeyspace(),
+					Configurator.getCassandraMaintenanceTasks(),
+					Configurator.getCassandraMaintenanceIOBudget(),
+					Configurator.getCassandraMaintenanceInterval(),
+					Configurator.getCassandraMaintenancePurgeAge());
+		}
 	}
 
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+import java.util.UUID;
+
+import me.prettyprint.hector.api.Keyspace;
+
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.JobDAO;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.MigrationJob;
+import com.elasticinbox.core.model.ScrubJob;
+
+public final class CassandraJobDAO implements JobDAO
+{
+	private final CassandraMessageDAO messageDAO;
+
+	public CassandraJobDAO(Keyspace keyspace) {
+		this.messageDAO = new CassandraMessageDAO(keyspace);
+	}
+
+	@Override
+	public ScrubJob startScrub(final Mailbox mailbox, final boolean rebuildIndex)
+	{
+		RoutingKey.set(mailbox.getId());
+		return ScrubJobRunner.getInstance().start(messageDAO, mailbox, rebuildIndex);
+	}
+
+	@Override
+	public ScrubJob getScrubJob(final Mailbox mailbox, final UUID jobId)
+	{
+		RoutingKey.set(mailbox.getId());
+		return ScrubJobRunner.getInstance().get(messageDAO, mailbox, jobId);
+	}
+
+	@Override
+	public MigrationJob startMigration(final Mailbox mailbox, final MigrationJob.Type type)
+	{
+		if (type == MigrationJob.Type.METADATA
+				&& !Configurator.isCassandraCompositeMetadataEnabled()) {
+			throw new IllegalStateException("Composite metadata layout is not enabled");
+		}
+
+		if (type == MigrationJob.Type.INDEXES
+				&& !Configurator.isCassandraBucketedLabelIndexEnabled()) {
+			throw new IllegalStateException("Bucketed label index layout is not enabled");
+		}
+
+		RoutingKey.set(mailbox.getId());
+		return MigrationJobRunner.getInstance().start(messageDAO, mailbox, type);
+	}
+
+	@Override
+	public MigrationJob getMigrationJob(final Mailbox mailbox,
+			final MigrationJob.Type type, final UUID jobId)
+	{
+		RoutingKey.set(mailbox.getId());
+		return MigrationJobRunner.getInstance().get(messageDAO, mailbox, type, jobId);
+	}
+}
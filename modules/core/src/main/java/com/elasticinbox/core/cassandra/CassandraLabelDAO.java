@@ -32,10 +32,12 @@ import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,15 +48,19 @@ import com.elasticinbox.core.LabelDAO;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.MessageModification;
 import com.elasticinbox.core.cassandra.persistence.AccountPersistence;
+import com.elasticinbox.core.cassandra.persistence.LabelCounterDeltas;
 import com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence;
 import com.elasticinbox.core.cassandra.persistence.LabelIndexPersistence;
+import com.elasticinbox.core.cassandra.persistence.LabelSnapshotCache;
 import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
 import com.elasticinbox.core.model.Label;
 import com.elasticinbox.core.model.LabelCounters;
 import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.core.model.ReservedLabels;
 import com.elasticinbox.core.utils.LabelUtils;
+import com.google.common.collect.Iterators;
 
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.hector.api.Keyspace;
@@ -75,12 +81,26 @@ public final class CassandraLabelDAO implements LabelDAO
 	@Override
 	public LabelMap getAllWithMetadata(final Mailbox mailbox)
 			throws IOException
+	{
+		RoutingKey.set(mailbox.getId());
+
+		// concurrent polls of the same mailbox share single snapshot
+		return LabelSnapshotCache.getInstance().get(mailbox.getId(),
+				new Callable<LabelMap>() {
+					@Override
+					public LabelMap call() {
+						return getLabelsWithCounters(mailbox.getId());
+					}
+				});
+	}
+
+	private static LabelMap getLabelsWithCounters(final String mailbox)
 	{
 		// get labels
-		LabelMap labels = AccountPersistence.getLabels(mailbox.getId());
+		LabelMap labels = AccountPersistence.getLabels(mailbox);
 
 		// set labels' counters
-		Map<Integer, LabelCounters> counters = LabelCounterPersistence.getAll(mailbox.getId());
+		Map<Integer, LabelCounters> counters = LabelCounterPersistence.getAll(mailbox);
 
 		for (int labelId : counters.keySet())
 		{
@@ -90,7 +110,7 @@ public final class CassandraLabelDAO implements LabelDAO
 				// assume zeros for all counters if not yet initialised
 				labels.get(labelId).setCounters(new LabelCounters());
 			} else if (!labels.containsId(labelId) && counters.containsKey(labelId)) {
-				logger.warn("Found counters for label {}/{}, but label does not exist.", mailbox.getId(), labelId);
+				logger.warn("Found counters for label {}/{}, but label does not exist.", mailbox, labelId);
 			}
 		}
 
@@ -99,12 +119,16 @@ public final class CassandraLabelDAO implements LabelDAO
 
 	@Override
 	public Map<Integer, String> getAll(final Mailbox mailbox) {
+		RoutingKey.set(mailbox.getId());
+
 		return AccountPersistence.getLabels(mailbox.getId()).getNameMap();
 	}
 
 	@Override
 	public int add(Mailbox mailbox, Label label)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// get all existing labels
 		LabelMap existingLabels = AccountPersistence.getLabels(mailbox.getId());
 
@@ -129,6 +153,7 @@ public final class CassandraLabelDAO implements LabelDAO
 
 		// commit batch operation
 		mutator.execute();
+		AccountPersistence.invalidateLabels(mailbox.getId());
 
 		return label.getId();
 	}
@@ -136,6 +161,8 @@ public final class CassandraLabelDAO implements LabelDAO
 	@Override
 	public void update(Mailbox mailbox, Label label) throws IOException
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// get all existing labels
 		LabelMap existingLabels = AccountPersistence.getLabels(mailbox.getId());
 
@@ -162,11 +189,14 @@ public final class CassandraLabelDAO implements LabelDAO
 		
 		// commit batch operation
 		mutator.execute();
+		AccountPersistence.invalidateLabels(mailbox.getId());
 	}
 
 	@Override
 	public void delete(final Mailbox mailbox, final Integer labelId)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// check if label reserved
 		if(ReservedLabels.contains(labelId)) {
 			throw new IllegalLabelException("This is reserved label and can't be modified");
@@ -175,21 +205,20 @@ public final class CassandraLabelDAO implements LabelDAO
 		// get message DAO object
 		MessageDAO messageDAO = new CassandraMessageDAO(keyspace);
 
-		List<UUID> messageIds = null;
 		Set<Integer> labelIds = new HashSet<Integer>(1);
 		labelIds.add(labelId);
 
-		// loop until we delete all items
-		do {
-			// get message ids of label
-			messageIds = LabelIndexPersistence.get(mailbox.getId(), labelId,
-					null, BatchConstants.BATCH_READS, false);
+		Iterator<List<UUID>> batches = Iterators.partition(
+				LabelIndexPersistence.getCursor(mailbox.getId(), labelId, false),
+				BatchConstants.BATCH_READS);
 
+		// loop until we delete all items
+		while (batches.hasNext())
+		{
 			// remove label from message metadata
-			messageDAO.modify(mailbox, messageIds, 
+			messageDAO.modify(mailbox, batches.next(), 
 					new MessageModification.Builder().removeLabels(labelIds).build());
 		}
-		while (messageIds.size() >= BatchConstants.BATCH_READS);
 
 		// begin batch operation
 		Mutator<String> m = createMutator(keyspace, strSe);
@@ -205,16 +234,20 @@ public final class CassandraLabelDAO implements LabelDAO
 
 		// commit batch operation
 		m.execute();
+		AccountPersistence.invalidateLabels(mailbox.getId());
 	}
 
 	@Override
 	public void setCounters(Mailbox mailbox, LabelMap newCounters)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		Map<Integer, LabelCounters> existingCounters = 
 				LabelCounterPersistence.getAll(mailbox.getId());
 
 		// begin batch operation
 		Mutator<String> m = createMutator(keyspace, strSe);
+		LabelCounterDeltas deltas = new LabelCounterDeltas();
 
 		// update with the new counter values
 		for (Label label : newCounters.values())
@@ -230,7 +263,7 @@ public final class CassandraLabelDAO implements LabelDAO
 					"Recalculated counters for label {}:\n\tCurrent: {}\n\tCalculated: {}\n\tDiff: {}",
 					new Object[] { labelId, existingCounters.get(labelId), label.getCounters(), diff });
 
-			LabelCounterPersistence.add(m, mailbox.getId(), labelId, diff);
+			LabelCounterPersistence.add(m, mailbox.getId(), labelId, diff, deltas);
 		}
 
 		// reset non-existing counters
@@ -238,11 +271,13 @@ public final class CassandraLabelDAO implements LabelDAO
 		{
 			if (!newCounters.containsId(labelId)) {
 				LabelCounterPersistence.subtract(
-						m, mailbox.getId(), labelId, existingCounters.get(labelId));
+						m, mailbox.getId(), labelId, existingCounters.get(labelId), deltas);
 			}
 		}
 
 		m.execute();
+		deltas.commit();
+		LabelSnapshotCache.getInstance().invalidate(mailbox.getId());
 	}
 
 }
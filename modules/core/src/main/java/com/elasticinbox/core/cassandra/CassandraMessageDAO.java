@@ -30,12 +30,15 @@ package com.elasticinbox.core.cassandra;
 
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +47,10 @@ import java.util.UUID;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.utils.TimeUUIDUtils;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.mutation.Mutator;
 
 import org.slf4j.Logger;
@@ -53,16 +60,19 @@ import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.IllegalLabelException;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.MessageModification;
+import com.elasticinbox.core.MessageProjection;
 import com.elasticinbox.core.OverQuotaException;
 import com.elasticinbox.core.blob.BlobDataSource;
 import com.elasticinbox.core.blob.compression.CompressionHandler;
 import com.elasticinbox.core.blob.compression.DeflateCompressionHandler;
 import com.elasticinbox.core.blob.encryption.AESEncryptionHandler;
 import com.elasticinbox.core.blob.encryption.EncryptionHandler;
-import com.elasticinbox.core.blob.store.BlobStorage;
 import com.elasticinbox.core.blob.store.BlobStorageMediator;
+import com.elasticinbox.core.blob.store.BlobStoreExecutors;
 import com.elasticinbox.core.cassandra.persistence.*;
+import com.elasticinbox.core.cassandra.utils.AdaptiveThrottle;
 import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
 import com.elasticinbox.core.cassandra.utils.ThrottlingMutator;
 import com.elasticinbox.core.model.Label;
 import com.elasticinbox.core.model.LabelCounters;
@@ -70,15 +80,22 @@ import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.core.model.Marker;
 import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
+import com.elasticinbox.core.model.MigrationJob;
 import com.elasticinbox.core.model.ReservedLabels;
+import com.elasticinbox.core.model.ScrubJob;
+import com.elasticinbox.core.utils.UUIDSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.RateLimiter;
 
 public final class CassandraMessageDAO extends AbstractMessageDAO implements MessageDAO
 {
 	private final Keyspace keyspace;
 	private final static StringSerializer strSe = StringSerializer.get();
 	
-	private final BlobStorage blobStorage;
+	private final BlobStorageMediator blobStorage;
 
 	private final static Logger logger = 
 			LoggerFactory.getLogger(CassandraMessageDAO.class);
@@ -99,6 +116,8 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 	@Override
 	public Message getParsed(final Mailbox mailbox, final UUID messageId)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		return MessagePersistence.fetch(mailbox.getId(), messageId, true);
 	}
 
@@ -106,24 +125,101 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 	public BlobDataSource getRaw(final Mailbox mailbox, final UUID messageId)
 			throws IOException
 	{
-		Message metadata = MessagePersistence.fetch(mailbox.getId(), messageId, false);
-		return blobStorage.read(metadata.getLocation());
+		RoutingKey.set(mailbox.getId());
+
+		// inlined blob is fetched together with metadata
+		ByteArrayOutputStream inlineBlob = new ByteArrayOutputStream();
+		Message metadata = MessagePersistence.fetch(mailbox.getId(), messageId, inlineBlob);
+
+		if (metadata.getLocation() != null
+				&& BlobStorageMediator.isInlineProfile(metadata.getLocation())) {
+			return blobStorage.readInline(metadata.getLocation(), inlineBlob.toByteArray());
+		} else {
+			return blobStorage.read(metadata.getLocation());
+		}
 	}
 
 	@Override
 	public Map<UUID, Message> getMessageIdsWithMetadata(final Mailbox mailbox,
-			final int labelId, final UUID start, final int count, boolean reverse, boolean includeBody)
+			final int labelId, final UUID start, final int count, boolean reverse,
+			final MessageProjection projection)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		List<UUID> messageIds = 
 				getMessageIds(mailbox, labelId, start, count, reverse);
 
-		return MessagePersistence.fetch(mailbox.getId(), messageIds, includeBody);
+		return MessagePersistence.fetch(mailbox.getId(), messageIds, projection);
+	}
+
+	@Override
+	public List<UUID> getUnreadMessageIds(final Mailbox mailbox, final int labelId,
+			final UUID start, final int count, final boolean reverse)
+	{
+		RoutingKey.set(mailbox.getId());
+
+		return LabelIndexPersistence.getUnread(mailbox.getId(), labelId, start, count, reverse);
+	}
+
+	@Override
+	public Map<UUID, Message> getUnreadMessageIdsWithMetadata(final Mailbox mailbox,
+			final int labelId, final UUID start, final int count, boolean reverse,
+			final MessageProjection projection)
+	{
+		RoutingKey.set(mailbox.getId());
+
+		List<UUID> messageIds = 
+				getUnreadMessageIds(mailbox, labelId, start, count, reverse);
+
+		return MessagePersistence.fetch(mailbox.getId(), messageIds, projection);
+	}
+
+	@Override
+	public Map<UUID, MessageSummary> getMessageSummaries(final Mailbox mailbox,
+			final int labelId, final UUID start, final int count, boolean reverse)
+	{
+		RoutingKey.set(mailbox.getId());
+
+		Map<UUID, MessageSummary> summaries = LabelIndexPersistence.getSummaries(
+				mailbox.getId(), labelId, start, count, reverse);
+
+		// index entries written before summaries were introduced have no
+		// summary, fall back to metadata for such messages
+		List<UUID> missing = new ArrayList<UUID>();
+		for (Map.Entry<UUID, MessageSummary> entry : summaries.entrySet()) {
+			if (entry.getValue() == null) {
+				missing.add(entry.getKey());
+			}
+		}
+
+		if (!missing.isEmpty())
+		{
+			logger.debug("Index {}:{} has {} messages without summary",
+					new Object[] { mailbox.getId(), labelId, missing.size() });
+
+			Map<UUID, Message> messages = MessagePersistence.fetch(
+					mailbox.getId(), missing, MessageProjection.SUMMARY);
+
+			for (UUID messageId : missing)
+			{
+				if (messages.containsKey(messageId)) {
+					summaries.put(messageId, MessageSummary.fromMessage(messages.get(messageId)));
+				} else {
+					// message deleted from metadata but not from index
+					summaries.remove(messageId);
+				}
+			}
+		}
+
+		return summaries;
 	}
 
 	@Override
 	public List<UUID> getMessageIds(final Mailbox mailbox, final int labelId,
 			final UUID start, final int count, final boolean reverse)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		return LabelIndexPersistence.get(mailbox.getId(), labelId, start, count, reverse);
 	}
 
@@ -131,7 +227,10 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 	public void put(final Mailbox mailbox, UUID messageId, Message message, InputStream in)
 			throws IOException, OverQuotaException
 	{
+		RoutingKey.set(mailbox.getId());
+
 		URI uri = null;
+		ByteArrayOutputStream inlineBlob = null;
 		logger.debug("Storing message: key={}", messageId.toString());
 
 		// Check quota
@@ -158,10 +257,16 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 		if (in != null)
 		{
 			try {
+				// small blobs are returned for storing inline with metadata
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
 				uri = blobStorage.write(messageId, mailbox,
-						Configurator.getBlobStoreWriteProfileName(), in, message.getSize())
+						Configurator.getBlobStoreWriteProfileName(), in, message.getSize(), out)
 						.buildURI();
 
+				if (BlobStorageMediator.isInlineProfile(uri)) {
+					inlineBlob = out;
+				}
+
 				// update location in metadata
 				message.setLocation(uri);
 			} catch (Exception e) {
@@ -176,19 +281,34 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 		// automatically add "all" label to all new messages
 		message.addLabel(ReservedLabels.ALL_MAILS.getId());
 
+		LabelCounterDeltas deltas = new LabelCounterDeltas();
+
 		try {
 			// begin batch operation
 			Mutator<String> m = createMutator(keyspace, strSe);
 
-			// store metadata
-			MessagePersistence.persistMessage(m, mailbox.getId(), messageId, message);
+			// store metadata, with inlined blob if any
+			if (inlineBlob != null) {
+				MessagePersistence.persistMessage(m, mailbox.getId(), messageId,
+						message, inlineBlob.toByteArray());
+			} else {
+				MessagePersistence.persistMessage(m, mailbox.getId(), messageId, message);
+			}
 			// add indexes
-			LabelIndexPersistence.add(m, mailbox.getId(), messageId, message.getLabels());
+			LabelIndexPersistence.add(m, mailbox.getId(), messageId, message.getLabels(),
+					MessageSummary.fromMessage(message));
+			if (!message.getMarkers().contains(Marker.SEEN)) {
+				LabelIndexPersistence.addUnread(m, mailbox.getId(), messageId, message.getLabels());
+			}
 			// update counters
-			LabelCounterPersistence.add(m, mailbox.getId(), message.getLabels(), message.getLabelCounters());
+			LabelCounterPersistence.add(m, mailbox.getId(), message.getLabels(),
+					message.getLabelCounters(), deltas);
 
 			// commit batch operation
 			m.execute();
+
+			MetadataCache.getInstance().invalidate(mailbox.getId(), messageId);
+			LabelSnapshotCache.getInstance().invalidate(mailbox.getId());
 		} catch (Exception e) {
 			logger.warn(
 					"Unable to store metadata for message {}, deleting blob {}",
@@ -201,116 +321,123 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 
 			throw new IOException("Unable to store message metadata: ", e);
 		}
+
+		// counters are updated only once message is stored
+		deltas.commit();
 	}
 	
 	@Override
-	public void modify(Mailbox mailbox, List<UUID> messageIds, MessageModification mod)
+	public void modify(final Mailbox mailbox, List<UUID> messageIds, MessageModification mod)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// label "all" cannot be removed from message
 		if (mod.getLabelsToRemove().contains(ReservedLabels.ALL_MAILS.getId())) {
 			throw new IllegalLabelException("This label cannot be removed");
 		}
 
 		// begin batch operation
-		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
-				BatchConstants.BATCH_WRITES, BatchConstants.BATCH_WRITE_INTERVAL);
+		final ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
+				AdaptiveThrottle.getInstance());
 
-		// prepare message attributes
-		Set<String> labelsToAddAsAttributes = labelsToMessageAttibutes(mod.getLabelsToAdd());
-		Set<String> labelsToRemoveAsAttributes = labelsToMessageAttibutes(mod.getLabelsToRemove());
-		Set<String> markersToAddAsAttributes = markersToMessageAttibutes(mod.getMarkersToAdd());
-		Set<String> markersToRemoveAsAttributes = markersToMessageAttibutes(mod.getMarkersToRemove());
+		ModificationWriter writer = new ModificationWriter() {
+			@Override
+			public void persistAttributes(UUID messageId, Set<String> attributes) {
+				MessagePersistence.persistAttributes(mutator, mailbox.getId(), messageId, attributes);
+			}
 
-		// get message stats for counters
-		MessageAggregator ma = new MessageAggregator(mailbox, messageIds);
+			@Override
+			public void deleteAttributes(UUID messageId, Set<String> attributes) {
+				MessagePersistence.deleteAttributes(mutator, mailbox.getId(), messageId, attributes);
+			}
 
-		for (UUID messageId : ma.getValidMessageIds())
-		{
-			Message message = ma.getMessage(messageId);
+			@Override
+			public void addToIndexes(UUID messageId, Set<Integer> labelIds, MessageSummary summary) {
+				LabelIndexPersistence.add(mutator, mailbox.getId(), messageId, labelIds, summary);
+			}
 
-			// add labels
-			if (!mod.getLabelsToAdd().isEmpty())
-			{
-				// add labels to messages
-				MessagePersistence.persistAttributes(mutator, mailbox.getId(), messageId, labelsToAddAsAttributes);
+			@Override
+			public void removeFromIndexes(UUID messageId, Set<Integer> labelIds) {
+				LabelIndexPersistence.remove(mutator, mailbox.getId(), messageId, labelIds);
+			}
 
-				// add messages to label index
-				LabelIndexPersistence.add(mutator, mailbox.getId(), messageId, mod.getLabelsToAdd());
+			@Override
+			public void addToUnreadIndexes(UUID messageId, Set<Integer> labelIds) {
+				LabelIndexPersistence.addUnread(mutator, mailbox.getId(), messageId, labelIds);
+			}
 
-				// increment label counters
-				for (int labelId : mod.getLabelsToAdd())
-				{
-					// count only if message does not have label
-					if (!message.getLabels().contains(labelId)) {
-						LabelCounterPersistence.add(mutator, mailbox.getId(), labelId, message.getLabelCounters());
-					}
-				}
+			@Override
+			public void removeFromUnreadIndexes(UUID messageId, Set<Integer> labelIds) {
+				LabelIndexPersistence.removeUnread(mutator, mailbox.getId(), messageId, labelIds);
 			}
+		};
+
+		// attribute changes applied to cached metadata and counter deltas
+		// handed over to aggregator once written
+		Map<UUID, AttributeChanges> changes = new HashMap<UUID, AttributeChanges>();
+		LabelCounterDeltas deltas = new LabelCounterDeltas();
+		boolean written = false;
 
-			// remove labels
-			if (!mod.getLabelsToRemove().isEmpty())
+		try {
+			// stream over message ids in read batches
+			for (List<UUID> idSubList : Lists.partition(messageIds, BatchConstants.BATCH_READS))
 			{
-				// remove labels from messages
-				MessagePersistence.deleteAttributes(mutator, mailbox.getId(), messageId, labelsToRemoveAsAttributes);
+				// get message stats for counters
+				MessageAggregator ma = new MessageAggregator(mailbox, idSubList);
 
-				// remove messages from label index
-				LabelIndexPersistence.remove(mutator, mailbox.getId(), messageId, mod.getLabelsToRemove());
+				// counter deltas aggregated by label within read batch
+				Map<Integer, LabelCounters> counterDeltas = new HashMap<Integer, LabelCounters>();
 
-				// decrement label counters
-				for (int labelId : mod.getLabelsToRemove())
+				for (UUID messageId : ma.getValidMessageIds())
 				{
-					// count only if message had label
-					if (message.getLabels().contains(labelId)) {
-						LabelCounterPersistence.subtract(mutator, mailbox.getId(), labelId, message.getLabelCounters());
-					}
+					changes.put(messageId, planModification(writer, messageId,
+							ma.getMessage(messageId), mod, counterDeltas));
+					mutator.executeIfFull();
 				}
-			}
 
-			// add markers
-			if (!mod.getMarkersToAdd().isEmpty())
-			{
-				// add markers to messages
-				MessagePersistence.persistAttributes(mutator, mailbox.getId(), messageIds, markersToAddAsAttributes);
-
-				// decrement unread message counter only if message does not have SEEN marker
-				if (mod.getMarkersToAdd().contains(Marker.SEEN) && !message.getMarkers().contains(Marker.SEEN))
-				{
-					LabelCounters labelCounters = new LabelCounters();
-					labelCounters.setUnreadMessages(1L);
-					LabelCounterPersistence.subtract(mutator, mailbox.getId(), message.getLabels(), labelCounters);
+				// single counter update per label
+				for (Map.Entry<Integer, LabelCounters> delta : counterDeltas.entrySet()) {
+					LabelCounterPersistence.add(mutator, mailbox.getId(),
+							delta.getKey(), delta.getValue(), deltas);
 				}
+
+				mutator.executeIfFull();
 			}
-			
-			// remove markers
-			if (!mod.getMarkersToRemove().isEmpty())
+
+			mutator.execute();
+			deltas.commit();
+			written = true;
+		} finally {
+			LabelSnapshotCache.getInstance().invalidate(mailbox.getId());
+
+			MetadataCache cache = MetadataCache.getInstance();
+
+			for (UUID messageId : changes.keySet())
 			{
-				// remove markers from messages
-				MessagePersistence.deleteAttributes(mutator, mailbox.getId(), messageIds, markersToRemoveAsAttributes);
+				AttributeChanges change = changes.get(messageId);
 
-				// increment unread message counter only if message has SEEN marker
-				if (mod.getMarkersToRemove().contains(Marker.SEEN) && message.getMarkers().contains(Marker.SEEN))
-				{
-					LabelCounters labelCounters = new LabelCounters();
-					labelCounters.setUnreadMessages(1L);
-					LabelCounterPersistence.add(mutator, mailbox.getId(), message.getLabels(), labelCounters);
+				// part of the changes may be written
+				if (!written) {
+					cache.invalidate(mailbox.getId(), messageId);
+				} else if (!change.isEmpty()) {
+					cache.update(mailbox.getId(), messageId, change.getAdded(), change.getRemoved());
 				}
 			}
-
-			mutator.executeIfFull();
 		}
-
-		mutator.execute();
 	}
 
 	@Override
 	public void delete(final Mailbox mailbox, final List<UUID> messageIds)
 	{
+		RoutingKey.set(mailbox.getId());
+
 		// begin batch operation
 		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
-				BatchConstants.BATCH_WRITES, BatchConstants.BATCH_WRITE_INTERVAL);
+				AdaptiveThrottle.getInstance());
 		
 		// READ:WRITE ration is 1:5
 		final int readBatchSize = BatchConstants.BATCH_WRITES / 5;
+		LabelCounterDeltas deltas = new LabelCounterDeltas();
 
 		for (List<UUID> idSubList : Lists.partition(messageIds, readBatchSize))
 		{
@@ -330,7 +457,8 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 
 			// decrement label counters (add negative value)
 			for (Integer labelId : labels.getIds()) {
-				LabelCounterPersistence.subtract(mutator, mailbox.getId(), labelId, labels.get(labelId).getCounters());
+				LabelCounterPersistence.subtract(mutator, mailbox.getId(), labelId,
+						labels.get(labelId).getCounters(), deltas);
 			}
 
 			// remove invalid message ids from all known labels
@@ -343,35 +471,62 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 
 		// commit batch operation
 		mutator.execute();
+		deltas.commit();
+		LabelSnapshotCache.getInstance().invalidate(mailbox.getId());
 	}
 
 	@Override
 	public void purge(final Mailbox mailbox, final Date age) throws IOException
 	{
+		purge(mailbox, age, null);
+	}
+
+	/**
+	 * Purge messages deleted before given date. Each batch acquires its read
+	 * size from the given budget.
+	 * 
+	 * @param mailbox
+	 * @param age
+	 * @param budget
+	 *            Rate limit in messages, or <code>null</code> if unlimited
+	 * @throws IOException
+	 */
+	void purge(final Mailbox mailbox, final Date age, final RateLimiter budget) throws IOException
+	{
+		RoutingKey.set(mailbox.getId());
+
 		Map<UUID, UUID> purgeIndex = null;
+		List<UUID> purged = new ArrayList<UUID>();
 
 		logger.debug("Purging all messages older than {} for {}", age.toString(), mailbox);
 
 		// initiate throttling mutator 
 		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
-				BatchConstants.BATCH_WRITES, BatchConstants.BATCH_WRITE_INTERVAL);
+				AdaptiveThrottle.getInstance());
 
 		// READ:WRITE ratio is 1:2
 		final int readBatchSize = BatchConstants.BATCH_WRITES / 2;
 
 		// loop until we process all purged items
 		do {
+			if (budget != null) {
+				budget.acquire(readBatchSize);
+			}
+
 			// get message IDs of messages to purge
 			purgeIndex = PurgeIndexPersistence.get(mailbox.getId(), age, readBatchSize);
 
 			// get metadata/blob location
 			Map<UUID, Message> messages = 
-					MessagePersistence.fetch(mailbox.getId(), purgeIndex.values(), false);
+					MessagePersistence.fetch(mailbox.getId(), purgeIndex.values(), MessageProjection.LOCATION);
 
-			// delete message sources from object store
+			// delete message sources from object store, concurrently
+			List<ListenableFuture<Void>> deletions = 
+					new ArrayList<ListenableFuture<Void>>(messages.size());
 			for(UUID messageId : messages.keySet()) {
-				blobStorage.delete(messages.get(messageId).getLocation());
+				deletions.add(blobStorage.deleteAsync(messages.get(messageId).getLocation()));
 			}
+			BlobStoreExecutors.waitForAll(deletions);
 
 			// purge expired (older than age) messages
 			MessagePersistence.deleteMessage(mutator, mailbox.getId(), purgeIndex.values());
@@ -381,189 +536,342 @@ public final class CassandraMessageDAO extends AbstractMessageDAO implements Mes
 			
 			// signal end of batch
 			mutator.executeIfFull();
+
+			purged.addAll(purgeIndex.values());
 		}
 		while (purgeIndex.size() >= readBatchSize);
 
 		// commit remaining items
 		mutator.execute();
+
+		for (UUID messageId : purged) {
+			MetadataCache.getInstance().invalidate(mailbox.getId(), messageId);
+		}
 	}
 
 	@Override
 	public LabelMap scrub(final Mailbox mailbox, final boolean rebuildIndex)
 	{
-		LabelMap labels = new LabelMap();
-		Map<UUID, Message> messages;
-		Set<UUID> purgePendingMessages = new HashSet<UUID>();
-		
+		return scrub(mailbox, rebuildIndex, null);
+	}
+
+	/**
+	 * Scrub mailbox, each page of messages acquires its size from the given
+	 * budget.
+	 * 
+	 * @param mailbox
+	 * @param rebuildIndex
+	 * @param budget
+	 *            Rate limit in messages, or <code>null</code> if unlimited
+	 * @return
+	 */
+	LabelMap scrub(final Mailbox mailbox, final boolean rebuildIndex, final RateLimiter budget)
+	{
+		RoutingKey.set(mailbox.getId());
+
+		ScrubJob job = new ScrubJob(null, rebuildIndex, new Date());
+
 		// initiate throttling mutator 
 		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
-				BatchConstants.BATCH_WRITES, BatchConstants.BATCH_WRITE_INTERVAL);
-		
+				AdaptiveThrottle.getInstance());
+
 		logger.debug("Recalculating counters for {}", mailbox);
 
+		if (rebuildIndex) {
+			dropUnreadIndexes(mailbox, mutator);
+		}
+
 		// Get message IDs pending purge. Such messages should be excluded during calculation.
-		purgePendingMessages = PurgeIndexPersistence.getAll(mailbox.getId());
+		UUIDSet purgePendingMessages = PurgeIndexPersistence.getAll(mailbox.getId());
 
 		logger.debug("Found {} messages pending purge. Will exclude them from calculations.", purgePendingMessages.size());
 
-		UUID start = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
 		do {
-			// reset start, read messages and calculate label counters
+			if (budget != null) {
+				budget.acquire(BatchConstants.BATCH_READS);
+			}
+		}
+		while (scrubPage(mailbox, job, purgePendingMessages, mutator));
+
+		// commit remaining items
+		mutator.execute();
+
+		return job.getCounters();
+	}
+
+	/**
+	 * Unread indexes may contain messages which were read, drop them before
+	 * rebuilding
+	 * 
+	 * @param mailbox
+	 * @param mutator
+	 */
+	void dropUnreadIndexes(final Mailbox mailbox, final ThrottlingMutator<String> mutator)
+	{
+		for (Integer labelId : AccountPersistence.getLabels(mailbox.getId()).getIds()) {
+			LabelIndexPersistence.deleteUnreadIndex(mutator, mailbox.getId(), labelId);
+		}
+		mutator.execute();
+	}
+
+	/**
+	 * Scrub next page of messages older than the job checkpoint. Counters,
+	 * checkpoint and number of scanned messages of the job are updated. Index
+	 * entries are added to the mutator, but not executed.
+	 * <p>
+	 * Reads are throttled with the shared {@link AdaptiveThrottle}, so that
+	 * scrub slows down when cluster latency grows.
+	 * 
+	 * @param mailbox
+	 * @param job
+	 * @param purgePendingMessages
+	 *            Messages excluded from the calculations
+	 * @param mutator
+	 * @return <code>true</code> if there are more messages to scrub
+	 */
+	boolean scrubPage(final Mailbox mailbox, final ScrubJob job,
+			final UUIDSet purgePendingMessages, final ThrottlingMutator<String> mutator)
+	{
+		AdaptiveThrottle throttle = AdaptiveThrottle.getInstance();
+		UUID start = (job.getCheckpoint() == null) ? 
+				TimeUUIDUtils.getUniqueTimeUUIDinMillis() : job.getCheckpoint();
+		LabelMap labels = job.getCounters();
+		Map<UUID, Message> messages;
+
+		throttle.acquire(BatchConstants.BATCH_READS);
+		long startTime = System.nanoTime();
+
+		try {
 			messages = MessagePersistence.getRange(
 					mailbox.getId(), start, BatchConstants.BATCH_READS);
+		} catch (HectorException e) {
+			if (e instanceof HTimedOutException || e instanceof HUnavailableException) {
+				throttle.onFailure();
+			}
+			throw e;
+		}
 
-			for (UUID messageId : messages.keySet())
-			{
-				start = messageId; // shift next query start
+		throttle.onSuccess((System.nanoTime() - startTime) / 1000L);
+
+		for (UUID messageId : messages.keySet())
+		{
+			// range is inclusive, checkpoint message was already counted
+			if (messageId.equals(job.getCheckpoint())) continue;
 
-				// skip messages from purge queue
-				if (purgePendingMessages.contains(messageId)) continue;
+			job.setCheckpoint(messageId); // shift next query start
+			job.setScanned(job.getScanned() + 1);
 
-				Message message = messages.get(messageId);
+			// skip messages from purge queue
+			if (purgePendingMessages.contains(messageId)) continue;
 
-				// add counters for each of the labels
-				for (int labelId : message.getLabels())
-				{
-					if (!labels.containsId(labelId)) {
-						Label label = new Label(labelId).setCounters(message.getLabelCounters()); 
-						labels.put(label);
-					} else {
-						labels.get(labelId).incrementCounters(message.getLabelCounters());
-					}
+			Message message = messages.get(messageId);
 
-					if (rebuildIndex)
-					{
-						// add message ID to the label index
-						LabelIndexPersistence.add(mutator, mailbox.getId(), messageId, labelId);
-						mutator.executeIfFull();
-					}
+			// add counters for each of the labels
+			for (int labelId : message.getLabels())
+			{
+				if (!labels.containsId(labelId)) {
+					Label label = new Label(labelId).setCounters(message.getLabelCounters()); 
+					labels.put(label);
+				} else {
+					labels.get(labelId).incrementCounters(message.getLabelCounters());
 				}
 
-				logger.debug("Counters state after message {} is {}", messageId, labels.toString());
+				if (job.isRebuildIndex())
+				{
+					// add message ID with summary to the label index
+					LabelIndexPersistence.add(mutator, mailbox.getId(), messageId, labelId,
+							MessageSummary.fromMessage(message));
+					if (!message.getMarkers().contains(Marker.SEEN)) {
+						LabelIndexPersistence.addUnread(mutator, mailbox.getId(), messageId, labelId);
+					}
+					mutator.executeIfFull();
+				}
 			}
-			
-		}
-		while (messages.size() >= BatchConstants.BATCH_READS);
 
-		// commit remaining items
-		mutator.execute();
+			logger.debug("Counters state after message {} is {}", messageId, labels.toString());
+		}
 
-		return labels;
+		return messages.size() >= BatchConstants.BATCH_READS;
 	}
 
 	/**
-	 * Convert label IDs to message attributes.
-	 *  
-	 * @param labelIds
+	 * Check if mailbox is stored in the layout of the given migration
+	 * 
+	 * @param mailbox
+	 * @param type
 	 * @return
 	 */
-	private static Set<String> labelsToMessageAttibutes(Set<Integer> labelIds)
+	boolean isMigrated(final Mailbox mailbox, final MigrationJob.Type type)
+	{
+		switch (type) {
+		case METADATA:
+			return AccountPersistence.getMetadataLayout(mailbox.getId()) == MetadataLayout.COMPOSITE;
+		case INDEXES:
+			return AccountPersistence.getIndexLayout(mailbox.getId()) == IndexLayout.BUCKETED;
+		default:
+			throw new IllegalArgumentException("Unsupported migration " + type);
+		}
+	}
+
+	/**
+	 * Copy mailbox data to the new layout. Concurrent writes go to both
+	 * layouts, so that updates made during migration are preserved.
+	 * 
+	 * @param mailbox
+	 * @param type
+	 * @param progress
+	 * @return Number of copied messages or index entries
+	 */
+	int copyToLayout(final Mailbox mailbox, final MigrationJob.Type type,
+			final MigrationJobRunner.Progress progress)
 	{
-		Set<String> attributes = new HashSet<String>(labelIds.size());
-		for (Integer labelId : labelIds) {
-			attributes.add(Marshaller.CN_LABEL_PREFIX + labelId);
+		switch (type) {
+		case METADATA:
+			return copyToCompositeLayout(mailbox, progress);
+		case INDEXES:
+			return copyToBucketedIndex(mailbox, progress);
+		default:
+			throw new IllegalArgumentException("Unsupported migration " + type);
 		}
+	}
 
-		return attributes;
+	/**
+	 * Switch reads of the mailbox to the new layout
+	 * 
+	 * @param mailbox
+	 * @param type
+	 */
+	void switchLayout(final Mailbox mailbox, final MigrationJob.Type type)
+	{
+		switch (type) {
+		case METADATA:
+			AccountPersistence.setMetadataLayout(mailbox.getId(), MetadataLayout.COMPOSITE);
+			break;
+		case INDEXES:
+			AccountPersistence.setIndexLayout(mailbox.getId(), IndexLayout.BUCKETED);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported migration " + type);
+		}
 	}
 
 	/**
-	 * Convert markers to message attributes.
-	 *  
-	 * @param labelIds
+	 * Time after which layout switch is visible to all nodes and old layout
+	 * can be deleted. In MILLISECONDS.
+	 * 
+	 * @param type
 	 * @return
 	 */
-	private static Set<String> markersToMessageAttibutes(Set<Marker> markers)
+	long getLayoutSwitchDelay(final MigrationJob.Type type)
 	{
-		Set<String> attributes = new HashSet<String>(markers.size());
-		for (Marker marker : markers)
-		{
-			String a = new StringBuilder(Marshaller.CN_MARKER_PREFIX)
-					.append(marker.toInt()).toString();
-			attributes.add(a);
+		switch (type) {
+		case METADATA:
+			return AccountPersistence.METADATA_LAYOUT_CACHE_TTL;
+		case INDEXES:
+			return AccountPersistence.INDEX_LAYOUT_CACHE_TTL;
+		default:
+			throw new IllegalArgumentException("Unsupported migration " + type);
 		}
-
-		return attributes;
 	}
 
 	/**
-	 * Aggregate messages to provide stats
+	 * Delete mailbox data stored in the old layout
+	 * 
+	 * @param mailbox
+	 * @param type
 	 */
-	private class MessageAggregator
+	void deleteOldLayout(final Mailbox mailbox, final MigrationJob.Type type)
 	{
-		private final Map<UUID, Message> messages;
-		private final HashSet<UUID> invalidMessageIds;
+		Mutator<String> m = createMutator(keyspace, strSe);
+
+		switch (type) {
+		case METADATA:
+			MessagePersistence.deleteSuperLayout(m, mailbox.getId());
+			break;
+		case INDEXES:
+			for (Integer labelId : AccountPersistence.getLabels(mailbox.getId()).getIds()) {
+				LabelIndexPersistence.deleteSingleIndex(m, mailbox.getId(), labelId);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported migration " + type);
+		}
 
-		public MessageAggregator(final Mailbox mailbox, final List<UUID> messageIds)
-		{
-			// get message headers
-			messages = MessagePersistence.fetch(mailbox.getId(), messageIds, false);
+		m.execute();
+	}
 
-			invalidMessageIds = new HashSet<UUID>(messageIds);
-			invalidMessageIds.removeAll(this.getValidMessageIds());
-		}
+	private int copyToCompositeLayout(final Mailbox mailbox,
+			final MigrationJobRunner.Progress progress)
+	{
+		logger.debug("Migrating metadata of {} to composite layout", mailbox);
 
-		/**
-		 * Get message
-		 * 
-		 * @param messageId
-		 * @return
-		 */
-		public Message getMessage(UUID messageId)
-		{
-			return messages.get(messageId);
+		// initiate throttling mutator 
+		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
+				AdaptiveThrottle.getInstance());
+
+		// copy all messages, concurrent writes go to both layouts
+		Set<UUID> migrated = new HashSet<UUID>();
+		List<UUID> messageIds;
+		UUID start = null;
+
+		do {
+			messageIds = MessagePersistence.copyToCompositeLayout(
+					mutator, mailbox.getId(), start, BatchConstants.BATCH_READS);
+			migrated.addAll(messageIds);
+			mutator.executeIfFull();
+			progress.update(migrated.size());
+
+			// set start element for the next loop
+			start = messageIds.isEmpty() ? null : messageIds.get(messageIds.size() - 1);
 		}
+		while (messageIds.size() >= BatchConstants.BATCH_READS);
 
-		/**
-		 * Get aggregated {@link LabelCounter} stats for each label in the list of
-		 * messages. Results aggregated by label ID.
-		 * 
-		 * @return
-		 */
-		public LabelMap aggregateCountersByLabel()
+		mutator.execute();
+
+		logger.info("Copied {} messages of {} to composite layout", migrated.size(), mailbox);
+
+		return migrated.size();
+	}
+
+	private int copyToBucketedIndex(final Mailbox mailbox,
+			final MigrationJobRunner.Progress progress)
+	{
+		logger.debug("Migrating label indexes of {} to bucketed layout", mailbox);
+
+		// initiate throttling mutator 
+		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(keyspace, strSe,
+				AdaptiveThrottle.getInstance());
+
+		// copy all indexes, concurrent writes go to both layouts
+		Set<Integer> labelIds = AccountPersistence.getLabels(mailbox.getId()).getIds();
+		int migrated = 0;
+
+		for (Integer labelId : labelIds)
 		{
-			LabelMap labels = new LabelMap();
+			Iterator<List<HColumn<UUID, byte[]>>> batches = Iterators.partition(
+					LabelIndexPersistence.getSingleIndexCursor(mailbox.getId(), labelId),
+					BatchConstants.BATCH_READS);
 
-			// get all labels of all messages, including label "all"
-			for (UUID messageId : this.messages.keySet())
+			while (batches.hasNext())
 			{
-				Set<Integer> messageLabels = this.messages.get(messageId).getLabels();
-	
-				for (int labelId : messageLabels)
-				{
-					if (!labels.containsId(labelId)) {
-						Label label = new Label(labelId).
-								setCounters(this.messages.get(messageId).getLabelCounters());
-						labels.put(label);
-					} else {
-						labels.get(labelId).getCounters().add(
-								this.messages.get(messageId).getLabelCounters());
-					}
-				}
-			}
+				List<HColumn<UUID, byte[]>> columns = batches.next();
+				LabelIndexPersistence.copyToBuckets(mutator, mailbox.getId(), labelId, columns);
+				migrated += columns.size();
 
-			return labels;
+				mutator.executeIfFull();
+				progress.update(migrated);
+			}
 		}
 
-		/**
-		 * Returns message IDs which exist in message metadata.
-		 * 
-		 * In some cases, message can be deleted from metadata but not from
-		 * index. Use this method to filter out such messages.
-		 * 
-		 * @return
-		 */
-		public Set<UUID> getValidMessageIds() {
-			return messages.keySet();
-		}
+		mutator.execute();
 
-		/**
-		 * Returns message IDs which do not exist in message metadata.
-		 * 
-		 * @return
-		 */
-		public Set<UUID> getInvalidMessageIds() {
-			return invalidMessageIds;
-		}
+		logger.info("Copied {} index entries of {} to bucketed layout", migrated, mailbox);
+
+		return migrated;
+	}
+
+	@Override
+	protected Map<UUID, Message> fetchSummaries(final Mailbox mailbox, final List<UUID> messageIds) {
+		return MessagePersistence.fetch(mailbox.getId(), messageIds, MessageProjection.SUMMARY);
 	}
 }
@@ -0,0 +1,511 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.core.cassandra.persistence.MaintenancePersistence;
+import com.elasticinbox.core.cassandra.persistence.PurgeQueuePersistence;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelMap;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cluster-wide maintenance runner. Periodically purges deleted messages and
+ * scrubs counters or indexes of all mailboxes.
+ * <p>
+ * Messages are purged from the mailboxes found in the global purge queue
+ * buckets older than purge age. Each bucket shard is leased by a single node
+ * and dropped once all its mailboxes are purged. Messages missing from the
+ * queue, i.e. deleted before the queue existed or older than the buckets
+ * looked back on the first run, are purged when mailbox is scrubbed.
+ * <p>
+ * For scrub, mailboxes are enumerated by token ranges of the Accounts column family.
+ * Each range is leased by a single node, processed in pages of mailboxes with
+ * cursor checkpointed after each page, and marked as completed until the next
+ * interval. Range abandoned by a failed node is picked up by another node
+ * from the cursor once the lease expires.
+ * <p>
+ * Leases are written and verified after a short delay, since Cassandra
+ * provides no compare-and-set. Concurrent leases are rare and harmless, as
+ * all tasks are idempotent.
+ * <p>
+ * IO budget is shared equally by all live maintenance nodes.
+ */
+public final class MaintenanceRunner implements MaintenanceRunnerMBean
+{
+	public final static String MBEAN_NAME = "com.elasticinbox:type=MaintenanceRunner";
+
+	/** Delay between passes over the ring. In MILLISECONDS. */
+	private final static long PASS_DELAY = 60000L;
+
+	/** Range lease time, renewed after each page of mailboxes. In SECONDS. */
+	private final static int LEASE_TTL = 600;
+
+	/** Time for concurrent lease writes to settle before verification. In MILLISECONDS. */
+	private final static long LEASE_SETTLE_DELAY = 2000L;
+
+	/** Registration time of the live node, renewed after each page. In SECONDS. */
+	private final static int NODE_TTL = 600;
+
+	private final static int PAGE_SIZE = BatchConstants.BATCH_READS;
+
+	/** Number of purge queue buckets processed on the first run */
+	private final static int PURGE_LOOKBACK = 24;
+
+	/** Time for which processed purge queue shard is not processed again. In SECONDS. */
+	private final static int PURGE_COMPLETED_TTL = 7 * 86400;
+
+	private final static String PURGE_RESOURCE_PREFIX = "purge:";
+
+	private final static long DAY = 86400000L;
+
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(MaintenanceRunner.class);
+
+	private static MaintenanceRunner instance;
+
+	private final Keyspace keyspace;
+	private final String keyspaceName;
+	private final String node;
+	private final CassandraMessageDAO messageDAO;
+	private final CassandraLabelDAO labelDAO;
+
+	private final boolean purge;
+	private final boolean scrubCounters;
+	private final boolean rebuildIndex;
+	private final int ioBudget;
+	private final int interval;
+	private final int purgeAge;
+
+	private final RateLimiter budget;
+	private final RangeScanner scanner;
+	private final ScheduledExecutorService scheduler;
+
+	private final AtomicLong mailboxes = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong purgedMailboxes = new AtomicLong();
+	private volatile long purgeBacklog = 0;
+	private volatile double throughput = 0;
+	private volatile int ranges = 0;
+	private volatile int backlog = 0;
+	private volatile int nodes = 1;
+
+	private MaintenanceRunner(final Keyspace keyspace, final String keyspaceName,
+			final List<String> tasks, final int ioBudget, final long interval, final int purgeAge)
+	{
+		this.keyspace = keyspace;
+		this.keyspaceName = keyspaceName;
+		this.node = ManagementFactory.getRuntimeMXBean().getName();
+		this.messageDAO = new CassandraMessageDAO(keyspace);
+		this.labelDAO = new CassandraLabelDAO(keyspace);
+		this.purge = tasks.contains("purge");
+		this.scrubCounters = tasks.contains("counters");
+		this.rebuildIndex = tasks.contains("indexes");
+		this.ioBudget = ioBudget;
+		this.interval = (int) Math.min(Integer.MAX_VALUE, interval);
+		this.purgeAge = purgeAge;
+		this.budget = RateLimiter.create(ioBudget);
+		this.scanner = new RangeScanner(node, PAGE_SIZE, LEASE_TTL, this.interval, LEASE_SETTLE_DELAY)
+		{
+			@Override
+			void process(final String key) {
+				MaintenanceRunner.this.process(key);
+			}
+
+			@Override
+			void onPage() {
+				heartbeat();
+			}
+		};
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("maintenance-%d").build());
+	}
+
+	/**
+	 * Start maintenance runner on this node
+	 * 
+	 * @param keyspace
+	 * @param keyspaceName
+	 * @param tasks
+	 *            Tasks to run: "purge", "counters" and "indexes"
+	 * @param ioBudget
+	 *            Messages per second processed by all nodes
+	 * @param interval
+	 *            Time between processing of the same mailbox. In SECONDS.
+	 * @param purgeAge
+	 *            Deleted messages are purged after this time. In DAYS.
+	 */
+	public static synchronized void start(final Keyspace keyspace, final String keyspaceName,
+			final List<String> tasks, final int ioBudget, final long interval, final int purgeAge)
+	{
+		if (instance != null) {
+			return;
+		}
+
+		instance = new MaintenanceRunner(keyspace, keyspaceName, tasks, ioBudget, interval, purgeAge);
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					instance, new ObjectName(MBEAN_NAME));
+		} catch (Exception e) {
+			logger.warn("Unable to register {} MBean: {}", MBEAN_NAME, e.getMessage());
+		}
+
+		instance.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				instance.pass();
+			}
+		}, PASS_DELAY, PASS_DELAY, TimeUnit.MILLISECONDS);
+
+		logger.info("Started maintenance runner {} with tasks {}", instance.node, tasks);
+	}
+
+	/**
+	 * Process purge queue, then all ranges which are not completed and not
+	 * leased by other nodes
+	 */
+	private void pass()
+	{
+		try {
+			heartbeat();
+
+			if (purge) {
+				purgeQueue();
+			}
+
+			if (!scrubCounters && !rebuildIndex) {
+				return;
+			}
+
+			List<TokenRange> all = MaintenancePersistence.getRanges(keyspaceName);
+
+			if (all.isEmpty()) {
+				logger.warn("Maintenance requires RandomPartitioner or Murmur3Partitioner");
+				return;
+			}
+
+			List<TokenRange> pending = new ArrayList<TokenRange>(all.size());
+			for (TokenRange range : all) {
+				if (!MaintenancePersistence.isCompleted(range.getEnd_token())) {
+					pending.add(range);
+				}
+			}
+
+			ranges = all.size();
+			backlog = pending.size();
+
+			// nodes start from different ranges
+			Collections.shuffle(pending);
+
+			for (TokenRange range : pending)
+			{
+				// range could be completed by other node meanwhile
+				if (!MaintenancePersistence.isCompleted(range.getEnd_token())
+						&& scanner.acquireLease(range.getEnd_token())) {
+					processRange(range);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("Maintenance pass failed: ", e);
+		}
+	}
+
+	/**
+	 * Purge mailboxes from the purge queue buckets which are older than purge
+	 * age. Buckets are processed in order, processed bucket is recorded once
+	 * all its preceding buckets and shards are processed. Shards leased by
+	 * other nodes or failed are retried on the next pass.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void purgeQueue() throws InterruptedException
+	{
+		Date age = new Date(System.currentTimeMillis() - purgeAge * DAY);
+
+		// bucket receives no new entries once it ends before purge age
+		long last = PurgeQueuePersistence.getBucket(age.getTime()) - 1;
+		Long purged = MaintenancePersistence.getPurgedBucket();
+		long first = (purged == null) ? last - PURGE_LOOKBACK + 1 : purged;
+		long incomplete = last + 1;
+
+		for (long bucket = first; bucket <= last; bucket++)
+		{
+			purgeBacklog = last - Math.min(bucket, incomplete) + 1;
+
+			for (int shard = 0; shard < PurgeQueuePersistence.SHARDS; shard++)
+			{
+				String resource = new StringBuilder(PURGE_RESOURCE_PREFIX).append(bucket)
+						.append(":").append(shard).toString();
+
+				if (PurgeQueuePersistence.isEmpty(bucket, shard)
+						|| MaintenancePersistence.isCompleted(resource)) {
+					continue;
+				}
+
+				if (!scanner.acquireLease(resource)) {
+					incomplete = Math.min(incomplete, bucket);
+					continue;
+				}
+
+				Mutator<String> mutator = createMutator(keyspace, strSe);
+
+				if (purgeShard(resource, bucket, shard, age)) {
+					PurgeQueuePersistence.remove(mutator, bucket, shard);
+					MaintenancePersistence.setCompleted(mutator, resource, PURGE_COMPLETED_TTL);
+				} else {
+					incomplete = Math.min(incomplete, bucket);
+				}
+
+				// lease could be lost while purging
+				if (node.equals(scanner.getLease(resource))) {
+					MaintenancePersistence.deleteLease(mutator, resource);
+				}
+				mutator.execute();
+			}
+
+			if (incomplete > bucket) {
+				Mutator<String> mutator = createMutator(keyspace, strSe);
+				MaintenancePersistence.setPurgedBucket(mutator, bucket + 1);
+				mutator.execute();
+			}
+		}
+
+		purgeBacklog = last - incomplete + 1;
+	}
+
+	/**
+	 * Purge all mailboxes of the purge queue bucket shard. Lease is verified
+	 * and renewed after each page of queue entries.
+	 * 
+	 * @param resource
+	 * @param bucket
+	 * @param shard
+	 * @param age
+	 * @return <code>true</code> if all mailboxes were purged
+	 */
+	private boolean purgeShard(final String resource, final long bucket,
+			final int shard, final Date age)
+	{
+		IndexCursor<Map.Entry<UUID, String>> cursor = PurgeQueuePersistence.getCursor(bucket, shard);
+		Set<String> purged = new HashSet<String>();
+		boolean success = true;
+		int entries = 0;
+
+		while (cursor.hasNext())
+		{
+			String key = cursor.next().getValue();
+
+			if (++entries % PAGE_SIZE == 0)
+			{
+				if (!node.equals(scanner.getLease(resource))) {
+					logger.warn("Lease of {} lost, stopping", resource);
+					return false;
+				}
+
+				scanner.setLease(resource);
+				heartbeat();
+			}
+
+			if (!purged.add(key)) {
+				continue;
+			}
+
+			try {
+				messageDAO.purge(new Mailbox(key), age, budget);
+				purgedMailboxes.incrementAndGet();
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				success = false;
+				logger.warn("Purge of {} failed: {}", key, e.getMessage());
+			}
+		}
+
+		return success;
+	}
+
+	private void processRange(final TokenRange range)
+	{
+		long started = System.currentTimeMillis();
+
+		logger.debug("Processing range ({}, {}]", range.getStart_token(), range.getEnd_token());
+
+		long processed = scanner.scan(range);
+
+		if (processed < 0) {
+			logger.warn("Lease of range ({}, {}] lost, stopping",
+					range.getStart_token(), range.getEnd_token());
+			return;
+		}
+
+		throughput = processed * 1000.0 / Math.max(1L, System.currentTimeMillis() - started);
+		backlog = Math.max(0, backlog - 1);
+
+		logger.debug("Completed range ({}, {}], {} mailboxes",
+				new Object[] { range.getStart_token(), range.getEnd_token(), processed });
+	}
+
+	/**
+	 * Run scrub tasks for the mailbox, purging messages missed by the purge
+	 * queue first. Failures are logged and skipped, mailbox is retried on the
+	 * next interval.
+	 * 
+	 * @param key
+	 */
+	private void process(final String key)
+	{
+		Mailbox mailbox;
+
+		try {
+			mailbox = new Mailbox(key);
+		} catch (IllegalArgumentException e) {
+			// not a mailbox, e.g. maintenance state
+			return;
+		}
+
+		try {
+			if (purge) {
+				messageDAO.purge(mailbox,
+						new Date(System.currentTimeMillis() - purgeAge * DAY), budget);
+			}
+
+			LabelMap counters = messageDAO.scrub(mailbox, rebuildIndex, budget);
+			labelDAO.setCounters(mailbox, counters);
+
+			Label allMails = counters.get(ReservedLabels.ALL_MAILS.getId());
+			if (allMails != null && allMails.getCounters() != null) {
+				messages.addAndGet(allMails.getCounters().getTotalMessages());
+			}
+
+			mailboxes.incrementAndGet();
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			logger.warn("Maintenance of {} failed: {}", mailbox, e.getMessage());
+		}
+	}
+
+	/**
+	 * Register this node as live and update its share of the IO budget
+	 */
+	private void heartbeat()
+	{
+		Mutator<String> mutator = createMutator(keyspace, strSe);
+		MaintenancePersistence.setNode(mutator, node, NODE_TTL);
+		mutator.execute();
+
+		nodes = Math.max(1, MaintenancePersistence.getNodeCount());
+		budget.setRate((double) ioBudget / nodes);
+	}
+
+	@Override
+	public long getMailboxes() {
+		return mailboxes.get();
+	}
+
+	@Override
+	public long getPurgedMailboxes() {
+		return purgedMailboxes.get();
+	}
+
+	@Override
+	public long getPurgeBacklog() {
+		return purgeBacklog;
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.get();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public double getThroughput() {
+		return throughput;
+	}
+
+	@Override
+	public int getRanges() {
+		return ranges;
+	}
+
+	@Override
+	public int getBacklog() {
+		return backlog;
+	}
+
+	@Override
+	public int getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public double getRate() {
+		return budget.getRate();
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+/**
+ * JMX management interface of {@link MaintenanceRunner}
+ */
+public interface MaintenanceRunnerMBean
+{
+	/**
+	 * Number of mailboxes scrubbed by this node
+	 */
+	public long getMailboxes();
+
+	/**
+	 * Number of mailboxes purged by this node
+	 */
+	public long getPurgedMailboxes();
+
+	/**
+	 * Number of purge queue buckets older than purge age which are not yet
+	 * processed, as seen by this node
+	 */
+	public long getPurgeBacklog();
+
+	/**
+	 * Number of messages scanned by scrub tasks on this node
+	 */
+	public long getMessages();
+
+	/**
+	 * Number of mailboxes failed to purge or scrub on this node
+	 */
+	public long getFailures();
+
+	/**
+	 * Mailboxes processed per second by this node within the last range
+	 */
+	public double getThroughput();
+
+	/**
+	 * Number of token ranges in the ring
+	 */
+	public int getRanges();
+
+	/**
+	 * Number of token ranges not yet processed within current interval, as
+	 * seen at the last pass of this node
+	 */
+	public int getBacklog();
+
+	/**
+	 * Number of live maintenance nodes sharing IO budget
+	 */
+	public int getNodes();
+
+	/**
+	 * Messages per second this node is allowed to process
+	 */
+	public double getRate();
+}
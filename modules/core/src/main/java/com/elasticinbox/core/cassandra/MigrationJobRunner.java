@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.core.cassandra.persistence.MigrationJobPersistence;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.MigrationJob;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs mailbox layout migration jobs in background.
+ * <p>
+ * Data is copied to the new layout, then reads are switched to the new layout
+ * and old layout is deleted once the switch is visible to all nodes. Job
+ * state is stored to the account row after each step. Running job which was
+ * not updated within {@link #STALE_TIMEOUT} is considered abandoned and
+ * resumed by the node which receives the next start or status request for
+ * this mailbox. Copy is idempotent and is restarted from the beginning.
+ */
+public final class MigrationJobRunner
+{
+	/** Time after which running job without checkpoint is resumed, in MILLISECONDS */
+	public final static long STALE_TIMEOUT = 60000L;
+
+	/** Minimum time between checkpoints of the copy progress, in MILLISECONDS */
+	private final static long CHECKPOINT_INTERVAL = 10000L;
+
+	/** Maximum number of migration jobs running on this node concurrently */
+	private final static int MAX_RUNNING_JOBS = 2;
+
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(MigrationJobRunner.class);
+
+	private final static MigrationJobRunner instance = new MigrationJobRunner();
+
+	/** Jobs running on this node, by mailbox and job type */
+	private final ConcurrentMap<String, MigrationJob> running = 
+			new ConcurrentHashMap<String, MigrationJob>();
+
+	private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+			MAX_RUNNING_JOBS, new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("migration-%d").build());
+
+	private MigrationJobRunner() {
+	}
+
+	public static MigrationJobRunner getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Receives progress of the copy
+	 */
+	interface Progress
+	{
+		/**
+		 * Invoked after each page of data is copied
+		 * 
+		 * @param migrated
+		 *            Number of copied messages or index entries
+		 */
+		void update(long migrated);
+	}
+
+	/**
+	 * Start migration job for the mailbox. If job of the same type is already
+	 * running, returns running job instead. Abandoned job is resumed.
+	 * 
+	 * @param dao
+	 * @param mailbox
+	 * @param type
+	 * @return Started job or <code>null</code> if mailbox is already migrated
+	 */
+	public MigrationJob start(final CassandraMessageDAO dao, final Mailbox mailbox,
+			final MigrationJob.Type type)
+	{
+		MigrationJob job = running.get(getKey(mailbox, type));
+
+		if (job != null) {
+			return snapshot(job);
+		}
+
+		job = MigrationJobPersistence.get(mailbox.getId(), type);
+
+		if (job != null && job.isRunning())
+		{
+			if (isStale(job)) {
+				return submit(dao, mailbox, job);
+			}
+
+			// running on other node
+			return job;
+		}
+
+		if (dao.isMigrated(mailbox, type)) {
+			return null;
+		}
+
+		job = new MigrationJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(), type, new Date());
+		checkpoint(mailbox, job);
+
+		return submit(dao, mailbox, job);
+	}
+
+	/**
+	 * Get state of the migration job. Abandoned job is resumed.
+	 * 
+	 * @param dao
+	 * @param mailbox
+	 * @param type
+	 * @param jobId
+	 * @return Job state or <code>null</code> if job not found
+	 */
+	public MigrationJob get(final CassandraMessageDAO dao, final Mailbox mailbox,
+			final MigrationJob.Type type, final UUID jobId)
+	{
+		MigrationJob job = running.get(getKey(mailbox, type));
+
+		if (job != null && job.getId().equals(jobId)) {
+			return snapshot(job);
+		}
+
+		job = MigrationJobPersistence.get(mailbox.getId(), type);
+
+		if (job == null || !job.getId().equals(jobId)) {
+			return null;
+		}
+
+		if (job.isRunning() && isStale(job)) {
+			return submit(dao, mailbox, job);
+		}
+
+		return job;
+	}
+
+	private MigrationJob submit(final CassandraMessageDAO dao, final Mailbox mailbox,
+			final MigrationJob job)
+	{
+		MigrationJob previous = running.putIfAbsent(getKey(mailbox, job.getType()), job);
+
+		if (previous != null) {
+			return snapshot(previous);
+		}
+
+		logger.info("Starting {} of {}", job, mailbox);
+
+		if (job.getSwitched() == null) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					copy(dao, mailbox, job);
+				}
+			});
+		} else {
+			scheduleCleanup(dao, mailbox, job);
+		}
+
+		return snapshot(job);
+	}
+
+	/**
+	 * Copy data to the new layout and switch reads to it
+	 */
+	private void copy(final CassandraMessageDAO dao, final Mailbox mailbox, final MigrationJob job)
+	{
+		try {
+			RoutingKey.set(mailbox.getId());
+
+			// checkpoint periodically, so that job is not considered abandoned
+			int migrated = dao.copyToLayout(mailbox, job.getType(), new Progress() {
+				@Override
+				public void update(long copied)
+				{
+					boolean due;
+
+					synchronized (job) {
+						job.setMigrated(copied);
+						due = System.currentTimeMillis() - job.getUpdated().getTime() > CHECKPOINT_INTERVAL;
+					}
+
+					if (due) {
+						checkpoint(mailbox, job);
+					}
+				}
+			});
+
+			dao.switchLayout(mailbox, job.getType());
+
+			synchronized (job) {
+				job.setMigrated(migrated);
+				job.setSwitched(new Date());
+			}
+			checkpoint(mailbox, job);
+		} catch (Exception e) {
+			fail(mailbox, job, e);
+			return;
+		}
+
+		scheduleCleanup(dao, mailbox, job);
+	}
+
+	/**
+	 * Delete old layout once the switch is visible to all nodes
+	 */
+	private void scheduleCleanup(final CassandraMessageDAO dao, final Mailbox mailbox,
+			final MigrationJob job)
+	{
+		long delay = job.getSwitched().getTime() + dao.getLayoutSwitchDelay(job.getType())
+				- System.currentTimeMillis();
+
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cleanup(dao, mailbox, job);
+			}
+		}, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private void cleanup(final CassandraMessageDAO dao, final Mailbox mailbox, final MigrationJob job)
+	{
+		try {
+			RoutingKey.set(mailbox.getId());
+
+			dao.deleteOldLayout(mailbox, job.getType());
+
+			synchronized (job) {
+				job.setStatus(MigrationJob.Status.COMPLETED);
+			}
+			checkpoint(mailbox, job);
+
+			running.remove(getKey(mailbox, job.getType()));
+
+			logger.info("Completed {} of {}", job, mailbox);
+		} catch (Exception e) {
+			fail(mailbox, job, e);
+		}
+	}
+
+	private void fail(final Mailbox mailbox, final MigrationJob job, final Exception e)
+	{
+		logger.error("Migration of " + mailbox + " failed: ", e);
+
+		synchronized (job) {
+			job.setStatus(MigrationJob.Status.FAILED);
+			job.setError(e.getMessage());
+		}
+
+		try {
+			checkpoint(mailbox, job);
+		} catch (Exception ce) {
+			// job will be resumed once it becomes stale
+			logger.error("Unable to store failed state of {}: {}", job, ce.getMessage());
+		} finally {
+			running.remove(getKey(mailbox, job.getType()));
+		}
+	}
+
+	/**
+	 * Store job state along with the current time
+	 * 
+	 * @param mailbox
+	 * @param job
+	 */
+	private static void checkpoint(final Mailbox mailbox, final MigrationJob job)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+
+		synchronized (job) {
+			job.setUpdated(new Date());
+			MigrationJobPersistence.set(mutator, mailbox.getId(), job);
+		}
+
+		mutator.execute();
+	}
+
+	private static MigrationJob snapshot(final MigrationJob job)
+	{
+		synchronized (job) {
+			return new MigrationJob(job);
+		}
+	}
+
+	private static boolean isStale(final MigrationJob job) {
+		return System.currentTimeMillis() - job.getUpdated().getTime() > STALE_TIMEOUT;
+	}
+
+	private static String getKey(final Mailbox mailbox, final MigrationJob.Type type) {
+		return mailbox.getId() + ":" + type;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+import com.elasticinbox.core.cassandra.persistence.MaintenancePersistence;
+import com.elasticinbox.core.cassandra.persistence.MaintenancePersistence.KeyPage;
+
+/**
+ * Leased scan of the mailboxes within token ranges, used by
+ * {@link MaintenanceRunner}.
+ * <p>
+ * Range is processed in pages of mailboxes. After each page, lease is
+ * verified, cursor is checkpointed and lease is renewed. Scan resumes from
+ * the cursor, so that range abandoned by a failed node is continued by
+ * another node. Range is marked as completed once the page with fewer rows
+ * than requested is reached.
+ * <p>
+ * Maintenance state is accessed through overridable methods backed by
+ * {@link MaintenancePersistence}.
+ */
+abstract class RangeScanner
+{
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final String node;
+	private final int pageSize;
+	private final int leaseTtl;
+	private final int completedTtl;
+	private final long settleDelay;
+
+	/**
+	 * @param node
+	 *            ID of this node
+	 * @param pageSize
+	 *            Number of mailboxes read at once
+	 * @param leaseTtl
+	 *            Lease time, renewed after each page. In SECONDS.
+	 * @param completedTtl
+	 *            Time for which completed range is not processed again. In
+	 *            SECONDS.
+	 * @param settleDelay
+	 *            Time for concurrent lease writes to settle before
+	 *            verification. In MILLISECONDS.
+	 */
+	RangeScanner(final String node, final int pageSize, final int leaseTtl,
+			final int completedTtl, final long settleDelay)
+	{
+		this.node = node;
+		this.pageSize = pageSize;
+		this.leaseTtl = leaseTtl;
+		this.completedTtl = completedTtl;
+		this.settleDelay = settleDelay;
+	}
+
+	/**
+	 * Process single mailbox of the range
+	 * 
+	 * @param key
+	 */
+	abstract void process(String key);
+
+	/**
+	 * Invoked after each page of mailboxes is checkpointed
+	 */
+	void onPage() {
+	}
+
+	/**
+	 * Lease the resource to this node. Lease is written unless held by other
+	 * node, and verified after a short delay, since Cassandra provides no
+	 * compare-and-set. Concurrent writes are resolved by timestamp, so that
+	 * all contenders see the same owner.
+	 * 
+	 * @param resource
+	 * @return <code>true</code> if this node holds the lease
+	 * @throws InterruptedException
+	 */
+	boolean acquireLease(final String resource) throws InterruptedException
+	{
+		String owner = getLease(resource);
+
+		if (owner != null && !owner.equals(node)) {
+			return false;
+		}
+
+		setLease(resource);
+		Thread.sleep(settleDelay);
+
+		return node.equals(getLease(resource));
+	}
+
+	/**
+	 * Process all mailboxes of the leased range from the checkpointed cursor
+	 * 
+	 * @param range
+	 * @return Number of processed mailboxes, or <code>-1</code> if lease was
+	 *         lost and range was not completed
+	 */
+	long scan(final TokenRange range)
+	{
+		String resource = range.getEnd_token();
+		String cursor = getCursor(resource);
+		long processed = 0;
+		KeyPage page;
+
+		do {
+			page = getKeys(range, cursor, pageSize);
+
+			for (String key : page.getKeys()) {
+				process(key);
+				processed++;
+			}
+
+			if (!node.equals(getLease(resource))) {
+				return -1;
+			}
+
+			// cursor moves past deleted rows as well
+			cursor = page.getLastKey();
+			checkpoint(resource, cursor);
+			onPage();
+		}
+		while (page.hasMore());
+
+		complete(resource);
+
+		return processed;
+	}
+
+	String getLease(final String resource) {
+		return MaintenancePersistence.getLease(resource);
+	}
+
+	void setLease(final String resource)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+		MaintenancePersistence.setLease(mutator, resource, node, leaseTtl);
+		mutator.execute();
+	}
+
+	String getCursor(final String resource) {
+		return MaintenancePersistence.getCursor(resource);
+	}
+
+	KeyPage getKeys(final TokenRange range, final String startKey, final int count) {
+		return MaintenancePersistence.getKeys(range, startKey, count);
+	}
+
+	/**
+	 * Store cursor and renew lease
+	 * 
+	 * @param resource
+	 * @param cursor
+	 */
+	void checkpoint(final String resource, final String cursor)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+		if (cursor != null) {
+			MaintenancePersistence.setCursor(mutator, resource, cursor, completedTtl);
+		}
+		MaintenancePersistence.setLease(mutator, resource, node, leaseTtl);
+		mutator.execute();
+	}
+
+	/**
+	 * Mark resource as completed and release it
+	 * 
+	 * @param resource
+	 */
+	void complete(final String resource)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+		MaintenancePersistence.setCompleted(mutator, resource, completedTtl);
+		MaintenancePersistence.deleteCursor(mutator, resource);
+		MaintenancePersistence.deleteLease(mutator, resource);
+		mutator.execute();
+	}
+}
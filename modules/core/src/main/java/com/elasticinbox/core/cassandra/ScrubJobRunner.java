@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.core.cassandra.persistence.PurgeIndexPersistence;
+import com.elasticinbox.core.cassandra.persistence.ScrubJobPersistence;
+import com.elasticinbox.core.cassandra.utils.AdaptiveThrottle;
+import com.elasticinbox.core.cassandra.utils.RoutingKey;
+import com.elasticinbox.core.cassandra.utils.ThrottlingMutator;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.ScrubJob;
+import com.elasticinbox.core.utils.UUIDSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs mailbox scrub jobs in background.
+ * <p>
+ * Job state with partial counters is checkpointed to the account row after
+ * each page of messages. Running job which was not checkpointed within
+ * {@link #STALE_TIMEOUT} is considered abandoned (e.g. node was restarted)
+ * and resumed from the checkpoint by the node which receives the next start
+ * or status request for this mailbox. Messages pending purge are reloaded on
+ * resume.
+ */
+public final class ScrubJobRunner
+{
+	/** Time after which running job without checkpoint is resumed, in MILLISECONDS */
+	public final static long STALE_TIMEOUT = 60000L;
+
+	/** Maximum number of scrub jobs running on this node concurrently */
+	private final static int MAX_RUNNING_JOBS = 2;
+
+	/** Number of retries of the page failed due to timeout or unavailable replicas */
+	private final static int MAX_RETRIES = 5;
+	private final static long RETRY_DELAY = 1000L;
+
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(ScrubJobRunner.class);
+
+	private final static ScrubJobRunner instance = new ScrubJobRunner();
+
+	/** Jobs running on this node, by mailbox */
+	private final ConcurrentMap<String, ScrubJob> running = 
+			new ConcurrentHashMap<String, ScrubJob>();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(
+			MAX_RUNNING_JOBS, new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("scrub-%d").build());
+
+	private ScrubJobRunner() {
+	}
+
+	public static ScrubJobRunner getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start scrub job for the mailbox. If job for the mailbox is already
+	 * running, returns running job instead. Abandoned job is resumed.
+	 * 
+	 * @param dao
+	 * @param mailbox
+	 * @param rebuildIndex
+	 * @return
+	 */
+	public ScrubJob start(final CassandraMessageDAO dao, final Mailbox mailbox,
+			final boolean rebuildIndex)
+	{
+		ScrubJob job = running.get(mailbox.getId());
+
+		if (job != null) {
+			return snapshot(job);
+		}
+
+		job = ScrubJobPersistence.get(mailbox.getId());
+
+		if (job != null && job.isRunning())
+		{
+			if (isStale(job)) {
+				return submit(dao, mailbox, job);
+			}
+
+			// running on other node
+			return job;
+		}
+
+		job = new ScrubJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(), rebuildIndex, new Date());
+		checkpoint(mailbox, job);
+
+		return submit(dao, mailbox, job);
+	}
+
+	/**
+	 * Get state of the scrub job. Abandoned job is resumed.
+	 * 
+	 * @param dao
+	 * @param mailbox
+	 * @param jobId
+	 * @return Job state or <code>null</code> if job not found
+	 */
+	public ScrubJob get(final CassandraMessageDAO dao, final Mailbox mailbox, final UUID jobId)
+	{
+		ScrubJob job = running.get(mailbox.getId());
+
+		if (job != null && job.getId().equals(jobId)) {
+			return snapshot(job);
+		}
+
+		job = ScrubJobPersistence.get(mailbox.getId());
+
+		if (job == null || !job.getId().equals(jobId)) {
+			return null;
+		}
+
+		if (job.isRunning() && isStale(job)) {
+			return submit(dao, mailbox, job);
+		}
+
+		return job;
+	}
+
+	private ScrubJob submit(final CassandraMessageDAO dao, final Mailbox mailbox, final ScrubJob job)
+	{
+		ScrubJob previous = running.putIfAbsent(mailbox.getId(), job);
+
+		if (previous != null) {
+			return snapshot(previous);
+		}
+
+		logger.info("Starting {} of {}", job, mailbox);
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					RoutingKey.set(mailbox.getId());
+					scrub(dao, mailbox, job);
+				} finally {
+					running.remove(mailbox.getId());
+				}
+			}
+		});
+
+		return snapshot(job);
+	}
+
+	private void scrub(final CassandraMessageDAO dao, final Mailbox mailbox, final ScrubJob job)
+	{
+		ThrottlingMutator<String> mutator = new ThrottlingMutator<String>(
+				CassandraDAOFactory.getKeyspace(), strSe, AdaptiveThrottle.getInstance());
+
+		try {
+			// unread indexes are dropped only before the first page
+			if (job.isRebuildIndex() && job.getCheckpoint() == null) {
+				dao.dropUnreadIndexes(mailbox, mutator);
+			}
+
+			UUIDSet purgePendingMessages = PurgeIndexPersistence.getAll(mailbox.getId());
+			boolean hasMore = true;
+			int retries = 0;
+
+			while (hasMore)
+			{
+				ScrubJob page = snapshot(job);
+
+				try {
+					hasMore = dao.scrubPage(mailbox, page, purgePendingMessages, mutator);
+
+					// index entries should be stored before the checkpoint
+					mutator.execute();
+					retries = 0;
+				} catch (HectorException e) {
+					if (++retries > MAX_RETRIES) {
+						throw e;
+					}
+
+					logger.warn("Scrub of {} failed, retrying from checkpoint: {}", mailbox, e.getMessage());
+					Thread.sleep(RETRY_DELAY * retries);
+					continue;
+				}
+
+				synchronized (job) {
+					job.setCheckpoint(page.getCheckpoint());
+					job.setScanned(page.getScanned());
+					job.setCounters(page.getCounters());
+				}
+
+				if (hasMore) {
+					checkpoint(mailbox, job);
+				}
+			}
+
+			new CassandraLabelDAO(CassandraDAOFactory.getKeyspace()).setCounters(
+					mailbox, job.getCounters());
+
+			synchronized (job) {
+				job.setStatus(ScrubJob.Status.COMPLETED);
+			}
+			checkpoint(mailbox, job);
+
+			logger.info("Completed {} of {}", job, mailbox);
+		} catch (Exception e) {
+			logger.error("Scrub of " + mailbox + " failed: ", e);
+
+			synchronized (job) {
+				job.setStatus(ScrubJob.Status.FAILED);
+				job.setError(e.getMessage());
+			}
+
+			try {
+				checkpoint(mailbox, job);
+			} catch (Exception ce) {
+				// job will be resumed once it becomes stale
+				logger.error("Unable to store failed state of {}: {}", job, ce.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Store job state along with the current time
+	 * 
+	 * @param mailbox
+	 * @param job
+	 */
+	private static void checkpoint(final Mailbox mailbox, final ScrubJob job)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+
+		synchronized (job) {
+			job.setUpdated(new Date());
+			ScrubJobPersistence.set(mutator, mailbox.getId(), job);
+		}
+
+		mutator.execute();
+	}
+
+	private static ScrubJob snapshot(final ScrubJob job)
+	{
+		synchronized (job) {
+			return new ScrubJob(job);
+		}
+	}
+
+	private static boolean isStale(final ScrubJob job) {
+		return System.currentTimeMillis() - job.getUpdated().getTime() > STALE_TIMEOUT;
+	}
+}
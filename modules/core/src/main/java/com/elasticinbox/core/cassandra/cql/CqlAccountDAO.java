@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Session;
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.AccountDAO;
+import com.elasticinbox.core.MessageDAO;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.blob.store.AsyncBlobStorage;
+import com.elasticinbox.core.blob.store.BlobStorageMediator;
+import com.elasticinbox.core.blob.store.BlobStoreExecutors;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlAccountPersistence;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlLabelCounterPersistence;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlLabelIndexPersistence;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlMessagePersistence;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public final class CqlAccountDAO implements AccountDAO
+{
+	private final Session session;
+
+	private final AsyncBlobStorage blobStorage;
+
+	@SuppressWarnings("unused")
+	private final static Logger logger = LoggerFactory
+			.getLogger(CqlAccountDAO.class);
+
+	public CqlAccountDAO(Session session) {
+		this.session = session;
+		this.blobStorage = new BlobStorageMediator(null, null);
+	}
+
+	@Override
+	public void add(final Mailbox mailbox) throws IOException, IllegalArgumentException
+	{
+		// currently nothing happens here
+
+		//Map<String, Object> attributes = new HashMap<String, Object>();
+
+		// TODO: make quota configurable on the mailbox level
+		//attributes.put("quota:bytes", DEFAULT_QUOTA_BYTES);
+		//attributes.put("quota:messages", DEFAULT_QUOTA_MESSAGES);
+		//attributes.put("version", CURRENT_MAILBOX_VERSION);
+
+		//CqlAccountPersistence.set(mailbox.getId(), attributes);
+	}
+
+	@Override
+	public void delete(final Mailbox mailbox) throws IOException
+	{
+		// purge all previously deleted objects
+		// TODO: we should not instantiate here
+		MessageDAO messageDAO = new CqlMessageDAO(session);
+		messageDAO.purge(mailbox, new Date());
+
+		// delete all objects from object store
+		try {
+			Iterator<List<UUID>> batches = Iterators.partition(
+					CqlLabelIndexPersistence.getCursor(mailbox.getId(), ReservedLabels.ALL_MAILS.getId(), true),
+					BatchConstants.BATCH_READS);
+
+			// loop until we delete all items
+			while (batches.hasNext())
+			{
+				// get all message ids
+				List<UUID> messageIds = batches.next();
+
+				// get blob locations
+				Map<UUID, Message> messages = 
+						CqlMessagePersistence.fetch(mailbox.getId(), messageIds, MessageProjection.LOCATION);
+	
+				// delete message sources from object store, concurrently
+				List<ListenableFuture<Void>> deletions = 
+						new ArrayList<ListenableFuture<Void>>(messages.size());
+				for(UUID messageId : messages.keySet()) {
+					deletions.add(blobStorage.deleteAsync(messages.get(messageId).getLocation()));
+				}
+				BlobStoreExecutors.waitForAll(deletions);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+
+		// begin batch operation
+		CqlMutator m = new CqlMutator(session);
+
+		// delete all MessageMetadata
+		CqlMessagePersistence.deleteAllMessages(m, mailbox.getId());
+
+		// delete all indexes from IndexLabel
+		CqlLabelIndexPersistence.deleteIndexes(m, mailbox.getId());
+
+		// delete all counters
+		CqlLabelCounterPersistence.deleteAll(m, mailbox.getId());
+
+		// delete Account data
+		CqlAccountPersistence.delete(m, mailbox.getId());
+		
+		// commit batch operation
+		m.execute();
+	}
+
+	/**
+	 * Get quota (maximum) bytes for the given mailbox
+	 *  
+	 * @param mailbox
+	 * @return
+	 */
+	public Long getQuotaBytes(final Mailbox mailbox) {
+		// TODO: add account quota attribute check
+		return Configurator.getDefaultQuotaBytes();
+	}
+	
+	/**
+	 * Get quota (maximum) messages for the given mailbox
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public Long getQuotaCount(final Mailbox mailbox) {
+		// TODO: add account quota attribute check
+		return Configurator.getDefaultQuotaCount();
+	}
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.AccountDAO;
+import com.elasticinbox.core.DAOFactory;
+import com.elasticinbox.core.LabelDAO;
+import com.elasticinbox.core.MessageDAO;
+
+/**
+ * Data Access Factory for Cassandra over CQL native protocol.
+ * <p>
+ * Uses CQL3 tables defined in <code>elasticinbox.cql</code>. Data is not
+ * shared with Thrift based {@link com.elasticinbox.core.cassandra.CassandraDAOFactory}.
+ */
+public final class CqlDAOFactory extends DAOFactory
+{
+	private final static Logger logger = 
+		LoggerFactory.getLogger(CqlDAOFactory.class);
+
+	private static Session session;
+
+	/** Prepared statements cached by query string */
+	private final static ConcurrentMap<String, PreparedStatement> statements = 
+			new ConcurrentHashMap<String, PreparedStatement>();
+
+	public final static String TABLE_ACCOUNTS = "account_attributes";
+	public final static String TABLE_METADATA = "message_attributes";
+	public final static String TABLE_LABEL_INDEX = "label_index";
+	public final static String TABLE_UNREAD_INDEX = "unread_index";
+	public final static String TABLE_PURGE_INDEX = "purge_index";
+	public final static String TABLE_COUNTERS = "label_counters";
+
+	public static Session getSession() {
+		return session;
+	}
+
+	/**
+	 * This method sets system-wide session. Should be used only for unit test
+	 * injection.
+	 * 
+	 * @param s
+	 */
+	public static void setSession(Session s) {
+		session = s;
+		statements.clear();
+	}
+
+	/**
+	 * Get prepared statement for the given query. Each query is prepared only
+	 * once, subsequent calls return cached statement.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	public static PreparedStatement prepare(final String query)
+	{
+		PreparedStatement statement = statements.get(query);
+
+		if (statement == null)
+		{
+			logger.debug("Preparing CQL statement: {}", query);
+
+			statement = session.prepare(query);
+			statement.setConsistencyLevel(ConsistencyLevel.QUORUM);
+
+			PreparedStatement existing = statements.putIfAbsent(query, statement);
+			if (existing != null) {
+				statement = existing;
+			}
+		}
+
+		return statement;
+	}
+
+	/**
+	 * Get prepared statement for the query with a LIMIT clause. Native
+	 * protocol does not allow binding limit, so it is formatted into query
+	 * (<code>%d</code>). To keep the number of prepared statements small, limit
+	 * is rounded up to the power of two. Callers should truncate results.
+	 * 
+	 * @param queryFormat
+	 * @param limit
+	 * @return
+	 */
+	public static PreparedStatement prepare(final String queryFormat, final int limit)
+	{
+		int roundedLimit = (limit <= 1) ? 1 : Integer.highestOneBit(limit - 1) << 1;
+		return prepare(String.format(queryFormat, roundedLimit));
+	}
+
+	@Override
+	public AccountDAO getAccountDAO() {
+		return new CqlAccountDAO(session);
+	}
+
+	@Override
+	public MessageDAO getMessageDAO() {
+		return new CqlMessageDAO(session);
+	}
+
+	@Override
+	public LabelDAO getLabelDAO() {
+		return new CqlLabelDAO(session);
+	}
+
+	static
+	{
+		// Use hosts from Thrift configuration, replacing port with native port
+		List<String> hosts = new ArrayList<String>(Configurator.getCassandraHosts().size());
+		for (String host : Configurator.getCassandraHosts()) {
+			hosts.add(host.split(":")[0]);
+		}
+
+		logger.info("Connecting to cassandra hosts {} over native protocol on port {}",
+				hosts, Configurator.getCassandraNativePort());
+
+		// Route requests directly to replicas
+		Cluster cluster = Cluster.builder()
+				.addContactPoints(hosts.toArray(new String[hosts.size()]))
+				.withPort(Configurator.getCassandraNativePort())
+				.withLoadBalancingPolicy(new TokenAwarePolicy(new RoundRobinPolicy()))
+				.build();
+
+		// keyspace name is case sensitive
+		session = cluster.connect("\"" + Configurator.getCassandraKeyspace() + "\"");
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Session;
+import com.elasticinbox.core.ExistingLabelException;
+import com.elasticinbox.core.IllegalLabelException;
+import com.elasticinbox.core.LabelDAO;
+import com.elasticinbox.core.MessageDAO;
+import com.elasticinbox.core.MessageModification;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlAccountPersistence;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlLabelCounterPersistence;
+import com.elasticinbox.core.cassandra.cql.persistence.CqlLabelIndexPersistence;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.LabelMap;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.ReservedLabels;
+import com.elasticinbox.core.utils.LabelUtils;
+import com.google.common.collect.Iterators;
+
+public final class CqlLabelDAO implements LabelDAO
+{
+	private final Session session;
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlLabelDAO.class);
+
+	public CqlLabelDAO(Session session) {
+		this.session = session;
+	}
+
+	@Override
+	public LabelMap getAllWithMetadata(final Mailbox mailbox)
+			throws IOException
+	{
+		// get labels
+		LabelMap labels = CqlAccountPersistence.getLabels(mailbox.getId());
+
+		// set labels' counters
+		Map<Integer, LabelCounters> counters = CqlLabelCounterPersistence.getAll(mailbox.getId());
+
+		for (int labelId : counters.keySet())
+		{
+			if (labels.containsId(labelId) && counters.containsKey(labelId)) {
+				labels.get(labelId).setCounters(counters.get(labelId));
+			} else if (labels.containsId(labelId) && !counters.containsKey(labelId)) {
+				// assume zeros for all counters if not yet initialised
+				labels.get(labelId).setCounters(new LabelCounters());
+			} else if (!labels.containsId(labelId) && counters.containsKey(labelId)) {
+				logger.warn("Found counters for label {}/{}, but label does not exist.", mailbox.getId(), labelId);
+			}
+		}
+
+		return labels;
+	}
+
+	@Override
+	public Map<Integer, String> getAll(final Mailbox mailbox) {
+		return CqlAccountPersistence.getLabels(mailbox.getId()).getNameMap();
+	}
+
+	@Override
+	public int add(Mailbox mailbox, Label label)
+	{
+		// get all existing labels
+		LabelMap existingLabels = CqlAccountPersistence.getLabels(mailbox.getId());
+
+		LabelUtils.validateLabelName(label.getName(), existingLabels);
+
+		try {
+			// generate new label id
+			int labelId = LabelUtils.getNewLabelId(existingLabels.getIds());
+			label.setId(labelId);
+		} catch (IllegalLabelException ile) {
+			// log and rethrow
+			logger.warn("{} reached max random label id attempts with {} labels",
+						mailbox, existingLabels.size());
+			throw ile;
+		}
+
+		// begin batch operation
+		CqlMutator mutator = new CqlMutator(session);
+
+		// add new label
+		CqlAccountPersistence.putLabel(mutator, mailbox.getId(), label);
+
+		// commit batch operation
+		mutator.execute();
+
+		return label.getId();
+	}
+	
+	@Override
+	public void update(Mailbox mailbox, Label label) throws IOException
+	{
+		// get all existing labels
+		LabelMap existingLabels = CqlAccountPersistence.getLabels(mailbox.getId());
+
+		// validate only if name is changed (skips letter case changes)
+		if (label.getName() != null && !existingLabels.containsName(label.getName())) {
+			LabelUtils.validateLabelName(label.getName(), existingLabels);
+		}
+
+		// check if label id reserved
+		if (ReservedLabels.contains(label.getId())) {
+			throw new ExistingLabelException("This is reserved label and can't be modified");
+		}
+
+		// check if label id exists
+		if (!existingLabels.containsId(label.getId())) {
+			throw new IllegalLabelException("Label does not exist");
+		}
+
+		// begin batch operation
+		CqlMutator mutator = new CqlMutator(session);
+
+		// set new name
+		CqlAccountPersistence.putLabel(mutator, mailbox.getId(), label);
+		
+		// commit batch operation
+		mutator.execute();
+	}
+
+	@Override
+	public void delete(final Mailbox mailbox, final Integer labelId)
+	{
+		// check if label reserved
+		if(ReservedLabels.contains(labelId)) {
+			throw new IllegalLabelException("This is reserved label and can't be modified");
+		}
+
+		// get message DAO object
+		MessageDAO messageDAO = new CqlMessageDAO(session);
+
+		Set<Integer> labelIds = new HashSet<Integer>(1);
+		labelIds.add(labelId);
+
+		Iterator<List<UUID>> batches = Iterators.partition(
+				CqlLabelIndexPersistence.getCursor(mailbox.getId(), labelId, false),
+				BatchConstants.BATCH_READS);
+
+		// loop until we delete all items
+		while (batches.hasNext())
+		{
+			// remove label from message metadata
+			messageDAO.modify(mailbox, batches.next(), 
+					new MessageModification.Builder().removeLabels(labelIds).build());
+		}
+
+		// begin batch operation
+		CqlMutator m = new CqlMutator(session);
+
+		// delete label index
+		CqlLabelIndexPersistence.deleteIndex(m, mailbox.getId(), labelId);
+
+		// delete label counters
+		CqlLabelCounterPersistence.delete(m, mailbox.getId(), labelId);
+		
+		// delete label info from account mailbox
+		CqlAccountPersistence.deleteLabel(m, mailbox.getId(), labelId);
+
+		// commit batch operation
+		m.execute();
+	}
+
+	@Override
+	public void setCounters(Mailbox mailbox, LabelMap newCounters)
+	{
+		Map<Integer, LabelCounters> existingCounters = 
+				CqlLabelCounterPersistence.getAll(mailbox.getId());
+
+		// begin batch operation
+		CqlMutator m = new CqlMutator(session);
+
+		// update with the new counter values
+		for (Label label : newCounters.values())
+		{
+			int labelId = label.getId();
+			LabelCounters diff = new LabelCounters(label.getCounters());
+
+			if (existingCounters.containsKey(labelId)) {
+				diff.add(existingCounters.get(labelId).getInverse());
+			}
+
+			logger.debug(
+					"Recalculated counters for label {}:\n\tCurrent: {}\n\tCalculated: {}\n\tDiff: {}",
+					new Object[] { labelId, existingCounters.get(labelId), label.getCounters(), diff });
+
+			CqlLabelCounterPersistence.add(m, mailbox.getId(), labelId, diff);
+		}
+
+		// reset non-existing counters
+		for (int labelId : existingCounters.keySet())
+		{
+			if (!newCounters.containsId(labelId)) {
+				CqlLabelCounterPersistence.subtract(
+						m, mailbox.getId(), labelId, existingCounters.get(labelId));
+			}
+		}
+
+		m.execute();
+	}
+
+}
@@ -0,0 +1,525 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Session;
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.IllegalLabelException;
+import com.elasticinbox.core.MessageDAO;
+import com.elasticinbox.core.MessageModification;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.OverQuotaException;
+import com.elasticinbox.core.blob.BlobDataSource;
+import com.elasticinbox.core.blob.compression.CompressionHandler;
+import com.elasticinbox.core.blob.compression.DeflateCompressionHandler;
+import com.elasticinbox.core.blob.encryption.AESEncryptionHandler;
+import com.elasticinbox.core.blob.encryption.EncryptionHandler;
+import com.elasticinbox.core.blob.store.BlobStorageMediator;
+import com.elasticinbox.core.blob.store.BlobStoreExecutors;
+import com.elasticinbox.core.cassandra.AbstractMessageDAO;
+import com.elasticinbox.core.cassandra.cql.persistence.*;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.LabelMap;
+import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.Marker;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
+import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public final class CqlMessageDAO extends AbstractMessageDAO implements MessageDAO
+{
+	private final Session session;
+	
+	private final BlobStorageMediator blobStorage;
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlMessageDAO.class);
+	
+	public CqlMessageDAO(Session session)
+	{
+		this.session = session;
+		
+		// Create BlobStorage instance with AES encryption and Deflate compression
+		CompressionHandler compressionHandler = 
+				Configurator.isBlobStoreCompressionEnabled() ? new DeflateCompressionHandler() : null;
+		EncryptionHandler encryptionHandler = 
+				Configurator.isBlobStoreEncryptionEnabled() ? new AESEncryptionHandler() : null;
+
+		this.blobStorage = new BlobStorageMediator(compressionHandler, encryptionHandler);
+	}
+
+	@Override
+	public Message getParsed(final Mailbox mailbox, final UUID messageId)
+	{
+		return CqlMessagePersistence.fetch(mailbox.getId(), messageId, true);
+	}
+
+	@Override
+	public BlobDataSource getRaw(final Mailbox mailbox, final UUID messageId)
+			throws IOException
+	{
+		// inlined blob is fetched together with metadata
+		ByteArrayOutputStream inlineBlob = new ByteArrayOutputStream();
+		Message metadata = CqlMessagePersistence.fetch(mailbox.getId(), messageId, inlineBlob);
+
+		if (metadata.getLocation() != null
+				&& BlobStorageMediator.isInlineProfile(metadata.getLocation())) {
+			return blobStorage.readInline(metadata.getLocation(), inlineBlob.toByteArray());
+		} else {
+			return blobStorage.read(metadata.getLocation());
+		}
+	}
+
+	@Override
+	public Map<UUID, Message> getMessageIdsWithMetadata(final Mailbox mailbox,
+			final int labelId, final UUID start, final int count, boolean reverse,
+			final MessageProjection projection)
+	{
+		List<UUID> messageIds = 
+				getMessageIds(mailbox, labelId, start, count, reverse);
+
+		return CqlMessagePersistence.fetch(mailbox.getId(), messageIds, projection);
+	}
+
+	@Override
+	public List<UUID> getUnreadMessageIds(final Mailbox mailbox, final int labelId,
+			final UUID start, final int count, final boolean reverse)
+	{
+		return CqlLabelIndexPersistence.getUnread(mailbox.getId(), labelId, start, count, reverse);
+	}
+
+	@Override
+	public Map<UUID, Message> getUnreadMessageIdsWithMetadata(final Mailbox mailbox,
+			final int labelId, final UUID start, final int count, boolean reverse,
+			final MessageProjection projection)
+	{
+		List<UUID> messageIds = 
+				getUnreadMessageIds(mailbox, labelId, start, count, reverse);
+
+		return CqlMessagePersistence.fetch(mailbox.getId(), messageIds, projection);
+	}
+
+	@Override
+	public Map<UUID, MessageSummary> getMessageSummaries(final Mailbox mailbox,
+			final int labelId, final UUID start, final int count, boolean reverse)
+	{
+		Map<UUID, MessageSummary> summaries = CqlLabelIndexPersistence.getSummaries(
+				mailbox.getId(), labelId, start, count, reverse);
+
+		// index entries written before summaries were introduced have no
+		// summary, fall back to metadata for such messages
+		List<UUID> missing = new ArrayList<UUID>();
+		for (Map.Entry<UUID, MessageSummary> entry : summaries.entrySet()) {
+			if (entry.getValue() == null) {
+				missing.add(entry.getKey());
+			}
+		}
+
+		if (!missing.isEmpty())
+		{
+			Map<UUID, Message> messages = CqlMessagePersistence.fetch(
+					mailbox.getId(), missing, MessageProjection.SUMMARY);
+
+			for (UUID messageId : missing)
+			{
+				if (messages.containsKey(messageId)) {
+					summaries.put(messageId, MessageSummary.fromMessage(messages.get(messageId)));
+				} else {
+					// message deleted from metadata but not from index
+					summaries.remove(messageId);
+				}
+			}
+		}
+
+		return summaries;
+	}
+
+	@Override
+	public List<UUID> getMessageIds(final Mailbox mailbox, final int labelId,
+			final UUID start, final int count, final boolean reverse)
+	{
+		return CqlLabelIndexPersistence.get(mailbox.getId(), labelId, start, count, reverse);
+	}
+
+	@Override
+	public void put(final Mailbox mailbox, UUID messageId, Message message, InputStream in)
+			throws IOException, OverQuotaException
+	{
+		URI uri = null;
+		ByteArrayOutputStream inlineBlob = null;
+		logger.debug("Storing message: key={}", messageId.toString());
+
+		// Check quota
+		LabelCounters mailboxCounters = CqlLabelCounterPersistence.get(
+				mailbox.getId(), ReservedLabels.ALL_MAILS.getId());
+
+		long requiredBytes = mailboxCounters.getTotalBytes() + message.getSize();
+		long requiredCount = mailboxCounters.getTotalMessages() + 1;
+
+		if ((requiredBytes > Configurator.getDefaultQuotaBytes()) ||
+			(requiredCount > Configurator.getDefaultQuotaCount()))
+		{
+			logger.info("Mailbox is over quota: {} size={}/{}, count={}/{}",
+					new Object[] { mailbox.getId(), requiredBytes,
+							Configurator.getDefaultQuotaBytes(), requiredCount,
+							Configurator.getDefaultQuotaCount() });
+
+			throw new OverQuotaException("Mailbox is over quota");
+		}
+
+		// Order is important, add to label after message written
+
+		// store blob
+		if (in != null)
+		{
+			try {
+				// small blobs are returned for storing inline with metadata
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				uri = blobStorage.write(messageId, mailbox,
+						Configurator.getBlobStoreWriteProfileName(), in, message.getSize(), out)
+						.buildURI();
+
+				if (BlobStorageMediator.isInlineProfile(uri)) {
+					inlineBlob = out;
+				}
+
+				// update location in metadata
+				message.setLocation(uri);
+			} catch (Exception e) {
+				throw new IOException("Failed to store blob: ", e);
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+		}
+
+		// automatically add "all" label to all new messages
+		message.addLabel(ReservedLabels.ALL_MAILS.getId());
+
+		try {
+			// begin batch operation
+			CqlMutator m = new CqlMutator(session);
+
+			// store metadata, with inlined blob if any
+			if (inlineBlob != null) {
+				CqlMessagePersistence.persistMessage(m, mailbox.getId(), messageId,
+						message, inlineBlob.toByteArray());
+			} else {
+				CqlMessagePersistence.persistMessage(m, mailbox.getId(), messageId, message);
+			}
+			// add indexes
+			CqlLabelIndexPersistence.add(m, mailbox.getId(), messageId, message.getLabels(),
+					MessageSummary.fromMessage(message));
+			if (!message.getMarkers().contains(Marker.SEEN)) {
+				CqlLabelIndexPersistence.addUnread(m, mailbox.getId(), messageId, message.getLabels());
+			}
+			// update counters
+			CqlLabelCounterPersistence.add(m, mailbox.getId(), message.getLabels(), message.getLabelCounters());
+
+			// commit batch operation
+			m.execute();
+		} catch (Exception e) {
+			logger.warn(
+					"Unable to store metadata for message {}, deleting blob {}",
+					messageId, uri);
+
+			// rollback
+			if (uri != null) {
+				blobStorage.delete(uri);
+			}
+
+			throw new IOException("Unable to store message metadata: ", e);
+		}
+	}
+	
+	@Override
+	public void modify(final Mailbox mailbox, List<UUID> messageIds, MessageModification mod)
+	{
+		// label "all" cannot be removed from message
+		if (mod.getLabelsToRemove().contains(ReservedLabels.ALL_MAILS.getId())) {
+			throw new IllegalLabelException("This label cannot be removed");
+		}
+
+		// begin batch operation
+		final CqlMutator mutator = new CqlMutator(session, BatchConstants.BATCH_WRITES);
+
+		ModificationWriter writer = new ModificationWriter() {
+			@Override
+			public void persistAttributes(UUID messageId, Set<String> attributes) {
+				CqlMessagePersistence.persistAttributes(mutator, mailbox.getId(), messageId, attributes);
+			}
+
+			@Override
+			public void deleteAttributes(UUID messageId, Set<String> attributes) {
+				CqlMessagePersistence.deleteAttributes(mutator, mailbox.getId(), messageId, attributes);
+			}
+
+			@Override
+			public void addToIndexes(UUID messageId, Set<Integer> labelIds, MessageSummary summary) {
+				CqlLabelIndexPersistence.add(mutator, mailbox.getId(), messageId, labelIds, summary);
+			}
+
+			@Override
+			public void removeFromIndexes(UUID messageId, Set<Integer> labelIds) {
+				CqlLabelIndexPersistence.remove(mutator, mailbox.getId(), messageId, labelIds);
+			}
+
+			@Override
+			public void addToUnreadIndexes(UUID messageId, Set<Integer> labelIds) {
+				CqlLabelIndexPersistence.addUnread(mutator, mailbox.getId(), messageId, labelIds);
+			}
+
+			@Override
+			public void removeFromUnreadIndexes(UUID messageId, Set<Integer> labelIds) {
+				CqlLabelIndexPersistence.removeUnread(mutator, mailbox.getId(), messageId, labelIds);
+			}
+		};
+
+		// stream over message ids in read batches
+		for (List<UUID> idSubList : Lists.partition(messageIds, BatchConstants.BATCH_READS))
+		{
+			// get message stats for counters
+			MessageAggregator ma = new MessageAggregator(mailbox, idSubList);
+
+			// counter deltas aggregated by label within read batch
+			Map<Integer, LabelCounters> counterDeltas = new HashMap<Integer, LabelCounters>();
+
+			for (UUID messageId : ma.getValidMessageIds())
+			{
+				planModification(writer, messageId, ma.getMessage(messageId), mod, counterDeltas);
+				mutator.executeIfFull();
+			}
+
+			// single counter update per label
+			for (Map.Entry<Integer, LabelCounters> delta : counterDeltas.entrySet()) {
+				CqlLabelCounterPersistence.add(mutator, mailbox.getId(), delta.getKey(), delta.getValue());
+			}
+
+			mutator.executeIfFull();
+		}
+
+		mutator.execute();
+	}
+
+	@Override
+	public void delete(final Mailbox mailbox, final List<UUID> messageIds)
+	{
+		// begin batch operation
+		CqlMutator mutator = new CqlMutator(session, BatchConstants.BATCH_WRITES);
+		
+		// READ:WRITE ration is 1:5
+		final int readBatchSize = BatchConstants.BATCH_WRITES / 5;
+
+		for (List<UUID> idSubList : Lists.partition(messageIds, readBatchSize))
+		{
+			// get label stats
+			MessageAggregator ma = new MessageAggregator(mailbox, idSubList);
+			LabelMap labels = ma.aggregateCountersByLabel();
+
+			// validate message ids
+			List<UUID> validMessageIds = new ArrayList<UUID>(ma.getValidMessageIds());
+			List<UUID> invalidMessageIds = new ArrayList<UUID>(ma.getInvalidMessageIds());
+
+			// add only valid messages to purge index
+			CqlPurgeIndexPersistence.add(mutator, mailbox.getId(), validMessageIds);
+
+			// remove valid message ids from label indexes, including "all"
+			CqlLabelIndexPersistence.remove(mutator, mailbox.getId(), validMessageIds, labels.getIds());
+
+			// decrement label counters (add negative value)
+			for (Integer labelId : labels.getIds()) {
+				CqlLabelCounterPersistence.subtract(mutator, mailbox.getId(), labelId, labels.get(labelId).getCounters());
+			}
+
+			// remove invalid message ids from all known labels
+			LabelMap allLabels = CqlAccountPersistence.getLabels(mailbox.getId());
+			CqlLabelIndexPersistence.remove(mutator, mailbox.getId(), invalidMessageIds, allLabels.getIds());
+
+			// signal end of batch
+			mutator.executeIfFull();
+		}
+
+		// commit batch operation
+		mutator.execute();
+	}
+
+	@Override
+	public void purge(final Mailbox mailbox, final Date age) throws IOException
+	{
+		Map<UUID, UUID> purgeIndex = null;
+
+		logger.debug("Purging all messages older than {} for {}", age.toString(), mailbox);
+
+		// initiate throttling mutator 
+		CqlMutator mutator = new CqlMutator(session, BatchConstants.BATCH_WRITES);
+
+		// READ:WRITE ratio is 1:2
+		final int readBatchSize = BatchConstants.BATCH_WRITES / 2;
+
+		// loop until we process all purged items
+		do {
+			// get message IDs of messages to purge
+			purgeIndex = CqlPurgeIndexPersistence.get(mailbox.getId(), age, readBatchSize);
+
+			// get metadata/blob location
+			Map<UUID, Message> messages = 
+					CqlMessagePersistence.fetch(mailbox.getId(), purgeIndex.values(), MessageProjection.LOCATION);
+
+			// delete message sources from object store, concurrently
+			List<ListenableFuture<Void>> deletions = 
+					new ArrayList<ListenableFuture<Void>>(messages.size());
+			for(UUID messageId : messages.keySet()) {
+				deletions.add(blobStorage.deleteAsync(messages.get(messageId).getLocation()));
+			}
+			BlobStoreExecutors.waitForAll(deletions);
+
+			// purge expired (older than age) messages
+			CqlMessagePersistence.deleteMessage(mutator, mailbox.getId(), purgeIndex.values());
+
+			// remove from purge index
+			CqlPurgeIndexPersistence.remove(mutator, mailbox.getId(), purgeIndex.keySet());
+			
+			// signal end of batch
+			mutator.executeIfFull();
+		}
+		while (purgeIndex.size() >= readBatchSize);
+
+		// commit remaining items
+		mutator.execute();
+	}
+
+	@Override
+	public LabelMap scrub(final Mailbox mailbox, final boolean rebuildIndex)
+	{
+		LabelMap labels = new LabelMap();
+		Map<UUID, Message> messages;
+		Set<UUID> purgePendingMessages = new HashSet<UUID>();
+		
+		// initiate throttling mutator 
+		CqlMutator mutator = new CqlMutator(session, BatchConstants.BATCH_WRITES);
+		
+		logger.debug("Recalculating counters for {}", mailbox);
+
+		// unread indexes may contain messages which were read, drop them
+		// before rebuilding
+		if (rebuildIndex)
+		{
+			for (Integer labelId : CqlAccountPersistence.getLabels(mailbox.getId()).getIds()) {
+				CqlLabelIndexPersistence.deleteUnreadIndex(mutator, mailbox.getId(), labelId);
+			}
+			mutator.execute();
+		}
+
+		// Get message IDs pending purge. Such messages should be excluded during calculation.
+		purgePendingMessages = CqlPurgeIndexPersistence.getAll(mailbox.getId());
+
+		logger.debug("Found {} messages pending purge. Will exclude them from calculations.", purgePendingMessages.size());
+
+		UUID start = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
+		UUID counted = null; // last message of the previous page
+		do {
+			// reset start, read messages and calculate label counters
+			messages = CqlMessagePersistence.getRange(
+					mailbox.getId(), start, BatchConstants.BATCH_READS);
+
+			for (UUID messageId : messages.keySet())
+			{
+				// range is inclusive, start message was already counted
+				if (messageId.equals(counted)) continue;
+
+				start = messageId; // shift next query start
+
+				// skip messages from purge queue
+				if (purgePendingMessages.contains(messageId)) continue;
+
+				Message message = messages.get(messageId);
+
+				// add counters for each of the labels
+				for (int labelId : message.getLabels())
+				{
+					if (!labels.containsId(labelId)) {
+						Label label = new Label(labelId).setCounters(message.getLabelCounters()); 
+						labels.put(label);
+					} else {
+						labels.get(labelId).incrementCounters(message.getLabelCounters());
+					}
+
+					if (rebuildIndex)
+					{
+						// add message ID with summary to the label index
+						CqlLabelIndexPersistence.add(mutator, mailbox.getId(), messageId, labelId,
+								MessageSummary.fromMessage(message));
+						if (!message.getMarkers().contains(Marker.SEEN)) {
+							CqlLabelIndexPersistence.addUnread(mutator, mailbox.getId(), messageId, labelId);
+						}
+						mutator.executeIfFull();
+					}
+				}
+
+				logger.debug("Counters state after message {} is {}", messageId, labels.toString());
+			}
+
+			counted = start;
+		}
+		while (messages.size() >= BatchConstants.BATCH_READS);
+
+		// commit remaining items
+		mutator.execute();
+
+		return labels;
+	}
+
+	@Override
+	protected Map<UUID, Message> fetchSummaries(final Mailbox mailbox, final List<UUID> messageIds) {
+		return CqlMessagePersistence.fetch(mailbox.getId(), messageIds, MessageProjection.SUMMARY);
+	}
+}
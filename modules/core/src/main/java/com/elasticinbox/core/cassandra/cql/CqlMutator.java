@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Query;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+
+/**
+ * Collects CQL statements and executes them asynchronously.
+ * <p>
+ * All pending statements are sent to the cluster concurrently and
+ * {@link #execute()} blocks until all of them complete. When batch size is
+ * reached, {@link #executeIfFull()} executes pending statements, which
+ * throttles producer to the speed of the cluster.
+ */
+public final class CqlMutator
+{
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlMutator.class);
+
+	private final static int DEFAULT_BATCH_SIZE = 50;
+
+	private final Session session;
+	private final int batchSize;
+	private final List<Query> pendingStatements;
+
+	/**
+	 * @param session
+	 * @param batchSize
+	 *            Maximum number of statements executed at once
+	 */
+	public CqlMutator(Session session, int batchSize) {
+		this.session = session;
+		this.batchSize = batchSize;
+		this.pendingStatements = new ArrayList<Query>(batchSize);
+	}
+
+	public CqlMutator(Session session) {
+		this(session, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Add statement for execution
+	 * 
+	 * @param statement
+	 * @return
+	 */
+	public CqlMutator add(final Query statement) {
+		pendingStatements.add(statement);
+		return this;
+	}
+
+	/**
+	 * Number of statements pending execution
+	 * 
+	 * @return
+	 */
+	public int getPendingCount() {
+		return pendingStatements.size();
+	}
+
+	/**
+	 * Execute pending statements if batch is full
+	 */
+	public void executeIfFull()
+	{
+		if (pendingStatements.size() >= batchSize) {
+			execute();
+		}
+	}
+
+	/**
+	 * Execute all pending statements concurrently and wait for completion.
+	 * First failure is rethrown after all statements complete.
+	 */
+	public void execute()
+	{
+		if (pendingStatements.isEmpty()) {
+			return;
+		}
+
+		logger.debug("Executing {} statements", pendingStatements.size());
+
+		List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(pendingStatements.size());
+		for (Query statement : pendingStatements) {
+			futures.add(session.executeAsync(statement));
+		}
+
+		pendingStatements.clear();
+
+		RuntimeException failure = null;
+		for (ResultSetFuture future : futures)
+		{
+			try {
+				future.getUninterruptibly();
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
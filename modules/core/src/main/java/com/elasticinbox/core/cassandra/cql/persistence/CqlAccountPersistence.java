@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql.persistence;
+
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_ACCOUNTS;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.elasticinbox.core.IllegalLabelException;
+import com.elasticinbox.core.cassandra.persistence.AccountPersistence;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlMutator;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelMap;
+
+/**
+ * CQL version of {@link AccountPersistence}. Attribute naming is shared.
+ */
+public final class CqlAccountPersistence
+{
+	private final static String SELECT_ALL = 
+			"SELECT name, value FROM " + TABLE_ACCOUNTS + " WHERE mailbox = ?";
+	private final static String INSERT = 
+			"INSERT INTO " + TABLE_ACCOUNTS + " (mailbox, name, value) VALUES (?, ?, ?)";
+	private final static String DELETE_ATTRIBUTE = 
+			"DELETE FROM " + TABLE_ACCOUNTS + " WHERE mailbox = ? AND name = ?";
+	private final static String DELETE = 
+			"DELETE FROM " + TABLE_ACCOUNTS + " WHERE mailbox = ?";
+
+	/**
+	 * Get all account attributes
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static Map<String, Object> getAll(final String mailbox)
+	{
+		ResultSet rs = CqlDAOFactory.getSession().execute(
+				CqlDAOFactory.prepare(SELECT_ALL).bind(mailbox));
+
+		// read attributes from the result
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		for (Row row : rs) {
+			if (!row.isNull("value")) {
+				attributes.put(row.getString("name"), row.getString("value"));
+			}
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Add or update account attributes
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param attributes
+	 */
+	public static void set(CqlMutator mutator, final String mailbox, final Map<String, String> attributes)
+	{
+		for (Map.Entry<String, String> a : attributes.entrySet()) {
+			mutator.add(CqlDAOFactory.prepare(INSERT).bind(mailbox, a.getKey(), a.getValue()));
+		}
+	}
+
+	/**
+	 * Delete account
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void delete(CqlMutator mutator, final String mailbox)
+	{
+		mutator.add(CqlDAOFactory.prepare(DELETE).bind(mailbox));
+	}
+
+	/**
+	 * Get all labels
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static LabelMap getLabels(final String mailbox)
+	{
+		return AccountPersistence.toLabelMap(getAll(mailbox));
+	}
+
+	/**
+	 * Inserts new or updates existing label.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param label
+	 */
+	public static void putLabel(CqlMutator mutator, final String mailbox, Label label)
+	{
+		Map<String, String> attributes = new HashMap<String, String>(1);
+
+		// upsert label name
+		if (label.getName() != null) {
+			attributes.put(AccountPersistence.getLabelNameKey(label.getId()), label.getName());
+		}
+
+		// upsert custom label attributes (delete if value is null or empty)
+		if (label.getAttributes() != null)
+		{
+			for (Entry<String, String> labelAttr : label.getAttributes().entrySet())
+			{
+				// custom label attribute should not contain separator char
+				if (labelAttr.getKey().contains(AccountPersistence.CN_SEPARATOR)) {
+					throw new IllegalLabelException("Invalid character detected in the custom label attribute name.");
+				}
+
+				String labelAttrKey = AccountPersistence.getLabelAttributeKey(label.getId(), labelAttr.getKey());
+
+				if (labelAttr.getValue() != null && !labelAttr.getValue().isEmpty()) {
+					// upsert attribute
+					attributes.put(labelAttrKey, labelAttr.getValue());
+				} else {
+					// delete if value is empty
+					mutator.add(CqlDAOFactory.prepare(DELETE_ATTRIBUTE).bind(mailbox, labelAttrKey));
+				}
+			}
+		}
+
+		set(mutator, mailbox, attributes);
+	}
+
+	/**
+	 * Delete label from account
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void deleteLabel(CqlMutator mutator, final String mailbox, int labelId)
+	{
+		String labelAttrPrefix = AccountPersistence.getLabelAttributeKey(labelId, ""); // label attributes prefix
+
+		// delete label name
+		String labelNameKey = AccountPersistence.getLabelNameKey(labelId);
+		mutator.add(CqlDAOFactory.prepare(DELETE_ATTRIBUTE).bind(mailbox, labelNameKey));
+
+		// delete all attributes
+		for (String labelAttrKey : getAll(mailbox).keySet())
+		{
+			if (labelAttrKey.startsWith(labelAttrPrefix)) {
+				mutator.add(CqlDAOFactory.prepare(DELETE_ATTRIBUTE).bind(mailbox, labelAttrKey));
+			}
+		}
+	}
+}
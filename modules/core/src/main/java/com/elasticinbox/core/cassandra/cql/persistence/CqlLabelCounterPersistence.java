@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql.persistence;
+
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_COUNTERS;
+import static com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence.CN_SUBTYPE_BYTES;
+import static com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence.CN_SUBTYPE_MESSAGES;
+import static com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence.CN_SUBTYPE_UNREAD;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlMutator;
+import com.elasticinbox.core.cassandra.persistence.LabelCounterPersistence;
+import com.elasticinbox.core.model.LabelConstants;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.ReservedLabels;
+
+/**
+ * CQL version of {@link LabelCounterPersistence}. Counters are clustered by
+ * label ID and counter subtype.
+ */
+public final class CqlLabelCounterPersistence
+{
+	private final static String SELECT_ALL = 
+			"SELECT label_id, subtype, value FROM " + TABLE_COUNTERS + " WHERE mailbox = ?";
+	private final static String SELECT_LABEL = 
+			"SELECT label_id, subtype, value FROM " + TABLE_COUNTERS + " WHERE mailbox = ? AND label_id = ?";
+	private final static String UPDATE = 
+			"UPDATE " + TABLE_COUNTERS + " SET value = value + ? WHERE mailbox = ? AND label_id = ? AND subtype = ?";
+	private final static String DELETE_LABEL = 
+			"DELETE FROM " + TABLE_COUNTERS + " WHERE mailbox = ? AND label_id = ?";
+	private final static String DELETE_ALL = 
+			"DELETE FROM " + TABLE_COUNTERS + " WHERE mailbox = ?";
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlLabelCounterPersistence.class);
+
+	/**
+	 * Get counters for all label in the given mailbox
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static Map<Integer, LabelCounters> getAll(final String mailbox)
+	{
+		ResultSet rs = CqlDAOFactory.getSession().execute(
+				CqlDAOFactory.prepare(SELECT_ALL).bind(mailbox));
+
+		return rowsToCounters(mailbox, rs);
+	}
+
+	/**
+	 * Get counters for the specified label in the given mailbox
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @return
+	 */
+	public static LabelCounters get(final String mailbox, final Integer labelId)
+	{
+		ResultSet rs = CqlDAOFactory.getSession().execute(
+				CqlDAOFactory.prepare(SELECT_LABEL).bind(mailbox, labelId));
+
+		Map<Integer, LabelCounters> counters = rowsToCounters(mailbox, rs);
+		LabelCounters labelCounters = counters.containsKey(labelId) ? counters.get(labelId) : new LabelCounters();
+
+		logger.debug("Fetched counters for single label {} with {}", labelId, labelCounters);
+
+		return labelCounters;
+	}
+
+	/**
+	 * Increment or decrement of the label counters. Use negative values for
+	 * decrement.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelIds
+	 * @param labelCounters
+	 */
+	public static void add(CqlMutator mutator, final String mailbox,
+			final Set<Integer> labelIds, final LabelCounters labelCounters)
+	{
+		for (Integer labelId : labelIds)
+		{
+			logger.debug("Updating counters for label {} with {}", labelId, labelCounters);
+
+			// update total bytes only for ALL_MAILS label (i.e. total mailbox usage)
+			if ((labelId == ReservedLabels.ALL_MAILS.getId()) && (labelCounters.getTotalBytes() != 0)) {
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_BYTES, labelCounters.getTotalBytes());
+			}
+
+			if (labelCounters.getTotalMessages() != 0) {
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_MESSAGES, labelCounters.getTotalMessages());
+			}
+
+			if (labelCounters.getUnreadMessages() != 0) {
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_UNREAD, labelCounters.getUnreadMessages());
+			}
+		}
+	}
+
+	public static void subtract(CqlMutator mutator, final String mailbox,
+			final Set<Integer> labelIds, final LabelCounters labelCounters)
+	{
+		// perform addition of inverse (i.e. subtraction)
+		add(mutator, mailbox, labelIds, labelCounters.getInverse());
+	}
+
+	public static void add(CqlMutator mutator, final String mailbox,
+			final Integer labelId, final LabelCounters labelCounters)
+	{
+		Set<Integer> labelIds = new HashSet<Integer>(1);
+		labelIds.add(labelId);
+		add(mutator, mailbox, labelIds, labelCounters);
+	}
+
+	public static void subtract(CqlMutator mutator, final String mailbox,
+			final Integer labelId, final LabelCounters labelCounters)
+	{
+		Set<Integer> labelIds = new HashSet<Integer>(1);
+		labelIds.add(labelId);
+		subtract(mutator, mailbox, labelIds, labelCounters);
+	}
+
+	/**
+	 * Delete label counters
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void delete(CqlMutator mutator, final String mailbox,
+			final Integer labelId)
+	{
+		// reset all counters (since delete won't work in most cases)
+		subtract(mutator, mailbox, labelId, get(mailbox, labelId));
+		mutator.add(CqlDAOFactory.prepare(DELETE_LABEL).bind(mailbox, labelId));
+	}
+
+	/**
+	 * Delete all label counters
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void deleteAll(CqlMutator mutator, final String mailbox)
+	{
+		// reset all counters (since delete won't work in most cases)
+		Map<Integer, LabelCounters> counters = getAll(mailbox);
+		for (Integer labelId : counters.keySet()) {
+			subtract(mutator, mailbox, labelId, counters.get(labelId));
+		}
+
+		mutator.add(CqlDAOFactory.prepare(DELETE_ALL).bind(mailbox));
+	}
+
+	private static void addCounter(CqlMutator mutator, final String mailbox,
+			final Integer labelId, final char subtype, final Long count)
+	{
+		mutator.add(CqlDAOFactory.prepare(UPDATE).bind(
+				count, mailbox, labelId, Character.toString(subtype)));
+	}
+
+	/**
+	 * Convert CQL rows to {@link LabelCounters}
+	 * 
+	 * @param mailbox
+	 * @param rs
+	 * @return
+	 */
+	private static Map<Integer, LabelCounters> rowsToCounters(
+			final String mailbox, final ResultSet rs)
+	{
+		Map<Integer, LabelCounters> result = 
+				new HashMap<Integer, LabelCounters>(LabelConstants.MAX_RESERVED_LABEL_ID);
+
+		for (Row row : rs)
+		{
+			int labelId = row.getInt("label_id");
+			char subtype = row.getString("subtype").charAt(0);
+			long value = row.getLong("value");
+
+			if (!result.containsKey(labelId)) {
+				result.put(labelId, new LabelCounters());
+			}
+
+			LabelCounters labelCounters = result.get(labelId);
+
+			switch (subtype) {
+			case CN_SUBTYPE_BYTES:
+				labelCounters.setTotalBytes(value);
+				break;
+			case CN_SUBTYPE_MESSAGES:
+				labelCounters.setTotalMessages(value);
+				break;
+			case CN_SUBTYPE_UNREAD:
+				labelCounters.setUnreadMessages(value);
+				break;
+			}
+
+			if (value < 0) {
+				logger.warn("Negative counter value found for label {}/{}: ", mailbox, labelId);
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql.persistence;
+
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_LABEL_INDEX;
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_UNREAD_INDEX;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.Bytes;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlMutator;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+import com.elasticinbox.core.cassandra.persistence.BinaryMessageCodec;
+import com.elasticinbox.core.cassandra.persistence.LabelIndexPersistence;
+import com.elasticinbox.core.model.MessageSummary;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * CQL version of {@link LabelIndexPersistence}. Each label index is a separate
+ * partition keyed by mailbox and label ID.
+ */
+public final class CqlLabelIndexPersistence
+{
+	private final static String SELECT = 
+			"SELECT message_id FROM %s"
+			+ " WHERE mailbox = ? AND label_id = ? ORDER BY message_id %s LIMIT %%d";
+	private final static String SELECT_FROM = 
+			"SELECT message_id FROM %s"
+			+ " WHERE mailbox = ? AND label_id = ? AND message_id %s ? ORDER BY message_id %s LIMIT %%d";
+	private final static String SELECT_SUMMARIES = 
+			"SELECT message_id, summary FROM " + TABLE_LABEL_INDEX
+			+ " WHERE mailbox = ? AND label_id = ? ORDER BY message_id %s LIMIT %%d";
+	private final static String SELECT_SUMMARIES_FROM = 
+			"SELECT message_id, summary FROM " + TABLE_LABEL_INDEX
+			+ " WHERE mailbox = ? AND label_id = ? AND message_id %s ? ORDER BY message_id %s LIMIT %%d";
+	private final static String INSERT_SUMMARY = 
+			"INSERT INTO " + TABLE_LABEL_INDEX + " (mailbox, label_id, message_id, summary) VALUES (?, ?, ?, ?)";
+	private final static String DELETE = 
+			"DELETE FROM " + TABLE_LABEL_INDEX + " WHERE mailbox = ? AND label_id = ? AND message_id = ?";
+	private final static String DELETE_INDEX = 
+			"DELETE FROM " + TABLE_LABEL_INDEX + " WHERE mailbox = ? AND label_id = ?";
+	private final static String INSERT_UNREAD = 
+			"INSERT INTO " + TABLE_UNREAD_INDEX + " (mailbox, label_id, message_id) VALUES (?, ?, ?)";
+	private final static String DELETE_UNREAD = 
+			"DELETE FROM " + TABLE_UNREAD_INDEX + " WHERE mailbox = ? AND label_id = ? AND message_id = ?";
+	private final static String DELETE_UNREAD_INDEX = 
+			"DELETE FROM " + TABLE_UNREAD_INDEX + " WHERE mailbox = ? AND label_id = ?";
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlLabelIndexPersistence.class);
+
+	/**
+	 * Add message ID with message summary to label indexes
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labels
+	 * @param summary
+	 */
+	public static void add(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels, final MessageSummary summary)
+	{
+		for (Integer label : labels) {
+			add(mutator, mailbox, messageId, label, summary);
+		}
+	}
+
+	/**
+	 * Add message with message summary to label index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labelId
+	 * @param summary
+	 */
+	public static void add(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final int labelId, final MessageSummary summary)
+	{
+		logger.debug("Adding message {} to index {}:{}", new Object[] { messageId, mailbox, labelId });
+		mutator.add(CqlDAOFactory.prepare(INSERT_SUMMARY).bind(mailbox, labelId, messageId,
+				ByteBuffer.wrap(BinaryMessageCodec.encodeSummary(summary))));
+	}
+
+	/**
+	 * Add message ID to unread indexes of the given labels
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labels
+	 */
+	public static void addUnread(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels)
+	{
+		for (Integer label : labels) {
+			addUnread(mutator, mailbox, messageId, label);
+		}
+	}
+
+	/**
+	 * Add message ID to unread index of the label
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labelId
+	 */
+	public static void addUnread(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final int labelId)
+	{
+		logger.debug("Adding message {} to unread index {}:{}", new Object[] { messageId, mailbox, labelId });
+		mutator.add(CqlDAOFactory.prepare(INSERT_UNREAD).bind(mailbox, labelId, messageId));
+	}
+
+	/**
+	 * Remove message ID from unread indexes of the given labels. Message
+	 * remains in label indexes.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labels
+	 */
+	public static void removeUnread(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels)
+	{
+		for (Integer label : labels)
+		{
+			logger.debug("Removing message-id {} from unread index {}:{}", new Object[] { messageId, mailbox, label });
+			mutator.add(CqlDAOFactory.prepare(DELETE_UNREAD).bind(mailbox, label, messageId));
+		}
+	}
+
+	/**
+	 * Remove message IDs from label indexes, including unread indexes
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageIds
+	 * @param labels
+	 */
+	public static void remove(CqlMutator mutator, final String mailbox,
+			final List<UUID> messageIds, final Set<Integer> labels)
+	{
+		for (Integer label : labels)
+		{
+			for (UUID messageId : messageIds)
+			{
+				logger.debug("Removing message-id {} from index {}:{}", new Object[] { messageId, mailbox, label });
+				mutator.add(CqlDAOFactory.prepare(DELETE).bind(mailbox, label, messageId));
+				mutator.add(CqlDAOFactory.prepare(DELETE_UNREAD).bind(mailbox, label, messageId));
+			}
+		}
+	}
+
+	/**
+	 * Remove message ID from label indexes, including unread indexes
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labels
+	 */
+	public static void remove(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels)
+	{
+		final List<UUID> messageIds = new ArrayList<UUID>(1);
+		messageIds.add(messageId);
+		remove(mutator, mailbox, messageIds, labels);
+	}
+
+	/**
+	 * Get slice of message IDs from label index
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param start
+	 *            Start message ID (inclusive), or null to start from the
+	 *            beginning (or the end if reversed)
+	 * @param count
+	 * @param reverse
+	 * @return
+	 */
+	public static List<UUID> get(final String mailbox, final int labelId,
+			final UUID start, final int count, final boolean reverse)
+	{
+		return getSlice(TABLE_LABEL_INDEX, mailbox, labelId, start, count, reverse);
+	}
+
+	/**
+	 * Get cursor over all message IDs of the label index
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param reverse
+	 * @return
+	 */
+	public static IndexCursor<UUID> getCursor(final String mailbox,
+			final int labelId, final boolean reverse)
+	{
+		return new IndexCursor<UUID>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<UUID> readPage(UUID start, int count) {
+				return get(mailbox, labelId, start, count, reverse);
+			}
+
+			@Override
+			protected UUID getToken(UUID messageId) {
+				return messageId;
+			}
+		};
+	}
+
+	/**
+	 * Get slice of unread message IDs from unread index of the label
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param start
+	 *            Start message ID (inclusive), or null to start from the
+	 *            beginning (or the end if reversed)
+	 * @param count
+	 * @param reverse
+	 * @return
+	 */
+	public static List<UUID> getUnread(final String mailbox, final int labelId,
+			final UUID start, final int count, final boolean reverse)
+	{
+		return getSlice(TABLE_UNREAD_INDEX, mailbox, labelId, start, count, reverse);
+	}
+
+	private static List<UUID> getSlice(final String table, final String mailbox,
+			final int labelId, final UUID start, final int count, final boolean reverse)
+	{
+		List<UUID> messageIds = new ArrayList<UUID>(count);
+		String order = reverse ? "DESC" : "ASC";
+		BoundStatement statement;
+
+		if (start == null) {
+			statement = CqlDAOFactory.prepare(String.format(SELECT, table, order), count)
+					.bind(mailbox, labelId);
+		} else {
+			String relation = reverse ? "<=" : ">=";
+			statement = CqlDAOFactory.prepare(String.format(SELECT_FROM, table, relation, order), count)
+					.bind(mailbox, labelId, start);
+		}
+
+		ResultSet rs = CqlDAOFactory.getSession().execute(statement);
+
+		// read message ids from the result, limit is rounded up
+		for (Row row : rs)
+		{
+			if (messageIds.size() >= count) {
+				break;
+			}
+			messageIds.add(row.getUUID("message_id"));
+		}
+
+		return ImmutableList.copyOf(messageIds);
+	}
+
+	/**
+	 * Get slice of message IDs with message summaries from label index.
+	 * Summary is <code>null</code> for entries which were added without
+	 * summary.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param start
+	 *            Start message ID (inclusive), or null to start from the
+	 *            beginning (or the end if reversed)
+	 * @param count
+	 * @param reverse
+	 * @return
+	 */
+	public static Map<UUID, MessageSummary> getSummaries(final String mailbox,
+			final int labelId, final UUID start, final int count, final boolean reverse)
+	{
+		Map<UUID, MessageSummary> summaries = new LinkedHashMap<UUID, MessageSummary>(count);
+		String order = reverse ? "DESC" : "ASC";
+		BoundStatement statement;
+
+		if (start == null) {
+			statement = CqlDAOFactory.prepare(String.format(SELECT_SUMMARIES, order), count)
+					.bind(mailbox, labelId);
+		} else {
+			String relation = reverse ? "<=" : ">=";
+			statement = CqlDAOFactory.prepare(String.format(SELECT_SUMMARIES_FROM, relation, order), count)
+					.bind(mailbox, labelId, start);
+		}
+
+		ResultSet rs = CqlDAOFactory.getSession().execute(statement);
+
+		// read message ids and summaries from the result, limit is rounded up
+		for (Row row : rs)
+		{
+			if (summaries.size() >= count) {
+				break;
+			}
+
+			MessageSummary summary = row.isNull("summary") ? null
+					: BinaryMessageCodec.decodeSummary(Bytes.getArray(row.getBytes("summary")));
+			summaries.put(row.getUUID("message_id"), summary);
+		}
+
+		return summaries;
+	}
+
+	/**
+	 * Delete complete label index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void deleteIndex(CqlMutator mutator, final String mailbox, final Integer labelId)
+	{
+		mutator.add(CqlDAOFactory.prepare(DELETE_INDEX).bind(mailbox, labelId));
+		deleteUnreadIndex(mutator, mailbox, labelId);
+	}
+
+	/**
+	 * Delete complete unread index of the label
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void deleteUnreadIndex(CqlMutator mutator, final String mailbox, final Integer labelId)
+	{
+		mutator.add(CqlDAOFactory.prepare(DELETE_UNREAD_INDEX).bind(mailbox, labelId));
+	}
+
+	/**
+	 * Delete all label indexes, including purge index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void deleteIndexes(CqlMutator mutator, final String mailbox)
+	{
+		for (Integer labelId : CqlAccountPersistence.getLabels(mailbox).getIds()) {
+			deleteIndex(mutator, mailbox, labelId);
+		}
+
+		CqlPurgeIndexPersistence.deleteAll(mutator, mailbox);
+	}
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql.persistence;
+
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_METADATA;
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.Bytes;
+import com.elasticinbox.common.utils.Assert;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.MessageProjection.Field;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlMutator;
+import com.elasticinbox.core.cassandra.persistence.Marshaller;
+import com.elasticinbox.core.cassandra.persistence.MessagePersistence;
+import com.elasticinbox.core.model.Message;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * CQL version of {@link MessagePersistence}. Each message attribute is stored
+ * as a separate CQL row clustered by message ID, using the same attribute
+ * names and encoding as {@link Marshaller}.
+ */
+public final class CqlMessagePersistence
+{
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
+
+	/** Maximum number of concurrent reads issued by multi-message fetch */
+	private final static int MAX_CONCURRENT_READS = 50;
+
+	/** Number of rows (attributes) fetched per page in range queries */
+	private final static int RANGE_PAGE_SIZE = 1000;
+
+	private final static String SELECT_MESSAGE = 
+			"SELECT name, value FROM " + TABLE_METADATA + " WHERE mailbox = ? AND message_id = ?";
+	private final static String SELECT_MESSAGE_NAMES = 
+			"SELECT name, value FROM " + TABLE_METADATA + " WHERE mailbox = ? AND message_id = ? AND name IN (%s)";
+	private final static String SELECT_RANGE = 
+			"SELECT message_id, name, value FROM " + TABLE_METADATA
+			+ " WHERE mailbox = ? AND message_id <= ? ORDER BY message_id DESC LIMIT " + RANGE_PAGE_SIZE;
+	private final static String SELECT_RANGE_EXCLUSIVE = 
+			"SELECT message_id, name, value FROM " + TABLE_METADATA
+			+ " WHERE mailbox = ? AND message_id < ? ORDER BY message_id DESC LIMIT " + RANGE_PAGE_SIZE;
+	private final static String INSERT = 
+			"INSERT INTO " + TABLE_METADATA + " (mailbox, message_id, name, value) VALUES (?, ?, ?, ?)";
+	private final static String DELETE_ATTRIBUTE = 
+			"DELETE FROM " + TABLE_METADATA + " WHERE mailbox = ? AND message_id = ? AND name = ?";
+	private final static String DELETE_MESSAGE = 
+			"DELETE FROM " + TABLE_METADATA + " WHERE mailbox = ? AND message_id = ?";
+	private final static String DELETE_ALL = 
+			"DELETE FROM " + TABLE_METADATA + " WHERE mailbox = ?";
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlMessagePersistence.class);
+
+	/**
+	 * Fetch attributes of multiple messages. Messages are read concurrently.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param includeBody
+	 * @return
+	 */
+	public static Map<UUID, Message> fetch(final String mailbox,
+			final Collection<UUID> messageIds, final boolean includeBody)
+	{
+		return fetch(mailbox, messageIds, 
+				includeBody ? MessageProjection.ALL : MessageProjection.HEADERS);
+	}
+
+	/**
+	 * Fetch given fields of multiple messages. Unless all headers are
+	 * requested, only rows of the requested attributes are read.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param projection
+	 * @return
+	 */
+	public static Map<UUID, Message> fetch(final String mailbox,
+			final Collection<UUID> messageIds, final MessageProjection projection)
+	{
+		Map<UUID, Message> result = 
+				new LinkedHashMap<UUID, Message>(messageIds.size());
+
+		List<String> names = null;
+		PreparedStatement statement = CqlDAOFactory.prepare(SELECT_MESSAGE);
+
+		if (!projection.includes(MessageProjection.HEADERS))
+		{
+			Collection<Integer> labelIds = projection.includes(Field.LABELS) ? 
+					CqlAccountPersistence.getLabels(mailbox).getIds() : new ArrayList<Integer>(0);
+			names = new ArrayList<String>(Marshaller.getColumnNames(projection, labelIds));
+
+			// pad names with duplicates to reuse prepared statements
+			int count = (names.size() <= 1) ? 1 : Integer.highestOneBit(names.size() - 1) << 1;
+			while (names.size() < count) {
+				names.add(names.get(0));
+			}
+
+			statement = CqlDAOFactory.prepare(String.format(SELECT_MESSAGE_NAMES,
+					Joiner.on(", ").join(Collections.nCopies(count, "?"))));
+		}
+
+		for (List<UUID> idSubList : Lists.partition(new ArrayList<UUID>(messageIds), MAX_CONCURRENT_READS))
+		{
+			// send all queries at once
+			List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>(idSubList.size());
+			for (UUID messageId : idSubList)
+			{
+				List<Object> values = new ArrayList<Object>();
+				values.add(mailbox);
+				values.add(messageId);
+				if (names != null) {
+					values.addAll(names);
+				}
+
+				futures.add(CqlDAOFactory.getSession().executeAsync(
+						statement.bind(values.toArray())));
+			}
+
+			// collect results in the original order
+			for (int i = 0; i < idSubList.size(); i++)
+			{
+				UUID messageId = idSubList.get(i);
+				List<HColumn<String, byte[]>> columns = 
+						toColumns(futures.get(i).getUninterruptibly());
+
+				if (!columns.isEmpty()) {
+					result.put(messageId, Marshaller.unmarshall(columns, projection));
+				} else {
+					logger.debug("message {} not found for {} mailbox", messageId, mailbox);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Fetch messsage attributes
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param includeBody
+	 * @return
+	 */
+	public static Message fetch(final String mailbox, final UUID messageId,
+			final boolean includeBody)
+	{
+		List<HColumn<String, byte[]>> columns = toColumns(CqlDAOFactory.getSession()
+				.execute(CqlDAOFactory.prepare(SELECT_MESSAGE).bind(mailbox, messageId)));
+		Assert.isFalse(columns.isEmpty(), "Message not found");
+
+		return Marshaller.unmarshall(columns, includeBody);
+	}
+
+	/**
+	 * Fetch message attributes (excludes body) together with the blob stored
+	 * inline with metadata. Inlined blob data, if any, is written to the given
+	 * output stream.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param inlineOut
+	 * @return
+	 * @throws IOException
+	 */
+	public static Message fetch(final String mailbox, final UUID messageId,
+			final OutputStream inlineOut) throws IOException
+	{
+		List<HColumn<String, byte[]>> columns = toColumns(CqlDAOFactory.getSession()
+				.execute(CqlDAOFactory.prepare(SELECT_MESSAGE).bind(mailbox, messageId)));
+		Assert.isFalse(columns.isEmpty(), "Message not found");
+
+		for (HColumn<String, byte[]> c : columns) {
+			if (c.getName().equals(Marshaller.CN_BLOB)) {
+				inlineOut.write(c.getValue());
+			}
+		}
+
+		return Marshaller.unmarshall(columns, false);
+	}
+
+	/**
+	 * Get messages within given range (excludes body). Starts from the given
+	 * message ID (inclusive) in reverse order.
+	 * 
+	 * @param mailbox
+	 * @param start
+	 * @param count
+	 * @return
+	 */
+	public static Map<UUID, Message> getRange(final String mailbox,
+			final UUID start, final int count)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> messages = 
+				new LinkedHashMap<UUID, List<HColumn<String, byte[]>>>();
+
+		UUID from = start;
+		String query = SELECT_RANGE;
+
+		// page through attribute rows until enough messages collected
+		while (true)
+		{
+			ResultSet rs = CqlDAOFactory.getSession().execute(
+					CqlDAOFactory.prepare(query).bind(mailbox, from));
+
+			int rows = 0;
+			UUID first = null;
+			UUID last = null;
+
+			for (Row row : rs)
+			{
+				rows++;
+				last = row.getUUID("message_id");
+				if (first == null) {
+					first = last;
+				}
+
+				if (!messages.containsKey(last)) {
+					messages.put(last, new ArrayList<HColumn<String, byte[]>>());
+				}
+				messages.get(last).add(toColumn(row));
+			}
+
+			// no more rows left
+			if (rows < RANGE_PAGE_SIZE) {
+				break;
+			}
+
+			if (first.equals(last)) {
+				// single message larger than page, skip to the next message
+				logger.warn("Message {} in {} has more than {} attributes",
+						new Object[] { last, mailbox, RANGE_PAGE_SIZE });
+				query = SELECT_RANGE_EXCLUSIVE;
+			} else {
+				// last message can be truncated by page limit, re-read it with the next page
+				messages.remove(last);
+				query = SELECT_RANGE;
+			}
+
+			from = last;
+
+			if (messages.size() >= count) {
+				break;
+			}
+		}
+
+		Map<UUID, Message> result = new LinkedHashMap<UUID, Message>(count);
+		for (Map.Entry<UUID, List<HColumn<String, byte[]>>> m : messages.entrySet())
+		{
+			if (result.size() >= count) {
+				break;
+			}
+			result.put(m.getKey(), Marshaller.unmarshall(m.getValue(), false));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Persist {@link Message} object with given ID
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void persistMessage(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Message message) throws IOException
+	{
+		logger.debug("Persisting metadata for message {} in mailbox {}",
+				messageId, mailbox);
+
+		persistColumns(mutator, mailbox, messageId, Marshaller.marshall(message));
+	}
+
+	/**
+	 * Persist {@link Message} object with given ID and store blob inline with
+	 * metadata.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param message
+	 * @param blob
+	 *            Inlined blob data
+	 * @throws IOException
+	 */
+	public static void persistMessage(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Message message, final byte[] blob)
+			throws IOException
+	{
+		logger.debug("Persisting metadata and inline blob for message {} in mailbox {}",
+				messageId, mailbox);
+
+		List<HColumn<String, byte[]>> columns = Marshaller.marshall(message);
+		columns.add(createColumn(Marshaller.CN_BLOB, blob, strSe, byteSe));
+
+		persistColumns(mutator, mailbox, messageId, columns);
+	}
+
+	/**
+	 * Set flag attributes to multiple messages
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageIds
+	 * @param attributes
+	 */
+	public static void persistAttributes(CqlMutator mutator, final String mailbox,
+			final List<UUID> messageIds, final Set<String> attributes)
+	{
+		for (UUID messageId : messageIds)
+		{
+			for (String attribute : attributes) {
+				mutator.add(CqlDAOFactory.prepare(INSERT).bind(
+						mailbox, messageId, attribute, ByteBuffer.wrap(new byte[0])));
+			}
+		}
+	}
+
+	/**
+	 * Set flag attributes to single message
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param attributes
+	 */
+	public static void persistAttributes(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<String> attributes)
+	{
+		List<UUID> messageIds = new ArrayList<UUID>(1);
+		messageIds.add(messageId);
+		persistAttributes(mutator, mailbox, messageIds, attributes);
+	}
+
+	/**
+	 * Delete attributes from multiple messages
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageIds
+	 * @param attributes
+	 */
+	public static void deleteAttributes(CqlMutator mutator, final String mailbox,
+			final List<UUID> messageIds, final Set<String> attributes)
+	{
+		for (UUID messageId : messageIds)
+		{
+			for (String attribute : attributes) {
+				mutator.add(CqlDAOFactory.prepare(DELETE_ATTRIBUTE).bind(
+						mailbox, messageId, attribute));
+			}
+		}
+	}
+
+	/**
+	 * Delete attributes from single message
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param attributes
+	 */
+	public static void deleteAttributes(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final Set<String> attributes)
+	{
+		List<UUID> messageIds = new ArrayList<UUID>(1);
+		messageIds.add(messageId);
+		deleteAttributes(mutator, mailbox, messageIds, attributes);
+	}
+
+	/**
+	 * Delete message and all its attributes
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageIds
+	 */
+	public static void deleteMessage(CqlMutator mutator, final String mailbox,
+			final Collection<UUID> messageIds)
+	{
+		for (UUID messageId : messageIds) {
+			mutator.add(CqlDAOFactory.prepare(DELETE_MESSAGE).bind(mailbox, messageId));
+		}
+	}
+
+	/**
+	 * Delete all message metadata for account
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void deleteAllMessages(CqlMutator mutator, final String mailbox)
+	{
+		mutator.add(CqlDAOFactory.prepare(DELETE_ALL).bind(mailbox));
+	}
+
+	private static void persistColumns(CqlMutator mutator, final String mailbox,
+			final UUID messageId, final List<HColumn<String, byte[]>> columns)
+	{
+		for (HColumn<String, byte[]> c : columns) {
+			mutator.add(CqlDAOFactory.prepare(INSERT).bind(
+					mailbox, messageId, c.getName(), ByteBuffer.wrap(c.getValue())));
+		}
+	}
+
+	private static List<HColumn<String, byte[]>> toColumns(final ResultSet rs)
+	{
+		List<HColumn<String, byte[]>> columns = new ArrayList<HColumn<String, byte[]>>();
+		for (Row row : rs) {
+			columns.add(toColumn(row));
+		}
+		return columns;
+	}
+
+	private static HColumn<String, byte[]> toColumn(final Row row)
+	{
+		byte[] value = row.isNull("value") ? new byte[0] : Bytes.getArray(row.getBytes("value"));
+		return createColumn(row.getString("name"), value, strSe, byteSe);
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.cql.persistence;
+
+import static com.elasticinbox.core.cassandra.cql.CqlDAOFactory.TABLE_PURGE_INDEX;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.elasticinbox.core.cassandra.cql.CqlDAOFactory;
+import com.elasticinbox.core.cassandra.cql.CqlMutator;
+import com.elasticinbox.core.cassandra.persistence.PurgeIndexPersistence;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+
+/**
+ * CQL version of {@link PurgeIndexPersistence}. Purge index is stored in a
+ * separate table rather than as a special label index.
+ */
+public final class CqlPurgeIndexPersistence
+{
+	private final static String SELECT = 
+			"SELECT purge_id, message_id FROM " + TABLE_PURGE_INDEX
+			+ " WHERE mailbox = ? AND purge_id <= ? ORDER BY purge_id DESC LIMIT %d";
+	private final static String INSERT = 
+			"INSERT INTO " + TABLE_PURGE_INDEX + " (mailbox, purge_id, message_id) VALUES (?, ?, ?)";
+	private final static String DELETE = 
+			"DELETE FROM " + TABLE_PURGE_INDEX + " WHERE mailbox = ? AND purge_id = ?";
+	private final static String DELETE_ALL = 
+			"DELETE FROM " + TABLE_PURGE_INDEX + " WHERE mailbox = ?";
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(CqlPurgeIndexPersistence.class);
+
+	/**
+	 * Add message to purge index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageIds
+	 */
+	public static void add(CqlMutator mutator, final String mailbox,
+			final List<UUID> messageIds)
+	{
+		for (UUID messageId : messageIds)
+		{
+			UUID timeuuid = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
+			mutator.add(CqlDAOFactory.prepare(INSERT).bind(mailbox, timeuuid, messageId));
+		}
+	}
+
+	/**
+	 * Get all message IDs deleted before given date
+	 * 
+	 * @param mailbox
+	 * @param age
+	 * @param count
+	 * @return
+	 */
+	public static Map<UUID, UUID> get(final String mailbox, final Date age,
+			final int count)
+	{
+		UUID start = TimeUUIDUtils.getTimeUUID(age.getTime());
+		return get(mailbox, start, count);
+	}
+
+	/**
+	 * Get all message IDs deleted before given UUID
+	 * 
+	 * @param mailbox
+	 * @param start
+	 * @param count
+	 * @return
+	 */
+	public static Map<UUID, UUID> get(final String mailbox, final UUID start,
+			final int count)
+	{
+		Map<UUID, UUID> messageIds = new LinkedHashMap<UUID, UUID>(count);
+
+		ResultSet rs = CqlDAOFactory.getSession().execute(
+				CqlDAOFactory.prepare(SELECT, count).bind(mailbox, start));
+
+		// read message ids from the result, limit is rounded up
+		for (Row row : rs)
+		{
+			if (messageIds.size() >= count) {
+				break;
+			}
+			messageIds.put(row.getUUID("purge_id"), row.getUUID("message_id"));
+		}
+
+		return messageIds;
+	}
+
+	/**
+	 * Get cursor over purge index entries, starting from the most recent
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static IndexCursor<Map.Entry<UUID, UUID>> getCursor(final String mailbox)
+	{
+		return new IndexCursor<Map.Entry<UUID, UUID>>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<Map.Entry<UUID, UUID>> readPage(UUID start, int count) {
+				if (start == null) {
+					start = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
+				}
+				return new ArrayList<Map.Entry<UUID, UUID>>(get(mailbox, start, count).entrySet());
+			}
+
+			@Override
+			protected UUID getToken(Map.Entry<UUID, UUID> entry) {
+				return entry.getKey();
+			}
+		};
+	}
+
+	/**
+	 * Get all message IDs pending purge
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static Set<UUID> getAll(final String mailbox)
+	{
+		Set<UUID> pendingMessages = new HashSet<UUID>();
+		IndexCursor<Map.Entry<UUID, UUID>> cursor = getCursor(mailbox);
+
+		// get all message IDs from purge queue
+		while (cursor.hasNext()) {
+			pendingMessages.add(cursor.next().getValue());
+		}
+
+		return pendingMessages;
+	}
+
+	/**
+	 * Remove message IDs from purge index by ID
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param purgeIndexIds
+	 */
+	public static void remove(CqlMutator mutator, final String mailbox,
+			final Collection<UUID> purgeIndexIds)
+	{
+		for (UUID purgeIndexId : purgeIndexIds)
+		{
+			logger.debug("Removing purge index ID {} from {}", purgeIndexId, mailbox);
+			mutator.add(CqlDAOFactory.prepare(DELETE).bind(mailbox, purgeIndexId));
+		}
+	}
+
+	/**
+	 * Delete complete purge index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void deleteAll(CqlMutator mutator, final String mailbox)
+	{
+		mutator.add(CqlDAOFactory.prepare(DELETE_ALL).bind(mailbox));
+	}
+}
@@ -29,13 +29,18 @@
 package com.elasticinbox.core.cassandra.persistence;
 
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static me.prettyprint.hector.api.factory.HFactory.createStringColumnQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_ACCOUNTS;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.elasticinbox.common.utils.Assert;
 import com.elasticinbox.core.IllegalLabelException;
@@ -44,6 +49,8 @@ import com.elasticinbox.core.cassandra.utils.BatchConstants;
 import com.elasticinbox.core.model.Label;
 import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.cassandra.serializers.SerializerTypeInferer;
@@ -51,6 +58,7 @@ import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceQuery;
 
@@ -58,13 +66,57 @@ public final class AccountPersistence
 {
 	private final static String CN_LABEL_NAME_PREFIX = "label";
 	private final static String CN_LABEL_ATTRIBUTE_PREFIX = "lattr";
-	private final static String CN_SEPARATOR = ":";
+	private final static String CN_METADATA_LAYOUT = "layout";
+	private final static String CN_INDEX_LAYOUT = "index_layout";
+	public final static String CN_SEPARATOR = ":";
+
+	/**
+	 * Time for which metadata layout of the mailbox is cached. Layout change
+	 * becomes visible to all nodes after this time. In MILLISECONDS.
+	 */
+	public final static long METADATA_LAYOUT_CACHE_TTL = 10000L;
+	private final static int METADATA_LAYOUT_CACHE_SIZE = 100000;
+
+	private final static Cache<String, MetadataLayout> layoutCache = CacheBuilder
+			.newBuilder().maximumSize(METADATA_LAYOUT_CACHE_SIZE)
+			.expireAfterWrite(METADATA_LAYOUT_CACHE_TTL, TimeUnit.MILLISECONDS)
+			.build();
+
+	/**
+	 * Time for which label index layout of the mailbox is cached. In
+	 * MILLISECONDS.
+	 */
+	public final static long INDEX_LAYOUT_CACHE_TTL = 10000L;
+
+	private final static Cache<String, IndexLayout> indexLayoutCache = CacheBuilder
+			.newBuilder().maximumSize(METADATA_LAYOUT_CACHE_SIZE)
+			.expireAfterWrite(INDEX_LAYOUT_CACHE_TTL, TimeUnit.MILLISECONDS)
+			.build();
+
+	/**
+	 * Time for which labels of the mailbox are cached. Label changes made on
+	 * other nodes become visible after this time. In MILLISECONDS.
+	 */
+	public final static long LABELS_CACHE_TTL = 5000L;
+
+	private final static Cache<String, LabelMap> labelsCache = CacheBuilder
+			.newBuilder().maximumSize(METADATA_LAYOUT_CACHE_SIZE)
+			.expireAfterWrite(LABELS_CACHE_TTL, TimeUnit.MILLISECONDS)
+			.build();
+
+	/**
+	 * Versions of the mailbox labels, striped by mailbox. Incremented on each
+	 * label change, labels read during the change are not cached.
+	 */
+	private final static int LABELS_VERSION_STRIPES = 1024;
+	private final static AtomicLongArray labelsVersions = new AtomicLongArray(LABELS_VERSION_STRIPES);
 
 	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
 	private final static StringSerializer strSe = StringSerializer.get();
 
 	/**
-	 * Get all account attributes
+	 * Get all account attributes. Account row is read in pages, each page
+	 * continues from the last column of the previous one.
 	 * 
 	 * @param mailbox
 	 * @return
@@ -72,23 +124,35 @@ public final class AccountPersistence
 	 */
 	public static Map<String, Object> getAll(final String mailbox)
 	{
-		// Create a query
-		SliceQuery<String, String, byte[]> q = 
-				createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, strSe, byteSe);
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		List<HColumn<String, byte[]>> columns;
+		String start = null;
 
-		// set key, cf, range
-		q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox);
-		q.setRange(null, null, false, BatchConstants.BATCH_READS); // TODO: make sure we get all columns
-		// execute
-		QueryResult<ColumnSlice<String, byte[]>> r = q.execute();
+		do {
+			// Create a query
+			SliceQuery<String, String, byte[]> q = 
+					createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, strSe, byteSe);
 
-		// read attributes from the result
-		Map<String, Object> attributes = new HashMap<String, Object>();
-		for (HColumn<String, byte[]> c : r.get().getColumns()) { 
-			if( (c != null) && (c.getValue() != null)) {
-				attributes.put(c.getName(), strSe.fromBytes(c.getValue()));
+			// set key, cf, range
+			q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox);
+			q.setRange(start, null, false, BatchConstants.BATCH_READS);
+			// execute
+			QueryResult<ColumnSlice<String, byte[]>> r = q.execute();
+			columns = r.get().getColumns();
+
+			// read attributes from the result, start column was read by previous page
+			for (HColumn<String, byte[]> c : columns) { 
+				if( (c != null) && (c.getValue() != null) && !c.getName().equals(start)) {
+					attributes.put(c.getName(), strSe.fromBytes(c.getValue()));
+				}
+			}
+
+			// set start element for the next loop
+			if (!columns.isEmpty()) {
+				start = columns.get(columns.size() - 1).getName();
 			}
 		}
+		while (columns.size() >= BatchConstants.BATCH_READS);
 
 		return attributes;
 	}
@@ -121,20 +185,67 @@ public final class AccountPersistence
 	public static void delete(Mutator<String> mutator, final String mailbox)
 	{
 		mutator.addDeletion(mailbox, CF_ACCOUNTS, null, strSe);
+		layoutCache.invalidate(mailbox);
+		indexLayoutCache.invalidate(mailbox);
+		invalidateLabels(mailbox);
 	}
 
 	/**
-	 * Get all labels
+	 * Get all labels. Labels are cached, returned map can be modified.
 	 * 
 	 * @param mailbox
 	 * @return
 	 */
 	public static LabelMap getLabels(final String mailbox)
 	{
-		LabelMap labels = new LabelMap();
+		LabelMap labels = labelsCache.getIfPresent(mailbox);
 
-		// get list of user specific labels from Cassandra
-		Map<String, Object> attributes = getAll(mailbox);
+		if (labels == null)
+		{
+			long version = getLabelsVersion(mailbox);
+
+			// get list of user specific labels from Cassandra
+			labels = toLabelMap(getAll(mailbox));
+
+			if (version == getLabelsVersion(mailbox)) {
+				labelsCache.put(mailbox, labels);
+			}
+		}
+
+		return new LabelMap(labels);
+	}
+
+	/**
+	 * Remove cached labels of the mailbox. Labels read concurrently are not
+	 * cached. Should be called once label changes are written.
+	 * 
+	 * @param mailbox
+	 */
+	public static void invalidateLabels(final String mailbox)
+	{
+		labelsVersions.incrementAndGet(getLabelsStripe(mailbox));
+		labelsCache.invalidate(mailbox);
+		LabelSnapshotCache.getInstance().invalidate(mailbox);
+	}
+
+	private static long getLabelsVersion(final String mailbox) {
+		return labelsVersions.get(getLabelsStripe(mailbox));
+	}
+
+	private static int getLabelsStripe(final String mailbox) {
+		return (mailbox.hashCode() & 0x7fffffff) % LABELS_VERSION_STRIPES;
+	}
+
+	/**
+	 * Build labels from account attributes. Default reserved labels are always
+	 * included.
+	 * 
+	 * @param attributes
+	 * @return
+	 */
+	public static LabelMap toLabelMap(final Map<String, Object> attributes)
+	{
+		LabelMap labels = new LabelMap();
 
 		// add user specific labels
 		for (Map.Entry<String, Object> a : attributes.entrySet())
@@ -146,7 +257,8 @@ public final class AccountPersistence
 				String labelName = (String) a.getValue();
 				
 				if (labels.containsId(labelId)) {
-					labels.get(labelId).setName(labelName);
+					// put again to index the name
+					labels.put(labels.get(labelId).setName(labelName));
 				} else {
 					Label label = new Label(labelId, labelName); 
 					labels.put(label);
@@ -181,7 +293,8 @@ public final class AccountPersistence
 	}
 
 	/**
-	 * Inserts new or updates existing label.
+	 * Inserts new or updates existing label. Cached labels of the mailbox are
+	 * invalidated.
 	 *
 	 * @param mutator
 	 * @param mailbox
@@ -221,10 +334,11 @@ public final class AccountPersistence
 		}
 
 		AccountPersistence.set(mutator, mailbox, attributes);
+		invalidateLabels(mailbox);
 	}
 
 	/**
-	 * Delete label from account
+	 * Delete label from account. Cached labels of the mailbox are invalidated.
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -248,6 +362,8 @@ public final class AccountPersistence
 				mutator.addDeletion(mailbox, CF_ACCOUNTS, labelAttrKey, strSe);
 			}
 		}
+
+		invalidateLabels(mailbox);
 	}
 
 	/**
@@ -259,7 +375,7 @@ public final class AccountPersistence
 	 * @param attributeName Custom attribute name
 	 * @return
 	 */
-	static String getLabelAttributeKey(int labelId, final String attributeName)
+	public static String getLabelAttributeKey(int labelId, final String attributeName)
 	{
 		Assert.notNull(attributeName, "Attribute name cannot be null");
 		
@@ -276,9 +392,93 @@ public final class AccountPersistence
 	 * @param labelId
 	 * @return
 	 */
-	static String getLabelNameKey(int labelId)
+	public static String getLabelNameKey(int labelId)
 	{
 		return CN_LABEL_NAME_PREFIX + CN_SEPARATOR + labelId;
 	}
 
+	/**
+	 * Get message metadata layout of the mailbox. Mailboxes without layout
+	 * marker use super column layout.
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static MetadataLayout getMetadataLayout(final String mailbox)
+	{
+		MetadataLayout layout = layoutCache.getIfPresent(mailbox);
+
+		if (layout == null)
+		{
+			ColumnQuery<String, String, String> q = 
+					createStringColumnQuery(CassandraDAOFactory.getKeyspace());
+			q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox).setName(CN_METADATA_LAYOUT);
+
+			HColumn<String, String> c = q.execute().get();
+			layout = (c == null) ? MetadataLayout.SUPER : MetadataLayout.fromString(c.getValue());
+			layoutCache.put(mailbox, layout);
+		}
+
+		return layout;
+	}
+
+	/**
+	 * Set message metadata layout of the mailbox. Layout is written
+	 * immediately and cached only once written.
+	 * 
+	 * @param mailbox
+	 * @param layout
+	 */
+	public static void setMetadataLayout(final String mailbox, final MetadataLayout layout)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+		mutator.addInsertion(mailbox, CF_ACCOUNTS, 
+				createColumn(CN_METADATA_LAYOUT, layout.toString(), strSe, strSe));
+		mutator.execute();
+
+		layoutCache.put(mailbox, layout);
+	}
+
+	/**
+	 * Get label index layout of the mailbox. Mailboxes without layout marker
+	 * use single row layout.
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static IndexLayout getIndexLayout(final String mailbox)
+	{
+		IndexLayout layout = indexLayoutCache.getIfPresent(mailbox);
+
+		if (layout == null)
+		{
+			ColumnQuery<String, String, String> q = 
+					createStringColumnQuery(CassandraDAOFactory.getKeyspace());
+			q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox).setName(CN_INDEX_LAYOUT);
+
+			HColumn<String, String> c = q.execute().get();
+			layout = (c == null) ? IndexLayout.SINGLE : IndexLayout.fromString(c.getValue());
+			indexLayoutCache.put(mailbox, layout);
+		}
+
+		return layout;
+	}
+
+	/**
+	 * Set label index layout of the mailbox. Layout is written immediately
+	 * and cached only once written.
+	 * 
+	 * @param mailbox
+	 * @param layout
+	 */
+	public static void setIndexLayout(final String mailbox, final IndexLayout layout)
+	{
+		Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+		mutator.addInsertion(mailbox, CF_ACCOUNTS, 
+				createColumn(CN_INDEX_LAYOUT, layout.toString(), strSe, strSe));
+		mutator.execute();
+
+		indexLayoutCache.put(mailbox, layout);
+	}
+
 }
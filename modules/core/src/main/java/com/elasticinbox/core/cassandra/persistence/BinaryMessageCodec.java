@@ -0,0 +1,401 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.MessageProjection.Field;
+import com.elasticinbox.core.model.Address;
+import com.elasticinbox.core.model.AddressList;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
+import com.elasticinbox.core.model.MimePart;
+import com.google.common.base.Charsets;
+
+/**
+ * Compact binary encoding of the message headers, stored as a single column.
+ * <p>
+ * Encoded value starts with the version byte followed by fields. Each field
+ * is a field tag byte, varint length and field payload, so that unknown
+ * fields can be skipped. Numbers are varints, strings are UTF-8 prefixed with
+ * varint <code>length + 1</code> (zero for <code>null</code>), lists are
+ * prefixed with varint number of elements.
+ */
+public final class BinaryMessageCodec
+{
+	/** Current encoding version */
+	public final static byte VERSION = 1;
+
+	private final static byte F_DATE = 1;
+	private final static byte F_SIZE = 2;
+	private final static byte F_FROM = 3;
+	private final static byte F_TO = 4;
+	private final static byte F_CC = 5;
+	private final static byte F_BCC = 6;
+	private final static byte F_REPLY_TO = 7;
+	private final static byte F_MESSAGE_ID = 8;
+	private final static byte F_SUBJECT = 9;
+	private final static byte F_BRI = 10;
+	private final static byte F_PARTS = 11;
+
+	/** Current message summary encoding version */
+	public final static byte SUMMARY_VERSION = 1;
+
+	private final static int S_SEEN = 0x01;
+	private final static int S_ATTACHMENTS = 0x02;
+	private final static int S_DATE = 0x04;
+
+	/** Message fields indexed by field tag */
+	private final static Field[] TAG_FIELDS = { null, Field.DATE, Field.SIZE,
+			Field.FROM, Field.TO, Field.CC, Field.BCC, Field.REPLY_TO,
+			Field.MESSAGE_ID, Field.SUBJECT, Field.LOCATION, Field.PARTS };
+
+	/**
+	 * Encode message headers, parts and location. Labels, markers and body
+	 * are not included.
+	 * 
+	 * @param m
+	 * @return
+	 */
+	public static byte[] encode(final Message m)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		ByteArrayOutputStream field = new ByteArrayOutputStream(128);
+
+		out.write(VERSION);
+
+		if (m.getDate() != null) {
+			writeVarint(field, m.getDate().getTime());
+			writeField(out, F_DATE, field);
+		}
+
+		if (m.getSize() != null) {
+			writeVarint(field, m.getSize());
+			writeField(out, F_SIZE, field);
+		}
+
+		writeAddressField(out, field, F_FROM, m.getFrom());
+		writeAddressField(out, field, F_TO, m.getTo());
+		writeAddressField(out, field, F_CC, m.getCc());
+		writeAddressField(out, field, F_BCC, m.getBcc());
+		writeAddressField(out, field, F_REPLY_TO, m.getReplyTo());
+
+		if (m.getMessageId() != null) {
+			writeString(field, m.getMessageId());
+			writeField(out, F_MESSAGE_ID, field);
+		}
+
+		if (m.getSubject() != null) {
+			writeString(field, m.getSubject());
+			writeField(out, F_SUBJECT, field);
+		}
+
+		if (m.getLocation() != null) {
+			writeString(field, m.getLocation().toString());
+			writeField(out, F_BRI, field);
+		}
+
+		if (m.getParts() != null)
+		{
+			writeVarint(field, m.getParts().size());
+			for (Map.Entry<String, MimePart> part : m.getParts().entrySet())
+			{
+				writeString(field, part.getKey());
+				writeString(field, part.getValue().getContentId());
+				writeString(field, part.getValue().getMimeType());
+				writeString(field, part.getValue().getFileName());
+				writeString(field, part.getValue().getDisposition());
+				writeVarint(field, part.getValue().getSize());
+			}
+			writeField(out, F_PARTS, field);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode encoded fields into the given message
+	 * 
+	 * @param value
+	 * @param m
+	 */
+	public static void decode(final byte[] value, final Message m)
+	{
+		decode(value, m, MessageProjection.ALL);
+	}
+
+	/**
+	 * Decode encoded fields included in the projection into the given message.
+	 * Other fields are skipped without decoding.
+	 * 
+	 * @param value
+	 * @param m
+	 * @param projection
+	 */
+	public static void decode(final byte[] value, final Message m,
+			final MessageProjection projection)
+	{
+		ByteBuffer in = ByteBuffer.wrap(value);
+
+		byte version = in.get();
+		if (version != VERSION) {
+			throw new IllegalStateException("Unsupported metadata encoding version " + version);
+		}
+
+		while (in.hasRemaining())
+		{
+			byte tag = in.get();
+			int length = (int) readVarint(in);
+			int end = in.position() + length;
+
+			if (!projection.includes(toField(tag))) {
+				in.position(end);
+				continue;
+			}
+
+			switch (tag) {
+			case F_DATE:
+				m.setDate(new Date(readVarint(in)));
+				break;
+			case F_SIZE:
+				m.setSize(readVarint(in));
+				break;
+			case F_FROM:
+				m.setFrom(readAddressList(in));
+				break;
+			case F_TO:
+				m.setTo(readAddressList(in));
+				break;
+			case F_CC:
+				m.setCc(readAddressList(in));
+				break;
+			case F_BCC:
+				m.setBcc(readAddressList(in));
+				break;
+			case F_REPLY_TO:
+				m.setReplyTo(readAddressList(in));
+				break;
+			case F_MESSAGE_ID:
+				m.setMessageId(readString(in));
+				break;
+			case F_SUBJECT:
+				m.setSubject(readString(in));
+				break;
+			case F_BRI:
+				m.setLocation(URI.create(readString(in)));
+				break;
+			case F_PARTS:
+				m.setParts(readParts(in));
+				break;
+			default:
+				// unknown field, skip
+				break;
+			}
+
+			in.position(end);
+		}
+	}
+
+	/**
+	 * Encode message summary stored in label indexes as version byte, flags
+	 * byte, varint size and optional varint date.
+	 * 
+	 * @param summary
+	 * @return
+	 */
+	public static byte[] encodeSummary(final MessageSummary summary)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+		int flags = 0;
+
+		if (summary.isSeen())
+			flags |= S_SEEN;
+		if (summary.hasAttachments())
+			flags |= S_ATTACHMENTS;
+		if (summary.getDate() != null)
+			flags |= S_DATE;
+
+		out.write(SUMMARY_VERSION);
+		out.write(flags);
+		writeVarint(out, summary.getSize());
+
+		if (summary.getDate() != null) {
+			writeVarint(out, summary.getDate().getTime());
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode message summary. Returns <code>null</code> if value is empty or
+	 * has unknown version, which is the case for index entries written before
+	 * summaries were introduced.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static MessageSummary decodeSummary(final byte[] value)
+	{
+		if (value == null || value.length == 0 || value[0] != SUMMARY_VERSION) {
+			return null;
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(value, 1, value.length - 1);
+		int flags = in.get();
+		long size = readVarint(in);
+		Date date = ((flags & S_DATE) != 0) ? new Date(readVarint(in)) : null;
+
+		return new MessageSummary(size, date, (flags & S_SEEN) != 0,
+				(flags & S_ATTACHMENTS) != 0);
+	}
+
+	/**
+	 * Map field tag to the message field, <code>null</code> if unknown
+	 */
+	private static Field toField(final byte tag)
+	{
+		return (tag > 0 && tag < TAG_FIELDS.length) ? TAG_FIELDS[tag] : null;
+	}
+
+	private static void writeAddressField(ByteArrayOutputStream out,
+			ByteArrayOutputStream field, final byte tag, final AddressList addresses)
+	{
+		if (addresses == null)
+			return;
+
+		writeVarint(field, addresses.size());
+		for (Address address : addresses) {
+			writeString(field, address.getName());
+			writeString(field, address.getAddress());
+		}
+		writeField(out, tag, field);
+	}
+
+	/**
+	 * Write field from the buffer to the output and reset buffer
+	 */
+	private static void writeField(ByteArrayOutputStream out, final byte tag,
+			ByteArrayOutputStream field)
+	{
+		out.write(tag);
+		writeVarint(out, field.size());
+		out.write(field.toByteArray(), 0, field.size());
+		field.reset();
+	}
+
+	private static void writeString(ByteArrayOutputStream out, final String value)
+	{
+		if (value == null) {
+			writeVarint(out, 0);
+		} else {
+			byte[] bytes = value.getBytes(Charsets.UTF_8);
+			writeVarint(out, bytes.length + 1);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static AddressList readAddressList(ByteBuffer in)
+	{
+		int count = (int) readVarint(in);
+		List<Address> addresses = new ArrayList<Address>(count);
+
+		for (int i = 0; i < count; i++) {
+			String name = readString(in);
+			addresses.add(new Address(name, readString(in)));
+		}
+
+		return new AddressList(addresses);
+	}
+
+	private static Map<String, MimePart> readParts(ByteBuffer in)
+	{
+		int count = (int) readVarint(in);
+		Map<String, MimePart> parts = new LinkedHashMap<String, MimePart>(count);
+
+		for (int i = 0; i < count; i++)
+		{
+			String partId = readString(in);
+			String contentId = readString(in);
+			String mimeType = readString(in);
+			String fileName = readString(in);
+			String disposition = readString(in);
+			long size = readVarint(in);
+
+			parts.put(partId, new MimePart(partId, contentId, mimeType,
+					fileName, disposition, size));
+		}
+
+		return parts;
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		int length = (int) readVarint(in);
+		if (length == 0)
+			return null;
+
+		String value = new String(in.array(), in.arrayOffset() + in.position(),
+				length - 1, Charsets.UTF_8);
+		in.position(in.position() + length - 1);
+
+		return value;
+	}
+
+	private static long readVarint(ByteBuffer in)
+	{
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return value;
+	}
+}
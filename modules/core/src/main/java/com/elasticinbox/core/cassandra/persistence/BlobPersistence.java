@@ -29,8 +29,15 @@
 package com.elasticinbox.core.cassandra.persistence;
 
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.OperationConsistencyLevel;
+import com.elasticinbox.core.cassandra.utils.ParallelQueryExecutor;
 
 import static com.elasticinbox.config.DatabaseConstants.BLOB_BLOCK_SIZE;
 import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_BLOB;
@@ -42,6 +49,7 @@ import me.prettyprint.cassandra.serializers.IntegerSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 import me.prettyprint.hector.api.beans.Composite;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.ColumnQuery;
@@ -57,6 +65,9 @@ import me.prettyprint.hector.api.query.QueryResult;
  */
 public class BlobPersistence
 {
+	private final static Logger logger = 
+			LoggerFactory.getLogger(BlobPersistence.class);
+
 	private final static IntegerSerializer intSe = IntegerSerializer.get();
 	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
 	private final static UUIDSerializer uuidSe = UUIDSerializer.get();
@@ -92,12 +103,52 @@ public class BlobPersistence
 
 	/**
 	 * Read blob block from Cassandra.
+	 * <p>
+	 * Block is read with consistency level ONE and read again from another
+	 * replica if it takes longer than speculative read threshold. If block
+	 * was not found (e.g. replica did not receive it yet), it is read again
+	 * with QUORUM.
 	 * 
 	 * @param objectId Blob ID
 	 * @param blockId Block ID
 	 * @return
 	 */
 	public static byte[] readBlock(final UUID objectId, final int blockId)
+	{
+		Callable<byte[]> query = new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return queryBlock(objectId, blockId);
+			}
+		};
+
+		byte[] data = ParallelQueryExecutor.invokeSpeculative(query,
+				Configurator.getCassandraSpeculativeReadThreshold());
+
+		if (data == null)
+		{
+			logger.debug("Block {}:{} not found at ONE, reading with QUORUM", objectId, blockId);
+
+			try {
+				data = OperationConsistencyLevel.withQuorumReads(query);
+			} catch (HectorException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new HectorException(e);
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Query blob block using keyspace consistency level policy.
+	 * 
+	 * @param objectId Blob ID
+	 * @param blockId Block ID
+	 * @return Block data or <code>null</code> if not found
+	 */
+	private static byte[] queryBlock(final UUID objectId, final int blockId)
 	{
 		Composite key = new Composite();
 		key.addComponent(objectId, uuidSe);
@@ -109,7 +160,7 @@ public class BlobPersistence
 		QueryResult<HColumn<Integer, byte[]>> result = q.setColumnFamily(CF_BLOB)
 				.setKey(key).setName(DEFAULT_SUB_BLOCK_ID).execute();
 		
-		return result.get().getValue();
+		return (result.get() == null) ? null : result.get().getValue();
 	}
 
 	/**
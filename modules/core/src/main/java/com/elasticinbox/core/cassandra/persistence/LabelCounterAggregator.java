@@ -0,0 +1,637 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_COUNTERS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.model.LabelCounters;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Per-node write-behind aggregator of label counter updates.
+ * <p>
+ * Counter deltas are summed in memory per mailbox, label and counter subtype,
+ * and periodically flushed to the Counters column family as a single
+ * increment per counter. Each delta is appended to a local log before it is
+ * accepted, so that deltas which were not flushed are replayed after restart.
+ * Log is flushed to the operating system but not synced to disk, hence it
+ * survives crash of the process only. Deltas logged shortly before crash or
+ * power loss of the host may be lost.
+ * <p>
+ * The log is rotated on each flush and the rotated file is removed once all
+ * of its deltas are written or requeued into the new log. Counter increments
+ * are not idempotent, so deltas may be counted twice: deltas of a flush
+ * interrupted by a crash are replayed, and deltas of a timed out batch are
+ * requeued although the batch may have been applied. Counters are corrected
+ * by scrub.
+ * <p>
+ * Deltas of a batch operation are accepted only once the batch is written,
+ * see {@link LabelCounterDeltas}.
+ * 
+ * @see LabelCounterPersistence
+ */
+public final class LabelCounterAggregator
+{
+	/** Suffix of the rotated log with deltas which are being flushed */
+	private final static String FLUSHING_SUFFIX = ".flushing";
+
+	/** Suffix of the temporary log used during replay */
+	private final static String REPLAY_SUFFIX = ".replay";
+
+	/** Counter subtypes in the order of delta array elements */
+	private final static char[] SUBTYPES = {
+			LabelCounterPersistence.CN_SUBTYPE_BYTES,
+			LabelCounterPersistence.CN_SUBTYPE_MESSAGES,
+			LabelCounterPersistence.CN_SUBTYPE_UNREAD };
+
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(LabelCounterAggregator.class);
+
+	private static volatile LabelCounterAggregator instance;
+
+	private final File logFile;
+	private final File flushingFile;
+	private final Object logMonitor = new Object();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ScheduledExecutorService scheduler;
+
+	private DataOutputStream log;
+
+	private volatile ConcurrentMap<String, ConcurrentMap<Integer, AtomicLongArray>> pending =
+			new ConcurrentHashMap<String, ConcurrentMap<Integer, AtomicLongArray>>();
+	private volatile Map<String, ConcurrentMap<Integer, AtomicLongArray>> flushing =
+			Collections.emptyMap();
+
+	/** Requeued deltas which could not be logged, kept in the rotated log */
+	private List<Delta> unlogged = Collections.emptyList();
+
+	private LabelCounterAggregator(final File logFile) throws IOException
+	{
+		this.logFile = logFile;
+		this.flushingFile = new File(logFile.getPath() + FLUSHING_SUFFIX);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("counters-flush-%d").build());
+
+		replay();
+		log = openLog(logFile);
+	}
+
+	/**
+	 * Start aggregation of label counters on this node. Deltas left in the
+	 * log since the previous run are loaded and flushed with the next flush.
+	 * 
+	 * @param logFile
+	 *            Local log of the pending deltas
+	 * @param interval
+	 *            Flush interval in milliseconds
+	 * @throws IOException
+	 */
+	public static synchronized void start(final File logFile, final long interval)
+			throws IOException
+	{
+		if (instance != null) {
+			return;
+		}
+
+		final LabelCounterAggregator aggregator = new LabelCounterAggregator(logFile);
+
+		aggregator.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					aggregator.flush();
+				} catch (Exception e) {
+					logger.error("Label counters flush failed: ", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("counters-shutdown") {
+			@Override
+			public void run() {
+				stop();
+			}
+		});
+
+		instance = aggregator;
+
+		logger.info("Aggregating label counters with flush interval of {} ms", interval);
+	}
+
+	/**
+	 * Stop aggregation and flush pending deltas. Deltas which could not be
+	 * flushed remain in the log.
+	 */
+	public static synchronized void stop()
+	{
+		LabelCounterAggregator aggregator = instance;
+
+		if (aggregator == null) {
+			return;
+		}
+
+		instance = null;
+		aggregator.scheduler.shutdown();
+		aggregator.flush();
+		aggregator.closeLog();
+	}
+
+	/**
+	 * Returns running aggregator or <code>null</code> if counters are written
+	 * directly.
+	 * 
+	 * @return
+	 */
+	public static LabelCounterAggregator getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Add counter delta. Returns <code>false</code> if delta could not be
+	 * logged and should be written directly.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param subtype
+	 * @param delta
+	 * @return
+	 */
+	public boolean add(final String mailbox, final int labelId,
+			final char subtype, final long delta)
+	{
+		lock.readLock().lock();
+		try {
+			append(mailbox, labelId, subtype, delta);
+			getDeltas(pending, mailbox, labelId).addAndGet(indexOf(subtype), delta);
+			return true;
+		} catch (IOException e) {
+			logger.warn("Unable to log counter delta for {}, writing directly: {}",
+					mailbox, e.getMessage());
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get deltas of the given mailbox which are not written to Cassandra yet.
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public Map<Integer, LabelCounters> getPending(final String mailbox)
+	{
+		Map<Integer, LabelCounters> result = new HashMap<Integer, LabelCounters>();
+
+		lock.readLock().lock();
+		try {
+			mergeInto(result, flushing.get(mailbox));
+			mergeInto(result, pending.get(mailbox));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Cancel pending deltas of the given label, or of all labels if label is
+	 * <code>null</code>. Used before counters are deleted so that deltas
+	 * are not applied to deleted counters. Waits for the running flush.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public synchronized void discard(final String mailbox, final Integer labelId)
+	{
+		lock.readLock().lock();
+		try {
+			Map<Integer, AtomicLongArray> labels = pending.get(mailbox);
+
+			if (labels == null) {
+				return;
+			}
+
+			for (Map.Entry<Integer, AtomicLongArray> entry : labels.entrySet())
+			{
+				if (labelId != null && !labelId.equals(entry.getKey())) {
+					continue;
+				}
+
+				AtomicLongArray deltas = entry.getValue();
+
+				for (int i = 0; i < SUBTYPES.length; i++)
+				{
+					long value = deltas.get(i);
+
+					if (value != 0) {
+						// log inverse delta so that replay yields the same result
+						append(mailbox, entry.getKey(), SUBTYPES[i], -value);
+						deltas.addAndGet(i, -value);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to discard counter deltas for {}: {}", mailbox, e.getMessage());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write all pending deltas to Cassandra. Deltas which fail to be written
+	 * are added back and retried with the next flush. If requeued deltas can
+	 * not be logged, rotated log is kept until they are. Timed out batch may
+	 * still be applied by Cassandra, its requeued deltas are then counted
+	 * twice.
+	 */
+	public synchronized void flush()
+	{
+		Map<String, ConcurrentMap<Integer, AtomicLongArray>> batch;
+
+		// rotated log would be replaced, retry logging first
+		if (!unlogged.isEmpty() && !relog()) {
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (pending.isEmpty()) {
+				return;
+			}
+
+			batch = pending;
+
+			// rotate log, new deltas are logged into the new file
+			closeLog();
+			if (!logFile.renameTo(flushingFile)) {
+				log = openLog(logFile);
+				logger.error("Unable to rotate counters log {}", logFile);
+				return;
+			}
+			log = openLog(logFile);
+
+			flushing = batch;
+			pending = new ConcurrentHashMap<String, ConcurrentMap<Integer, AtomicLongArray>>();
+		} catch (IOException e) {
+			logger.error("Unable to rotate counters log {}: {}", logFile, e.getMessage());
+			return;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		List<Delta> deltas = toDeltas(batch);
+		int written = 0;
+
+		try {
+			Mutator<String> mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+
+			for (List<Delta> chunk : Iterables.partition(deltas, BatchConstants.BATCH_WRITES))
+			{
+				for (Delta d : chunk) {
+					mutator.addCounter(d.mailbox, CF_COUNTERS,
+							LabelCounterPersistence.countersToCompositeColumn(d.labelId, d.subtype, d.value));
+				}
+
+				mutator.execute();
+				written += chunk.size();
+			}
+
+			logger.debug("Flushed {} label counter deltas", written);
+		} catch (HectorException e) {
+			logger.warn("Unable to flush {} label counter deltas, will retry: {}",
+					deltas.size() - written, e.getMessage());
+
+			// requeue deltas of the failed and remaining chunks
+			List<Delta> failed = new ArrayList<Delta>();
+			for (Delta d : deltas.subList(written, deltas.size())) {
+				if (!add(d.mailbox, d.labelId, d.subtype, d.value)) {
+					// keep in memory even if log is not available
+					getDeltas(pending, d.mailbox, d.labelId).addAndGet(indexOf(d.subtype), d.value);
+					failed.add(d);
+				}
+			}
+			unlogged = failed;
+		} finally {
+			flushing = Collections.emptyMap();
+
+			if (unlogged.isEmpty()) {
+				flushingFile.delete();
+			} else {
+				logger.error("Unable to log {} requeued label counter deltas, keeping {}",
+						unlogged.size(), flushingFile);
+			}
+		}
+	}
+
+	/**
+	 * Log requeued deltas which could not be logged by the previous flush.
+	 * Rotated log is removed once all of them are logged.
+	 * 
+	 * @return <code>true</code> if all deltas are logged
+	 */
+	private boolean relog()
+	{
+		int logged = 0;
+
+		lock.readLock().lock();
+		try {
+			for (Delta d : unlogged) {
+				append(d.mailbox, d.labelId, d.subtype, d.value);
+				logged++;
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to log {} requeued label counter deltas: {}",
+					unlogged.size() - logged, e.getMessage());
+		} finally {
+			lock.readLock().unlock();
+
+			// logged deltas are not logged again
+			unlogged = new ArrayList<Delta>(unlogged.subList(logged, unlogged.size()));
+		}
+
+		if (!unlogged.isEmpty()) {
+			return false;
+		}
+
+		flushingFile.delete();
+		return true;
+	}
+
+	/**
+	 * Load deltas from the log and from the rotated log of an interrupted
+	 * flush, and compact them into a new log.
+	 * 
+	 * @throws IOException
+	 */
+	private void replay() throws IOException
+	{
+		List<Delta> logged = new ArrayList<Delta>();
+		logged.addAll(readLog(flushingFile));
+		logged.addAll(readLog(logFile));
+
+		if (logged.isEmpty()) {
+			flushingFile.delete();
+			return;
+		}
+
+		for (Delta d : logged) {
+			getDeltas(pending, d.mailbox, d.labelId).addAndGet(indexOf(d.subtype), d.value);
+		}
+
+		// write compacted log and replace existing files with it
+		File replayFile = new File(logFile.getPath() + REPLAY_SUFFIX);
+		replayFile.delete();
+
+		DataOutputStream out = openLog(replayFile);
+		try {
+			for (Delta d : toDeltas(pending)) {
+				writeDelta(out, d.mailbox, d.labelId, d.subtype, d.value);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!replayFile.renameTo(logFile)) {
+			throw new IOException("Unable to replace counters log " + logFile);
+		}
+		flushingFile.delete();
+
+		logger.info("Loaded {} label counter deltas from {}", logged.size(), logFile);
+	}
+
+	private void append(final String mailbox, final int labelId,
+			final char subtype, final long value) throws IOException
+	{
+		synchronized (logMonitor) {
+			writeDelta(log, mailbox, labelId, subtype, value);
+
+			// written to the OS only, not synced to disk
+			log.flush();
+		}
+	}
+
+	private void closeLog()
+	{
+		synchronized (logMonitor) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close counters log {}: {}", logFile, e.getMessage());
+			}
+		}
+	}
+
+	private static DataOutputStream openLog(final File file) throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true)));
+	}
+
+	private static void writeDelta(DataOutputStream out, final String mailbox,
+			final int labelId, final char subtype, final long value) throws IOException
+	{
+		out.writeUTF(mailbox);
+		out.writeInt(labelId);
+		out.writeChar(subtype);
+		out.writeLong(value);
+	}
+
+	/**
+	 * Read all complete deltas from the log. Incomplete delta at the end of
+	 * the log, left by a crash during write, is ignored.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Delta> readLog(final File file) throws IOException
+	{
+		List<Delta> deltas = new ArrayList<Delta>();
+
+		if (!file.exists()) {
+			return deltas;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+
+		try {
+			while (true) {
+				String mailbox = in.readUTF();
+				int labelId = in.readInt();
+				char subtype = in.readChar();
+				long value = in.readLong();
+				deltas.add(new Delta(mailbox, labelId, subtype, value));
+			}
+		} catch (EOFException e) {
+			// end of log
+		} finally {
+			in.close();
+		}
+
+		return deltas;
+	}
+
+	private static List<Delta> toDeltas(
+			final Map<String, ConcurrentMap<Integer, AtomicLongArray>> batch)
+	{
+		List<Delta> deltas = new ArrayList<Delta>();
+
+		for (Map.Entry<String, ConcurrentMap<Integer, AtomicLongArray>> mailbox : batch.entrySet()) {
+			for (Map.Entry<Integer, AtomicLongArray> label : mailbox.getValue().entrySet()) {
+				for (int i = 0; i < SUBTYPES.length; i++) {
+					long value = label.getValue().get(i);
+					if (value != 0) {
+						deltas.add(new Delta(mailbox.getKey(), label.getKey(), SUBTYPES[i], value));
+					}
+				}
+			}
+		}
+
+		return deltas;
+	}
+
+	private static void mergeInto(Map<Integer, LabelCounters> result,
+			final Map<Integer, AtomicLongArray> labels)
+	{
+		if (labels == null) {
+			return;
+		}
+
+		for (Map.Entry<Integer, AtomicLongArray> entry : labels.entrySet())
+		{
+			AtomicLongArray deltas = entry.getValue();
+			LabelCounters diff = new LabelCounters();
+			diff.setTotalBytes(deltas.get(0));
+			diff.setTotalMessages(deltas.get(1));
+			diff.setUnreadMessages(deltas.get(2));
+
+			if (result.containsKey(entry.getKey())) {
+				result.get(entry.getKey()).add(diff);
+			} else {
+				result.put(entry.getKey(), diff);
+			}
+		}
+	}
+
+	private static AtomicLongArray getDeltas(
+			final ConcurrentMap<String, ConcurrentMap<Integer, AtomicLongArray>> map,
+			final String mailbox, final int labelId)
+	{
+		ConcurrentMap<Integer, AtomicLongArray> labels = map.get(mailbox);
+
+		if (labels == null) {
+			labels = new ConcurrentHashMap<Integer, AtomicLongArray>();
+			ConcurrentMap<Integer, AtomicLongArray> existing = map.putIfAbsent(mailbox, labels);
+			if (existing != null) {
+				labels = existing;
+			}
+		}
+
+		AtomicLongArray deltas = labels.get(labelId);
+
+		if (deltas == null) {
+			deltas = new AtomicLongArray(SUBTYPES.length);
+			AtomicLongArray existing = labels.putIfAbsent(labelId, deltas);
+			if (existing != null) {
+				deltas = existing;
+			}
+		}
+
+		return deltas;
+	}
+
+	private static int indexOf(final char subtype)
+	{
+		for (int i = 0; i < SUBTYPES.length; i++) {
+			if (SUBTYPES[i] == subtype) {
+				return i;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown counter subtype " + subtype);
+	}
+
+	/**
+	 * Single counter delta as stored in the log
+	 */
+	static final class Delta
+	{
+		final String mailbox;
+		final int labelId;
+		final char subtype;
+		final long value;
+
+		Delta(final String mailbox, final int labelId, final char subtype, final long value)
+		{
+			this.mailbox = mailbox;
+			this.labelId = labelId;
+			this.subtype = subtype;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_COUNTERS;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.persistence.LabelCounterAggregator.Delta;
+
+/**
+ * Label counter deltas of a single batch operation.
+ * <p>
+ * When label counters are aggregated on this node, deltas are buffered while
+ * the batch is built and handed over to the {@link LabelCounterAggregator}
+ * with {@link #commit()} once the batch is written. Deltas of a failed batch
+ * are dropped together with the buffer. Without aggregator, deltas are added
+ * to the batch mutator.
+ */
+public final class LabelCounterDeltas
+{
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	private final LabelCounterAggregator aggregator;
+	private final List<Delta> deltas = new ArrayList<Delta>();
+
+	public LabelCounterDeltas() {
+		this.aggregator = LabelCounterAggregator.getInstance();
+	}
+
+	void add(Mutator<String> mutator, final String mailbox, final int labelId,
+			final char subtype, final long value)
+	{
+		if (aggregator == null) {
+			mutator.addCounter(mailbox, CF_COUNTERS,
+					LabelCounterPersistence.countersToCompositeColumn(labelId, subtype, value));
+		} else {
+			deltas.add(new Delta(mailbox, labelId, subtype, value));
+		}
+	}
+
+	/**
+	 * Hand over buffered deltas to the aggregator. Should be called once the
+	 * batch is written. Deltas which could not be logged by the aggregator
+	 * are written directly. Cached label snapshots of the updated mailboxes
+	 * are invalidated.
+	 */
+	public void commit()
+	{
+		Mutator<String> mutator = null;
+		Set<String> mailboxes = new HashSet<String>();
+
+		for (Delta d : deltas)
+		{
+			mailboxes.add(d.mailbox);
+
+			if (!aggregator.add(d.mailbox, d.labelId, d.subtype, d.value))
+			{
+				if (mutator == null) {
+					mutator = createMutator(CassandraDAOFactory.getKeyspace(), strSe);
+				}
+				mutator.addCounter(d.mailbox, CF_COUNTERS,
+						LabelCounterPersistence.countersToCompositeColumn(d.labelId, d.subtype, d.value));
+			}
+		}
+
+		deltas.clear();
+
+		if (mutator != null) {
+			mutator.execute();
+		}
+
+		for (String mailbox : mailboxes) {
+			LabelSnapshotCache.getInstance().invalidate(mailbox);
+		}
+	}
+}
@@ -32,11 +32,13 @@ import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
 import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_COUNTERS;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,9 +53,11 @@ import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceCounterQuery;
 
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.SingleFlight;
 import com.elasticinbox.core.model.LabelConstants;
 import com.elasticinbox.core.model.LabelCounters;
 import com.elasticinbox.core.model.ReservedLabels;
+import com.google.common.base.Function;
 
 public final class LabelCounterPersistence
 {
@@ -72,6 +76,21 @@ public final class LabelCounterPersistence
 	private final static Logger logger = 
 			LoggerFactory.getLogger(LabelCounterPersistence.class);
 
+	private final static SingleFlight<List<Object>, Map<Integer, LabelCounters>> getAllFlight = 
+			new SingleFlight<List<Object>, Map<Integer, LabelCounters>>("LabelCounters",
+					new Function<Map<Integer, LabelCounters>, Map<Integer, LabelCounters>>() {
+						@Override
+						public Map<Integer, LabelCounters> apply(Map<Integer, LabelCounters> counters)
+						{
+							Map<Integer, LabelCounters> copy = 
+									new HashMap<Integer, LabelCounters>(counters.size());
+							for (Map.Entry<Integer, LabelCounters> entry : counters.entrySet()) {
+								copy.put(entry.getKey(), new LabelCounters(entry.getValue()));
+							}
+							return copy;
+						}
+					});
+
 	/**
 	 * Get counters for all label in the given mailbox
 	 * 
@@ -79,6 +98,39 @@ public final class LabelCounterPersistence
 	 * @return
 	 */
 	public static Map<Integer, LabelCounters> getAll(final String mailbox)
+	{
+		// identical concurrent reads share single query
+		Map<Integer, LabelCounters> counters = getAllFlight.execute(
+				Arrays.<Object>asList(mailbox, MailboxVersions.get(mailbox)),
+				new Callable<Map<Integer, LabelCounters>>() {
+					@Override
+					public Map<Integer, LabelCounters> call() {
+						return getAllStored(mailbox);
+					}
+				});
+
+		// add deltas which are not flushed yet
+		LabelCounterAggregator aggregator = LabelCounterAggregator.getInstance();
+		if (aggregator != null) {
+			for (Map.Entry<Integer, LabelCounters> entry : aggregator.getPending(mailbox).entrySet()) {
+				if (counters.containsKey(entry.getKey())) {
+					counters.get(entry.getKey()).add(entry.getValue());
+				} else {
+					counters.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		return counters;
+	}
+
+	/**
+	 * Get counters for all label in the given mailbox as stored in Cassandra
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	private static Map<Integer, LabelCounters> getAllStored(final String mailbox)
 	{
 		Composite startRange = new Composite();
 		startRange.addComponent(0, CN_TYPE_LABEL, Composite.ComponentEquality.EQUAL);
@@ -105,6 +157,29 @@ public final class LabelCounterPersistence
 	 * @return
 	 */
 	public static LabelCounters get(final String mailbox, final Integer labelId)
+	{
+		LabelCounters labelCounters = getStored(mailbox, labelId);
+
+		// add deltas which are not flushed yet
+		LabelCounterAggregator aggregator = LabelCounterAggregator.getInstance();
+		if (aggregator != null) {
+			LabelCounters pending = aggregator.getPending(mailbox).get(labelId);
+			if (pending != null) {
+				labelCounters.add(pending);
+			}
+		}
+
+		return labelCounters;
+	}
+
+	/**
+	 * Get counters for the specified label as stored in Cassandra
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @return
+	 */
+	private static LabelCounters getStored(final String mailbox, final Integer labelId)
 	{
 		Composite startRange = new Composite();
 		startRange.addComponent(0, CN_TYPE_LABEL, Composite.ComponentEquality.EQUAL);
@@ -132,15 +207,20 @@ public final class LabelCounterPersistence
 
 	/**
 	 * Increment or decrement of the label counters. Use negative values for
-	 * decrement.
+	 * decrement. Caller should invalidate {@link LabelSnapshotCache} of the
+	 * mailbox once mutator is executed.
 	 * 
 	 * @param mutator
 	 * @param mailbox
 	 * @param labelIds
 	 * @param labelCounters
+	 * @param deltas
+	 *            Deltas of the batch, committed once mutator is executed. If
+	 *            <code>null</code>, deltas are added to the mutator.
 	 */
 	public static void add(Mutator<String> mutator, final String mailbox,
-			final Set<Integer> labelIds, final LabelCounters labelCounters)
+			final Set<Integer> labelIds, final LabelCounters labelCounters,
+			final LabelCounterDeltas deltas)
 	{
 		// batch add of counters for each of the labels
 		for (Integer labelId : labelIds)
@@ -149,46 +229,58 @@ public final class LabelCounterPersistence
 
 			// update total bytes only for ALL_MAILS label (i.e. total mailbox usage)
 			if ((labelId == ReservedLabels.ALL_MAILS.getId()) && (labelCounters.getTotalBytes() != 0)) {
-				HCounterColumn<Composite> col = countersToCompositeColumn(
-						labelId, CN_SUBTYPE_BYTES, labelCounters.getTotalBytes()); 
-				mutator.addCounter(mailbox, CF_COUNTERS, col);
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_BYTES,
+						labelCounters.getTotalBytes(), deltas);
 			}
 
 			if (labelCounters.getTotalMessages() != 0) {
-				HCounterColumn<Composite> col = countersToCompositeColumn(
-						labelId, CN_SUBTYPE_MESSAGES, labelCounters.getTotalMessages()); 
-				mutator.addCounter(mailbox, CF_COUNTERS, col);
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_MESSAGES,
+						labelCounters.getTotalMessages(), deltas);
 			}
 
 			if (labelCounters.getUnreadMessages() != 0) {
-				HCounterColumn<Composite> col = countersToCompositeColumn(
-						labelId, CN_SUBTYPE_UNREAD, labelCounters.getUnreadMessages()); 
-				mutator.addCounter(mailbox, CF_COUNTERS, col);
+				addCounter(mutator, mailbox, labelId, CN_SUBTYPE_UNREAD,
+						labelCounters.getUnreadMessages(), deltas);
 			}
 		}
 	}
 
+	private static void addCounter(Mutator<String> mutator, final String mailbox,
+			final Integer labelId, final char subtype, final Long value,
+			final LabelCounterDeltas deltas)
+	{
+		if (deltas != null) {
+			deltas.add(mutator, mailbox, labelId, subtype, value);
+		} else {
+			HCounterColumn<Composite> col = countersToCompositeColumn(labelId, subtype, value);
+			mutator.addCounter(mailbox, CF_COUNTERS, col);
+		}
+	}
+
 	public static void subtract(Mutator<String> mutator, final String mailbox,
-			final Set<Integer> labelIds, final LabelCounters labelCounters)
+			final Set<Integer> labelIds, final LabelCounters labelCounters,
+			final LabelCounterDeltas deltas)
 	{
 		// perform addition of inverse (i.e. subtraction)
-		add(mutator, mailbox, labelIds, labelCounters.getInverse());
+		add(mutator, mailbox, labelIds, labelCounters.getInverse(), deltas);
 	}
 
 	public static void add(Mutator<String> mutator, final String mailbox,
-			final Integer labelId, final LabelCounters labelCounters)
+			final Integer labelId, final LabelCounters labelCounters,
+			final LabelCounterDeltas deltas)
 	{
 		Set<Integer> labelIds = new HashSet<Integer>(1);
 		labelIds.add(labelId);
-		add(mutator, mailbox, labelIds, labelCounters);
+		add(mutator, mailbox, labelIds, labelCounters, deltas);
 	}
 
 	public static void subtract(Mutator<String> mutator, final String mailbox,
-			final Integer labelId, final LabelCounters labelCounters)
+			final Integer labelId, final LabelCounters labelCounters,
+			final LabelCounterDeltas deltas)
 	{
 		Set<Integer> labelIds = new HashSet<Integer>(1);
 		labelIds.add(labelId);
-		subtract(mutator, mailbox, labelIds, labelCounters);
+		subtract(mutator, mailbox, labelIds, labelCounters, deltas);
 	}
 
 	/**
@@ -203,11 +295,19 @@ public final class LabelCounterPersistence
 	{
 		// reset all counters (since delete won't work in most cases)
 		// see: http://cassandra-user-incubator-apache-org.3065146.n2.nabble.com/possible-coming-back-to-life-bug-with-counters-tp6464338p6475427.html
-		LabelCounters labelCounters = get(mailbox, labelId);
+		// cancel deltas which are not flushed yet and reset stored counters directly
+		LabelCounterAggregator aggregator = LabelCounterAggregator.getInstance();
+		if (aggregator != null) {
+			aggregator.discard(mailbox, labelId);
+		}
+
+		LabelCounters labelCounters = getStored(mailbox, labelId);
 
 		// if counter super-column for this label exists
 		if (labelCounters != null) {
-			subtract(mutator, mailbox, labelId, labelCounters);
+			Set<Integer> labelIds = new HashSet<Integer>(1);
+			labelIds.add(labelId);
+			add(mutator, mailbox, labelIds, labelCounters.getInverse(), null);
 
 			// delete counters
 			HCounterColumn<Composite> c;
@@ -235,10 +335,17 @@ public final class LabelCounterPersistence
 	{
 		// reset all counters (since delete won't work in most cases)
 		// see: http://cassandra-user-incubator-apache-org.3065146.n2.nabble.com/possible-coming-back-to-life-bug-with-counters-tp6464338p6475427.html
-		Map<Integer, LabelCounters> counters = getAll(mailbox);
+		// cancel deltas which are not flushed yet and reset stored counters directly
+		LabelCounterAggregator aggregator = LabelCounterAggregator.getInstance();
+		if (aggregator != null) {
+			aggregator.discard(mailbox, null);
+		}
+
+		Map<Integer, LabelCounters> counters = getAllStored(mailbox);
 		for (Integer labelId : counters.keySet()) {
-			LabelCounters labelCounters = counters.get(labelId);
-			subtract(mutator, mailbox, labelId, labelCounters);
+			Set<Integer> labelIds = new HashSet<Integer>(1);
+			labelIds.add(labelId);
+			add(mutator, mailbox, labelIds, counters.get(labelId).getInverse(), null);
 		}
 
 		// delete all label counters
@@ -253,7 +360,7 @@ public final class LabelCounterPersistence
 	 * @param count
 	 * @return
 	 */
-	private static HCounterColumn<Composite> countersToCompositeColumn(
+	static HCounterColumn<Composite> countersToCompositeColumn(
 			final Integer labelId, final char subtype, final Long count)
 	{
 		Composite composite = new Composite();
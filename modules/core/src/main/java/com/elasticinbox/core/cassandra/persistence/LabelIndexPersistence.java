@@ -34,20 +34,39 @@ import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elasticinbox.config.Configurator;
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+import com.elasticinbox.core.cassandra.utils.SingleFlight;
 import com.elasticinbox.core.model.LabelMap;
+import com.elasticinbox.core.model.MessageSummary;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.exceptions.HectorException;
@@ -55,9 +74,33 @@ import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceQuery;
 
+/**
+ * Label indexes of message IDs ordered by time. Depending on
+ * {@link IndexLayout} of the mailbox, label index is either a single row
+ * keyed as <code>"mailbox:label"</code> or set of monthly bucket rows keyed
+ * as <code>"mailbox:label:yyyymm"</code>. Existing buckets of the label are
+ * registered in the <code>"mailbox:label:buckets"</code> row.
+ */
 public final class LabelIndexPersistence
 {
 	private final static String COMPOSITE_KEY_DELIMITER = ":";
+	private final static String UNREAD_KEY_SUFFIX = "unread";
+	private final static String BUCKETS_KEY_SUFFIX = "buckets";
+
+	private final static TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/** Offset between UUID epoch (1582-10-15) and Unix epoch, in 100ns intervals */
+	private final static long UUID_EPOCH_OFFSET = 0x01B21DD213814000L;
+
+	/**
+	 * Buckets registered or seen in the registry by this node, by bucket key.
+	 * Registry is written only for buckets which are not cached.
+	 */
+	private final static long REGISTERED_BUCKETS_TTL = 60000L;
+	private final static Cache<String, Boolean> registeredBuckets = CacheBuilder
+			.newBuilder().maximumSize(100000)
+			.expireAfterWrite(REGISTERED_BUCKETS_TTL, TimeUnit.MILLISECONDS)
+			.build();
 
 	private final static StringSerializer strSe = StringSerializer.get();
 	private final static UUIDSerializer uuidSe = UUIDSerializer.get();
@@ -66,50 +109,98 @@ public final class LabelIndexPersistence
 	private final static Logger logger = 
 		LoggerFactory.getLogger(LabelIndexPersistence.class);
 
+	private final static SingleFlight<List<Object>, List<UUID>> getFlight = 
+			new SingleFlight<List<Object>, List<UUID>>("LabelIndex",
+					new Function<List<UUID>, List<UUID>>() {
+						@Override
+						public List<UUID> apply(List<UUID> messageIds) {
+							return new ArrayList<UUID>(messageIds);
+						}
+					});
+
 	/**
-	 * Add message IDs to label indexes
+	 * Add message ID with message summary to label indexes
 	 * 
+	 * @param mutator
 	 * @param mailbox
-	 * @param messageIds
+	 * @param messageId
 	 * @param labels
-	 * @throws IOException 
+	 * @param summary
+	 * @throws HectorException
 	 */
-	public static void add(Mutator<String> mutator, final String mailbox,
-			final List<UUID> messageIds, final Set<Integer> labels)
-			throws HectorException
+	public static void add(Mutator<String> mutator, final String mailbox, final UUID messageId,
+			final Set<Integer> labels, final MessageSummary summary) throws HectorException
 	{
-		// insert value
-		for (Integer label : labels)
+		for (Integer label : labels) {
+			add(mutator, mailbox, messageId, label, summary);
+		}
+	}
+
+	/**
+	 * Add message with message summary to label index
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labelId
+	 * @param summary
+	 * @throws HectorException
+	 */
+	public static void add(Mutator<String> mutator, final String mailbox, final UUID messageId,
+			final int labelId, final MessageSummary summary) throws HectorException
+	{
+		insert(mutator, mailbox, messageId, labelId, BinaryMessageCodec.encodeSummary(summary));
+	}
+
+	/**
+	 * Insert index column into the single row and/or bucket row of the label
+	 * index, depending on the index layout of the mailbox.
+	 */
+	private static void insert(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final int labelId, final byte[] value)
+	{
+		IndexLayout layout = AccountPersistence.getIndexLayout(mailbox);
+
+		if (layout == IndexLayout.SINGLE)
 		{
-			String indexKey = getLabelKey(mailbox, label);
+			String indexKey = getLabelKey(mailbox, labelId);
+			logger.debug("Adding message {} to index {}", messageId, indexKey);
 
-			for (UUID messageId : messageIds) {
-				logger.debug("Adding message {} to index {}", messageId, indexKey);
+			mutator.addInsertion(indexKey, CF_LABEL_INDEX,
+					createColumn(messageId, value, uuidSe, byteSe));
+		}
 
-				mutator.addInsertion(indexKey, CF_LABEL_INDEX,
-						createColumn(messageId, new byte[0], uuidSe, byteSe));
-			}
+		if (isBucketed(layout))
+		{
+			int bucket = getBucket(messageId);
+			String indexKey = getBucketKey(mailbox, labelId, bucket);
+			logger.debug("Adding message {} to index {}", messageId, indexKey);
+
+			mutator.addInsertion(indexKey, CF_LABEL_INDEX,
+					createColumn(messageId, value, uuidSe, byteSe));
+			registerBucket(mutator, mailbox, labelId, bucket);
 		}
 	}
 
 	/**
-	 * Add message ID to label indexes
+	 * Add message ID to unread indexes of the given labels
 	 * 
+	 * @param mutator
 	 * @param mailbox
-	 * @param messageIds
+	 * @param messageId
 	 * @param labels
-	 * @throws IOException 
+	 * @throws HectorException
 	 */
-	public static void add(Mutator<String> mutator, final String mailbox, final UUID messageId,
-			final Set<Integer> labels) throws HectorException
+	public static void addUnread(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels) throws HectorException
 	{
-		final List<UUID> messageIds = new ArrayList<UUID>(1);
-		messageIds.add(messageId);
-		add(mutator, mailbox, messageIds, labels);
+		for (Integer label : labels) {
+			addUnread(mutator, mailbox, messageId, label);
+		}
 	}
 
 	/**
-	 * Add message to label index
+	 * Add message ID to unread index of the label
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -117,10 +208,10 @@ public final class LabelIndexPersistence
 	 * @param labelId
 	 * @throws HectorException
 	 */
-	public static void add(Mutator<String> mutator, final String mailbox, final UUID messageId,
-			final int labelId) throws HectorException
+	public static void addUnread(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final int labelId) throws HectorException
 	{
-		String indexKey = getLabelKey(mailbox, labelId);
+		String indexKey = getUnreadKey(mailbox, labelId);
 		logger.debug("Adding message {} to index {}", messageId, indexKey);
 
 		mutator.addInsertion(indexKey, CF_LABEL_INDEX,
@@ -128,7 +219,28 @@ public final class LabelIndexPersistence
 	}
 
 	/**
-	 * Remove message IDs from label indexes
+	 * Remove message ID from unread indexes of the given labels. Message
+	 * remains in label indexes.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param labels
+	 * @throws HectorException
+	 */
+	public static void removeUnread(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final Set<Integer> labels) throws HectorException
+	{
+		for (Integer label : labels)
+		{
+			String indexKey = getUnreadKey(mailbox, label);
+			logger.debug("Removing message-id {} from index {}", messageId, indexKey);
+			mutator.addDeletion(indexKey, CF_LABEL_INDEX, messageId, uuidSe);
+		}
+	}
+
+	/**
+	 * Remove message IDs from label indexes, including unread indexes
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -139,20 +251,33 @@ public final class LabelIndexPersistence
 	public static void remove(Mutator<String> mutator, final String mailbox, final List<UUID> messageIds, 
 			final Set<Integer> labels) throws HectorException
 	{
+		IndexLayout layout = AccountPersistence.getIndexLayout(mailbox);
+
 		for (Integer label : labels)
 		{
 			String indexKey = getLabelKey(mailbox, label);
+			String unreadKey = getUnreadKey(mailbox, label);
 
 			for (UUID messageId : messageIds)
 			{
-				logger.debug("Removing message-id {} from index {}", messageId, indexKey);
-				mutator.addDeletion(indexKey, CF_LABEL_INDEX, messageId, uuidSe);
+				if (layout == IndexLayout.SINGLE) {
+					logger.debug("Removing message-id {} from index {}", messageId, indexKey);
+					mutator.addDeletion(indexKey, CF_LABEL_INDEX, messageId, uuidSe);
+				}
+
+				if (isBucketed(layout)) {
+					String bucketKey = getBucketKey(mailbox, label, getBucket(messageId));
+					logger.debug("Removing message-id {} from index {}", messageId, bucketKey);
+					mutator.addDeletion(bucketKey, CF_LABEL_INDEX, messageId, uuidSe);
+				}
+
+				mutator.addDeletion(unreadKey, CF_LABEL_INDEX, messageId, uuidSe);
 			}
 		}
 	}
 
 	/**
-	 * Remove message ID to label indexes
+	 * Remove message ID from label indexes, including unread indexes
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -169,7 +294,8 @@ public final class LabelIndexPersistence
 	}
 
 	/**
-	 * Get slice of message IDs from label index
+	 * Get slice of message IDs from label index. Identical concurrent reads
+	 * share single query.
 	 * 
 	 * @param mailbox
 	 * @param labelId
@@ -183,9 +309,124 @@ public final class LabelIndexPersistence
 			final int labelId, final UUID start, final int count,
 			final boolean reverse) throws HectorException
 	{
-		List<UUID> messageIds = new ArrayList<UUID>(count);
+		return getFlight.execute(
+				Arrays.<Object>asList(mailbox, MailboxVersions.get(mailbox), labelId, start, count, reverse),
+				new Callable<List<UUID>>() {
+					@Override
+					public List<UUID> call() {
+						return getNames(getColumns(mailbox, labelId, start, count, reverse));
+					}
+				});
+	}
 
-		String key = getLabelKey(mailbox, labelId);
+	/**
+	 * Get cursor over all message IDs of the label index
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param reverse
+	 * @return
+	 */
+	public static IndexCursor<UUID> getCursor(final String mailbox,
+			final int labelId, final boolean reverse)
+	{
+		return new IndexCursor<UUID>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<UUID> readPage(UUID start, int count) {
+				return get(mailbox, labelId, start, count, reverse);
+			}
+
+			@Override
+			protected UUID getToken(UUID messageId) {
+				return messageId;
+			}
+		};
+	}
+
+	/**
+	 * Get slice of unread message IDs from unread index of the label
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param start
+	 * @param count
+	 * @param reverse
+	 * @return
+	 * @throws HectorException
+	 */
+	public static List<UUID> getUnread(final String mailbox,
+			final int labelId, final UUID start, final int count,
+			final boolean reverse) throws HectorException
+	{
+		return getNames(getSlice(getUnreadKey(mailbox, labelId), start, count, reverse));
+	}
+
+	/**
+	 * Get slice of message IDs with message summaries from label index.
+	 * Summary is <code>null</code> for entries which were added without
+	 * summary.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @param start
+	 * @param count
+	 * @param reverse
+	 * @return
+	 * @throws HectorException
+	 */
+	public static Map<UUID, MessageSummary> getSummaries(final String mailbox,
+			final int labelId, final UUID start, final int count,
+			final boolean reverse) throws HectorException
+	{
+		Map<UUID, MessageSummary> summaries = new LinkedHashMap<UUID, MessageSummary>(count);
+
+		for (HColumn<UUID, byte[]> c : getColumns(mailbox, labelId, start, count, reverse)) {
+			summaries.put(c.getName(), BinaryMessageCodec.decodeSummary(c.getValue()));
+		}
+
+		return summaries;
+	}
+
+	/**
+	 * Read slice of index columns from the single row, or walk bucket rows in
+	 * order starting from the bucket of the start message ID.
+	 */
+	private static List<HColumn<UUID, byte[]>> getColumns(final String mailbox,
+			final int labelId, final UUID start, final int count, final boolean reverse)
+	{
+		if (AccountPersistence.getIndexLayout(mailbox) == IndexLayout.SINGLE) {
+			return getSlice(getLabelKey(mailbox, labelId), start, count, reverse);
+		}
+
+		List<HColumn<UUID, byte[]>> columns = new ArrayList<HColumn<UUID, byte[]>>(count);
+		List<Integer> buckets = new ArrayList<Integer>(getBuckets(mailbox, labelId));
+		Integer startBucket = (start == null) ? null : getBucket(start);
+
+		if (reverse) {
+			Collections.reverse(buckets);
+		}
+
+		for (int bucket : buckets)
+		{
+			// skip buckets preceding start
+			if (startBucket != null && (reverse ? bucket > startBucket : bucket < startBucket))
+				continue;
+
+			UUID bucketStart = (startBucket != null && bucket == startBucket) ? start : null;
+			columns.addAll(getSlice(getBucketKey(mailbox, labelId, bucket),
+					bucketStart, count - columns.size(), reverse));
+
+			if (columns.size() >= count)
+				break;
+		}
+
+		return columns;
+	}
+
+	private static List<HColumn<UUID, byte[]>> getSlice(final String key,
+			final UUID start, final int count, final boolean reverse) throws HectorException
+	{
+		List<HColumn<UUID, byte[]>> columns = new ArrayList<HColumn<UUID, byte[]>>(count);
 
 		// Create a query
 		SliceQuery<String, UUID, byte[]> q = 
@@ -199,17 +440,169 @@ public final class LabelIndexPersistence
 		// execute
 		QueryResult<ColumnSlice<UUID, byte[]>> r = q.execute();
 
-		// read message ids from the result
+		// read columns from the result
 		for (HColumn<UUID, byte[]> c : r.get().getColumns())
 		{
 			if ((c != null) && (c.getValue() != null)) {
-				messageIds.add(c.getName());
+				columns.add(c);
 			}
 		}
 
+		return columns;
+	}
+
+	private static List<UUID> getNames(final List<HColumn<UUID, byte[]>> columns)
+	{
+		List<UUID> messageIds = new ArrayList<UUID>(columns.size());
+
+		for (HColumn<UUID, byte[]> c : columns) {
+			messageIds.add(c.getName());
+		}
+
 		return ImmutableList.copyOf(messageIds);
 	}
 
+	/**
+	 * Get buckets of the label index in ascending order
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @return
+	 */
+	private static SortedSet<Integer> getBuckets(final String mailbox, final int labelId)
+	{
+		SortedSet<Integer> buckets = new TreeSet<Integer>();
+		List<HColumn<UUID, byte[]>> columns;
+		UUID start = null;
+
+		// read registry in pages
+		do {
+			columns = getSlice(getBucketsKey(mailbox, labelId), start,
+					BatchConstants.BATCH_READS, false);
+
+			for (HColumn<UUID, byte[]> c : columns) {
+				int bucket = getBucket(c.getName());
+				buckets.add(bucket);
+				registeredBuckets.put(getBucketKey(mailbox, labelId, bucket), Boolean.TRUE);
+				start = c.getName();
+			}
+		}
+		while (columns.size() >= BatchConstants.BATCH_READS);
+
+		return buckets;
+	}
+
+	/**
+	 * Register bucket in the bucket registry of the label, unless it was
+	 * registered or seen in the registry by this node recently. Registry
+	 * column name is the time UUID of the beginning of the bucket, same on
+	 * all nodes.
+	 * <p>
+	 * If the batch with the registry column fails, bucket is registered again
+	 * only after its cache entry expires or the registry is read.
+	 */
+	private static void registerBucket(Mutator<String> mutator, final String mailbox,
+			final int labelId, final int bucket)
+	{
+		String bucketKey = getBucketKey(mailbox, labelId, bucket);
+
+		if (registeredBuckets.getIfPresent(bucketKey) != null) {
+			return;
+		}
+
+		mutator.addInsertion(getBucketsKey(mailbox, labelId), CF_LABEL_INDEX,
+				createColumn(getBucketStart(bucket), new byte[0], uuidSe, byteSe));
+		registeredBuckets.put(bucketKey, Boolean.TRUE);
+	}
+
+	/**
+	 * Get time UUID of the beginning of the bucket. Unlike generated time
+	 * UUIDs, clock sequence and node are fixed, so that the same UUID is
+	 * returned on all nodes.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	static UUID getBucketStart(final int bucket)
+	{
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.clear();
+		calendar.set(bucket / 100, bucket % 100 - 1, 1);
+
+		long time = calendar.getTimeInMillis() * 10000 + UUID_EPOCH_OFFSET;
+
+		// time_low, time_mid, version 1 and time_hi
+		long msb = (time << 32) | ((time & 0xFFFF00000000L) >>> 16)
+				| 0x1000L | ((time >>> 48) & 0x0FFFL);
+
+		// IETF variant, zero clock sequence and node
+		return new UUID(msb, 0x8000000000000000L);
+	}
+
+	/**
+	 * Bucket rows are written if the mailbox is migrated to bucketed layout
+	 * or if bucketed layout is enabled and mailbox is pending migration.
+	 */
+	private static boolean isBucketed(final IndexLayout layout)
+	{
+		return (layout == IndexLayout.BUCKETED)
+				|| Configurator.isCassandraBucketedLabelIndexEnabled();
+	}
+
+	/**
+	 * Get cursor over all columns of the single row label index, regardless
+	 * of the layout used by the mailbox. Used by layout migration.
+	 * 
+	 * @param mailbox
+	 * @param labelId
+	 * @return
+	 */
+	public static IndexCursor<HColumn<UUID, byte[]>> getSingleIndexCursor(
+			final String mailbox, final int labelId)
+	{
+		final String key = getLabelKey(mailbox, labelId);
+
+		return new IndexCursor<HColumn<UUID, byte[]>>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<HColumn<UUID, byte[]>> readPage(UUID start, int count) {
+				return getSlice(key, start, count, false);
+			}
+
+			@Override
+			protected UUID getToken(HColumn<UUID, byte[]> column) {
+				return column.getName();
+			}
+		};
+	}
+
+	/**
+	 * Copy columns of the single row label index into bucket rows, preserving
+	 * column timestamps. Used by layout migration.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 * @param columns
+	 *            Columns read with {@link #getSingleIndexCursor(String, int)}
+	 */
+	public static void copyToBuckets(Mutator<String> mutator, final String mailbox,
+			final int labelId, final List<HColumn<UUID, byte[]>> columns)
+	{
+		Set<Integer> buckets = new TreeSet<Integer>();
+
+		for (HColumn<UUID, byte[]> c : columns)
+		{
+			int bucket = getBucket(c.getName());
+			buckets.add(bucket);
+
+			mutator.addInsertion(getBucketKey(mailbox, labelId, bucket), CF_LABEL_INDEX,
+					createColumn(c.getName(), c.getValue(), c.getClock(), uuidSe, byteSe));
+		}
+
+		for (int bucket : buckets) {
+			registerBucket(mutator, mailbox, labelId, bucket);
+		}
+	}
 
 	/**
 	 * Delete complete label index
@@ -219,11 +612,51 @@ public final class LabelIndexPersistence
 	 * @param labelId
 	 */
 	public static void deleteIndex(Mutator<String> mutator, final String mailbox, final Integer labelId)
+	{
+		IndexLayout layout = AccountPersistence.getIndexLayout(mailbox);
+
+		if (layout == IndexLayout.SINGLE) {
+			deleteSingleIndex(mutator, mailbox, labelId);
+		}
+
+		if (isBucketed(layout))
+		{
+			for (int bucket : getBuckets(mailbox, labelId)) {
+				mutator.addDeletion(getBucketKey(mailbox, labelId, bucket), CF_LABEL_INDEX, null, strSe);
+				registeredBuckets.invalidate(getBucketKey(mailbox, labelId, bucket));
+			}
+			mutator.addDeletion(getBucketsKey(mailbox, labelId), CF_LABEL_INDEX, null, strSe);
+		}
+
+		deleteUnreadIndex(mutator, mailbox, labelId);
+	}
+
+	/**
+	 * Delete single row label index. Bucket rows are not affected.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void deleteSingleIndex(Mutator<String> mutator, final String mailbox, final Integer labelId)
 	{
 		String key = getLabelKey(mailbox, labelId);
 		mutator.addDeletion(key, CF_LABEL_INDEX, null, strSe);
 	}
 
+	/**
+	 * Delete complete unread index of the label
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param labelId
+	 */
+	public static void deleteUnreadIndex(Mutator<String> mutator, final String mailbox, final Integer labelId)
+	{
+		String key = getUnreadKey(mailbox, labelId);
+		mutator.addDeletion(key, CF_LABEL_INDEX, null, strSe);
+	}
+
 	/**
 	 * Delete all indexes
 	 * 
@@ -244,6 +677,21 @@ public final class LabelIndexPersistence
 		mutator.addDeletion(key, CF_LABEL_INDEX, null, strSe);
 	}
 
+	/**
+	 * Get bucket of the message ID as <code>yyyymm</code> of the UUID time
+	 * in UTC.
+	 * 
+	 * @param messageId
+	 * @return
+	 */
+	static int getBucket(final UUID messageId)
+	{
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(TimeUUIDUtils.getTimeFromUUID(messageId));
+
+		return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+	}
+
 	/**
 	 * Generates unique label key as "john@example.com:123".
 	 * 
@@ -256,6 +704,43 @@ public final class LabelIndexPersistence
 		return getLabelKey(mailbox, Integer.toString(label));
 	}
 
+	/**
+	 * Generates unique unread index key as "john@example.com:123:unread".
+	 * 
+	 * @param mailbox
+	 * @param label
+	 * @return
+	 */
+	static String getUnreadKey(final String mailbox, final int label)
+	{
+		return getLabelKey(mailbox, label) + COMPOSITE_KEY_DELIMITER + UNREAD_KEY_SUFFIX;
+	}
+
+	/**
+	 * Generates unique bucket key as "john@example.com:123:201210".
+	 * 
+	 * @param mailbox
+	 * @param label
+	 * @param bucket
+	 * @return
+	 */
+	static String getBucketKey(final String mailbox, final int label, final int bucket)
+	{
+		return getLabelKey(mailbox, label) + COMPOSITE_KEY_DELIMITER + bucket;
+	}
+
+	/**
+	 * Generates unique bucket registry key as "john@example.com:123:buckets".
+	 * 
+	 * @param mailbox
+	 * @param label
+	 * @return
+	 */
+	static String getBucketsKey(final String mailbox, final int label)
+	{
+		return getLabelKey(mailbox, label) + COMPOSITE_KEY_DELIMITER + BUCKETS_KEY_SUFFIX;
+	}
+
 	/**
 	 * Generates unique label key as "john@example.com:label".
 	 * 
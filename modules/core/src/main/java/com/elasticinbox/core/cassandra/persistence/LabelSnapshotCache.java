@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.model.LabelMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Short-lived cache of mailbox labels together with their counters, as
+ * returned by the mailbox listing. Clients poll mailbox listing frequently,
+ * while labels and counters change much less often.
+ * <p>
+ * Concurrent requests for the same mailbox share single load. Snapshot is
+ * invalidated when labels or counters of the mailbox are changed by this
+ * node. Changes made on other nodes become visible once snapshot expires.
+ */
+public final class LabelSnapshotCache
+{
+	/** Maximum number of cached mailboxes */
+	private final static int MAX_SNAPSHOTS = 100000;
+
+	private final static LabelSnapshotCache instance = 
+			new LabelSnapshotCache(Configurator.getCassandraLabelsSnapshotTTL());
+
+	private final Cache<String, Snapshot> cache;
+
+	/**
+	 * Labels and version of the mailbox changes before they were loaded
+	 */
+	private final static class Snapshot
+	{
+		final LabelMap labels;
+		final long version;
+
+		Snapshot(final LabelMap labels, final long version) {
+			this.labels = labels;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Create cache
+	 * 
+	 * @param ttl
+	 *            Time for which snapshot is cached. In MILLISECONDS. Zero
+	 *            disables cache.
+	 */
+	LabelSnapshotCache(final long ttl)
+	{
+		cache = (ttl <= 0) ? null : CacheBuilder.newBuilder()
+				.maximumSize(MAX_SNAPSHOTS)
+				.expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	public static LabelSnapshotCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get cached labels of the mailbox or load them. Concurrent callers wait
+	 * for the single load.
+	 * 
+	 * @param mailbox
+	 * @param loader
+	 *            Loads labels with counters
+	 * @return Copy of the labels which can be modified
+	 * @throws HectorException
+	 *             If load failed
+	 */
+	public LabelMap get(final String mailbox, final Callable<LabelMap> loader)
+	{
+		try {
+			if (cache == null) {
+				return loader.call();
+			}
+
+			Callable<Snapshot> load = new Callable<Snapshot>() {
+				@Override
+				public Snapshot call() throws Exception
+				{
+					long version = MailboxVersions.get(mailbox);
+					return new Snapshot(loader.call(), version);
+				}
+			};
+
+			Snapshot snapshot = cache.get(mailbox, load);
+
+			// changed while loading or after load, but before invalidation
+			if (snapshot.version != MailboxVersions.get(mailbox))
+			{
+				cache.asMap().remove(mailbox, snapshot);
+				snapshot = cache.get(mailbox, load);
+			}
+
+			return new LabelMap(snapshot.labels);
+		} catch (ExecutionException e) {
+			throw toHectorException(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw toHectorException(e.getCause());
+		} catch (Exception e) {
+			throw toHectorException(e);
+		}
+	}
+
+	/**
+	 * Invalidate labels of the mailbox and increment mailbox version. Should
+	 * be called when labels or counters are changed, and once again after
+	 * changes are written.
+	 * 
+	 * @param mailbox
+	 */
+	public void invalidate(final String mailbox)
+	{
+		MailboxVersions.increment(mailbox);
+
+		if (cache != null) {
+			cache.invalidate(mailbox);
+		}
+	}
+
+	private static HectorException toHectorException(final Throwable t)
+	{
+		if (t instanceof HectorException) {
+			return (HectorException) t;
+		}
+		return new HectorException(t);
+	}
+}
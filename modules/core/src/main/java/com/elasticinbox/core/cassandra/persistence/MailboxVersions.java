@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Versions of the mailbox changes made by this node, striped by mailbox.
+ * Version is incremented when labels, counters or messages of the mailbox
+ * are changed. Used to detect reads which may have been made before the
+ * change.
+ */
+public final class MailboxVersions
+{
+	/** Number of version stripes */
+	private final static int STRIPES = 1024;
+
+	private final static AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	private MailboxVersions() {
+	}
+
+	/**
+	 * Get current version of the mailbox
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static long get(final String mailbox) {
+		return versions.get(stripe(mailbox));
+	}
+
+	/**
+	 * Increment version of the mailbox. Should be called when mailbox is
+	 * changed, and once again after changes are written.
+	 * 
+	 * @param mailbox
+	 */
+	public static void increment(final String mailbox) {
+		versions.incrementAndGet(stripe(mailbox));
+	}
+
+	private static int stripe(final String mailbox) {
+		return (mailbox.hashCode() & 0x7fffffff) % STRIPES;
+	}
+}
@@ -0,0 +1,417 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createStringColumnQuery;
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_ACCOUNTS;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.cassandra.service.OperationType;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.TokenRange;
+
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+
+/**
+ * State of the cluster-wide maintenance: token ranges of the ring, mailboxes
+ * within the range, leases, cursors and completion markers of the processed
+ * resources (token ranges, purge queue shards), processed purge queue buckets
+ * and live maintenance nodes.
+ * <p>
+ * State is stored in the reserved row of the Accounts column family. Row key
+ * is not a valid email address, so it is never confused with a mailbox.
+ * Leases, cursors and completion markers are keyed by the resource ID and
+ * expire with column TTL.
+ */
+public final class MaintenancePersistence
+{
+	public final static String MAINTENANCE_KEY = "#maintenance";
+
+	private final static String CN_LEASE_PREFIX = "lease:";
+	private final static String CN_CURSOR_PREFIX = "cursor:";
+	private final static String CN_COMPLETED_PREFIX = "completed:";
+	private final static String CN_NODE_PREFIX = "node:";
+	private final static String CN_NODE_END = "node;";
+	private final static String CN_PURGED_BUCKET = "purged_bucket";
+
+	private final static String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+	private final static String MURMUR3_PARTITIONER = "org.apache.cassandra.dht.Murmur3Partitioner";
+
+	/** Minimum tokens, used as the end of the ring */
+	private final static String RANDOM_MINIMUM_TOKEN = "-1";
+	private final static String MURMUR3_MINIMUM_TOKEN = String.valueOf(Long.MIN_VALUE);
+
+	private final static int MAX_NODES = 1000;
+
+	private final static StringSerializer strSe = StringSerializer.get();
+
+	/**
+	 * Get token ranges of the ring. Range wrapping around the ring is split in
+	 * two, so that mailboxes of each range can be read in token order.
+	 * 
+	 * @param keyspaceName
+	 * @return Token ranges, or empty list if partitioner is not supported
+	 */
+	public static List<TokenRange> getRanges(final String keyspaceName)
+	{
+		return ((ExecutingKeyspace) CassandraDAOFactory.getKeyspace()).doExecuteOperation(
+				new Operation<List<TokenRange>>(OperationType.META_READ)
+				{
+					@Override
+					public List<TokenRange> execute(Cassandra.Client cassandra) throws Exception
+					{
+						String partitioner = cassandra.describe_partitioner();
+
+						if (RANDOM_PARTITIONER.equals(partitioner)) {
+							return splitRanges(cassandra.describe_ring(keyspaceName), RANDOM_MINIMUM_TOKEN);
+						} else if (MURMUR3_PARTITIONER.equals(partitioner)) {
+							return splitRanges(cassandra.describe_ring(keyspaceName), MURMUR3_MINIMUM_TOKEN);
+						} else {
+							return new ArrayList<TokenRange>(0);
+						}
+					}
+				}).get();
+	}
+
+	/**
+	 * Split ranges which wrap around the ring at the minimum token
+	 * 
+	 * @param ring
+	 * @param minimum
+	 *            Minimum token of the partitioner
+	 * @return
+	 */
+	static List<TokenRange> splitRanges(final List<TokenRange> ring, final String minimum)
+	{
+		List<TokenRange> result = new ArrayList<TokenRange>(ring.size() + 1);
+
+		for (TokenRange range : ring)
+		{
+			BigInteger start = new BigInteger(range.getStart_token());
+			BigInteger end = new BigInteger(range.getEnd_token());
+
+			if (start.compareTo(end) < 0) {
+				result.add(range);
+			} else {
+				// (start, min] and (min, end]
+				result.add(new TokenRange().setStart_token(range.getStart_token())
+						.setEnd_token(minimum).setEndpoints(range.getEndpoints()));
+
+				// range ending at the minimum token does not wrap, (min, min] is the whole ring
+				if (!range.getEnd_token().equals(minimum)) {
+					result.add(new TokenRange().setStart_token(minimum)
+							.setEnd_token(range.getEnd_token()).setEndpoints(range.getEndpoints()));
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get page of mailbox IDs within the token range in token order. Deleted
+	 * rows are skipped, but still advance the page, so that scan does not
+	 * stop at the page of tombstones.
+	 * 
+	 * @param range
+	 * @param startKey
+	 *            Returned keys follow this key, or start from the beginning of
+	 *            the range if <code>null</code>
+	 * @param count
+	 * @return
+	 */
+	public static KeyPage getKeys(final TokenRange range, final String startKey, final int count)
+	{
+		return ((ExecutingKeyspace) CassandraDAOFactory.getKeyspace()).doExecuteOperation(
+				new Operation<KeyPage>(OperationType.READ)
+				{
+					@Override
+					public KeyPage execute(Cassandra.Client cassandra) throws Exception
+					{
+						// start key is inclusive, read one more
+						int limit = (startKey == null) ? count : count + 1;
+						KeyRange keyRange = new KeyRange(limit);
+						keyRange.setEnd_token(range.getEnd_token());
+
+						if (startKey == null) {
+							keyRange.setStart_token(range.getStart_token());
+						} else {
+							keyRange.setStart_key(strSe.toByteBuffer(startKey));
+						}
+
+						// single column is enough to skip deleted rows
+						SlicePredicate predicate = new SlicePredicate().setSlice_range(
+								new SliceRange(ByteBuffer.wrap(new byte[0]),
+										ByteBuffer.wrap(new byte[0]), false, 1));
+
+						return KeyPage.fromSlices(cassandra.get_range_slices(
+								new ColumnParent(CF_ACCOUNTS), predicate, keyRange,
+								ConsistencyLevel.ONE), startKey, limit);
+					}
+				}).get();
+	}
+
+	/**
+	 * Get node which holds the lease of the resource
+	 * 
+	 * @param resource
+	 *            Resource ID, e.g. end token of the range
+	 * @return Node ID or <code>null</code> if resource is not leased
+	 */
+	public static String getLease(final String resource) {
+		return getValue(CN_LEASE_PREFIX + resource);
+	}
+
+	/**
+	 * Lease the resource to the node for given time. Concurrent leases are
+	 * resolved by the timestamp, lease should be verified with
+	 * {@link #getLease(String)} after it is written.
+	 * 
+	 * @param mutator
+	 * @param resource
+	 * @param node
+	 * @param ttl
+	 *            Lease time in SECONDS
+	 */
+	public static void setLease(Mutator<String> mutator, final String resource,
+			final String node, final int ttl)
+	{
+		setValue(mutator, CN_LEASE_PREFIX + resource, node, ttl);
+	}
+
+	public static void deleteLease(Mutator<String> mutator, final String resource)
+	{
+		mutator.addDeletion(MAINTENANCE_KEY, CF_ACCOUNTS, CN_LEASE_PREFIX + resource, strSe);
+	}
+
+	/**
+	 * Get the last processed mailbox of the resource
+	 * 
+	 * @param resource
+	 * @return Mailbox ID or <code>null</code> if processing not started
+	 */
+	public static String getCursor(final String resource) {
+		return getValue(CN_CURSOR_PREFIX + resource);
+	}
+
+	public static void setCursor(Mutator<String> mutator, final String resource,
+			final String mailbox, final int ttl)
+	{
+		setValue(mutator, CN_CURSOR_PREFIX + resource, mailbox, ttl);
+	}
+
+	public static void deleteCursor(Mutator<String> mutator, final String resource)
+	{
+		mutator.addDeletion(MAINTENANCE_KEY, CF_ACCOUNTS, CN_CURSOR_PREFIX + resource, strSe);
+	}
+
+	/**
+	 * Check if the resource was completed and its completion marker did not
+	 * yet expire
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	public static boolean isCompleted(final String resource) {
+		return getValue(CN_COMPLETED_PREFIX + resource) != null;
+	}
+
+	/**
+	 * Mark resource as completed for the given time
+	 * 
+	 * @param mutator
+	 * @param resource
+	 * @param ttl
+	 *            Time until the next processing of the resource, in SECONDS
+	 */
+	public static void setCompleted(Mutator<String> mutator, final String resource, final int ttl)
+	{
+		setValue(mutator, CN_COMPLETED_PREFIX + resource,
+				String.valueOf(System.currentTimeMillis()), ttl);
+	}
+
+	/**
+	 * Get the first purge queue bucket which is not yet processed. All
+	 * preceding buckets are processed.
+	 * 
+	 * @return Bucket or <code>null</code> if queue was never processed
+	 */
+	public static Long getPurgedBucket()
+	{
+		String value = getValue(CN_PURGED_BUCKET);
+		return (value == null) ? null : Long.valueOf(value);
+	}
+
+	public static void setPurgedBucket(Mutator<String> mutator, final long bucket)
+	{
+		mutator.addInsertion(MAINTENANCE_KEY, CF_ACCOUNTS,
+				createColumn(CN_PURGED_BUCKET, String.valueOf(bucket), strSe, strSe));
+	}
+
+	/**
+	 * Register node as live maintenance node for the given time
+	 * 
+	 * @param mutator
+	 * @param node
+	 * @param ttl
+	 *            In SECONDS
+	 */
+	public static void setNode(Mutator<String> mutator, final String node, final int ttl)
+	{
+		setValue(mutator, CN_NODE_PREFIX + node, String.valueOf(System.currentTimeMillis()), ttl);
+	}
+
+	/**
+	 * Get number of live maintenance nodes
+	 * 
+	 * @return
+	 */
+	public static int getNodeCount()
+	{
+		SliceQuery<String, String, String> q = 
+				createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, strSe, strSe);
+		q.setColumnFamily(CF_ACCOUNTS).setKey(MAINTENANCE_KEY);
+		q.setRange(CN_NODE_PREFIX, CN_NODE_END, false, MAX_NODES);
+
+		return q.execute().get().getColumns().size();
+	}
+
+	/**
+	 * Page of the mailbox IDs read from the token range
+	 */
+	public static final class KeyPage
+	{
+		private final List<String> keys;
+		private final String lastKey;
+		private final boolean hasMore;
+
+		public KeyPage(final List<String> keys, final String lastKey, final boolean hasMore)
+		{
+			this.keys = keys;
+			this.lastKey = lastKey;
+			this.hasMore = hasMore;
+		}
+
+		/**
+		 * Build page from the raw rows returned by <code>get_range_slices</code>.
+		 * 
+		 * @param slices
+		 * @param startKey
+		 *            Start key of the query, excluded from the page
+		 * @param limit
+		 *            Number of rows requested
+		 * @return
+		 */
+		static KeyPage fromSlices(final List<KeySlice> slices, final String startKey, final int limit)
+		{
+			List<String> keys = new ArrayList<String>(slices.size());
+			String lastKey = startKey;
+
+			for (KeySlice slice : slices)
+			{
+				String key = strSe.fromBytes(slice.getKey());
+
+				// deleted rows are returned without columns
+				if (!slice.getColumns().isEmpty() && !key.equals(startKey)) {
+					keys.add(key);
+				}
+
+				lastKey = key;
+			}
+
+			// full page of rows, including deleted, may be followed by more rows
+			return new KeyPage(keys, lastKey, slices.size() >= limit);
+		}
+
+		/**
+		 * Live mailbox IDs of the page
+		 * 
+		 * @return
+		 */
+		public List<String> getKeys() {
+			return keys;
+		}
+
+		/**
+		 * Last row of the page, including deleted rows. Next page starts from
+		 * this key.
+		 * 
+		 * @return
+		 */
+		public String getLastKey() {
+			return lastKey;
+		}
+
+		/**
+		 * Whether more rows may follow this page
+		 * 
+		 * @return
+		 */
+		public boolean hasMore() {
+			return hasMore;
+		}
+	}
+
+	private static String getValue(final String name)
+	{
+		ColumnQuery<String, String, String> q = 
+				createStringColumnQuery(CassandraDAOFactory.getKeyspace());
+		q.setColumnFamily(CF_ACCOUNTS).setKey(MAINTENANCE_KEY).setName(name);
+
+		HColumn<String, String> c = q.execute().get();
+		return (c == null) ? null : c.getValue();
+	}
+
+	private static void setValue(Mutator<String> mutator, final String name,
+			final String value, final int ttl)
+	{
+		mutator.addInsertion(MAINTENANCE_KEY, CF_ACCOUNTS,
+				createColumn(name, value, strSe, strSe).setTtl(ttl));
+	}
+}
@@ -33,9 +33,12 @@ import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
 import me.prettyprint.cassandra.serializers.DateSerializer;
@@ -47,11 +50,14 @@ import me.prettyprint.hector.api.beans.HColumn;
 import com.elasticinbox.common.utils.IOUtils;
 import com.elasticinbox.common.utils.JSONUtils;
 import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.MessageProjection.Field;
 import com.elasticinbox.core.model.Address;
 import com.elasticinbox.core.model.AddressList;
 import com.elasticinbox.core.model.Marker;
 import com.elasticinbox.core.model.Message;
 import com.elasticinbox.core.model.MimePart;
+import com.google.common.collect.ImmutableMap;
 
 public final class Marshaller
 {
@@ -68,6 +74,8 @@ public final class Marshaller
 	public final static String CN_PLAIN_BODY = "plain";
 	public final static String CN_PARTS = "parts";
 	public final static String CN_BRI = "bri"; // Blob Resource Identifier
+	public final static String CN_BLOB = "blob"; // Inlined blob data
+	public final static String CN_HEADERS = "hdr"; // Binary encoded headers, see BinaryMessageCodec
 	public final static String CN_LABEL_PREFIX = "l:";
 	public final static String CN_MARKER_PREFIX = "m:";
 
@@ -76,6 +84,16 @@ public final class Marshaller
 	private final static StringSerializer strSe = StringSerializer.get();
 	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
 
+	/** Message fields stored in separate columns by the legacy encoding */
+	private final static Map<String, Field> LEGACY_FIELDS = ImmutableMap
+			.<String, Field> builder().put(CN_DATE, Field.DATE)
+			.put(CN_SIZE, Field.SIZE).put(CN_FROM, Field.FROM)
+			.put(CN_TO, Field.TO).put(CN_CC, Field.CC).put(CN_BCC, Field.BCC)
+			.put(CN_REPLY_TO, Field.REPLY_TO)
+			.put(CN_MESSAGE_ID, Field.MESSAGE_ID)
+			.put(CN_SUBJECT, Field.SUBJECT).put(CN_BRI, Field.LOCATION)
+			.put(CN_PARTS, Field.PARTS).build();
+
 	/**
 	 * Unmarshall message contents from Cassandra {@link HColumn} columns and
 	 * return resulting {@link Message} object.
@@ -87,9 +105,27 @@ public final class Marshaller
 	 *            included in the result if set to false
 	 * @return
 	 */
-	protected static Message unmarshall(
+	public static Message unmarshall(
 			final List<HColumn<String, byte[]>> columns,
 			final boolean includeBody)
+	{
+		return unmarshall(columns, 
+				includeBody ? MessageProjection.ALL : MessageProjection.HEADERS);
+	}
+
+	/**
+	 * Unmarshall fields included in the projection from Cassandra
+	 * {@link HColumn} columns and return resulting {@link Message} object.
+	 * 
+	 * @param columns
+	 *            Cassandra columns to unmarshall
+	 * @param projection
+	 *            Message fields to unmarshall, other columns are ignored
+	 * @return
+	 */
+	public static Message unmarshall(
+			final List<HColumn<String, byte[]>> columns,
+			final MessageProjection projection)
 	{
 		Message message = new Message();
 
@@ -97,55 +133,40 @@ public final class Marshaller
 		{
 			if (c != null && c.getValue() != null)
 			{
-				// map columns to Message object
-				if (c.getName().equals(CN_DATE)) {
-					message.setDate(dateSe.fromBytes(c.getValue()));
-				} else if (c.getName().equals(CN_SIZE)) {
-					message.setSize(longSe.fromBytes(c.getValue()));
-				} else if (c.getName().equals(CN_SUBJECT)) {
-					message.setSubject(strSe.fromBytes(c.getValue()));
-				} else if (c.getName().equals(CN_MESSAGE_ID)) {
-					message.setMessageId(strSe.fromBytes(c.getValue()));
-				} else if (c.getName().equals(CN_FROM)) {
-					message.setFrom(unserializeAddress(c.getValue()));
-				} else if (c.getName().equals(CN_TO)) {
-					message.setTo(unserializeAddress(c.getValue()));
-				} else if (c.getName().equals(CN_CC)) {
-					message.setCc(unserializeAddress(c.getValue()));
-				} else if (c.getName().equals(CN_BCC)) {
-					message.setBcc(unserializeAddress(c.getValue()));
-				} else if (c.getName().equals(CN_REPLY_TO)) {
-					message.setReplyTo(unserializeAddress(c.getValue()));
-				} else if (c.getName().equals(CN_BRI)) {
-					message.setLocation(URI.create(
-							strSe.fromBytes(c.getValue())));
-				} else if (c.getName().startsWith(CN_LABEL_PREFIX)) {
-					Integer labelId = Integer
-							.parseInt(c.getName().split("\\:")[1]);
-					message.addLabel(labelId);
-				} else if (c.getName().startsWith(CN_MARKER_PREFIX)) {
-					Integer markerId = Integer
-							.parseInt(c.getName().split("\\:")[1]);
-					message.addMarker(Marker.fromInt(markerId));
-				} else if (includeBody && c.getName().equals(CN_HTML_BODY)) {
-					try {
-						message.setHtmlBody(strSe.fromBytes(
-								IOUtils.decompress(c.getValue())));
-					} catch (Exception e) {
-						//TODO: logger.error("Decompression of message body failed: ", e);
+				String name = c.getName();
+
+				// labels and markers are the most frequent columns
+				if (name.startsWith(CN_LABEL_PREFIX)) {
+					if (projection.includes(Field.LABELS)) {
+						message.addLabel(parseId(name, CN_LABEL_PREFIX.length()));
+					}
+				} else if (name.startsWith(CN_MARKER_PREFIX)) {
+					if (projection.includes(Field.MARKERS)) {
+						message.addMarker(Marker.fromInt(parseId(name, CN_MARKER_PREFIX.length())));
+					}
+				} else if (name.equals(CN_HEADERS)) {
+					BinaryMessageCodec.decode(c.getValue(), message, projection);
+				} else if (name.equals(CN_HTML_BODY)) {
+					if (projection.includes(Field.HTML_BODY)) {
+						try {
+							message.setHtmlBody(strSe.fromBytes(
+									IOUtils.decompress(c.getValue())));
+						} catch (Exception e) {
+							//TODO: logger.error("Decompression of message body failed: ", e);
+						}
 					}
-				} else if (includeBody && c.getName().equals(CN_PLAIN_BODY)) {
-					try {
-						message.setPlainBody(strSe.fromBytes(
-								IOUtils.decompress(c.getValue())));
-					} catch (Exception e) {
-						//TODO: logger.error("Decompression of message body failed: ", e);
+				} else if (name.equals(CN_PLAIN_BODY)) {
+					if (projection.includes(Field.PLAIN_BODY)) {
+						try {
+							message.setPlainBody(strSe.fromBytes(
+									IOUtils.decompress(c.getValue())));
+						} catch (Exception e) {
+							//TODO: logger.error("Decompression of message body failed: ", e);
+						}
 					}
-				} else if (c.getName().equals(CN_PARTS)) {
-					Map<String, MimePart> parts = null;
-					parts = JSONUtils.toObject(c.getValue(), parts);
-					message.setParts(parts);
-		        }
+				} else {
+					unmarshallLegacyColumn(c, message, projection);
+				}
 			}
 		}
 
@@ -153,60 +174,145 @@ public final class Marshaller
 	}
 
 	/**
-	 * Marshall the {@link Message} object contents to Cassandra columns
+	 * Map column written before binary encoding of headers was introduced
 	 * 
-	 * @param m Message to marshall
-	 * @return
-	 * @throws IOException
+	 * @param c
+	 * @param message
+	 * @param projection
 	 */
-	protected static List<HColumn<String, byte[]>> marshall(final Message m)
-			throws IOException
+	private static void unmarshallLegacyColumn(final HColumn<String, byte[]> c,
+			final Message message, final MessageProjection projection)
 	{
-		Map<String, Object> columns = new HashMap<String, Object>();
-
-		if (m.getSize() != null) {
-			columns.put(CN_SIZE, m.getSize());
-		}
-
-		if (m.getDate() != null) {
-			columns.put(CN_DATE, m.getDate());
-		}
-
-		if (m.getFrom() != null) {
-			columns.put(CN_FROM, serializeAddress(m.getFrom()));
-		}
-
-		if (m.getTo() != null) {
-			columns.put(CN_TO, serializeAddress(m.getTo()));
+		Field field = LEGACY_FIELDS.get(c.getName());
+
+		if (field == null || !projection.includes(field))
+			return;
+
+		switch (field) {
+		case DATE:
+			message.setDate(dateSe.fromBytes(c.getValue()));
+			break;
+		case SIZE:
+			message.setSize(longSe.fromBytes(c.getValue()));
+			break;
+		case SUBJECT:
+			message.setSubject(strSe.fromBytes(c.getValue()));
+			break;
+		case MESSAGE_ID:
+			message.setMessageId(strSe.fromBytes(c.getValue()));
+			break;
+		case FROM:
+			message.setFrom(unserializeAddress(c.getValue()));
+			break;
+		case TO:
+			message.setTo(unserializeAddress(c.getValue()));
+			break;
+		case CC:
+			message.setCc(unserializeAddress(c.getValue()));
+			break;
+		case BCC:
+			message.setBcc(unserializeAddress(c.getValue()));
+			break;
+		case REPLY_TO:
+			message.setReplyTo(unserializeAddress(c.getValue()));
+			break;
+		case LOCATION:
+			message.setLocation(URI.create(
+					strSe.fromBytes(c.getValue())));
+			break;
+		case PARTS:
+			Map<String, MimePart> parts = null;
+			parts = JSONUtils.toObject(c.getValue(), parts);
+			message.setParts(parts);
+			break;
+		default:
+			break;
 		}
+	}
 
-		if (m.getCc() != null) {
-			columns.put(CN_CC, serializeAddress(m.getCc()));
-		}
+	/**
+	 * Get names of the columns which store fields included in the projection.
+	 * Label columns are enumerated from the given label IDs.
+	 * 
+	 * @param projection
+	 * @param labelIds
+	 *            IDs of all labels which can be assigned to the message
+	 * @return
+	 */
+	public static Set<String> getColumnNames(final MessageProjection projection,
+			final Collection<Integer> labelIds)
+	{
+		Set<String> names = new HashSet<String>();
 
-		if (m.getBcc() != null) {
-			columns.put(CN_BCC, serializeAddress(m.getBcc()));
+		for (Field field : projection.getFields())
+		{
+			switch (field) {
+			case LABELS:
+				for (Integer labelId : labelIds) {
+					names.add(CN_LABEL_PREFIX + labelId);
+				}
+				break;
+			case MARKERS:
+				for (Marker marker : Marker.values()) {
+					names.add(CN_MARKER_PREFIX + marker.toInt());
+				}
+				break;
+			case HTML_BODY:
+				names.add(CN_HTML_BODY);
+				break;
+			case PLAIN_BODY:
+				names.add(CN_PLAIN_BODY);
+				break;
+			default:
+				names.add(CN_HEADERS);
+				break;
+			}
 		}
 
-		if (m.getReplyTo() != null) {
-			columns.put(CN_REPLY_TO, serializeAddress(m.getReplyTo()));
+		// columns of the legacy encoding
+		for (Map.Entry<String, Field> legacy : LEGACY_FIELDS.entrySet()) {
+			if (projection.includes(legacy.getValue())) {
+				names.add(legacy.getKey());
+			}
 		}
 
-		if (m.getMessageId() != null) {
-			columns.put(CN_MESSAGE_ID, m.getMessageId());
-		}
+		return names;
+	}
 
-		if (m.getSubject() != null) {
-			columns.put(CN_SUBJECT, m.getSubject());
+	/**
+	 * Parse numeric ID which follows the prefix of the column name
+	 * 
+	 * @param name
+	 * @param offset
+	 *            Prefix length
+	 * @return
+	 */
+	private static int parseId(final String name, final int offset)
+	{
+		int id = 0;
+		for (int i = offset; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (ch < '0' || ch > '9') {
+				throw new NumberFormatException("Invalid ID in column " + name);
+			}
+			id = id * 10 + (ch - '0');
 		}
+		return id;
+	}
 
-		if (m.getLocation() != null) {
-			columns.put(CN_BRI, m.getLocation().toString());
-		}
+	/**
+	 * Marshall the {@link Message} object contents to Cassandra columns
+	 * 
+	 * @param m Message to marshall
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<HColumn<String, byte[]>> marshall(final Message m)
+			throws IOException
+	{
+		Map<String, Object> columns = new HashMap<String, Object>();
 
-		if (m.getParts() != null) {
-			columns.put(CN_PARTS, JSONUtils.fromObject(m.getParts()));
-		}
+		columns.put(CN_HEADERS, BinaryMessageCodec.encode(m));
 
 		// add markers
 		if (!m.getMarkers().isEmpty())
@@ -247,26 +353,6 @@ public final class Marshaller
 		return mapToHColumns(columns);
 	}
 
-	/**
-	 * Serialize {@link AddressList} to JSON
-	 * 
-	 * @param addresses
-	 * @return
-	 */
-	private static byte[] serializeAddress(final AddressList addresses)
-	{
-		List<String[]> result = new ArrayList<String[]>();
-
-		for (Address address : addresses)
-		{
-			result.add(new String[]{
-					(address.getName() == null ? "" : address.getName()),
-					(address.getAddress() == null ? "" : address.getAddress()) });
-		}
-
-		return JSONUtils.fromObject(result);
-	}
-
 	/**
 	 * Unserialize JSON sting to {@link AddressList}
 	 * 
@@ -28,15 +28,22 @@
 
 package com.elasticinbox.core.cassandra.persistence;
 
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_MESSAGE_ATTRIBUTES;
 import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_METADATA;
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createSubSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createSuperColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createSuperSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createMultigetSuperSliceQuery;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -44,17 +51,28 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.elasticinbox.common.utils.Assert;
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.MessageProjection.Field;
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.ParallelQueryExecutor;
+import com.elasticinbox.core.cassandra.utils.SingleFlight;
 import com.elasticinbox.core.model.Message;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.CompositeSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
+import me.prettyprint.hector.api.beans.Composite;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.HSuperColumn;
 import me.prettyprint.hector.api.beans.SuperRows;
@@ -63,17 +81,49 @@ import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.MultigetSuperSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
+import me.prettyprint.hector.api.query.SliceQuery;
+import me.prettyprint.hector.api.query.SubSliceQuery;
 import me.prettyprint.hector.api.query.SuperSliceQuery;
 
+/**
+ * Message metadata is stored in one of the two layouts (see
+ * {@link MetadataLayout}), selected per mailbox. In the composite layout body
+ * attributes are prefixed with {@link #CN_BODY_PREFIX} so that they sort after
+ * all other attributes and can be excluded from the slice.
+ * <p>
+ * When composite layout is enabled in the configuration, metadata of the
+ * mailboxes which are not migrated yet is written in both layouts.
+ */
 public final class MessagePersistence
 {
 	private final static UUIDSerializer uuidSe = UUIDSerializer.get();
 	private final static StringSerializer strSe = StringSerializer.get();
 	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
+	private final static CompositeSerializer compSe = CompositeSerializer.get();
+
+	/** Prefix of body attributes in the composite layout */
+	private final static String CN_BODY_PREFIX = "~";
+
+	private final static Set<String> BODY_ATTRIBUTES = ImmutableSet.of(
+			Marshaller.CN_HTML_BODY, Marshaller.CN_PLAIN_BODY, Marshaller.CN_BLOB);
+
+	/** Number of composite columns read at once when scanning the row */
+	private final static int RANGE_PAGE_SIZE = 1000;
 
 	private final static Logger logger = 
 			LoggerFactory.getLogger(MessagePersistence.class);
 
+	/** Shared reads, columns are not modified by callers */
+	private final static SingleFlight<List<Object>, Map<UUID, List<HColumn<String, byte[]>>>> readFlight = 
+			new SingleFlight<List<Object>, Map<UUID, List<HColumn<String, byte[]>>>>("MessageMetadata",
+					new Function<Map<UUID, List<HColumn<String, byte[]>>>, Map<UUID, List<HColumn<String, byte[]>>>>() {
+						@Override
+						public Map<UUID, List<HColumn<String, byte[]>>> apply(
+								Map<UUID, List<HColumn<String, byte[]>>> columns) {
+							return new HashMap<UUID, List<HColumn<String, byte[]>>>(columns);
+						}
+					});
+
 	/**
 	 * Fetch attributes of multiple messages
 	 * 
@@ -84,36 +134,39 @@ public final class MessagePersistence
 	 */
 	public static Map<UUID, Message> fetch(final String mailbox,
 			final Collection<UUID> messageIds, final boolean includeBody)
+	{
+		return fetch(mailbox, messageIds, 
+				includeBody ? MessageProjection.ALL : MessageProjection.HEADERS);
+	}
+
+	/**
+	 * Fetch given fields of multiple messages. In composite layout, only
+	 * columns of the requested fields are read.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param projection
+	 * @return
+	 */
+	public static Map<UUID, Message> fetch(final String mailbox,
+			final Collection<UUID> messageIds, final MessageProjection projection)
 	{
 		// read message ids from the result
 		Map<UUID, Message> result = 
 				new LinkedHashMap<UUID, Message>(messageIds.size());
 
-		// Create a query
-		MultigetSuperSliceQuery<String, UUID, String, byte[]> q = 
-				createMultigetSuperSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe, byteSe);
-
-		// set keys, cf, range
-		q.setColumnFamily(CF_METADATA);
-		q.setKeys(mailbox);
-		q.setColumnNames(messageIds);
-
-		// execute
-		QueryResult<SuperRows<String, UUID, String, byte[]>> r = q.execute();
-
-		SuperSlice<UUID, String, byte[]> slice = 
-				r.get().getByKey(mailbox).getSuperSlice();
+		Map<UUID, List<HColumn<String, byte[]>>> columns = 
+				fetchColumns(mailbox, messageIds, projection);
 
 		for (UUID messageId : messageIds)
 		{
-			if ((slice.getColumnByName(messageId) != null)
-					&& !slice.getColumnByName(messageId).getColumns().isEmpty())
+			if (columns.containsKey(messageId))
 			{
 				result.put(messageId, Marshaller.unmarshall(
-						slice.getColumnByName(messageId).getColumns(), includeBody));
+						columns.get(messageId), projection));
 			} else {
 				logger.debug(
-						"message {} not found in supercolumn slice for {} mailbox",
+						"message {} not found in metadata of {} mailbox",
 						messageId, mailbox);
 			}
 		}
@@ -141,6 +194,37 @@ public final class MessagePersistence
 		return messages.get(messageId);
 	}
 
+	/**
+	 * Fetch message location together with the blob stored inline with
+	 * metadata. Inlined blob data, if any, is written to the given output
+	 * stream. Only location and blob columns are read, bypassing metadata
+	 * cache.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param inlineOut
+	 * @return
+	 * @throws IOException
+	 */
+	public static Message fetch(final String mailbox, final UUID messageId,
+			final OutputStream inlineOut) throws IOException
+	{
+		Set<String> names = Marshaller.getColumnNames(
+				MessageProjection.LOCATION, new ArrayList<Integer>(0));
+		names.add(Marshaller.CN_BLOB);
+
+		List<HColumn<String, byte[]>> columns = readNamedColumns(mailbox, messageId, names);
+		Assert.notNull(columns, "Message not found");
+
+		for (HColumn<String, byte[]> c : columns) {
+			if (c.getName().equals(Marshaller.CN_BLOB)) {
+				inlineOut.write(c.getValue());
+			}
+		}
+
+		return Marshaller.unmarshall(columns, MessageProjection.LOCATION);
+	}
+
 	/**
 	 * Get messages within given range (excludes body)
 	 * 
@@ -155,24 +239,15 @@ public final class MessagePersistence
 		// read message ids from the result
 		Map<UUID, Message> result = new LinkedHashMap<UUID, Message>();
 
-		// Create a query
-		SuperSliceQuery<String, UUID, String, byte[]> q = 
-				createSuperSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe, byteSe);
-
-		// set keys, cf, range
-		q.setColumnFamily(CF_METADATA);
-		q.setKey(mailbox);
-		q.setRange(start, null, true, count);
-
-		// execute
-		QueryResult<SuperSlice<UUID, String, byte[]>> r = q.execute();
+		Map<UUID, List<HColumn<String, byte[]>>> columns = withoutInlineBlobs(
+				(AccountPersistence.getMetadataLayout(mailbox) == MetadataLayout.COMPOSITE) ? 
+						getCompositeRange(mailbox, start, count) :
+						getSuperRange(mailbox, start, count));
 
-		List<HSuperColumn<UUID, String, byte[]>> superColumns = r.get().getSuperColumns();
-
-		for (HSuperColumn<UUID, String, byte[]> superColumn : superColumns)
+		for (Map.Entry<UUID, List<HColumn<String, byte[]>>> entry : columns.entrySet())
 		{
-			result.put(superColumn.getName(), 
-					Marshaller.unmarshall(superColumn.getColumns(), false));
+			result.put(entry.getKey(), 
+					Marshaller.unmarshall(entry.getValue(), false));
 		}
 
 		return result;
@@ -192,8 +267,32 @@ public final class MessagePersistence
 		logger.debug("Persisting metadata for message {} in mailbox {}",
 				messageId, mailbox);
 
-		mutator.addInsertion(mailbox, CF_METADATA, createSuperColumn(
-				messageId, Marshaller.marshall(message), uuidSe, strSe, byteSe));
+		insertColumns(mutator, mailbox, messageId, Marshaller.marshall(message));
+	}
+
+	/**
+	 * Persist {@link Message} object with given ID and store blob inline with
+	 * metadata.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param message
+	 * @param blob
+	 *            Inlined blob data
+	 * @throws IOException
+	 */
+	public static void persistMessage(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final Message message, final byte[] blob)
+			throws IOException
+	{
+		logger.debug("Persisting metadata and inline blob for message {} in mailbox {}",
+				messageId, mailbox);
+
+		List<HColumn<String, byte[]>> columns = Marshaller.marshall(message);
+		columns.add(createColumn(Marshaller.CN_BLOB, blob, strSe, byteSe));
+
+		insertColumns(mutator, mailbox, messageId, columns);
 	}
 
 	/**
@@ -214,8 +313,7 @@ public final class MessagePersistence
 			logger.debug("Persisting metadata for message {} in mailbox {}",
 					messageId.toString(), mailbox);
 
-			mutator.addInsertion(mailbox, CF_METADATA, 
-					createSuperColumn(messageId, columns, uuidSe, strSe, byteSe));
+			insertColumns(mutator, mailbox, messageId, columns);
 		}
 	}
 
@@ -262,18 +360,33 @@ public final class MessagePersistence
 	public static void deleteAttributes(Mutator<String> mutator, final String mailbox,
 			final List<UUID> messageIds, final Set<String> attributes)
 	{
-		List<HColumn<String, byte[]>> columns = 
-			new ArrayList<HColumn<String, byte[]>>(attributes.size());
+		MetadataLayout layout = AccountPersistence.getMetadataLayout(mailbox);
 
-		for (String name : attributes) {
-			// FIXME: value should be null not "". 
-			// see https://github.com/rantav/hector/issues/#issue/145 
-			columns.add(createColumn(name, "".getBytes(), strSe, byteSe));
+		if (writesSuperLayout(layout))
+		{
+			List<HColumn<String, byte[]>> columns = 
+				new ArrayList<HColumn<String, byte[]>>(attributes.size());
+	
+			for (String name : attributes) {
+				// FIXME: value should be null not "". 
+				// see https://github.com/rantav/hector/issues/#issue/145 
+				columns.add(createColumn(name, "".getBytes(), strSe, byteSe));
+			}
+	
+			for (UUID messageId : messageIds) {
+				mutator.addSubDelete(mailbox, CF_METADATA, 
+					createSuperColumn(messageId, columns, uuidSe, strSe, byteSe));
+			}
 		}
 
-		for (UUID messageId : messageIds) {
-			mutator.addSubDelete(mailbox, CF_METADATA, 
-				createSuperColumn(messageId, columns, uuidSe, strSe, byteSe));
+		if (writesCompositeLayout(layout))
+		{
+			for (UUID messageId : messageIds) {
+				for (String name : attributes) {
+					mutator.addDeletion(mailbox, CF_MESSAGE_ATTRIBUTES,
+							toCompositeName(messageId, name), compSe);
+				}
+			}
 		}
 	}
 
@@ -310,6 +423,9 @@ public final class MessagePersistence
 
 	/**
 	 * Delete message and all its attributes
+	 * <p>
+	 * Composite columns cannot be deleted by range, hence attribute names are
+	 * read from the layout used for reads and each attribute is deleted.
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -318,8 +434,34 @@ public final class MessagePersistence
 	public static void deleteMessage(Mutator<String> mutator, final String mailbox,
 			final Collection<UUID> messageIds)
 	{
-		for (UUID messageId : messageIds) {
-			mutator.addDeletion(mailbox, CF_METADATA, messageId, uuidSe);
+		MetadataLayout layout = AccountPersistence.getMetadataLayout(mailbox);
+
+		if (writesSuperLayout(layout))
+		{
+			for (UUID messageId : messageIds) {
+				mutator.addDeletion(mailbox, CF_METADATA, messageId, uuidSe);
+			}
+		}
+
+		if (writesCompositeLayout(layout))
+		{
+			// body attribute names are known, no need to read them. cache
+			// is bypassed, all stored attributes should be deleted.
+			Map<UUID, List<HColumn<String, byte[]>>> columns = 
+					readColumns(mailbox, messageIds, MessageProjection.HEADERS);
+
+			for (UUID messageId : columns.keySet())
+			{
+				Set<String> names = new HashSet<String>(BODY_ATTRIBUTES);
+				for (HColumn<String, byte[]> c : columns.get(messageId)) {
+					names.add(c.getName());
+				}
+
+				for (String name : names) {
+					mutator.addDeletion(mailbox, CF_MESSAGE_ATTRIBUTES,
+							toCompositeName(messageId, name), compSe);
+				}
+			}
 		}
 	}
 	
@@ -332,6 +474,645 @@ public final class MessagePersistence
 	public static void deleteAllMessages(Mutator<String> mutator, final String mailbox)
 	{
 		mutator.addDeletion(mailbox, CF_METADATA, null, strSe);
+		mutator.addDeletion(mailbox, CF_MESSAGE_ATTRIBUTES, null, strSe);
+	}
+
+	/**
+	 * Copy messages within given range from super column layout to composite
+	 * column layout. Original column timestamps are preserved, so that
+	 * concurrent updates written in both layouts are not overwritten.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param start
+	 * @param count
+	 * @return IDs of the copied messages
+	 */
+	public static List<UUID> copyToCompositeLayout(Mutator<String> mutator,
+			final String mailbox, final UUID start, final int count)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> columns = 
+				getSuperRange(mailbox, start, count);
+
+		for (Map.Entry<UUID, List<HColumn<String, byte[]>>> entry : columns.entrySet()) {
+			insertCompositeColumns(mutator, mailbox, entry.getKey(), entry.getValue());
+		}
+
+		return new ArrayList<UUID>(columns.keySet());
+	}
+
+	/**
+	 * Delete all message metadata stored in the super column layout
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 */
+	public static void deleteSuperLayout(Mutator<String> mutator, final String mailbox)
+	{
+		mutator.addDeletion(mailbox, CF_METADATA, null, strSe);
+	}
+
+	/**
+	 * Write columns of the message to the layouts used by the mailbox
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param messageId
+	 * @param columns
+	 */
+	private static void insertColumns(Mutator<String> mutator, final String mailbox,
+			final UUID messageId, final List<HColumn<String, byte[]>> columns)
+	{
+		MetadataLayout layout = AccountPersistence.getMetadataLayout(mailbox);
+
+		if (writesSuperLayout(layout)) {
+			mutator.addInsertion(mailbox, CF_METADATA, 
+					createSuperColumn(messageId, columns, uuidSe, strSe, byteSe));
+		}
+
+		if (writesCompositeLayout(layout)) {
+			insertCompositeColumns(mutator, mailbox, messageId, columns);
+		}
+	}
+
+	private static void insertCompositeColumns(Mutator<String> mutator,
+			final String mailbox, final UUID messageId,
+			final List<HColumn<String, byte[]>> columns)
+	{
+		for (HColumn<String, byte[]> c : columns) {
+			mutator.addInsertion(mailbox, CF_MESSAGE_ATTRIBUTES, 
+					createColumn(toCompositeName(messageId, c.getName()),
+							c.getValue(), c.getClock(), compSe, byteSe));
+		}
+	}
+
+	/**
+	 * Get columns of multiple messages from the metadata cache, read missing
+	 * messages from the layout used by the mailbox and cache them. Messages
+	 * which were not found are not included.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param projection
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> fetchColumns(
+			final String mailbox, final Collection<UUID> messageIds,
+			final MessageProjection projection)
+	{
+		MetadataCache cache = MetadataCache.getInstance();
+
+		if (!cache.isEnabled()) {
+			return readColumnsShared(mailbox, messageIds, projection);
+		}
+
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new HashMap<UUID, List<HColumn<String, byte[]>>>(messageIds.size());
+
+		// change stamps of messages which should be read
+		Map<UUID, Long> missing = new LinkedHashMap<UUID, Long>();
+
+		for (UUID messageId : messageIds)
+		{
+			List<HColumn<String, byte[]>> columns = cache.get(mailbox, messageId, projection);
+
+			if (columns != null) {
+				result.put(messageId, columns);
+			} else {
+				missing.put(messageId, cache.getStamp(mailbox, messageId));
+			}
+		}
+
+		if (!missing.isEmpty())
+		{
+			MessageProjection readProjection = getReadProjection(mailbox, projection);
+			Map<UUID, List<HColumn<String, byte[]>>> columns = 
+					readColumnsShared(mailbox, missing.keySet(), projection);
+
+			for (Map.Entry<UUID, List<HColumn<String, byte[]>>> entry : columns.entrySet())
+			{
+				cache.put(mailbox, entry.getKey(), readProjection, entry.getValue(),
+						missing.get(entry.getKey()));
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read columns of multiple messages. Identical concurrent reads share
+	 * single query.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param projection
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> readColumnsShared(
+			final String mailbox, final Collection<UUID> messageIds,
+			final MessageProjection projection)
+	{
+		return readFlight.execute(
+				Arrays.<Object>asList(mailbox, MailboxVersions.get(mailbox),
+						projection.getFields(), new ArrayList<UUID>(messageIds)),
+				new Callable<Map<UUID, List<HColumn<String, byte[]>>>>() {
+					@Override
+					public Map<UUID, List<HColumn<String, byte[]>>> call() {
+						return readColumns(mailbox, messageIds, projection);
+					}
+				});
+	}
+
+	/**
+	 * Get projection which is actually read for the requested projection.
+	 * Super columns are always read as a whole, and composite columns of
+	 * all headers are read by a single slice.
+	 * 
+	 * @param mailbox
+	 * @param projection
+	 * @return
+	 */
+	private static MessageProjection getReadProjection(final String mailbox,
+			final MessageProjection projection)
+	{
+		if (AccountPersistence.getMetadataLayout(mailbox) != MetadataLayout.COMPOSITE) {
+			return MessageProjection.ALL;
+		} else if (projection.includes(MessageProjection.HEADERS)) {
+			return projection.includesBody() ? MessageProjection.ALL : MessageProjection.HEADERS;
+		} else {
+			return projection;
+		}
+	}
+
+	/**
+	 * Read columns of multiple messages from the layout used by the mailbox.
+	 * Messages which were not found are not included. Projection restricts
+	 * columns read from the composite layout only, see
+	 * {@link MessageProjection}. Inline blobs are left out.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param projection
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> readColumns(
+			final String mailbox, final Collection<UUID> messageIds,
+			final MessageProjection projection)
+	{
+		if (AccountPersistence.getMetadataLayout(mailbox) != MetadataLayout.COMPOSITE) {
+			// super columns are always read as a whole
+			return withoutInlineBlobs(fetchSuperColumns(mailbox, messageIds));
+		} else if (projection.includes(MessageProjection.HEADERS)) {
+			return withoutInlineBlobs(fetchCompositeColumns(
+					mailbox, messageIds, projection.includesBody()));
+		} else {
+			Collection<Integer> labelIds = projection.includes(Field.LABELS) ? 
+					AccountPersistence.getLabels(mailbox).getIds() : new ArrayList<Integer>(0);
+
+			return fetchCompositeColumns(mailbox, messageIds, 
+					Marshaller.getColumnNames(projection, labelIds));
+		}
+	}
+
+	/**
+	 * Read named columns of the single message from the layout used by the
+	 * mailbox.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param names
+	 * @return Columns or <code>null</code> if message not found
+	 */
+	private static List<HColumn<String, byte[]>> readNamedColumns(
+			final String mailbox, final UUID messageId, final Set<String> names)
+	{
+		if (AccountPersistence.getMetadataLayout(mailbox) == MetadataLayout.COMPOSITE) {
+			return fetchCompositeColumns(mailbox, 
+					Collections.singletonList(messageId), names).get(messageId);
+		}
+
+		SubSliceQuery<String, UUID, String, byte[]> q = 
+				createSubSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe, byteSe);
+		q.setColumnFamily(CF_METADATA);
+		q.setKey(mailbox);
+		q.setSuperColumn(messageId);
+		q.setColumnNames(names.toArray(new String[names.size()]));
+
+		List<HColumn<String, byte[]>> columns = q.execute().get().getColumns();
+
+		return columns.isEmpty() ? null : columns;
+	}
+
+	/**
+	 * Read super columns of multiple messages. Messages are split into
+	 * chunks, each chunk is read with a single query and chunks are read
+	 * concurrently.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> fetchSuperColumns(
+			final String mailbox, final Collection<UUID> messageIds)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new HashMap<UUID, List<HColumn<String, byte[]>>>(messageIds.size());
+
+		List<Callable<SuperSlice<UUID, String, byte[]>>> queries = 
+				new ArrayList<Callable<SuperSlice<UUID, String, byte[]>>>();
+
+		for (final List<UUID> chunk : Iterables.partition(messageIds, Configurator.getCassandraReadChunkSize()))
+		{
+			queries.add(new Callable<SuperSlice<UUID, String, byte[]>>() {
+				@Override
+				public SuperSlice<UUID, String, byte[]> call()
+				{
+					// Create a query
+					MultigetSuperSliceQuery<String, UUID, String, byte[]> q = 
+							createMultigetSuperSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe, byteSe);
+
+					// set keys, cf, range
+					q.setColumnFamily(CF_METADATA);
+					q.setKeys(mailbox);
+					q.setColumnNames(chunk);
+
+					// execute
+					QueryResult<SuperRows<String, UUID, String, byte[]>> r = q.execute();
+
+					return r.get().getByKey(mailbox).getSuperSlice();
+				}
+			});
+		}
+
+		for (SuperSlice<UUID, String, byte[]> slice : ParallelQueryExecutor.invokeAll(queries,
+				Configurator.isCassandraHedgedReadsEnabled()))
+		{
+			for (HSuperColumn<UUID, String, byte[]> superColumn : slice.getSuperColumns())
+			{
+				if (!superColumn.getColumns().isEmpty()) {
+					result.put(superColumn.getName(), superColumn.getColumns());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read all attributes of multiple messages. Attributes of each message are
+	 * read with a separate slice bounded by the message ID, so that columns of
+	 * other messages are never read. Slices are read concurrently.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param includeBody
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> fetchCompositeColumns(
+			final String mailbox, final Collection<UUID> messageIds,
+			final boolean includeBody)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new HashMap<UUID, List<HColumn<String, byte[]>>>(messageIds.size());
+
+		List<Callable<List<HColumn<Composite, byte[]>>>> queries = 
+				new ArrayList<Callable<List<HColumn<Composite, byte[]>>>>(messageIds.size());
+
+		for (final UUID messageId : messageIds)
+		{
+			queries.add(new Callable<List<HColumn<Composite, byte[]>>>() {
+				@Override
+				public List<HColumn<Composite, byte[]>> call()
+				{
+					return getCompositeSlice(mailbox, messageId, includeBody);
+				}
+			});
+		}
+
+		for (List<HColumn<Composite, byte[]>> columns : ParallelQueryExecutor.invokeAll(queries,
+				Configurator.isCassandraHedgedReadsEnabled()))
+		{
+			if (!columns.isEmpty()) {
+				UUID messageId = columns.get(0).getName().get(0, uuidSe);
+				result.put(messageId, fromCompositeColumns(columns));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read attributes of the single message. Slice is read in pages of
+	 * columns, each page continues from the last column of the previous one.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param includeBody
+	 * @return
+	 */
+	private static List<HColumn<Composite, byte[]>> getCompositeSlice(
+			final String mailbox, final UUID messageId, final boolean includeBody)
+	{
+		List<HColumn<Composite, byte[]>> result = new ArrayList<HColumn<Composite, byte[]>>();
+
+		Composite startRange = getSliceStart(messageId);
+		Composite endRange = getSliceEnd(messageId, includeBody);
+
+		List<HColumn<Composite, byte[]>> columns;
+		ByteBuffer lastColumn = null;
+
+		do {
+			SliceQuery<String, Composite, byte[]> q = 
+					createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, compSe, byteSe);
+			q.setColumnFamily(CF_MESSAGE_ATTRIBUTES);
+			q.setKey(mailbox);
+			q.setRange(startRange, endRange, false, RANGE_PAGE_SIZE);
+
+			columns = q.execute().get().getColumns();
+
+			for (HColumn<Composite, byte[]> c : columns)
+			{
+				// skip last column of the previous page
+				if ((lastColumn == null) || !compSe.toByteBuffer(c.getName()).equals(lastColumn)) {
+					result.add(c);
+				}
+			}
+
+			if (!columns.isEmpty()) {
+				startRange = columns.get(columns.size() - 1).getName();
+				lastColumn = compSe.toByteBuffer(startRange);
+			}
+		}
+		while (columns.size() >= RANGE_PAGE_SIZE);
+
+		return result;
+	}
+
+	/**
+	 * Get start of the slice with all attributes of the message
+	 * 
+	 * @param messageId
+	 * @return
+	 */
+	static Composite getSliceStart(final UUID messageId)
+	{
+		Composite startRange = new Composite();
+		startRange.addComponent(0, messageId, Composite.ComponentEquality.EQUAL);
+		return startRange;
+	}
+
+	/**
+	 * Get end of the slice with attributes of the message. Body attributes
+	 * sort after the prefix and are left out unless requested.
+	 * 
+	 * @param messageId
+	 * @param includeBody
+	 * @return
+	 */
+	static Composite getSliceEnd(final UUID messageId, final boolean includeBody)
+	{
+		Composite endRange = new Composite();
+
+		if (includeBody) {
+			endRange.addComponent(0, messageId, Composite.ComponentEquality.GREATER_THAN_EQUAL);
+		} else {
+			endRange.addComponent(0, messageId, Composite.ComponentEquality.EQUAL);
+			endRange.addComponent(1, CN_BODY_PREFIX, Composite.ComponentEquality.EQUAL);
+		}
+
+		return endRange;
+	}
+
+	/**
+	 * Read named columns of multiple messages. Messages are split into chunks,
+	 * each chunk is read with a single query and chunks are read concurrently.
+	 * 
+	 * @param mailbox
+	 * @param messageIds
+	 * @param names
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> fetchCompositeColumns(
+			final String mailbox, final Collection<UUID> messageIds,
+			final Set<String> names)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new HashMap<UUID, List<HColumn<String, byte[]>>>(messageIds.size());
+
+		List<Callable<List<HColumn<Composite, byte[]>>>> queries = 
+				new ArrayList<Callable<List<HColumn<Composite, byte[]>>>>();
+
+		for (List<UUID> chunk : Iterables.partition(messageIds, Configurator.getCassandraReadChunkSize()))
+		{
+			final List<Composite> columnNames = new ArrayList<Composite>(chunk.size() * names.size());
+			for (UUID messageId : chunk) {
+				for (String name : names) {
+					columnNames.add(toCompositeName(messageId, name));
+				}
+			}
+
+			queries.add(new Callable<List<HColumn<Composite, byte[]>>>() {
+				@Override
+				public List<HColumn<Composite, byte[]>> call()
+				{
+					SliceQuery<String, Composite, byte[]> q = 
+							createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, compSe, byteSe);
+					q.setColumnFamily(CF_MESSAGE_ATTRIBUTES);
+					q.setKey(mailbox);
+					q.setColumnNames(columnNames.toArray(new Composite[columnNames.size()]));
+
+					return q.execute().get().getColumns();
+				}
+			});
+		}
+
+		for (List<HColumn<Composite, byte[]>> columns : ParallelQueryExecutor.invokeAll(queries,
+				Configurator.isCassandraHedgedReadsEnabled()))
+		{
+			for (HColumn<Composite, byte[]> c : columns)
+			{
+				UUID messageId = c.getName().get(0, uuidSe);
+
+				if (!result.containsKey(messageId)) {
+					result.put(messageId, new ArrayList<HColumn<String, byte[]>>(names.size()));
+				}
+				result.get(messageId).add(fromCompositeColumn(c));
+			}
+		}
+
+		return result;
+	}
+
+	private static Map<UUID, List<HColumn<String, byte[]>>> getSuperRange(
+			final String mailbox, final UUID start, final int count)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new LinkedHashMap<UUID, List<HColumn<String, byte[]>>>();
+
+		// Create a query
+		SuperSliceQuery<String, UUID, String, byte[]> q = 
+				createSuperSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe, byteSe);
+
+		// set keys, cf, range
+		q.setColumnFamily(CF_METADATA);
+		q.setKey(mailbox);
+		q.setRange(start, null, true, count);
+
+		// execute
+		QueryResult<SuperSlice<UUID, String, byte[]>> r = q.execute();
+
+		for (HSuperColumn<UUID, String, byte[]> superColumn : r.get().getSuperColumns())
+		{
+			result.put(superColumn.getName(), superColumn.getColumns());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read columns of the messages within given range. Row is scanned in pages
+	 * of columns, each page continues from the last column of the previous one.
+	 * 
+	 * @param mailbox
+	 * @param start
+	 * @param count
+	 * @return
+	 */
+	private static Map<UUID, List<HColumn<String, byte[]>>> getCompositeRange(
+			final String mailbox, final UUID start, final int count)
+	{
+		Map<UUID, List<HColumn<String, byte[]>>> result = 
+				new LinkedHashMap<UUID, List<HColumn<String, byte[]>>>();
+
+		Composite startRange = null;
+
+		if (start != null) {
+			// reversed slice, include all attributes of the start message
+			startRange = new Composite();
+			startRange.addComponent(0, start, Composite.ComponentEquality.GREATER_THAN_EQUAL);
+		}
+
+		List<HColumn<Composite, byte[]>> columns;
+		ByteBuffer lastColumn = null;
+
+		do {
+			SliceQuery<String, Composite, byte[]> q = 
+					createSliceQuery(CassandraDAOFactory.getKeyspace(), strSe, compSe, byteSe);
+			q.setColumnFamily(CF_MESSAGE_ATTRIBUTES);
+			q.setKey(mailbox);
+			q.setRange(startRange, null, true, RANGE_PAGE_SIZE);
+
+			columns = q.execute().get().getColumns();
+
+			for (HColumn<Composite, byte[]> c : columns)
+			{
+				// skip last column of the previous page
+				if ((lastColumn != null) && compSe.toByteBuffer(c.getName()).equals(lastColumn)) {
+					continue;
+				}
+
+				UUID messageId = c.getName().get(0, uuidSe);
+
+				if (!result.containsKey(messageId))
+				{
+					// all attributes of the requested messages are read
+					if (result.size() == count) {
+						return result;
+					}
+					result.put(messageId, new ArrayList<HColumn<String, byte[]>>());
+				}
+
+				result.get(messageId).add(fromCompositeColumn(c));
+			}
+
+			if (!columns.isEmpty()) {
+				startRange = columns.get(columns.size() - 1).getName();
+				lastColumn = compSe.toByteBuffer(startRange);
+			}
+		}
+		while (columns.size() >= RANGE_PAGE_SIZE);
+
+		return result;
+	}
+
+	/**
+	 * Remove blobs stored inline with metadata from the columns of each
+	 * message. Super columns and composite body slices include the inline
+	 * blob, which is only needed when the raw message is fetched, so it is
+	 * not kept in listings or in the metadata cache.
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	static Map<UUID, List<HColumn<String, byte[]>>> withoutInlineBlobs(
+			final Map<UUID, List<HColumn<String, byte[]>>> columns)
+	{
+		for (Map.Entry<UUID, List<HColumn<String, byte[]>>> entry : columns.entrySet())
+		{
+			List<HColumn<String, byte[]>> filtered = 
+					new ArrayList<HColumn<String, byte[]>>(entry.getValue().size());
+
+			for (HColumn<String, byte[]> c : entry.getValue()) {
+				if (!c.getName().equals(Marshaller.CN_BLOB)) {
+					filtered.add(c);
+				}
+			}
+
+			if (filtered.size() < entry.getValue().size()) {
+				entry.setValue(filtered);
+			}
+		}
+
+		return columns;
+	}
+
+	static Composite toCompositeName(final UUID messageId, final String name)
+	{
+		Composite composite = new Composite();
+		composite.addComponent(messageId, uuidSe);
+		composite.addComponent(isBodyAttribute(name) ? CN_BODY_PREFIX + name : name, strSe);
+		return composite;
+	}
+
+	private static HColumn<String, byte[]> fromCompositeColumn(final HColumn<Composite, byte[]> c)
+	{
+		String name = c.getName().get(1, strSe);
+
+		if (name.startsWith(CN_BODY_PREFIX)) {
+			name = name.substring(CN_BODY_PREFIX.length());
+		}
+
+		return createColumn(name, c.getValue(), c.getClock(), strSe, byteSe);
+	}
+
+	private static List<HColumn<String, byte[]>> fromCompositeColumns(
+			final List<HColumn<Composite, byte[]>> columns)
+	{
+		List<HColumn<String, byte[]>> result = 
+				new ArrayList<HColumn<String, byte[]>>(columns.size());
+
+		for (HColumn<Composite, byte[]> c : columns) {
+			result.add(fromCompositeColumn(c));
+		}
+
+		return result;
+	}
+
+	private static boolean isBodyAttribute(final String name)
+	{
+		return BODY_ATTRIBUTES.contains(name);
+	}
+
+	private static boolean writesSuperLayout(final MetadataLayout layout)
+	{
+		return layout == MetadataLayout.SUPER;
+	}
+
+	private static boolean writesCompositeLayout(final MetadataLayout layout)
+	{
+		return layout == MetadataLayout.COMPOSITE
+				|| Configurator.isCassandraCompositeMetadataEnabled();
 	}
 
 }
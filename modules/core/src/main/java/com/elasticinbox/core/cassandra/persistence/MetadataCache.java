@@ -0,0 +1,362 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.config.Configurator;
+import com.elasticinbox.core.MessageProjection;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+
+/**
+ * Node-wide cache of message metadata columns, keyed by mailbox and message
+ * ID. Entries are weighed by the size of the columns.
+ * <p>
+ * Each entry remembers the projection it was read with and serves only reads
+ * of the same or narrower projection. Label and marker changes made on this
+ * node are applied to the cached columns, other changes invalidate the entry.
+ * Changes made on other nodes are not visible until entry expires.
+ * <p>
+ * Reads which were in progress while entry was changed are not cached, since
+ * they may have returned columns prior to the change. Changes are tracked by
+ * the stamp of the key's stripe.
+ */
+public final class MetadataCache implements MetadataCacheMBean
+{
+	public final static String MBEAN_NAME = "com.elasticinbox:type=MetadataCache";
+
+	/** Number of change stamp stripes */
+	private final static int STAMP_STRIPES = 1024;
+
+	/** Approximate size of the column object excluding name and value */
+	private final static int COLUMN_OVERHEAD = 64;
+
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(MetadataCache.class);
+
+	private final static MetadataCache instance = new MetadataCache(
+			Configurator.getCassandraMetadataCacheSize() * 1024L * 1024L,
+			Configurator.getCassandraMetadataCacheTTL());
+
+	private final Cache<String, Entry> cache;
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong skippedPuts = new AtomicLong();
+
+	static
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					instance, new ObjectName(MBEAN_NAME));
+		} catch (Exception e) {
+			logger.warn("Unable to register {} MBean: {}", MBEAN_NAME, e.getMessage());
+		}
+	}
+
+	/**
+	 * Cached columns and the projection they were read with
+	 */
+	private final static class Entry
+	{
+		final MessageProjection projection;
+		final List<HColumn<String, byte[]>> columns;
+
+		Entry(final MessageProjection projection, final List<HColumn<String, byte[]>> columns) {
+			this.projection = projection;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * Create cache
+	 * 
+	 * @param maxBytes
+	 *            Maximum total size of cached columns. Zero disables cache.
+	 * @param ttl
+	 *            Time after which entry expires. In MILLISECONDS.
+	 */
+	MetadataCache(final long maxBytes, final long ttl)
+	{
+		cache = (maxBytes <= 0) ? null : CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(new Weigher<String, Entry>() {
+					@Override
+					public int weigh(String key, Entry entry) {
+						return sizeOf(key, entry);
+					}
+				})
+				.expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+	}
+
+	public static MetadataCache getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return (cache != null);
+	}
+
+	/**
+	 * Get change stamp of the message. Should be obtained before reading
+	 * columns which will be cached.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @return
+	 */
+	public long getStamp(final String mailbox, final UUID messageId) {
+		return stamps.get(stripe(getKey(mailbox, messageId)));
+	}
+
+	/**
+	 * Get cached columns of the message
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param projection
+	 * @return Columns or <code>null</code> if message is not cached or cached
+	 *         projection does not include all requested fields
+	 */
+	public List<HColumn<String, byte[]>> get(final String mailbox,
+			final UUID messageId, final MessageProjection projection)
+	{
+		if (cache == null) {
+			return null;
+		}
+
+		Entry entry = cache.getIfPresent(getKey(mailbox, messageId));
+
+		if (entry == null || !entry.projection.includes(projection)) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return entry.columns;
+	}
+
+	/**
+	 * Cache columns of the message unless message was changed since the
+	 * given stamp
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param projection
+	 *            Projection which columns were read with
+	 * @param columns
+	 * @param stamp
+	 *            Change stamp obtained before columns were read
+	 */
+	public void put(final String mailbox, final UUID messageId,
+			final MessageProjection projection,
+			final List<HColumn<String, byte[]>> columns, final long stamp)
+	{
+		if (cache == null) {
+			return;
+		}
+
+		String key = getKey(mailbox, messageId);
+
+		if (stamps.get(stripe(key)) != stamp) {
+			skippedPuts.incrementAndGet();
+			return;
+		}
+
+		ConcurrentMap<String, Entry> map = cache.asMap();
+		Entry entry = new Entry(projection, Collections.unmodifiableList(
+				new ArrayList<HColumn<String, byte[]>>(columns)));
+
+		Entry existing = map.putIfAbsent(key, entry);
+
+		// keep wider projection
+		if (existing != null && !existing.projection.includes(projection)) {
+			map.replace(key, existing, entry);
+		}
+	}
+
+	/**
+	 * Apply attribute changes to the cached message. Should be called after
+	 * changes were written.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 * @param attributesToAdd
+	 *            Names of the flag attributes added to the message
+	 * @param attributesToRemove
+	 *            Names of the attributes removed from the message
+	 */
+	public void update(final String mailbox, final UUID messageId,
+			final Set<String> attributesToAdd, final Set<String> attributesToRemove)
+	{
+		if (cache == null) {
+			return;
+		}
+
+		String key = getKey(mailbox, messageId);
+		stamps.incrementAndGet(stripe(key));
+
+		ConcurrentMap<String, Entry> map = cache.asMap();
+		Entry entry;
+		Entry updated;
+
+		do {
+			entry = map.get(key);
+
+			if (entry == null) {
+				return;
+			}
+
+			List<HColumn<String, byte[]>> columns = 
+					new ArrayList<HColumn<String, byte[]>>(
+							entry.columns.size() + attributesToAdd.size());
+
+			for (HColumn<String, byte[]> c : entry.columns) {
+				if (!attributesToRemove.contains(c.getName())
+						&& !attributesToAdd.contains(c.getName())) {
+					columns.add(c);
+				}
+			}
+
+			for (String name : attributesToAdd) {
+				if (!attributesToRemove.contains(name)) {
+					columns.add(HFactory.createColumn(name, new byte[0], strSe, byteSe));
+				}
+			}
+
+			updated = new Entry(entry.projection, Collections.unmodifiableList(columns));
+		} while (!map.replace(key, entry, updated));
+
+		updates.incrementAndGet();
+	}
+
+	/**
+	 * Remove message from the cache. Should be called after message was
+	 * written or deleted.
+	 * 
+	 * @param mailbox
+	 * @param messageId
+	 */
+	public void invalidate(final String mailbox, final UUID messageId)
+	{
+		if (cache == null) {
+			return;
+		}
+
+		String key = getKey(mailbox, messageId);
+		stamps.incrementAndGet(stripe(key));
+		cache.invalidate(key);
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRatio()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0) ? 0.0 : (double) h / total;
+	}
+
+	@Override
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	@Override
+	public long getSkippedPuts() {
+		return skippedPuts.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return (cache == null) ? 0 : cache.stats().evictionCount();
+	}
+
+	@Override
+	public long getSize() {
+		return (cache == null) ? 0 : cache.size();
+	}
+
+	private static String getKey(final String mailbox, final UUID messageId) {
+		return new StringBuilder(mailbox).append(':').append(messageId).toString();
+	}
+
+	private static int stripe(final String key) {
+		return (key.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+	}
+
+	private static int sizeOf(final String key, final Entry entry)
+	{
+		long size = key.length() * 2;
+
+		for (HColumn<String, byte[]> c : entry.columns) {
+			size += COLUMN_OVERHEAD + c.getName().length() * 2
+					+ (c.getValue() == null ? 0 : c.getValue().length);
+		}
+
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+}
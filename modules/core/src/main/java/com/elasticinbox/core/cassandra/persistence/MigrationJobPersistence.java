@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_ACCOUNTS;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.common.utils.JSONUtils;
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.model.MigrationJob;
+
+/**
+ * Stores state of the mailbox layout migration jobs in the account row as
+ * JSON. Only the last job of each type is kept.
+ */
+public final class MigrationJobPersistence
+{
+	private final static String CN_MIGRATION_JOB_PREFIX = "migration_job:";
+
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(MigrationJobPersistence.class);
+
+	/**
+	 * Get state of the last migration job of the given type
+	 * 
+	 * @param mailbox
+	 * @param type
+	 * @return Job state or <code>null</code> if mailbox was never migrated
+	 */
+	public static MigrationJob get(final String mailbox, final MigrationJob.Type type)
+	{
+		ColumnQuery<String, String, byte[]> q = 
+				createColumnQuery(CassandraDAOFactory.getKeyspace(), strSe, strSe, byteSe);
+		q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox).setName(CN_MIGRATION_JOB_PREFIX + type);
+
+		HColumn<String, byte[]> c = q.execute().get();
+
+		if (c == null) {
+			return null;
+		}
+
+		try {
+			return fromJson(c.getValue());
+		} catch (RuntimeException e) {
+			logger.warn("Ignoring corrupted migration job state of {}: {}",
+					mailbox, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Store state of the migration job. Replaces previous job of the same
+	 * type.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param job
+	 */
+	public static void set(Mutator<String> mutator, final String mailbox, final MigrationJob job)
+	{
+		mutator.addInsertion(mailbox, CF_ACCOUNTS, createColumn(
+				CN_MIGRATION_JOB_PREFIX + job.getType(), toJson(job), strSe, byteSe));
+	}
+
+	static byte[] toJson(final MigrationJob job)
+	{
+		Map<String, Object> state = new HashMap<String, Object>();
+		state.put("id", job.getId().toString());
+		state.put("type", job.getType().name());
+		state.put("started", job.getStarted().getTime());
+		state.put("status", job.getStatus().name());
+		state.put("migrated", job.getMigrated());
+		state.put("updated", job.getUpdated().getTime());
+
+		if (job.getSwitched() != null) {
+			state.put("switched", job.getSwitched().getTime());
+		}
+		if (job.getError() != null) {
+			state.put("error", job.getError());
+		}
+
+		return JSONUtils.fromObject(state);
+	}
+
+	static MigrationJob fromJson(final byte[] value)
+	{
+		Map<String, Object> state = null;
+		state = JSONUtils.toObject(value, state);
+
+		MigrationJob job = new MigrationJob(UUID.fromString((String) state.get("id")),
+				MigrationJob.Type.valueOf((String) state.get("type")),
+				new Date(((Number) state.get("started")).longValue()));
+
+		job.setStatus(MigrationJob.Status.valueOf((String) state.get("status")));
+		job.setMigrated(((Number) state.get("migrated")).longValue());
+		job.setUpdated(new Date(((Number) state.get("updated")).longValue()));
+
+		if (state.containsKey("switched")) {
+			job.setSwitched(new Date(((Number) state.get("switched")).longValue()));
+		}
+		job.setError((String) state.get("error"));
+
+		return job;
+	}
+}
@@ -32,13 +32,12 @@ import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_LABEL_INDEX
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -46,7 +45,8 @@ import org.slf4j.LoggerFactory;
 
 import com.elasticinbox.core.cassandra.CassandraDAOFactory;
 import com.elasticinbox.core.cassandra.utils.BatchConstants;
-import com.google.common.collect.Iterables;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+import com.elasticinbox.core.utils.UUIDSet;
 
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
@@ -68,7 +68,9 @@ public final class PurgeIndexPersistence
 		LoggerFactory.getLogger(PurgeIndexPersistence.class);
 
 	/**
-	 * Add message to purge index
+	 * Add message to purge index. Entries are also added to the global purge
+	 * queue in the same batch, regardless of the local configuration, since
+	 * purge may be run by maintenance runner on any other node.
 	 * 
 	 * @param mutator
 	 * @param mailbox
@@ -86,6 +88,7 @@ public final class PurgeIndexPersistence
 
 			mutator.addInsertion(indexKey, CF_LABEL_INDEX,
 					createColumn(timeuuid, messageId, uuidSe, uuidSe));
+			PurgeQueuePersistence.add(mutator, mailbox, timeuuid);
 		}
 	}
 
@@ -140,28 +143,45 @@ public final class PurgeIndexPersistence
 	}
 
 	/**
-	 * Get all message IDs pending purge
+	 * Get cursor over purge index entries, starting from the most recent
 	 * 
 	 * @param mailbox
 	 * @return
 	 */
-	public static Set<UUID> getAll(final String mailbox)
+	public static IndexCursor<Map.Entry<UUID, UUID>> getCursor(final String mailbox)
 	{
-		Map<UUID, UUID> purgeIndex;
-		Set<UUID> pendingMessages = new HashSet<UUID>();
+		return new IndexCursor<Map.Entry<UUID, UUID>>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<Map.Entry<UUID, UUID>> readPage(UUID start, int count) {
+				if (start == null) {
+					start = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
+				}
+				return new ArrayList<Map.Entry<UUID, UUID>>(get(mailbox, start, count).entrySet());
+			}
 
-		// get all message IDs from purge queue
-		UUID start = TimeUUIDUtils.getUniqueTimeUUIDinMillis();
-		do {
-			purgeIndex = PurgeIndexPersistence.get(
-					mailbox, start, BatchConstants.BATCH_READS);
-
-			if (!purgeIndex.isEmpty()) {
-				pendingMessages.addAll(purgeIndex.values());
-				start = Iterables.getLast(purgeIndex.keySet());
+			@Override
+			protected UUID getToken(Map.Entry<UUID, UUID> entry) {
+				return entry.getKey();
 			}
+		};
+	}
+
+	/**
+	 * Get all message IDs pending purge. IDs are returned as compact set, so
+	 * that large purge queues can be loaded into memory.
+	 * 
+	 * @param mailbox
+	 * @return
+	 */
+	public static UUIDSet getAll(final String mailbox)
+	{
+		UUIDSet pendingMessages = new UUIDSet();
+		IndexCursor<Map.Entry<UUID, UUID>> cursor = getCursor(mailbox);
+
+		// get all message IDs from purge queue
+		while (cursor.hasNext()) {
+			pendingMessages.add(cursor.next().getValue());
 		}
-		while (purgeIndex.size() >= BatchConstants.BATCH_READS);
 
 		return pendingMessages;
 	}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_LABEL_INDEX;
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.cassandra.utils.BatchConstants;
+import com.elasticinbox.core.cassandra.utils.IndexCursor;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.serializers.UUIDSerializer;
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+/**
+ * Global queue of messages pending purge, complements per-mailbox purge
+ * index.
+ * <p>
+ * Queue rows are stored in the label index column family and keyed by time
+ * bucket of deletion and shard of the mailbox. Each entry is purge index ID
+ * pointing to the mailbox, so that mailboxes with messages deleted within the
+ * bucket can be found without reading all mailboxes. Once bucket is older
+ * than retention age, it does not receive new entries and can be processed
+ * and dropped.
+ */
+public final class PurgeQueuePersistence
+{
+	/** Time covered by single bucket. In MILLISECONDS. */
+	public final static long BUCKET_SIZE = 3600000L;
+
+	/** Number of rows per bucket */
+	public final static int SHARDS = 16;
+
+	/** Row key prefix, not a valid mailbox ID */
+	private final static String KEY_PREFIX = "#purge";
+	private final static String KEY_SEPARATOR = ":";
+
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static UUIDSerializer uuidSe = UUIDSerializer.get();
+
+	/**
+	 * Add purge index entry of the mailbox to the queue
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param purgeIndexId
+	 *            Time UUID of the purge index entry
+	 */
+	public static void add(Mutator<String> mutator, final String mailbox, final UUID purgeIndexId)
+	{
+		long bucket = getBucket(TimeUUIDUtils.getTimeFromUUID(purgeIndexId));
+
+		mutator.addInsertion(getKey(bucket, getShard(mailbox)), CF_LABEL_INDEX,
+				createColumn(purgeIndexId, mailbox, uuidSe, strSe));
+	}
+
+	/**
+	 * Get cursor over queue entries of the bucket shard, from the oldest
+	 * 
+	 * @param bucket
+	 * @param shard
+	 * @return Entries of purge index ID and mailbox
+	 */
+	public static IndexCursor<Map.Entry<UUID, String>> getCursor(final long bucket, final int shard)
+	{
+		final String key = getKey(bucket, shard);
+
+		return new IndexCursor<Map.Entry<UUID, String>>(BatchConstants.BATCH_READS) {
+			@Override
+			protected List<Map.Entry<UUID, String>> readPage(UUID start, int count)
+			{
+				SliceQuery<String, UUID, String> q = createSliceQuery(
+						CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe);
+				q.setColumnFamily(CF_LABEL_INDEX).setKey(key);
+				q.setRange(start, null, false, count);
+
+				List<Map.Entry<UUID, String>> entries = new ArrayList<Map.Entry<UUID, String>>(count);
+
+				for (HColumn<UUID, String> c : q.execute().get().getColumns()) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<UUID, String>(
+							c.getName(), c.getValue()));
+				}
+
+				return entries;
+			}
+
+			@Override
+			protected UUID getToken(Map.Entry<UUID, String> entry) {
+				return entry.getKey();
+			}
+		};
+	}
+
+	/**
+	 * Check if the bucket shard has no entries
+	 * 
+	 * @param bucket
+	 * @param shard
+	 * @return
+	 */
+	public static boolean isEmpty(final long bucket, final int shard)
+	{
+		SliceQuery<String, UUID, String> q = createSliceQuery(
+				CassandraDAOFactory.getKeyspace(), strSe, uuidSe, strSe);
+		q.setColumnFamily(CF_LABEL_INDEX).setKey(getKey(bucket, shard));
+		q.setRange(null, null, false, 1);
+
+		return q.execute().get().getColumns().isEmpty();
+	}
+
+	/**
+	 * Remove processed bucket shard
+	 * 
+	 * @param mutator
+	 * @param bucket
+	 * @param shard
+	 */
+	public static void remove(Mutator<String> mutator, final long bucket, final int shard)
+	{
+		mutator.addDeletion(getKey(bucket, shard), CF_LABEL_INDEX);
+	}
+
+	/**
+	 * Get bucket of the given time
+	 * 
+	 * @param time
+	 *            In MILLISECONDS
+	 * @return
+	 */
+	public static long getBucket(final long time) {
+		return time / BUCKET_SIZE;
+	}
+
+	static int getShard(final String mailbox) {
+		return (mailbox.hashCode() & 0x7fffffff) % SHARDS;
+	}
+
+	static String getKey(final long bucket, final int shard)
+	{
+		return new StringBuilder(KEY_PREFIX).append(KEY_SEPARATOR).append(bucket)
+				.append(KEY_SEPARATOR).append(shard).toString();
+	}
+}
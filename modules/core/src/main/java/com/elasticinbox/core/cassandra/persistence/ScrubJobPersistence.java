@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_ACCOUNTS;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.common.utils.JSONUtils;
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.LabelMap;
+import com.elasticinbox.core.model.ScrubJob;
+
+/**
+ * Stores state of the mailbox scrub job in the account row as JSON. Only the
+ * last job of the mailbox is kept.
+ * <p>
+ * Counters calculated so far are stored by label ID as
+ * <code>{"bytes":..,"total":..,"unread":..}</code>.
+ */
+public final class ScrubJobPersistence
+{
+	private final static String CN_SCRUB_JOB = "scrub_job";
+
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static BytesArraySerializer byteSe = BytesArraySerializer.get();
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(ScrubJobPersistence.class);
+
+	/**
+	 * Get state of the last scrub job of the mailbox
+	 * 
+	 * @param mailbox
+	 * @return Job state or <code>null</code> if mailbox was never scrubbed in
+	 *         background
+	 */
+	public static ScrubJob get(final String mailbox)
+	{
+		ColumnQuery<String, String, byte[]> q = 
+				createColumnQuery(CassandraDAOFactory.getKeyspace(), strSe, strSe, byteSe);
+		q.setColumnFamily(CF_ACCOUNTS).setKey(mailbox).setName(CN_SCRUB_JOB);
+
+		HColumn<String, byte[]> c = q.execute().get();
+
+		if (c == null) {
+			return null;
+		}
+
+		try {
+			return fromJson(c.getValue());
+		} catch (RuntimeException e) {
+			logger.warn("Ignoring corrupted scrub job state of {}: {}", mailbox, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Store state of the scrub job. Replaces previous job of the mailbox.
+	 * 
+	 * @param mutator
+	 * @param mailbox
+	 * @param job
+	 */
+	public static void set(Mutator<String> mutator, final String mailbox, final ScrubJob job)
+	{
+		mutator.addInsertion(mailbox, CF_ACCOUNTS, 
+				createColumn(CN_SCRUB_JOB, toJson(job), strSe, byteSe));
+	}
+
+	static byte[] toJson(final ScrubJob job)
+	{
+		Map<String, Object> state = new HashMap<String, Object>();
+		state.put("id", job.getId().toString());
+		state.put("rebuildIndex", job.isRebuildIndex());
+		state.put("status", job.getStatus().name());
+		state.put("scanned", job.getScanned());
+		state.put("started", job.getStarted().getTime());
+		state.put("updated", job.getUpdated().getTime());
+
+		if (job.getCheckpoint() != null) {
+			state.put("checkpoint", job.getCheckpoint().toString());
+		}
+		if (job.getError() != null) {
+			state.put("error", job.getError());
+		}
+
+		Map<String, Object> counters = new HashMap<String, Object>();
+
+		for (Integer labelId : job.getCounters().getIds())
+		{
+			LabelCounters c = job.getCounters().get(labelId).getCounters();
+
+			Map<String, Object> labelCounters = new HashMap<String, Object>(3);
+			labelCounters.put("bytes", c.getTotalBytes());
+			labelCounters.put("total", c.getTotalMessages());
+			labelCounters.put("unread", c.getUnreadMessages());
+			counters.put(labelId.toString(), labelCounters);
+		}
+
+		state.put("counters", counters);
+
+		return JSONUtils.fromObject(state);
+	}
+
+	@SuppressWarnings("unchecked")
+	static ScrubJob fromJson(final byte[] value)
+	{
+		Map<String, Object> state = null;
+		state = JSONUtils.toObject(value, state);
+
+		ScrubJob job = new ScrubJob(UUID.fromString((String) state.get("id")),
+				(Boolean) state.get("rebuildIndex"),
+				new Date(((Number) state.get("started")).longValue()));
+
+		job.setStatus(ScrubJob.Status.valueOf((String) state.get("status")));
+		job.setScanned(((Number) state.get("scanned")).longValue());
+		job.setUpdated(new Date(((Number) state.get("updated")).longValue()));
+		job.setCheckpoint(state.containsKey("checkpoint") ? 
+				UUID.fromString((String) state.get("checkpoint")) : null);
+		job.setError((String) state.get("error"));
+
+		LabelMap counters = new LabelMap();
+		Map<String, Map<String, Number>> labels = 
+				(Map<String, Map<String, Number>>) state.get("counters");
+
+		for (Map.Entry<String, Map<String, Number>> entry : labels.entrySet())
+		{
+			LabelCounters labelCounters = new LabelCounters();
+			labelCounters.setTotalBytes(entry.getValue().get("bytes").longValue());
+			labelCounters.setTotalMessages(entry.getValue().get("total").longValue());
+			labelCounters.setUnreadMessages(entry.getValue().get("unread").longValue());
+			counters.put(new Label(Integer.parseInt(entry.getKey())).setCounters(labelCounters));
+		}
+
+		job.setCounters(counters);
+
+		return job;
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Node-wide rate controller for bulk writes (AIMD).
+ * <p>
+ * While observed batch latency stays under the target, rate and batch size
+ * are increased additively. On latency above the target, timeouts or
+ * unavailable replicas, both are reduced multiplicatively. The rate is shared
+ * by all bulk operations running on this node and exposed over JMX.
+ * 
+ * @see ThrottlingMutator
+ */
+public final class AdaptiveThrottle implements AdaptiveThrottleMBean
+{
+	public final static String MBEAN_NAME = "com.elasticinbox:type=AdaptiveThrottle";
+
+	/** Default batch latency target in milliseconds */
+	public final static long DEFAULT_TARGET_LATENCY = 50L;
+
+	/** Rate limits in mutations per second */
+	private final static double MIN_RATE = 100.0;
+	private final static double MAX_RATE = 20000.0;
+	private final static double RATE_STEP = 100.0;
+
+	private final static int MIN_BATCH_SIZE = 10;
+	private final static int MAX_BATCH_SIZE = 500;
+	private final static int BATCH_SIZE_STEP = 10;
+
+	private final static double BACKOFF_FACTOR = 0.5;
+
+	/** Minimum time between backoffs, so that concurrent batches back off once */
+	private final static long BACKOFF_COOLDOWN = 1000L;
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(AdaptiveThrottle.class);
+
+	private final static AdaptiveThrottle instance = new AdaptiveThrottle(
+			BatchConstants.BATCH_WRITES * 1000.0 / BatchConstants.BATCH_WRITE_INTERVAL,
+			BatchConstants.BATCH_WRITES, DEFAULT_TARGET_LATENCY);
+
+	private final RateLimiter limiter;
+	private final AtomicLong backoffCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private volatile double rate;
+	private volatile int batchSize;
+	private volatile long targetLatency;
+	private long lastBackoff = 0;
+
+	AdaptiveThrottle(double rate, int batchSize, long targetLatency)
+	{
+		this.rate = rate;
+		this.batchSize = batchSize;
+		this.targetLatency = targetLatency;
+		this.limiter = RateLimiter.create(rate);
+	}
+
+	static
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					instance, new ObjectName(MBEAN_NAME));
+		} catch (Exception e) {
+			logger.warn("Unable to register {} MBean: {}", MBEAN_NAME, e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns throttle shared by all bulk operations on this node
+	 * 
+	 * @return
+	 */
+	public static AdaptiveThrottle getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Block until given number of mutations can be written at current rate
+	 * 
+	 * @param mutations
+	 */
+	public void acquire(int mutations) {
+		limiter.acquire(Math.max(1, mutations));
+	}
+
+	/**
+	 * Record successfully written batch
+	 * 
+	 * @param latencyMicro
+	 *            Batch execution time in microseconds
+	 */
+	public synchronized void onSuccess(long latencyMicro)
+	{
+		if (latencyMicro > targetLatency * 1000L) {
+			backoff();
+			return;
+		}
+
+		if (rate < MAX_RATE || batchSize < MAX_BATCH_SIZE) {
+			rate = Math.min(MAX_RATE, rate + RATE_STEP);
+			batchSize = Math.min(MAX_BATCH_SIZE, batchSize + BATCH_SIZE_STEP);
+			limiter.setRate(rate);
+		}
+	}
+
+	/**
+	 * Record batch failed due to timeout or unavailable replicas
+	 */
+	public synchronized void onFailure()
+	{
+		failureCount.incrementAndGet();
+		backoff();
+	}
+
+	private void backoff()
+	{
+		long now = System.currentTimeMillis();
+
+		if (now - lastBackoff < BACKOFF_COOLDOWN) {
+			return;
+		}
+
+		lastBackoff = now;
+		rate = Math.max(MIN_RATE, rate * BACKOFF_FACTOR);
+		batchSize = Math.max(MIN_BATCH_SIZE, (int) (batchSize * BACKOFF_FACTOR));
+		limiter.setRate(rate);
+		backoffCount.incrementAndGet();
+
+		logger.debug("Bulk writes backed off to {} mutations/s in batches of {}", rate, batchSize);
+	}
+
+	@Override
+	public double getRate() {
+		return rate;
+	}
+
+	@Override
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public long getTargetLatency() {
+		return targetLatency;
+	}
+
+	@Override
+	public void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	@Override
+	public long getBackoffCount() {
+		return backoffCount.get();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+}
@@ -50,4 +50,10 @@ public class BatchConstants
 	 * WRITES_INTERVAL.
 	 */
 	public final static long BATCH_WRITE_INTERVAL = 100L;
+
+	/**
+	 * Maximum estimated size of a single batch in bytes. Batch is written when
+	 * either this size or number of writes is reached.
+	 */
+	public final static long BATCH_WRITE_BYTES = 1048576L;
 }
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-wide statistics of batches flushed by {@link ThrottlingMutator},
+ * exposed over JMX.
+ */
+public final class BatchMetrics implements BatchMetricsMBean
+{
+	public final static String MBEAN_NAME = "com.elasticinbox:type=BatchMetrics";
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(BatchMetrics.class);
+
+	private final static BatchMetrics instance = new BatchMetrics();
+
+	private final AtomicLong countFlushes = new AtomicLong();
+	private final AtomicLong sizeFlushes = new AtomicLong();
+	private final AtomicLong mutations = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong maxBatchBytes = new AtomicLong();
+
+	static
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					instance, new ObjectName(MBEAN_NAME));
+		} catch (Exception e) {
+			logger.warn("Unable to register {} MBean: {}", MBEAN_NAME, e.getMessage());
+		}
+	}
+
+	public static BatchMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record full batch flush
+	 * 
+	 * @param bySize
+	 *            Whether flush was caused by size limit rather than count
+	 * @param mutationsCount
+	 * @param estimatedBytes
+	 */
+	public void recordFlush(boolean bySize, int mutationsCount, long estimatedBytes)
+	{
+		if (bySize) {
+			sizeFlushes.incrementAndGet();
+		} else {
+			countFlushes.incrementAndGet();
+		}
+
+		mutations.addAndGet(mutationsCount);
+		bytes.addAndGet(estimatedBytes);
+
+		long max = maxBatchBytes.get();
+		while (estimatedBytes > max && !maxBatchBytes.compareAndSet(max, estimatedBytes)) {
+			max = maxBatchBytes.get();
+		}
+	}
+
+	@Override
+	public long getCountFlushes() {
+		return countFlushes.get();
+	}
+
+	@Override
+	public long getSizeFlushes() {
+		return sizeFlushes.get();
+	}
+
+	@Override
+	public long getMutations() {
+		return mutations.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getMaxBatchBytes() {
+		return maxBatchBytes.get();
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+/**
+ * Cursor over index row ordered by time UUID (label index, purge index).
+ * <p>
+ * Index is read in pages. Each page continues right after the last element
+ * of the previous page, so that boundary element is returned only once. Next
+ * page is prefetched in the background while current page is consumed,
+ * hence at most two pages are held in memory.
+ * 
+ * @param <T>
+ *            Type of index elements
+ */
+public abstract class IndexCursor<T> extends AbstractIterator<T>
+{
+	private final int pageSize;
+
+	private Iterator<T> page = Iterators.emptyIterator();
+	private Future<List<T>> nextPage;
+	private UUID token;
+	private boolean started = false;
+	private boolean exhausted = false;
+
+	/**
+	 * @param pageSize
+	 *            Number of index elements read at once
+	 */
+	public IndexCursor(final int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Read page of index elements.
+	 * 
+	 * @param start
+	 *            Time UUID of the first element (inclusive), or
+	 *            <code>null</code> to start from the beginning.
+	 * @param count
+	 *            Maximum number of elements to read
+	 * @return
+	 */
+	protected abstract List<T> readPage(UUID start, int count);
+
+	/**
+	 * Returns time UUID of the index element which is used as the
+	 * continuation token.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	protected abstract UUID getToken(T element);
+
+	@Override
+	protected T computeNext()
+	{
+		while (!page.hasNext())
+		{
+			if (exhausted) {
+				return endOfData();
+			}
+
+			List<T> elements;
+
+			if (!started) {
+				started = true;
+				elements = readPage(null, pageSize + 1);
+			} else {
+				elements = ParallelQueryExecutor.getResult(nextPage);
+				nextPage = null;
+			}
+
+			// less elements than requested means end of the index
+			exhausted = (elements.size() < pageSize + 1);
+
+			// skip continuation element, start is inclusive
+			if (token != null && !elements.isEmpty() && token.equals(getToken(elements.get(0)))) {
+				elements = elements.subList(1, elements.size());
+			}
+
+			if (!elements.isEmpty()) {
+				token = getToken(elements.get(elements.size() - 1));
+			}
+
+			if (!exhausted) {
+				prefetch();
+			}
+
+			page = elements.iterator();
+		}
+
+		return page.next();
+	}
+
+	/**
+	 * Cancel prefetching if cursor is not consumed until the end
+	 */
+	public void close()
+	{
+		exhausted = true;
+		page = Iterators.emptyIterator();
+
+		if (nextPage != null) {
+			nextPage.cancel(false);
+			nextPage = null;
+		}
+	}
+
+	private void prefetch()
+	{
+		final UUID start = token;
+
+		nextPage = ParallelQueryExecutor.submit(new Callable<List<T>>() {
+			@Override
+			public List<T> call() throws Exception {
+				return readPage(start, pageSize + 1);
+			}
+		});
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import me.prettyprint.cassandra.connection.ConcurrentHClientPool;
+import me.prettyprint.cassandra.connection.HOpTimer;
+import me.prettyprint.cassandra.connection.client.HClient;
+import me.prettyprint.cassandra.connection.factory.HClientFactory;
+import me.prettyprint.cassandra.service.CassandraClientMonitor;
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+/**
+ * Connection pool which keeps an exponentially weighted moving average of
+ * the time clients are borrowed for. The score decays while the host is not
+ * used, so that slow hosts are probed again after a while.
+ */
+public class LatencyScoredHClientPool extends ConcurrentHClientPool
+{
+	/** Weight of the most recent latency */
+	private final static double ALPHA = 0.2;
+
+	/** Time after which score decays by factor of e. In MILLISECONDS. */
+	private final static double DECAY_PERIOD = 10000.0;
+
+	private final HOpTimer opTimer;
+	private final String timerTag;
+	private final ConcurrentMap<HClient, Object> timers = new ConcurrentHashMap<HClient, Object>();
+
+	private double latency = 0;
+	private long updated = System.currentTimeMillis();
+
+	public LatencyScoredHClientPool(HClientFactory clientFactory,
+			CassandraHost host, CassandraClientMonitor monitor, HOpTimer opTimer)
+	{
+		super(clientFactory, host, monitor);
+		this.opTimer = opTimer;
+		this.timerTag = Speed4jOpTimer.getHostTag(host.getHost());
+	}
+
+	@Override
+	public HClient borrowClient() throws HectorException
+	{
+		HClient client = super.borrowClient();
+		client.startToUse();
+
+		if (opTimer != null) {
+			timers.put(client, opTimer.start(timerTag));
+		}
+
+		return client;
+	}
+
+	@Override
+	public void releaseClient(HClient client) throws HectorException
+	{
+		record(client.getSinceLastUsed());
+
+		if (opTimer != null) {
+			Object token = timers.remove(client);
+			if (token != null) {
+				opTimer.stop(token, timerTag, true);
+			}
+		}
+
+		super.releaseClient(client);
+	}
+
+	private synchronized void record(final long millis)
+	{
+		latency = ALPHA * millis + (1 - ALPHA) * getDecayedLatency();
+		updated = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns decayed latency score in milliseconds, lower is better
+	 * 
+	 * @return
+	 */
+	public synchronized double getScore() {
+		return getDecayedLatency();
+	}
+
+	private double getDecayedLatency() {
+		return latency * Math.exp(-(System.currentTimeMillis() - updated) / DECAY_PERIOD);
+	}
+}
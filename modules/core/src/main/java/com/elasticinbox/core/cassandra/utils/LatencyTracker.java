@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps latencies of the most recent operations and calculates percentiles
+ * over them. Percentile is recalculated periodically rather than on each
+ * request.
+ */
+public final class LatencyTracker
+{
+	/** Number of new samples after which percentile is recalculated */
+	private final static int RECALCULATE_INTERVAL = 100;
+
+	private final long[] samples;
+	private final double percentile;
+	private int next = 0;
+	private long count = 0;
+	private volatile long value = 0;
+
+	/**
+	 * @param size
+	 *            Number of most recent samples to keep
+	 * @param percentile
+	 *            Percentile to calculate, between 0 and 1
+	 */
+	public LatencyTracker(final int size, final double percentile)
+	{
+		this.samples = new long[size];
+		this.percentile = percentile;
+	}
+
+	public synchronized void record(final long latency)
+	{
+		samples[next] = latency;
+		next = (next + 1) % samples.length;
+		count++;
+
+		if (count % RECALCULATE_INTERVAL == 0) {
+			long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+			Arrays.sort(sorted);
+			value = sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+		}
+	}
+
+	/**
+	 * Returns latency percentile, or zero until enough samples are recorded.
+	 * 
+	 * @return
+	 */
+	public long getPercentile() {
+		return value;
+	}
+}
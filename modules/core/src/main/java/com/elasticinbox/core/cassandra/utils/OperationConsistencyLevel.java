@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.concurrent.Callable;
+
+import static com.elasticinbox.core.cassandra.CassandraDAOFactory.CF_BLOB;
+
+import me.prettyprint.cassandra.service.OperationType;
+import me.prettyprint.hector.api.ConsistencyLevelPolicy;
+import me.prettyprint.hector.api.HConsistencyLevel;
+
+/**
+ * Set Cassandra operations' consistency level depending on operation type and
+ * column family.
+ * <p>
+ * Blob blocks are never modified once written, therefore reads of blob blocks
+ * use ONE. All other operations, including metadata reads (labels and markers
+ * are modified in place), counters and index updates use QUORUM.
+ * <p>
+ * Since blocks are written with QUORUM, replica queried with ONE may not have
+ * block yet. Such reads should be repeated with {@link #withQuorumReads}.
+ */
+public final class OperationConsistencyLevel implements ConsistencyLevelPolicy
+{
+	private static final ThreadLocal<Boolean> quorumReads = new ThreadLocal<Boolean>();
+
+	@Override
+	public HConsistencyLevel get(OperationType op)
+	{
+		// column family is not known, e.g. batch mutation
+		return HConsistencyLevel.QUORUM;
+	}
+
+	@Override
+	public HConsistencyLevel get(OperationType op, String cfName)
+	{
+		if (op == OperationType.READ && CF_BLOB.equals(cfName)
+				&& quorumReads.get() == null) {
+			return HConsistencyLevel.ONE;
+		}
+
+		return HConsistencyLevel.QUORUM;
+	}
+
+	/**
+	 * Execute query in the calling thread with all reads at QUORUM.
+	 * 
+	 * @param query
+	 * @return
+	 * @throws Exception
+	 */
+	public static <T> T withQuorumReads(final Callable<T> query) throws Exception
+	{
+		quorumReads.set(Boolean.TRUE);
+		try {
+			return query.call();
+		} finally {
+			quorumReads.remove();
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes independent queries concurrently. Used where single request
+ * requires multiple queries which cannot be combined (e.g. slices of several
+ * messages within the same row), and for sub-batches of bulk writes.
+ * <p>
+ * When executor queue is full, query is executed by the calling thread.
+ * <p>
+ * Hedged execution submits a query again if it did not complete within the
+ * 95th percentile of recent query latencies, and uses the first result. With
+ * load balancing across hosts, the second query is likely served by another
+ * replica. The same applies to single queries executed speculatively.
+ */
+public final class ParallelQueryExecutor
+{
+	/** Maximum number of queries executed concurrently */
+	private static final int MAX_CONCURRENT_QUERIES = 32;
+
+	/** Maximum number of queued queries */
+	private static final int MAX_QUEUED_QUERIES = 1000;
+
+	/** Time after which idle threads are terminated. In SECONDS. */
+	private static final long KEEP_ALIVE_TIME = 60L;
+
+	/** Number of recent query latencies used to calculate hedging delay */
+	private static final int LATENCY_SAMPLES = 1000;
+
+	/** Latency percentile after which query is hedged */
+	private static final double HEDGE_PERCENTILE = 0.95;
+
+	private static final ListeningExecutorService executor = createExecutor();
+
+	private static final LatencyTracker latencies = 
+			new LatencyTracker(LATENCY_SAMPLES, HEDGE_PERCENTILE);
+
+	private static final AtomicLong hedgedQueries = new AtomicLong();
+
+	/**
+	 * Execute all queries and wait for results. Single query is executed by
+	 * the calling thread.
+	 * 
+	 * @param queries
+	 * @return Results in the same order as queries
+	 * @throws HectorException
+	 *             If any of the queries failed
+	 */
+	public static <T> List<T> invokeAll(final List<Callable<T>> queries)
+	{
+		try {
+			if (queries.size() == 1)
+			{
+				List<T> result = new ArrayList<T>(1);
+				result.add(queries.get(0).call());
+				return result;
+			}
+
+			List<ListenableFuture<T>> futures = 
+					new ArrayList<ListenableFuture<T>>(queries.size());
+
+			for (Callable<T> query : queries) {
+				futures.add(executor.submit(RoutingKey.wrap(query)));
+			}
+
+			return Futures.allAsList(futures).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException("Interrupted while waiting for query results");
+		} catch (ExecutionException e) {
+			throw toHectorException(e.getCause());
+		} catch (Exception e) {
+			throw toHectorException(e);
+		}
+	}
+
+	/**
+	 * Execute all queries and wait for results. If hedging is enabled,
+	 * queries which take longer than the hedging delay are submitted again.
+	 * 
+	 * @param queries
+	 * @param hedge
+	 * @return Results in the same order as queries
+	 * @throws HectorException
+	 *             If any of the queries failed
+	 */
+	public static <T> List<T> invokeAll(final List<Callable<T>> queries, final boolean hedge)
+	{
+		if (!hedge) {
+			return invokeAll(queries);
+		}
+
+		long delay = latencies.getPercentile();
+		long started = System.currentTimeMillis();
+
+		List<ListenableFuture<T>> futures = 
+				new ArrayList<ListenableFuture<T>>(queries.size());
+
+		for (Callable<T> query : queries) {
+			futures.add(executor.submit(timed(query)));
+		}
+
+		List<T> result = new ArrayList<T>(queries.size());
+
+		for (int i = 0; i < futures.size(); i++)
+		{
+			ListenableFuture<T> future = futures.get(i);
+
+			if (delay > 0)
+			{
+				long remaining = delay - (System.currentTimeMillis() - started);
+
+				try {
+					result.add(future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS));
+					continue;
+				} catch (TimeoutException e) {
+					hedgedQueries.incrementAndGet();
+					future = getFirst(future, executor.submit(timed(queries.get(i))));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new HectorException("Interrupted while waiting for query results");
+				} catch (ExecutionException e) {
+					throw toHectorException(e.getCause());
+				}
+			}
+
+			result.add(getResult(future));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Execute single query and wait for result. If query does not complete
+	 * within the given delay, it is submitted again and the first result is
+	 * used.
+	 * 
+	 * @param query
+	 * @param delay
+	 *            Speculative retry delay in MILLISECONDS. Zero executes query
+	 *            by the calling thread without retry.
+	 * @return
+	 * @throws HectorException
+	 *             If both queries failed
+	 */
+	public static <T> T invokeSpeculative(final Callable<T> query, final long delay)
+	{
+		if (delay <= 0) {
+			return invokeAll(Collections.singletonList(query)).get(0);
+		}
+
+		ListenableFuture<T> future = executor.submit(timed(query));
+
+		try {
+			return future.get(delay, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			hedgedQueries.incrementAndGet();
+			future = getFirst(future, executor.submit(timed(query)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException("Interrupted while waiting for query results");
+		} catch (ExecutionException e) {
+			throw toHectorException(e.getCause());
+		}
+
+		return getResult(future);
+	}
+
+	/**
+	 * Returns number of queries submitted again since start
+	 * 
+	 * @return
+	 */
+	public static long getHedgedQueries() {
+		return hedgedQueries.get();
+	}
+
+	/**
+	 * Submit query for background execution. Query is executed by the
+	 * calling thread if executor queue is full.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	public static <T> ListenableFuture<T> submit(final Callable<T> query)
+	{
+		return executor.submit(RoutingKey.wrap(query));
+	}
+
+	/**
+	 * Wait for the result of the submitted query
+	 * 
+	 * @param future
+	 * @return
+	 * @throws HectorException
+	 *             If query failed
+	 */
+	public static <T> T getResult(final Future<T> future)
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException("Interrupted while waiting for query results");
+		} catch (ExecutionException e) {
+			throw toHectorException(e.getCause());
+		}
+	}
+
+	/**
+	 * Wrap query to record its latency
+	 */
+	private static <T> Callable<T> timed(final Callable<T> query)
+	{
+		return RoutingKey.wrap(new Callable<T>() {
+			@Override
+			public T call() throws Exception
+			{
+				long start = System.currentTimeMillis();
+				T result = query.call();
+				latencies.record(System.currentTimeMillis() - start);
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Returns future completed by the first successful of the given futures,
+	 * or failed if both failed.
+	 */
+	private static <T> ListenableFuture<T> getFirst(
+			final ListenableFuture<T> first, final ListenableFuture<T> second)
+	{
+		final SettableFuture<T> result = SettableFuture.create();
+		final AtomicInteger failures = new AtomicInteger();
+
+		FutureCallback<T> callback = new FutureCallback<T>() {
+			@Override
+			public void onSuccess(T value) {
+				result.set(value);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (failures.incrementAndGet() == 2) {
+					result.setException(t);
+				}
+			}
+		};
+
+		Futures.addCallback(first, callback);
+		Futures.addCallback(second, callback);
+
+		return result;
+	}
+
+	private static HectorException toHectorException(final Throwable t)
+	{
+		if (t instanceof HectorException) {
+			return (HectorException) t;
+		}
+		return new HectorException(t);
+	}
+
+	private static ListeningExecutorService createExecutor()
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				MAX_CONCURRENT_QUERIES, MAX_CONCURRENT_QUERIES,
+				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_QUEUED_QUERIES),
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("cassandra-query-%d").build(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+
+		return MoreExecutors.listeningDecorator(executor);
+	}
+}
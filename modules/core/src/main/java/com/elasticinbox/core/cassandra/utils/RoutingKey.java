@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Row key of the mailbox processed by the current thread. Used by
+ * {@link TokenAwareBalancingPolicy} to route queries to replicas of the
+ * mailbox rows. Routing key is only a hint, stale key affects performance
+ * but not correctness.
+ */
+public final class RoutingKey
+{
+	private final static ThreadLocal<String> key = new ThreadLocal<String>();
+
+	public static void set(final String rowKey) {
+		key.set(rowKey);
+	}
+
+	public static String get() {
+		return key.get();
+	}
+
+	/**
+	 * Wrap task to run with the routing key of the calling thread
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public static <T> Callable<T> wrap(final Callable<T> task)
+	{
+		final String rowKey = get();
+
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception
+			{
+				String previous = get();
+				set(rowKey);
+				try {
+					return task.call();
+				} finally {
+					set(previous);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Coalesces identical concurrent queries. Query with the key which is already
+ * being executed is not executed again, caller waits for the result of the
+ * query in flight instead.
+ * <p>
+ * Result is shared by all callers, hence each caller receives its own copy
+ * if copy function is given. Otherwise result should not be modified.
+ * <p>
+ * Keys should include everything which affects the result, including version
+ * of the data if query should not be shared across changes.
+ * 
+ * @param <K> Query key
+ * @param <V> Query result
+ */
+public final class SingleFlight<K, V> implements SingleFlightMBean
+{
+	private final static Logger logger = 
+			LoggerFactory.getLogger(SingleFlight.class);
+
+	private final ConcurrentMap<K, SettableFuture<V>> flights = 
+			new ConcurrentHashMap<K, SettableFuture<V>>();
+
+	private final Function<V, V> copier;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong sharedCalls = new AtomicLong();
+
+	/**
+	 * Create query group and register its statistics in JMX
+	 * 
+	 * @param name
+	 *            Name of the query group
+	 * @param copier
+	 *            Function returning copy of the result, or <code>null</code>
+	 *            if result is not modified by callers
+	 */
+	public SingleFlight(final String name, final Function<V, V> copier)
+	{
+		this.copier = copier;
+
+		String mbeanName = "com.elasticinbox:type=SingleFlight,name=" + name;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					this, new ObjectName(mbeanName));
+		} catch (Exception e) {
+			logger.warn("Unable to register {} MBean: {}", mbeanName, e.getMessage());
+		}
+	}
+
+	/**
+	 * Execute query by the calling thread, or wait for the result of the
+	 * query with the same key which is already executed
+	 * 
+	 * @param key
+	 * @param query
+	 * @return
+	 * @throws HectorException
+	 *             If query failed
+	 */
+	public V execute(final K key, final Callable<V> query)
+	{
+		calls.incrementAndGet();
+
+		SettableFuture<V> flight = SettableFuture.create();
+		SettableFuture<V> existing = flights.putIfAbsent(key, flight);
+
+		if (existing != null) {
+			sharedCalls.incrementAndGet();
+			return copy(ParallelQueryExecutor.getResult(existing));
+		}
+
+		try {
+			V result = query.call();
+			flight.set(result);
+			return copy(result);
+		} catch (Throwable t) {
+			// complete flight on any failure, including errors, otherwise
+			// callers waiting for it would block forever
+			flight.setException(t);
+			Throwables.propagateIfPossible(t);
+			throw new HectorException(t);
+		} finally {
+			flights.remove(key, flight);
+		}
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public long getSharedCalls() {
+		return sharedCalls.get();
+	}
+
+	@Override
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	private V copy(final V result) {
+		return (copier == null || result == null) ? result : copier.apply(result);
+	}
+}
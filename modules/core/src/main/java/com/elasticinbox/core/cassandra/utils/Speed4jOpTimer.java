@@ -53,11 +53,35 @@ public final class Speed4jOpTimer implements HOpTimer
 		pLog.setPeriod(Configurator.getPerformanceCountersInterval());
 		pLog.setMode(PeriodicalLog.Mode.JMX_ONLY);
 		pLog.setMaxQueueSize(250000);
-		pLog.setJmx("READ.success,WRITE.success,READ.fail,WRITE.fail,META_READ.success,META_READ.fail");
+		pLog.setJmx(getJmxAttributes());
 		pLog.setSlf4jLogname("com.elasticinbox.speed4j.cassandra.HectorPeriodicalLogger");
 		stopWatchFactory = StopWatchFactory.getInstance(pLog);
 	}
 
+	/**
+	 * Returns timer tag for the connections to the given Cassandra host
+	 * 
+	 * @param host
+	 * @return
+	 */
+	public static String getHostTag(final String host) {
+		return "HOST_" + host.replace('.', '_');
+	}
+
+	private static String getJmxAttributes()
+	{
+		StringBuilder attributes = new StringBuilder(
+				"READ.success,WRITE.success,READ.fail,WRITE.fail,META_READ.success,META_READ.fail");
+
+		// per-host timers, recorded with latency aware load balancing
+		for (String host : Configurator.getCassandraHosts()) {
+			String hostname = host.contains(":") ? host.substring(0, host.indexOf(':')) : host;
+			attributes.append(',').append(getHostTag(hostname)).append(".success");
+		}
+
+		return attributes.toString();
+	}
+
 	@Override
 	public Object start(String tagName) {
 		return stopWatchFactory.getStopWatch(tagName);
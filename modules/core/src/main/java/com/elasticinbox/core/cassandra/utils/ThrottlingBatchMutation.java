@@ -28,12 +28,14 @@
 
 package com.elasticinbox.core.cassandra.utils;
 
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.prettyprint.hector.api.Serializer;
 
@@ -51,6 +53,10 @@ public final class ThrottlingBatchMutation<K>
 	private final Serializer<K> keySerializer;
 	private final int batchSize;
 	private AtomicInteger pendingMutationsCount = new AtomicInteger(0);
+	private AtomicLong estimatedSize = new AtomicLong(0);
+
+	/** Estimated per-column overhead of timestamp, TTL and Thrift framing */
+	private final static int COLUMN_OVERHEAD = 16;
 
 	public ThrottlingBatchMutation(Serializer<K> serializer, int batchSize)
 	{
@@ -60,11 +66,14 @@ public final class ThrottlingBatchMutation<K>
 	}
 
 	private ThrottlingBatchMutation(Serializer<K> serializer,
-			Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap, int batchSize)
+			Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap, int batchSize,
+			int mutationsCount, long estimatedSize)
 	{
 		this.keySerializer = serializer;
 		this.mutationMap = mutationMap;
 		this.batchSize = batchSize;
+		this.pendingMutationsCount.set(mutationsCount);
+		this.estimatedSize.set(estimatedSize);
 	}
 
 	/**
@@ -134,39 +143,151 @@ public final class ThrottlingBatchMutation<K>
 	private void addMutation(K key, List<String> columnFamilies, Mutation mutation)
 	{
 		Map<String, List<Mutation>> innerMutationMap = getInnerMutationMap(key);
+		long mutationSize = estimateSize(mutation);
+
 		for (String columnFamily : columnFamilies) {
 			List<Mutation> mutList = innerMutationMap.get(columnFamily);
 			if (mutList == null) {
 				mutList = new ArrayList<Mutation>(batchSize);
 				innerMutationMap.put(columnFamily, mutList);
+				estimatedSize.addAndGet(columnFamily.length());
 			}
 			mutList.add(mutation);
 			pendingMutationsCount.incrementAndGet();
+			estimatedSize.addAndGet(mutationSize);
 		}
 	}
 
 	private Map<String, List<Mutation>> getInnerMutationMap(K key)
 	{
-		Map<String, List<Mutation>> innerMutationMap = mutationMap
-				.get(keySerializer.toByteBuffer(key));
+		ByteBuffer rowKey = keySerializer.toByteBuffer(key);
+		Map<String, List<Mutation>> innerMutationMap = mutationMap.get(rowKey);
 		if (innerMutationMap == null) {
 			innerMutationMap = new HashMap<String, List<Mutation>>();
-			mutationMap.put(keySerializer.toByteBuffer(key), innerMutationMap);
+			mutationMap.put(rowKey, innerMutationMap);
+			estimatedSize.addAndGet(rowKey.remaining());
 		}
 		return innerMutationMap;
 	}
 
+	/**
+	 * Estimate serialized size of the mutation in bytes. Only names and values
+	 * are counted exactly, fixed size fields are approximated.
+	 * 
+	 * @param mutation
+	 * @return
+	 */
+	static long estimateSize(Mutation mutation)
+	{
+		long size = 0;
+
+		if (mutation.isSetColumn_or_supercolumn())
+		{
+			ColumnOrSuperColumn cosc = mutation.getColumn_or_supercolumn();
+
+			if (cosc.isSetColumn()) {
+				size += estimateSize(cosc.getColumn());
+			} else if (cosc.isSetSuper_column()) {
+				size += remaining(cosc.getSuper_column().bufferForName());
+				for (Column column : cosc.getSuper_column().getColumns()) {
+					size += estimateSize(column);
+				}
+			} else if (cosc.isSetCounter_column()) {
+				size += remaining(cosc.getCounter_column().bufferForName()) + COLUMN_OVERHEAD;
+			} else if (cosc.isSetCounter_super_column()) {
+				size += remaining(cosc.getCounter_super_column().bufferForName());
+				for (CounterColumn column : cosc.getCounter_super_column().getColumns()) {
+					size += remaining(column.bufferForName()) + COLUMN_OVERHEAD;
+				}
+			}
+		}
+		else if (mutation.isSetDeletion())
+		{
+			Deletion deletion = mutation.getDeletion();
+			size += remaining(deletion.bufferForSuper_column()) + COLUMN_OVERHEAD;
+
+			if (deletion.isSetPredicate() && deletion.getPredicate().isSetColumn_names()) {
+				for (ByteBuffer name : deletion.getPredicate().getColumn_names()) {
+					size += remaining(name);
+				}
+			}
+		}
+
+		return size;
+	}
+
+	private static long estimateSize(Column column) {
+		return remaining(column.bufferForName()) + remaining(column.bufferForValue())
+				+ COLUMN_OVERHEAD;
+	}
+
+	private static int remaining(ByteBuffer buffer) {
+		return (buffer == null) ? 0 : buffer.remaining();
+	}
+
 	public Map<ByteBuffer, Map<String, List<Mutation>>> getMutationMap() {
 		return mutationMap;
 	}
 
+	/**
+	 * Split mutations into sub-batches by row key. Rows are grouped by the
+	 * token range of their key, so that rows stored on the same replicas are
+	 * likely to be written by the same sub-batch.
+	 * 
+	 * @param ranges
+	 *            Maximum number of sub-batches
+	 * @return Non-empty mutation maps
+	 */
+	public List<Map<ByteBuffer, Map<String, List<Mutation>>>> split(final int ranges)
+	{
+		List<Map<ByteBuffer, Map<String, List<Mutation>>>> parts =
+				new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>(ranges);
+
+		for (int i = 0; i < ranges; i++) {
+			parts.add(new HashMap<ByteBuffer, Map<String, List<Mutation>>>());
+		}
+
+		for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : mutationMap.entrySet()) {
+			parts.get(getTokenRange(row.getKey(), ranges)).put(row.getKey(), row.getValue());
+		}
+
+		List<Map<ByteBuffer, Map<String, List<Mutation>>>> result =
+				new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>(ranges);
+
+		for (Map<ByteBuffer, Map<String, List<Mutation>>> part : parts) {
+			if (!part.isEmpty()) {
+				result.add(part);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns which of the given number of equal token ranges the key belongs
+	 * to. Token is calculated as by RandomPartitioner (MD5 of the key).
+	 * 
+	 * @param key
+	 * @param ranges
+	 * @return
+	 */
+	static int getTokenRange(final ByteBuffer key, final int ranges)
+	{
+		BigInteger token = TokenRing.getToken(key);
+
+		// token is within [0, 2^127]
+		int range = token.multiply(BigInteger.valueOf(ranges)).shiftRight(127).intValue();
+		return Math.min(range, ranges - 1);
+	}
+
 	/**
 	 * Makes a shallow copy of the mutation object.
 	 * 
 	 * @return
 	 */
 	public ThrottlingBatchMutation<K> makeCopy() {
-		return new ThrottlingBatchMutation<K>(keySerializer, mutationMap, batchSize);
+		return new ThrottlingBatchMutation<K>(keySerializer, mutationMap, batchSize,
+				pendingMutationsCount.get(), estimatedSize.get());
 	}
 
 	/**
@@ -196,4 +317,13 @@ public final class ThrottlingBatchMutation<K>
 		return pendingMutationsCount.get();
 	}
 
+	/**
+	 * Return estimated serialized size of all mutations in bytes
+	 * 
+	 * @return
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize.get();
+	}
+
 }
\ No newline at end of file
@@ -28,12 +28,19 @@
 
 package com.elasticinbox.core.cassandra.utils;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
 import me.prettyprint.cassandra.model.ExecutionResult;
 import me.prettyprint.cassandra.service.CassandraHost;
 import me.prettyprint.hector.api.mutation.MutationResult;
 
 public class ThrottlingMutationResult extends ExecutionResult<Void> implements MutationResult
 {
+	  private int subBatches = 1;
+	  private List<ByteBuffer> failedKeys = Collections.emptyList();
+
 	  ThrottlingMutationResult(boolean success, long execTime, CassandraHost cassandraHost) {
 	    super(null, execTime, cassandraHost);
 	  }
@@ -42,6 +49,32 @@ public class ThrottlingMutationResult extends ExecutionResult<Void> implements M
 	    super(null, res.getExecutionTimeNano(), res.getHostUsed());
 	  }
 
+	  ThrottlingMutationResult(long execTime, CassandraHost cassandraHost,
+	      int subBatches, List<ByteBuffer> failedKeys) {
+	    super(null, execTime, cassandraHost);
+	    this.subBatches = subBatches;
+	    this.failedKeys = failedKeys;
+	  }
+
+	  /**
+	   * Number of sub-batches the mutations were executed in
+	   */
+	  public int getSubBatches() {
+	    return subBatches;
+	  }
+
+	  /**
+	   * Row keys of the sub-batches which failed. Mutations of other rows
+	   * were written.
+	   */
+	  public List<ByteBuffer> getFailedKeys() {
+	    return failedKeys;
+	  }
+
+	  public boolean isPartial() {
+	    return !failedKeys.isEmpty();
+	  }
+
 	  @Override
 	  public String toString() {
 	    return formatMessage("ThrottlingMutationResult", "n/a");
@@ -28,10 +28,17 @@
 
 package com.elasticinbox.core.cassandra.utils;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.thrift.Cassandra;
 import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +52,7 @@ import me.prettyprint.cassandra.model.KeyspaceOperationCallback;
 import me.prettyprint.cassandra.model.thrift.ThriftConverter;
 import me.prettyprint.cassandra.model.thrift.ThriftFactory;
 import me.prettyprint.cassandra.serializers.TypeInferringSerializer;
+import me.prettyprint.cassandra.service.CassandraHost;
 import me.prettyprint.cassandra.service.KeyspaceService;
 import me.prettyprint.cassandra.service.Operation;
 import me.prettyprint.cassandra.service.OperationType;
@@ -54,6 +62,8 @@ import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.HCounterSuperColumn;
 import me.prettyprint.hector.api.beans.HSuperColumn;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
 import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.mutation.MutationResult;
 import me.prettyprint.hector.api.mutation.Mutator;
@@ -65,10 +75,14 @@ public final class ThrottlingMutator<K> implements Mutator<K>
 
 	private final static int DEFAULT_BATCH_SIZE = 50;
 
+	/** Maximum number of sub-batches executed in parallel */
+	private final static int MAX_SUB_BATCHES = 4;
+
 	protected final Serializer<K> keySerializer;
 	private final ExecutingKeyspace keyspace;
 	private final int batchSize;
 	private final Long batchInterval;
+	private final AdaptiveThrottle throttle;
 	private ThrottlingBatchMutation<K> pendingMutations;
 
 	/**
@@ -90,6 +104,25 @@ public final class ThrottlingMutator<K> implements Mutator<K>
 		this.keySerializer = keySerializer;
 		this.batchInterval = batchInterval;
 		this.batchSize = batchSize;
+		this.throttle = null;
+	}
+
+	/**
+	 * Throttling mutator executes operations at the rate and batch size
+	 * adapted by the given throttle to the observed write latency. Batches
+	 * spanning multiple rows are split by token range of the row keys and
+	 * executed in parallel.
+	 * 
+	 * @param keyspace
+	 * @param keySerializer
+	 * @param throttle
+	 */
+	public ThrottlingMutator(Keyspace keyspace, Serializer<K> keySerializer, AdaptiveThrottle throttle) {
+		this.keyspace = (ExecutingKeyspace) keyspace;
+		this.keySerializer = keySerializer;
+		this.batchInterval = null;
+		this.batchSize = throttle.getBatchSize();
+		this.throttle = throttle;
 	}
 
 	public ThrottlingMutator(Keyspace keyspace, Serializer<K> keySerializer, int batchSize) {
@@ -432,20 +465,92 @@ public final class ThrottlingMutator<K> implements Mutator<K>
 		final ThrottlingBatchMutation<K> mutations = pendingMutations.makeCopy();
 		pendingMutations = null;
 
+		return executeBatch(mutations.getMutationMap());
+	}
+
+	private ThrottlingMutationResult executeBatch(
+			final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap)
+	{
 		return new ThrottlingMutationResult(keyspace.doExecuteOperation(new Operation<Void>(OperationType.WRITE)
 				{
 					@Override
 					public Void execute(Cassandra.Client cassandra) throws Exception {
-						cassandra.batch_mutate(mutations.getMutationMap(),
+						cassandra.batch_mutate(mutationMap,
 								ThriftConverter.consistencyLevel(consistencyLevelPolicy.get(operationType)));
 						return null;
 					}
 				}));
 	}
+
+	/**
+	 * Execute mutations as parallel sub-batches split by row key. Execution
+	 * time of the result is the time of the slowest sub-batch.
+	 * 
+	 * @param mutations
+	 * @return
+	 * @throws ThrottlingMutationException
+	 *             If any of the sub-batches failed
+	 */
+	private MutationResult executeParallel(final ThrottlingBatchMutation<K> mutations)
+	{
+		final List<Map<ByteBuffer, Map<String, List<Mutation>>>> subBatches =
+				mutations.split(MAX_SUB_BATCHES);
+
+		if (subBatches.size() == 1) {
+			return executeBatch(subBatches.get(0));
+		}
+
+		List<Future<ThrottlingMutationResult>> futures =
+				new ArrayList<Future<ThrottlingMutationResult>>(subBatches.size());
+
+		for (final Map<ByteBuffer, Map<String, List<Mutation>>> subBatch : subBatches)
+		{
+			futures.add(ParallelQueryExecutor.submit(new Callable<ThrottlingMutationResult>() {
+				@Override
+				public ThrottlingMutationResult call() {
+					return executeBatch(subBatch);
+				}
+			}));
+		}
+
+		long execTime = 0;
+		CassandraHost host = null;
+		List<ByteBuffer> failedKeys = new ArrayList<ByteBuffer>();
+		HectorException failure = null;
+		int failedBatches = 0;
+
+		for (int i = 0; i < futures.size(); i++)
+		{
+			try {
+				ThrottlingMutationResult r = ParallelQueryExecutor.getResult(futures.get(i));
+				if (r.getExecutionTimeNano() >= execTime) {
+					execTime = r.getExecutionTimeNano();
+					host = r.getHostUsed();
+				}
+			} catch (HectorException e) {
+				failure = e;
+				failedBatches++;
+				failedKeys.addAll(subBatches.get(i).keySet());
+			}
+		}
+
+		ThrottlingMutationResult result = new ThrottlingMutationResult(
+				execTime, host, subBatches.size(), failedKeys);
+
+		if (failure != null) {
+			logger.warn("{} of {} sub-batches failed, {} rows not written: {}",
+					new Object[] { failedBatches, subBatches.size(), failedKeys.size(), failure.getMessage() });
+			throw new ThrottlingMutationException(failedBatches + " of "
+					+ subBatches.size() + " sub-batches failed", result, failure);
+		}
+
+		return result;
+	}
 	
 	/**
 	 * Batch executes all mutations scheduled to this Mutator instance only when
-	 * maximum batch size is exceeded. It will also introduce a delay if specified.
+	 * maximum batch size or estimated size in bytes is exceeded. It will also
+	 * introduce a delay if specified.
 	 * May throw a HectorException which is a RuntimeException.
 	 * 
 	 * @return A MutationResult holds the status. Success with 0ms execution
@@ -453,13 +558,31 @@ public final class ThrottlingMutator<K> implements Mutator<K>
 	 */
 	public MutationResult executeIfFull()
 	{
-		if (pendingMutations == null || pendingMutations.getMutationsCount() < batchSize)
+		int maxBatchSize = (throttle != null) ? throttle.getBatchSize() : batchSize;
+
+		if (pendingMutations == null)
+		{
+			return new ThrottlingMutationResult(true, 0, null);
+		}
+
+		int count = pendingMutations.getMutationsCount();
+		long bytes = pendingMutations.getEstimatedSize();
+		boolean bySize = (bytes >= BatchConstants.BATCH_WRITE_BYTES);
+
+		if (count < maxBatchSize && !bySize)
 		{
 			return new ThrottlingMutationResult(true, 0, null);
 		}
 		
-		// execute pending mutations if reached max batch size
-		logger.debug("Batch reached max ({}), flushing.", batchSize);
+		// execute pending mutations if reached max batch size or bytes
+		logger.debug("Batch reached max {} ({} mutations, ~{} bytes), flushing.",
+				new Object[] { bySize ? "size" : "count", count, bytes });
+		BatchMetrics.getInstance().recordFlush(bySize, count, bytes);
+
+		if (throttle != null) {
+			return executeThrottled();
+		}
+
 		MutationResult result = execute();
 		pendingMutations = new ThrottlingBatchMutation<K>(keySerializer, batchSize);
 
@@ -483,6 +606,34 @@ public final class ThrottlingMutator<K> implements Mutator<K>
 		return result;
 	}
 
+	/**
+	 * Execute pending mutations at the rate of adaptive throttle and report
+	 * observed latency or failure back to it. Full batches spanning multiple
+	 * rows are split into parallel sub-batches.
+	 * 
+	 * @return
+	 */
+	private MutationResult executeThrottled()
+	{
+		throttle.acquire(pendingMutations.getMutationsCount());
+
+		final ThrottlingBatchMutation<K> mutations = pendingMutations.makeCopy();
+		pendingMutations = null;
+
+		try {
+			MutationResult result = (mutations.getSize() > 1) ? 
+					executeParallel(mutations) : executeBatch(mutations.getMutationMap());
+			throttle.onSuccess(result.getExecutionTimeMicro());
+			return result;
+		} catch (HectorException e) {
+			Throwable cause = (e instanceof ThrottlingMutationException) ? e.getCause() : e;
+			if (cause instanceof HTimedOutException || cause instanceof HUnavailableException) {
+				throttle.onFailure();
+			}
+			throw e;
+		}
+	}
+
 	/**
 	 * Discards all pending mutations.
 	 */
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import me.prettyprint.cassandra.connection.HClientPool;
+import me.prettyprint.cassandra.connection.HOpTimer;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.factory.HClientFactory;
+import me.prettyprint.cassandra.service.CassandraClientMonitor;
+import me.prettyprint.cassandra.service.CassandraHost;
+
+/**
+ * Load balancing policy which prefers replicas of the current
+ * {@link RoutingKey} and, among them, hosts with lower latency score.
+ * <p>
+ * Two random candidates are compared by their exponentially decayed latency
+ * score and the faster one is used, so load is spread across replicas
+ * instead of always going to the fastest host. When the routing key is not
+ * set or ring is unknown, all hosts are candidates.
+ * 
+ * @see TokenRing
+ * @see LatencyScoredHClientPool
+ */
+public final class TokenAwareBalancingPolicy implements LoadBalancingPolicy
+{
+	private static final long serialVersionUID = 4532871627154719283L;
+
+	private final static Random random = new Random();
+
+	private final transient HOpTimer opTimer;
+
+	/**
+	 * @param opTimer
+	 *            Timer for per-host latencies, or <code>null</code>
+	 */
+	public TokenAwareBalancingPolicy(HOpTimer opTimer) {
+		this.opTimer = opTimer;
+	}
+
+	@Override
+	public HClientPool getPool(Collection<HClientPool> pools, Set<CassandraHost> excludeHosts)
+	{
+		List<String> replicas = TokenRing.getReplicas(RoutingKey.get());
+		List<HClientPool> candidates = new ArrayList<HClientPool>(pools.size());
+		List<HClientPool> available = new ArrayList<HClientPool>(pools.size());
+
+		for (HClientPool pool : pools)
+		{
+			if (excludeHosts != null && excludeHosts.contains(pool.getCassandraHost())) {
+				continue;
+			}
+
+			available.add(pool);
+
+			if (replicas.contains(pool.getCassandraHost().getIp())) {
+				candidates.add(pool);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			candidates = available.isEmpty() ? new ArrayList<HClientPool>(pools) : available;
+		}
+
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+
+		// power of two choices
+		int first = random.nextInt(candidates.size());
+		int second = random.nextInt(candidates.size() - 1);
+		if (second >= first) {
+			second++;
+		}
+
+		HClientPool a = candidates.get(first);
+		HClientPool b = candidates.get(second);
+
+		return (getScore(a) <= getScore(b)) ? a : b;
+	}
+
+	@Override
+	public HClientPool createConnection(HClientFactory clientFactory,
+			CassandraHost host, CassandraClientMonitor monitor)
+	{
+		return new LatencyScoredHClientPool(clientFactory, host, monitor, opTimer);
+	}
+
+	private static double getScore(final HClientPool pool)
+	{
+		if (pool instanceof LatencyScoredHClientPool) {
+			return ((LatencyScoredHClientPool) pool).getScore();
+		}
+		return pool.getNumActive();
+	}
+}
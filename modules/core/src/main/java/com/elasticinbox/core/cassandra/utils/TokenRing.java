@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.cassandra.utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.cassandra.service.OperationType;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.TokenRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Token ring of the keyspace, periodically refreshed with describe_ring.
+ * Token of a row key is calculated as by RandomPartitioner (MD5 of the key).
+ * Replicas are not resolved for other partitioners.
+ */
+public final class TokenRing
+{
+	private final static String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+
+	/** Interval at which ring is refreshed. In MILLISECONDS. */
+	private final static long REFRESH_INTERVAL = 300000L;
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(TokenRing.class);
+
+	/** Replica endpoints by the end token of the range */
+	private static volatile TreeMap<BigInteger, List<String>> ring =
+			new TreeMap<BigInteger, List<String>>();
+
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * Load ring and schedule periodic refresh
+	 * 
+	 * @param keyspace
+	 * @param keyspaceName
+	 */
+	public static synchronized void start(final Keyspace keyspace, final String keyspaceName)
+	{
+		if (scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("token-ring-%d").build());
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh(keyspace, keyspaceName);
+			}
+		}, 0, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	static void refresh(final Keyspace keyspace, final String keyspaceName)
+	{
+		try {
+			TreeMap<BigInteger, List<String>> newRing = ((ExecutingKeyspace) keyspace).doExecuteOperation(
+					new Operation<TreeMap<BigInteger, List<String>>>(OperationType.META_READ)
+					{
+						@Override
+						public TreeMap<BigInteger, List<String>> execute(Cassandra.Client cassandra) throws Exception
+						{
+							TreeMap<BigInteger, List<String>> result = new TreeMap<BigInteger, List<String>>();
+
+							if (!RANDOM_PARTITIONER.equals(cassandra.describe_partitioner())) {
+								return result;
+							}
+
+							for (TokenRange range : cassandra.describe_ring(keyspaceName)) {
+								result.put(new BigInteger(range.getEnd_token()), range.getEndpoints());
+							}
+
+							return result;
+						}
+					}).get();
+
+			if (newRing.isEmpty()) {
+				logger.info("Token aware routing requires RandomPartitioner, routing by latency only");
+			} else {
+				logger.debug("Refreshed token ring with {} ranges", newRing.size());
+			}
+
+			ring = newRing;
+		} catch (HectorException e) {
+			logger.warn("Unable to refresh token ring: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns addresses of the replicas owning the given row key, or empty
+	 * list if ring is unknown.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static List<String> getReplicas(final String key)
+	{
+		TreeMap<BigInteger, List<String>> current = ring;
+
+		if (key == null || current.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		// range is (start, end], first range wraps around
+		BigInteger token = getToken(StringSerializer.get().toByteBuffer(key));
+		Map.Entry<BigInteger, List<String>> entry = current.ceilingEntry(token);
+
+		return (entry != null) ? entry.getValue() : current.firstEntry().getValue();
+	}
+
+	/**
+	 * Calculate RandomPartitioner token of the row key
+	 * 
+	 * @param key
+	 * @return Token within [0, 2^127]
+	 */
+	public static BigInteger getToken(final ByteBuffer key)
+	{
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported", e);
+		}
+
+		md5.update(key.duplicate());
+		return new BigInteger(md5.digest()).abs();
+	}
+}
@@ -30,6 +30,7 @@ package com.elasticinbox.core.model;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,6 +47,9 @@ public final class LabelMap
 {
 	Map<Integer, Label> labels;
 
+	/** Label IDs indexed by case-folded label name */
+	private final Map<String, Integer> names;
+
 	private final static String JSON_NAME = "name";
 	private final static String JSON_SIZE = "size";
 	private final static String JSON_ATTRIBUTES = "attributes";
@@ -54,15 +58,60 @@ public final class LabelMap
 
 	public LabelMap() {
 		labels = new HashMap<Integer, Label>();
+		names = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Create deep copy of the given labels
+	 * 
+	 * @param labelMap
+	 */
+	public LabelMap(final LabelMap labelMap)
+	{
+		labels = new HashMap<Integer, Label>(labelMap.labels.size());
+		names = new HashMap<String, Integer>(labelMap.names);
+
+		for (Label l : labelMap.labels.values())
+		{
+			Label label = new Label(l.getId(), l.getName());
+
+			if (l.getAttributes() != null) {
+				label.setAttributes(new HashMap<String, String>(l.getAttributes()));
+			}
+
+			if (l.getCounters() != null) {
+				label.setCounters(new LabelCounters(l.getCounters()));
+			}
+
+			labels.put(label.getId(), label);
+		}
 	}
 
 	public Label get(Integer labelId) {
 		return labels.get(labelId);
 	}
 	
+	/**
+	 * Add or replace label. Label name should not be changed once label is
+	 * added, label should be put again instead.
+	 * 
+	 * @param label
+	 * @return
+	 */
 	public Label put(Label label)
 	{
-		return labels.put(label.getId(), label);
+		Label previous = labels.put(label.getId(), label);
+
+		if (previous != null && previous.getName() != null
+				&& label.getId().equals(names.get(foldCase(previous.getName())))) {
+			names.remove(foldCase(previous.getName()));
+		}
+
+		if (label.getName() != null) {
+			names.put(foldCase(label.getName()), label.getId());
+		}
+
+		return previous;
 	}
 	
 	public Set<Integer> getIds()
@@ -106,14 +155,7 @@ public final class LabelMap
 	 */
 	public boolean containsName(String labelName)
 	{
-		for (Label label : labels.values())
-		{
-			if (label.getName().equalsIgnoreCase(labelName)) {
-				return true;
-			}
-		}
-		
-		return false;
+		return names.containsKey(foldCase(labelName));
 	}
 
 	public Collection<Label> values() {
@@ -182,6 +224,10 @@ public final class LabelMap
 		return metadata;
 	}
 
+	private static String foldCase(final String name) {
+		return name.toUpperCase(Locale.ENGLISH).toLowerCase(Locale.ENGLISH);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.model;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Short summary of the message which is stored along with the message ID in
+ * label indexes. Allows to serve message listings without reading message
+ * metadata.
+ * 
+ * @see {@link Message}
+ */
+@JsonInclude(Include.NON_NULL)
+public final class MessageSummary
+{
+	private final long size;
+	private final Date date;
+	private final boolean seen;
+	private final boolean attachments;
+
+	public MessageSummary(final long size, final Date date, final boolean seen,
+			final boolean attachments)
+	{
+		this.size = size;
+		this.date = date;
+		this.seen = seen;
+		this.attachments = attachments;
+	}
+
+	/**
+	 * Build summary of the given message. Message should contain size, date,
+	 * parts and markers.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static MessageSummary fromMessage(final Message message)
+	{
+		return new MessageSummary(
+				message.getSize() == null ? 0L : message.getSize(),
+				message.getDate(),
+				message.getMarkers().contains(Marker.SEEN),
+				message.hasParts());
+	}
+
+	/**
+	 * Returns copy of this summary with the given seen flag
+	 * 
+	 * @param seen
+	 * @return
+	 */
+	public MessageSummary withSeen(final boolean seen)
+	{
+		return new MessageSummary(size, date, seen, attachments);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public boolean isSeen() {
+		return seen;
+	}
+
+	@JsonProperty("attachments")
+	public boolean hasAttachments() {
+		return attachments;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("MessageSummary{size=").append(size)
+				.append(", date=").append(date).append(", seen=").append(seen)
+				.append(", attachments=").append(attachments).append("}")
+				.toString();
+	}
+}
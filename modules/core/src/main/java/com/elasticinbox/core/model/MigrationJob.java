@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.model;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * State of the mailbox storage layout migration job. Job copies data to the
+ * new layout, switches reads to the new layout and, once all nodes see the
+ * switch, deletes data of the old layout.
+ */
+@JsonInclude(Include.NON_NULL)
+public final class MigrationJob
+{
+	public enum Type {
+		/** Message metadata, from super columns to composite columns */
+		METADATA,
+		/** Label indexes, from single rows to monthly buckets */
+		INDEXES;
+
+		@Override
+		public String toString() {
+			return this.name().toLowerCase();
+		}
+	}
+
+	public enum Status {
+		RUNNING, COMPLETED, FAILED;
+	}
+
+	private final UUID id;
+	private final Type type;
+	private final Date started;
+	private Status status = Status.RUNNING;
+	private long migrated = 0;
+	private Date switched;
+	private Date updated;
+	private String error;
+
+	public MigrationJob(final UUID id, final Type type, final Date started)
+	{
+		this.id = id;
+		this.type = type;
+		this.started = started;
+		this.updated = started;
+	}
+
+	/**
+	 * Copy constructor
+	 * 
+	 * @param job
+	 */
+	public MigrationJob(final MigrationJob job)
+	{
+		this.id = job.id;
+		this.type = job.type;
+		this.started = job.started;
+		this.status = job.status;
+		this.migrated = job.migrated;
+		this.switched = job.switched;
+		this.updated = job.updated;
+		this.error = job.error;
+	}
+
+	public UUID getId() {
+		return id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * Number of copied messages or index entries
+	 * 
+	 * @return
+	 */
+	public long getMigrated() {
+		return migrated;
+	}
+
+	public void setMigrated(long migrated) {
+		this.migrated = migrated;
+	}
+
+	/**
+	 * Time when reads were switched to the new layout, or <code>null</code>
+	 * if data is still being copied
+	 * 
+	 * @return
+	 */
+	public Date getSwitched() {
+		return switched;
+	}
+
+	public void setSwitched(Date switched) {
+		this.switched = switched;
+	}
+
+	/**
+	 * Time of the last checkpoint. Used to detect abandoned jobs.
+	 * 
+	 * @return
+	 */
+	public Date getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	@JsonIgnore
+	public boolean isRunning() {
+		return status == Status.RUNNING;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("MigrationJob{id=").append(id)
+				.append(", type=").append(type)
+				.append(", status=").append(status)
+				.append(", migrated=").append(migrated)
+				.append(", switched=").append(switched).append("}")
+				.toString();
+	}
+}
@@ -112,6 +112,28 @@ public class MimePart
 
 	}
 
+	/**
+	 * Create MIME part from the previously stored attributes
+	 * 
+	 * @param partId
+	 * @param contentId
+	 * @param mimeType
+	 * @param fileName
+	 * @param disposition
+	 * @param size
+	 */
+	public MimePart(final String partId, final String contentId,
+			final String mimeType, final String fileName,
+			final String disposition, final long size)
+	{
+		this.partId = partId;
+		this.contentId = contentId;
+		this.mimeType = mimeType;
+		this.fileName = fileName;
+		this.disposition = disposition;
+		this.size = size;
+	}
+
 	public String getContentId() {
 		return this.contentId;
 	}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.model;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * State of the mailbox scrub job. Job scans messages from the newest to the
+ * oldest, checkpoint is the ID of the last scanned message. Partial counters
+ * accumulated up to the checkpoint are stored along with the job, so that job
+ * can be resumed from the checkpoint.
+ */
+@JsonInclude(Include.NON_NULL)
+public final class ScrubJob
+{
+	public enum Status {
+		RUNNING, COMPLETED, FAILED;
+	}
+
+	private final UUID id;
+	private final boolean rebuildIndex;
+	private final Date started;
+	private Status status = Status.RUNNING;
+	private UUID checkpoint;
+	private long scanned = 0;
+	private Date updated;
+	private String error;
+	private LabelMap counters = new LabelMap();
+
+	public ScrubJob(final UUID id, final boolean rebuildIndex, final Date started)
+	{
+		this.id = id;
+		this.rebuildIndex = rebuildIndex;
+		this.started = started;
+		this.updated = started;
+	}
+
+	/**
+	 * Copy constructor. Counters are deep copied.
+	 * 
+	 * @param job
+	 */
+	public ScrubJob(final ScrubJob job)
+	{
+		this.id = job.id;
+		this.rebuildIndex = job.rebuildIndex;
+		this.started = job.started;
+		this.status = job.status;
+		this.checkpoint = job.checkpoint;
+		this.scanned = job.scanned;
+		this.updated = job.updated;
+		this.error = job.error;
+		this.counters = new LabelMap(job.counters);
+	}
+
+	public UUID getId() {
+		return id;
+	}
+
+	@JsonProperty("indexes")
+	public boolean isRebuildIndex() {
+		return rebuildIndex;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * ID of the last scanned message, or <code>null</code> if scan not started
+	 * 
+	 * @return
+	 */
+	@JsonIgnore
+	public UUID getCheckpoint() {
+		return checkpoint;
+	}
+
+	public void setCheckpoint(UUID checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Number of scanned messages, including messages pending purge
+	 * 
+	 * @return
+	 */
+	public long getScanned() {
+		return scanned;
+	}
+
+	public void setScanned(long scanned) {
+		this.scanned = scanned;
+	}
+
+	/**
+	 * Time of the last checkpoint. Used to detect abandoned jobs.
+	 * 
+	 * @return
+	 */
+	public Date getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	/**
+	 * Label counters accumulated up to the checkpoint
+	 * 
+	 * @return
+	 */
+	@JsonIgnore
+	public LabelMap getCounters() {
+		return counters;
+	}
+
+	public void setCounters(LabelMap counters) {
+		this.counters = counters;
+	}
+
+	@JsonIgnore
+	public boolean isRunning() {
+		return status == Status.RUNNING;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder("ScrubJob{id=").append(id)
+				.append(", status=").append(status)
+				.append(", indexes=").append(rebuildIndex)
+				.append(", scanned=").append(scanned)
+				.append(", checkpoint=").append(checkpoint).append("}")
+				.toString();
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2011-2013 Optimax Software Ltd.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Optimax Software, ElasticInbox, nor the names
+ *    of its contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.elasticinbox.core.utils;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact set of UUIDs for large membership checks.
+ * <p>
+ * UUIDs are kept as pairs of primitive longs in a single array, 16 bytes per
+ * entry instead of ~100 bytes for {@link java.util.HashSet}. Array is sorted
+ * once on the first lookup and searched with binary search. Adding elements
+ * after lookup re-sorts the array on the next lookup.
+ */
+public final class UUIDSet
+{
+	private final static int DEFAULT_CAPACITY = 64;
+
+	/** Most and least significant bits, interleaved */
+	private long[] bits;
+	private int size = 0;
+	private boolean sorted = true;
+
+	public UUIDSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public UUIDSet(final int capacity) {
+		bits = new long[Math.max(1, capacity) * 2];
+	}
+
+	/**
+	 * Add UUID to the set. Duplicates are ignored.
+	 * 
+	 * @param uuid
+	 */
+	public void add(final UUID uuid)
+	{
+		if (size * 2 == bits.length) {
+			bits = Arrays.copyOf(bits, bits.length * 2);
+		}
+
+		bits[size * 2] = uuid.getMostSignificantBits();
+		bits[size * 2 + 1] = uuid.getLeastSignificantBits();
+		size++;
+		sorted = false;
+	}
+
+	public boolean contains(final UUID uuid)
+	{
+		if (!sorted) {
+			sort();
+		}
+
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, msb, lsb);
+
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Number of unique UUIDs in the set
+	 * 
+	 * @return
+	 */
+	public int size()
+	{
+		if (!sorted) {
+			sort();
+		}
+
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Heapsort entries in place and drop duplicates
+	 */
+	private void sort()
+	{
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(i, size);
+		}
+
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+
+		// compact duplicates
+		int unique = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (unique == 0 || compare(unique - 1, bits[i * 2], bits[i * 2 + 1]) != 0) {
+				bits[unique * 2] = bits[i * 2];
+				bits[unique * 2 + 1] = bits[i * 2 + 1];
+				unique++;
+			}
+		}
+
+		size = unique;
+		sorted = true;
+	}
+
+	private void siftDown(int root, final int end)
+	{
+		int child;
+
+		while ((child = root * 2 + 1) < end)
+		{
+			if (child + 1 < end && compare(child, bits[(child + 1) * 2], bits[(child + 1) * 2 + 1]) < 0) {
+				child++;
+			}
+
+			if (compare(root, bits[child * 2], bits[child * 2 + 1]) >= 0) {
+				return;
+			}
+
+			swap(root, child);
+			root = child;
+		}
+	}
+
+	private int compare(final int i, final long msb, final long lsb)
+	{
+		long m = bits[i * 2];
+
+		if (m != msb) {
+			return m < msb ? -1 : 1;
+		}
+
+		long l = bits[i * 2 + 1];
+		return (l == lsb) ? 0 : (l < lsb ? -1 : 1);
+	}
+
+	private void swap(final int i, final int j)
+	{
+		long m = bits[i * 2];
+		long l = bits[i * 2 + 1];
+		bits[i * 2] = bits[j * 2];
+		bits[i * 2 + 1] = bits[j * 2 + 1];
+		bits[j * 2] = m;
+		bits[j * 2 + 1] = l;
+	}
+}
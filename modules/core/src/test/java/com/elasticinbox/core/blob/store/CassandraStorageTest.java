@@ -38,6 +38,7 @@ import java.io.InputStream;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -96,6 +97,26 @@ public class CassandraStorageTest
 		bs.delete(blobUri);		
 	}
 
+	@Test
+	public void testAsyncBlobStorage() throws IOException, InterruptedException, ExecutionException
+	{
+		AsyncBlobStorage bs = new CassandraBlobStorage();
+
+		// Write blob
+		File file = new File(TEST_FILE);
+		InputStream in = new FileInputStream(file);
+		URI uri = bs.writeAsync(MESSAGE_ID, MAILBOX, null, in, file.length()).get().buildURI();
+		in.close();
+
+		// Read blob back and check size
+		BlobDataSource ds = bs.readAsync(uri).get();
+		long newSize = IOUtils.getInputStreamSize(ds.getUncompressedInputStream());
+		assertThat(newSize, equalTo(file.length()));
+
+		// Delete
+		bs.deleteAsync(uri).get();
+	}
+
 	@Test(expected=IllegalArgumentException.class)
 	public void testLargeBlobStorage() throws IOException, GeneralSecurityException
 	{
@@ -61,6 +61,7 @@ import com.elasticinbox.core.model.Address;
 import com.elasticinbox.core.model.AddressList;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
 import com.elasticinbox.core.model.ReservedLabels;
 
 public class CassandraMessageDAOTest
@@ -131,7 +132,10 @@ public class CassandraMessageDAOTest
 
 		// add stale message ids to indexes only (without message metadata)
 		Mutator<String> m = createMutator(keyspace, strSe);
-		LabelIndexPersistence.add(m, mailbox.getId(), invalidMessageIds, message.getLabels());
+		for (UUID messageId : invalidMessageIds) {
+			LabelIndexPersistence.add(m, mailbox.getId(), messageId, message.getLabels(),
+					MessageSummary.fromMessage(message));
+		}
 		m.execute();
 
 		// get all messages from NOTIFICATION label
@@ -0,0 +1,198 @@
+package com.elasticinbox.core.cassandra;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Test;
+
+import com.elasticinbox.core.cassandra.persistence.MaintenancePersistence.KeyPage;
+
+public class RangeScannerTest
+{
+	private final static String NODE = "node1";
+	private final static String OTHER_NODE = "node2";
+	private final static TokenRange RANGE = new TokenRange("0", "100", Arrays.asList("127.0.0.1"));
+	private final static String RESOURCE = RANGE.getEnd_token();
+
+	/**
+	 * Scanner over in-memory rows and maintenance state. Start key is
+	 * inclusive as in Cassandra range slices.
+	 */
+	private static class MemoryScanner extends RangeScanner
+	{
+		final List<String> rows;
+		final Set<String> deleted;
+		final Map<String, String> leases = new HashMap<String, String>();
+		final Map<String, String> cursors = new HashMap<String, String>();
+		final Set<String> completed = new HashSet<String>();
+		final List<String> processed = new ArrayList<String>();
+
+		/** Node which takes over the lease on the first lease write */
+		String contender;
+
+		/** Node which takes over the lease after given key is processed */
+		String thiefKey;
+
+		MemoryScanner(List<String> rows, Set<String> deleted, int pageSize)
+		{
+			super(NODE, pageSize, 600, 86400, 0L);
+			this.rows = rows;
+			this.deleted = deleted;
+		}
+
+		@Override
+		void process(String key)
+		{
+			processed.add(key);
+			if (key.equals(thiefKey)) {
+				leases.put(RESOURCE, OTHER_NODE);
+			}
+		}
+
+		@Override
+		String getLease(String resource) {
+			return leases.get(resource);
+		}
+
+		@Override
+		void setLease(String resource) {
+			leases.put(resource, (contender != null) ? contender : NODE);
+		}
+
+		@Override
+		String getCursor(String resource) {
+			return cursors.get(resource);
+		}
+
+		@Override
+		KeyPage getKeys(TokenRange range, String startKey, int count)
+		{
+			int from = (startKey == null) ? 0 : rows.indexOf(startKey);
+			int limit = (startKey == null) ? count : count + 1;
+			List<String> page = rows.subList(from, Math.min(from + limit, rows.size()));
+			List<String> keys = new ArrayList<String>();
+
+			for (String key : page) {
+				if (!deleted.contains(key) && !key.equals(startKey)) {
+					keys.add(key);
+				}
+			}
+
+			String lastKey = page.isEmpty() ? startKey : page.get(page.size() - 1);
+			return new KeyPage(keys, lastKey, page.size() >= limit);
+		}
+
+		@Override
+		void checkpoint(String resource, String cursor)
+		{
+			cursors.put(resource, cursor);
+			leases.put(resource, NODE);
+		}
+
+		@Override
+		void complete(String resource)
+		{
+			completed.add(resource);
+			cursors.remove(resource);
+			leases.remove(resource);
+		}
+	}
+
+	@Test
+	public void testAcquireFreeLease() throws InterruptedException
+	{
+		MemoryScanner scanner = new MemoryScanner(new ArrayList<String>(), new HashSet<String>(), 10);
+
+		assertTrue(scanner.acquireLease(RESOURCE));
+		assertThat(scanner.leases.get(RESOURCE), equalTo(NODE));
+
+		// lease held by this node is renewed
+		assertTrue(scanner.acquireLease(RESOURCE));
+	}
+
+	@Test
+	public void testLeaseHeldByOtherNode() throws InterruptedException
+	{
+		MemoryScanner scanner = new MemoryScanner(new ArrayList<String>(), new HashSet<String>(), 10);
+		scanner.leases.put(RESOURCE, OTHER_NODE);
+
+		assertFalse(scanner.acquireLease(RESOURCE));
+		assertThat(scanner.leases.get(RESOURCE), equalTo(OTHER_NODE));
+	}
+
+	@Test
+	public void testConcurrentLeaseLost() throws InterruptedException
+	{
+		MemoryScanner scanner = new MemoryScanner(new ArrayList<String>(), new HashSet<String>(), 10);
+
+		// write of the other node wins
+		scanner.contender = OTHER_NODE;
+
+		assertFalse(scanner.acquireLease(RESOURCE));
+	}
+
+	@Test
+	public void testScanAllPages()
+	{
+		List<String> rows = Arrays.asList("a", "b", "c", "d", "e");
+		MemoryScanner scanner = new MemoryScanner(rows, new HashSet<String>(), 2);
+		scanner.leases.put(RESOURCE, NODE);
+
+		assertThat(scanner.scan(RANGE), equalTo(5L));
+		assertThat(scanner.processed, equalTo(rows));
+		assertTrue(scanner.completed.contains(RESOURCE));
+		assertThat(scanner.cursors.get(RESOURCE), is(nullValue()));
+	}
+
+	@Test
+	public void testScanContinuesPastDeletedRows()
+	{
+		List<String> rows = Arrays.asList("a", "b", "c", "d", "e", "f", "g");
+		Set<String> deleted = new HashSet<String>(Arrays.asList("b", "c", "d", "e"));
+		MemoryScanner scanner = new MemoryScanner(rows, deleted, 2);
+		scanner.leases.put(RESOURCE, NODE);
+
+		// pages with tombstones only should not complete the range
+		assertThat(scanner.scan(RANGE), equalTo(3L));
+		assertThat(scanner.processed, equalTo(Arrays.asList("a", "f", "g")));
+		assertTrue(scanner.completed.contains(RESOURCE));
+	}
+
+	@Test
+	public void testScanResumesFromCursor()
+	{
+		List<String> rows = Arrays.asList("a", "b", "c", "d");
+		MemoryScanner scanner = new MemoryScanner(rows, new HashSet<String>(), 2);
+		scanner.leases.put(RESOURCE, NODE);
+		scanner.cursors.put(RESOURCE, "b");
+
+		assertThat(scanner.scan(RANGE), equalTo(2L));
+		assertThat(scanner.processed, equalTo(Arrays.asList("c", "d")));
+	}
+
+	@Test
+	public void testScanStopsWhenLeaseLost()
+	{
+		List<String> rows = Arrays.asList("a", "b", "c", "d", "e");
+		MemoryScanner scanner = new MemoryScanner(rows, new HashSet<String>(), 2);
+		scanner.leases.put(RESOURCE, NODE);
+		scanner.thiefKey = "c";
+
+		assertThat(scanner.scan(RANGE), equalTo(-1L));
+		// lease is verified once the page is processed
+		assertThat(scanner.processed, equalTo(Arrays.asList("a", "b", "c", "d")));
+		assertFalse(scanner.completed.contains(RESOURCE));
+
+		// cursor of the last checkpointed page is kept for the new owner
+		assertThat(scanner.cursors.get(RESOURCE), equalTo("b"));
+	}
+}
@@ -0,0 +1,92 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.model.Address;
+import com.elasticinbox.core.model.AddressList;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
+import com.elasticinbox.core.model.MimePart;
+
+public class BinaryMessageCodecTest
+{
+	@Test
+	public void testEncodeDecode()
+	{
+		Message m1 = new Message();
+		m1.setDate(new Date(1349705455000L));
+		m1.setSize(123456L);
+		m1.setFrom(new AddressList(new Address("Test Sender", "sender@example.com")));
+		m1.setTo(new AddressList(new Address(null, "\u0442\u0435\u0441\u0442@example.com")));
+		m1.setSubject("Subject \u00e7\u00f6\u00fc");
+		m1.setMessageId("<test@example.com>");
+		m1.setLocation(URI.create("blob://db/f1ca99e0-99a0-11e2-95f0-040cced3bd7a?c=gz&b=1"));
+
+		Map<String, MimePart> parts = new HashMap<String, MimePart>();
+		parts.put("1.2", new MimePart("1.2", null, "image/png", "image.png", "attachment", 2048L));
+		m1.setParts(parts);
+
+		Message m2 = new Message();
+		BinaryMessageCodec.decode(BinaryMessageCodec.encode(m1), m2);
+
+		assertEquals(m1.getDate(), m2.getDate());
+		assertEquals(m1.getSize(), m2.getSize());
+		assertEquals(m1.getSubject(), m2.getSubject());
+		assertEquals(m1.getMessageId(), m2.getMessageId());
+		assertEquals(m1.getLocation(), m2.getLocation());
+		assertEquals("Test Sender", m2.getFrom().get(0).getName());
+		assertEquals("sender@example.com", m2.getFrom().get(0).getAddress());
+		assertNull(m2.getTo().get(0).getName());
+		assertEquals(m1.getTo().get(0).getAddress(), m2.getTo().get(0).getAddress());
+		assertNull(m2.getCc());
+
+		MimePart part = m2.getPart("1.2");
+		assertNull(part.getContentId());
+		assertEquals("image/png", part.getMimeType());
+		assertEquals("image.png", part.getFileName());
+		assertEquals("attachment", part.getDisposition());
+		assertEquals(2048L, part.getSize());
+	}
+
+	@Test
+	public void testEmptyMessage()
+	{
+		Message m = new Message();
+		byte[] value = BinaryMessageCodec.encode(m);
+
+		assertEquals(1, value.length);
+		assertEquals(BinaryMessageCodec.VERSION, value[0]);
+
+		BinaryMessageCodec.decode(value, m);
+		assertNull(m.getDate());
+		assertNull(m.getParts());
+	}
+
+	@Test
+	public void testSummary()
+	{
+		Date date = new Date(1351245600000L);
+		MessageSummary s1 = new MessageSummary(34567L, date, true, false);
+		MessageSummary s2 = BinaryMessageCodec.decodeSummary(BinaryMessageCodec.encodeSummary(s1));
+
+		assertEquals(34567L, s2.getSize());
+		assertEquals(date, s2.getDate());
+		assertTrue(s2.isSeen());
+		assertFalse(s2.hasAttachments());
+
+		s2 = BinaryMessageCodec.decodeSummary(BinaryMessageCodec.encodeSummary(
+				new MessageSummary(0L, null, false, true)));
+		assertNull(s2.getDate());
+		assertTrue(s2.hasAttachments());
+
+		// legacy index entries have empty value
+		assertNull(BinaryMessageCodec.decodeSummary(new byte[0]));
+	}
+}
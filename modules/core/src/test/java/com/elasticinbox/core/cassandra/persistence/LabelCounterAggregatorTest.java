@@ -0,0 +1,55 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LabelCounterAggregatorTest
+{
+	@Test
+	public void testReadLogIgnoresIncompleteDelta() throws IOException
+	{
+		File file = File.createTempFile("counters", ".log");
+		file.deleteOnExit();
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeUTF("test@elasticinbox.com");
+			out.writeInt(0);
+			out.writeChar(LabelCounterPersistence.CN_SUBTYPE_MESSAGES);
+			out.writeLong(5L);
+
+			out.writeUTF("test@elasticinbox.com");
+			out.writeInt(2);
+			out.writeChar(LabelCounterPersistence.CN_SUBTYPE_UNREAD);
+			out.writeLong(-1L);
+
+			// incomplete delta written during crash
+			out.writeUTF("test@elasticinbox.com");
+			out.writeInt(3);
+		} finally {
+			out.close();
+		}
+
+		List<LabelCounterAggregator.Delta> deltas = LabelCounterAggregator.readLog(file);
+
+		assertEquals(2, deltas.size());
+		assertEquals(0, deltas.get(0).labelId);
+		assertEquals(LabelCounterPersistence.CN_SUBTYPE_MESSAGES, deltas.get(0).subtype);
+		assertEquals(5L, deltas.get(0).value);
+		assertEquals(2, deltas.get(1).labelId);
+		assertEquals(-1L, deltas.get(1).value);
+	}
+
+	@Test
+	public void testReadMissingLog() throws IOException
+	{
+		assertTrue(LabelCounterAggregator.readLog(new File("nonexistent-counters.log")).isEmpty());
+	}
+}
@@ -2,6 +2,10 @@ package com.elasticinbox.core.cassandra.persistence;
 
 import static org.junit.Assert.*;
 
+import java.util.UUID;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
 import org.junit.Test;
 
 public class LabelIndexPersistenceTest {
@@ -18,4 +22,44 @@ public class LabelIndexPersistenceTest {
 		assertEquals("test@elasticinbox.com:special", key);
 	}
 
+	@Test
+	public void testGetUnreadKey() {
+		String key = LabelIndexPersistence.getUnreadKey("test@elasticinbox.com", 123);
+		assertEquals("test@elasticinbox.com:123:unread", key);
+	}
+
+	@Test
+	public void testGetBucketKey() {
+		String key = LabelIndexPersistence.getBucketKey("test@elasticinbox.com", 123, 201210);
+		assertEquals("test@elasticinbox.com:123:201210", key);
+
+		key = LabelIndexPersistence.getBucketsKey("test@elasticinbox.com", 123);
+		assertEquals("test@elasticinbox.com:123:buckets", key);
+	}
+
+	@Test
+	public void testGetBucket() {
+		// 2012-10-31 23:59:59 UTC
+		UUID messageId = TimeUUIDUtils.getTimeUUID(1351727999000L);
+		assertEquals(201210, LabelIndexPersistence.getBucket(messageId));
+
+		// 2012-11-01 00:00:00 UTC
+		messageId = TimeUUIDUtils.getTimeUUID(1351728000000L);
+		assertEquals(201211, LabelIndexPersistence.getBucket(messageId));
+	}
+
+	@Test
+	public void testGetBucketStart() {
+		UUID start = LabelIndexPersistence.getBucketStart(201211);
+
+		// same on all nodes
+		assertEquals(start, LabelIndexPersistence.getBucketStart(201211));
+		assertEquals(1, start.version());
+		assertEquals(2, start.variant());
+
+		// 2012-11-01 00:00:00 UTC
+		assertEquals(1351728000000L, TimeUUIDUtils.getTimeFromUUID(start));
+		assertEquals(201211, LabelIndexPersistence.getBucket(start));
+	}
+
 }
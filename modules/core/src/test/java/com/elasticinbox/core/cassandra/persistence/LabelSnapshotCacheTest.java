@@ -0,0 +1,90 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelMap;
+
+public class LabelSnapshotCacheTest
+{
+	private final static String MAILBOX = "test@elasticinbox.com";
+
+	@Test
+	public void testConcurrentLoadsAreShared() throws Exception
+	{
+		final LabelSnapshotCache cache = new LabelSnapshotCache(60000);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch loading = new CountDownLatch(1);
+
+		final Callable<LabelMap> loader = new Callable<LabelMap>() {
+			@Override
+			public LabelMap call() throws Exception {
+				loads.incrementAndGet();
+				loading.await();
+				return getLabels();
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Callable<LabelMap> poll = new Callable<LabelMap>() {
+				@Override
+				public LabelMap call() {
+					return cache.get(MAILBOX, loader);
+				}
+			};
+
+			Future<LabelMap> first = executor.submit(poll);
+			Future<LabelMap> second = executor.submit(poll);
+
+			Thread.sleep(100);
+			loading.countDown();
+
+			assertTrue(first.get().containsName("work"));
+			assertTrue(second.get().containsName("work"));
+			assertEquals(1, loads.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testInvalidate()
+	{
+		LabelSnapshotCache cache = new LabelSnapshotCache(60000);
+		final AtomicInteger loads = new AtomicInteger();
+
+		Callable<LabelMap> loader = new Callable<LabelMap>() {
+			@Override
+			public LabelMap call() {
+				loads.incrementAndGet();
+				return getLabels();
+			}
+		};
+
+		// returned labels are copies
+		cache.get(MAILBOX, loader).put(new Label(101, "Home"));
+		assertFalse(cache.get(MAILBOX, loader).containsName("home"));
+		assertEquals(1, loads.get());
+
+		cache.invalidate(MAILBOX);
+		cache.get(MAILBOX, loader);
+		assertEquals(2, loads.get());
+	}
+
+	private static LabelMap getLabels()
+	{
+		LabelMap labels = new LabelMap();
+		labels.put(new Label(100, "Work"));
+		return labels;
+	}
+}
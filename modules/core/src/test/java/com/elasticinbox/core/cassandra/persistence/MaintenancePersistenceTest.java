@@ -0,0 +1,121 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Test;
+
+import com.elasticinbox.core.cassandra.persistence.MaintenancePersistence.KeyPage;
+
+public class MaintenancePersistenceTest
+{
+	private final static StringSerializer strSe = StringSerializer.get();
+	private final static List<String> ENDPOINTS = Arrays.asList("127.0.0.1");
+
+	private static KeySlice slice(String key, boolean live)
+	{
+		List<ColumnOrSuperColumn> columns = new ArrayList<ColumnOrSuperColumn>(1);
+		if (live) {
+			columns.add(new ColumnOrSuperColumn().setColumn(
+					new Column(strSe.toByteBuffer("label:0"))));
+		}
+		return new KeySlice(strSe.toByteBuffer(key), columns);
+	}
+
+	@Test
+	public void testSplitWrappingRange()
+	{
+		List<TokenRange> ring = Arrays.asList(
+				new TokenRange("10", "50", ENDPOINTS),
+				new TokenRange("50", "10", ENDPOINTS));
+
+		List<TokenRange> ranges = MaintenancePersistence.splitRanges(ring, "-1");
+
+		assertThat(ranges.size(), equalTo(3));
+		assertThat(ranges.get(0), equalTo(ring.get(0)));
+		assertThat(ranges.get(1).getStart_token(), equalTo("50"));
+		assertThat(ranges.get(1).getEnd_token(), equalTo("-1"));
+		assertThat(ranges.get(2).getStart_token(), equalTo("-1"));
+		assertThat(ranges.get(2).getEnd_token(), equalTo("10"));
+		assertThat(ranges.get(2).getEndpoints(), equalTo(ENDPOINTS));
+	}
+
+	@Test
+	public void testSplitSingleNodeRing()
+	{
+		String min = String.valueOf(Long.MIN_VALUE);
+		List<TokenRange> ring = Arrays.asList(new TokenRange("100", "100", ENDPOINTS));
+
+		List<TokenRange> ranges = MaintenancePersistence.splitRanges(ring, min);
+
+		assertThat(ranges.size(), equalTo(2));
+		assertThat(ranges.get(0).getEnd_token(), equalTo(min));
+		assertThat(ranges.get(1).getStart_token(), equalTo(min));
+		assertThat(ranges.get(1).getEnd_token(), equalTo("100"));
+	}
+
+	@Test
+	public void testSplitRangeEndingAtMinimum()
+	{
+		List<TokenRange> ring = Arrays.asList(new TokenRange("50", "-1", ENDPOINTS));
+
+		// (-1, -1] would cover the whole ring
+		List<TokenRange> ranges = MaintenancePersistence.splitRanges(ring, "-1");
+
+		assertThat(ranges.size(), equalTo(1));
+		assertThat(ranges.get(0).getStart_token(), equalTo("50"));
+		assertThat(ranges.get(0).getEnd_token(), equalTo("-1"));
+	}
+
+	@Test
+	public void testPageSkipsStartKeyAndDeletedRows()
+	{
+		List<KeySlice> slices = Arrays.asList(
+				slice("a", true), slice("b", false), slice("c", true), slice("d", false));
+
+		KeyPage page = KeyPage.fromSlices(slices, "a", 4);
+
+		assertThat(page.getKeys(), equalTo(Arrays.asList("c")));
+		assertThat(page.getLastKey(), equalTo("d"));
+		assertTrue(page.hasMore());
+	}
+
+	@Test
+	public void testPageOfDeletedRowsHasMore()
+	{
+		List<KeySlice> slices = Arrays.asList(
+				slice("a", false), slice("b", false), slice("c", false));
+
+		KeyPage page = KeyPage.fromSlices(slices, null, 3);
+
+		// cursor moves past tombstones and scan continues
+		assertTrue(page.getKeys().isEmpty());
+		assertThat(page.getLastKey(), equalTo("c"));
+		assertTrue(page.hasMore());
+	}
+
+	@Test
+	public void testLastPage()
+	{
+		KeyPage page = KeyPage.fromSlices(Arrays.asList(slice("x", true)), "x", 3);
+
+		assertTrue(page.getKeys().isEmpty());
+		assertThat(page.getLastKey(), equalTo("x"));
+		assertFalse(page.hasMore());
+
+		page = KeyPage.fromSlices(new ArrayList<KeySlice>(), "x", 3);
+
+		assertThat(page.getLastKey(), equalTo("x"));
+		assertFalse(page.hasMore());
+	}
+}
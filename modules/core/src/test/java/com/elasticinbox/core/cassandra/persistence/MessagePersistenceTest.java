@@ -0,0 +1,134 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+import me.prettyprint.hector.api.beans.AbstractComposite.Component;
+import me.prettyprint.hector.api.beans.Composite;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.junit.Test;
+
+public class MessagePersistenceTest
+{
+	private final static String[] ATTRIBUTES = { Marshaller.CN_SUBJECT, Marshaller.CN_LABEL_PREFIX + "0" };
+	private final static String[] BODY_ATTRIBUTES = { Marshaller.CN_HTML_BODY,
+			Marshaller.CN_PLAIN_BODY, Marshaller.CN_BLOB };
+
+	@Test
+	public void testSliceReadsOnlyRequestedMessage()
+	{
+		UUID before = TimeUUIDUtils.getTimeUUID(1351727999000L);
+		UUID messageId = TimeUUIDUtils.getTimeUUID(1351728000000L);
+		UUID after = TimeUUIDUtils.getTimeUUID(1351728000001L);
+
+		for (boolean includeBody : new boolean[] { true, false })
+		{
+			Composite start = MessagePersistence.getSliceStart(messageId);
+			Composite end = MessagePersistence.getSliceEnd(messageId, includeBody);
+
+			for (UUID otherId : new UUID[] { before, after })
+			{
+				for (String name : ATTRIBUTES) {
+					assertFalse(inSlice(start, end, MessagePersistence.toCompositeName(otherId, name)));
+				}
+				for (String name : BODY_ATTRIBUTES) {
+					assertFalse(inSlice(start, end, MessagePersistence.toCompositeName(otherId, name)));
+				}
+			}
+
+			for (String name : ATTRIBUTES) {
+				assertTrue(inSlice(start, end, MessagePersistence.toCompositeName(messageId, name)));
+			}
+			for (String name : BODY_ATTRIBUTES) {
+				assertEquals(includeBody,
+						inSlice(start, end, MessagePersistence.toCompositeName(messageId, name)));
+			}
+		}
+	}
+
+	@Test
+	public void testListedColumnsWithoutInlineBlob()
+	{
+		StringSerializer strSe = StringSerializer.get();
+		BytesArraySerializer byteSe = BytesArraySerializer.get();
+		UUID messageId = TimeUUIDUtils.getTimeUUID(1351728000000L);
+
+		List<HColumn<String, byte[]>> columns = new ArrayList<HColumn<String, byte[]>>();
+		columns.add(createColumn(Marshaller.CN_SUBJECT, "Hello".getBytes(), strSe, byteSe));
+		columns.add(createColumn(Marshaller.CN_BLOB, new byte[1024], strSe, byteSe));
+
+		Map<UUID, List<HColumn<String, byte[]>>> read = 
+				new HashMap<UUID, List<HColumn<String, byte[]>>>();
+		read.put(messageId, columns);
+
+		List<HColumn<String, byte[]>> listed = 
+				MessagePersistence.withoutInlineBlobs(read).get(messageId);
+
+		assertEquals(1, listed.size());
+		assertEquals(Marshaller.CN_SUBJECT, listed.get(0).getName());
+
+		// columns read by other callers are not modified
+		assertEquals(2, columns.size());
+	}
+
+	private static boolean inSlice(Composite start, Composite end, Composite name) {
+		return compare(start, name) <= 0 && compare(name, end) <= 0;
+	}
+
+	/**
+	 * Compare composites the way Cassandra's CompositeType does, including
+	 * end-of-component bytes of the slice bounds
+	 */
+	private static int compare(Composite c1, Composite c2)
+	{
+		List<Component<?>> l1 = c1.getComponents();
+		List<Component<?>> l2 = c2.getComponents();
+
+		for (int i = 0; i < l1.size() && i < l2.size(); i++)
+		{
+			int cmp = compareValues(l1.get(i).getValue(), l2.get(i).getValue());
+			if (cmp != 0) {
+				return cmp;
+			}
+
+			byte b1 = l1.get(i).getEquality().toByte();
+			byte b2 = l2.get(i).getEquality().toByte();
+
+			if (b1 < 0) {
+				if (b2 >= 0) return -1;
+			} else if (b1 > 0) {
+				if (b2 <= 0) return 1;
+			} else if (b2 != 0) {
+				return -b2;
+			}
+		}
+
+		if (l1.size() == l2.size()) {
+			return 0;
+		}
+
+		return (l1.size() < l2.size()) ? -1 : 1;
+	}
+
+	private static int compareValues(Object o1, Object o2)
+	{
+		if (o1 instanceof UUID) {
+			UUID u1 = (UUID) o1;
+			UUID u2 = (UUID) o2;
+			int cmp = Long.valueOf(u1.timestamp()).compareTo(u2.timestamp());
+			return (cmp != 0) ? cmp : u1.compareTo(u2);
+		}
+
+		return ((String) o1).compareTo((String) o2);
+	}
+}
@@ -0,0 +1,110 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.MessageProjection;
+import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.Marker;
+
+public class MetadataCacheTest
+{
+	private final static String MAILBOX = "test@elasticinbox.com";
+
+	@Test
+	public void testProjections()
+	{
+		MetadataCache cache = new MetadataCache(1024 * 1024, 60000);
+		UUID messageId = UUID.randomUUID();
+
+		cache.put(MAILBOX, messageId, MessageProjection.SUMMARY, getColumns(),
+				cache.getStamp(MAILBOX, messageId));
+
+		assertNotNull(cache.get(MAILBOX, messageId, MessageProjection.COUNTERS));
+		assertNull(cache.get(MAILBOX, messageId, MessageProjection.HEADERS));
+
+		// wider projection replaces narrower
+		cache.put(MAILBOX, messageId, MessageProjection.ALL, getColumns(),
+				cache.getStamp(MAILBOX, messageId));
+		assertNotNull(cache.get(MAILBOX, messageId, MessageProjection.HEADERS));
+
+		assertEquals(2L, cache.getHits());
+		assertEquals(1L, cache.getMisses());
+	}
+
+	@Test
+	public void testUpdate()
+	{
+		MetadataCache cache = new MetadataCache(1024 * 1024, 60000);
+		UUID messageId = UUID.randomUUID();
+
+		cache.put(MAILBOX, messageId, MessageProjection.ALL, getColumns(),
+				cache.getStamp(MAILBOX, messageId));
+
+		Set<String> added = new HashSet<String>();
+		added.add(Marshaller.CN_LABEL_PREFIX + 3);
+		added.add(Marshaller.CN_MARKER_PREFIX + Marker.SEEN.toInt());
+
+		Set<String> removed = new HashSet<String>();
+		removed.add(Marshaller.CN_LABEL_PREFIX + 2);
+
+		cache.update(MAILBOX, messageId, added, removed);
+
+		Message message = Marshaller.unmarshall(
+				cache.get(MAILBOX, messageId, MessageProjection.ALL), MessageProjection.ALL);
+
+		assertTrue(message.getLabels().contains(0));
+		assertTrue(message.getLabels().contains(3));
+		assertFalse(message.getLabels().contains(2));
+		assertTrue(message.getMarkers().contains(Marker.SEEN));
+	}
+
+	@Test
+	public void testReadDuringChangeIsNotCached()
+	{
+		MetadataCache cache = new MetadataCache(1024 * 1024, 60000);
+		UUID messageId = UUID.randomUUID();
+
+		long stamp = cache.getStamp(MAILBOX, messageId);
+		cache.invalidate(MAILBOX, messageId);
+		cache.put(MAILBOX, messageId, MessageProjection.ALL, getColumns(), stamp);
+
+		assertNull(cache.get(MAILBOX, messageId, MessageProjection.ALL));
+		assertEquals(1L, cache.getSkippedPuts());
+	}
+
+	@Test
+	public void testDisabled()
+	{
+		MetadataCache cache = new MetadataCache(0, 60000);
+		UUID messageId = UUID.randomUUID();
+
+		cache.put(MAILBOX, messageId, MessageProjection.ALL, getColumns(),
+				cache.getStamp(MAILBOX, messageId));
+
+		assertFalse(cache.isEnabled());
+		assertNull(cache.get(MAILBOX, messageId, MessageProjection.ALL));
+	}
+
+	private static List<HColumn<String, byte[]>> getColumns()
+	{
+		List<HColumn<String, byte[]>> columns = new ArrayList<HColumn<String, byte[]>>();
+		columns.add(HFactory.createColumn(Marshaller.CN_LABEL_PREFIX + 0, new byte[0],
+				StringSerializer.get(), BytesArraySerializer.get()));
+		columns.add(HFactory.createColumn(Marshaller.CN_LABEL_PREFIX + 2, new byte[0],
+				StringSerializer.get(), BytesArraySerializer.get()));
+		return columns;
+	}
+}
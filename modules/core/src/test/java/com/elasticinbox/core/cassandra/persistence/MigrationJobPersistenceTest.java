@@ -0,0 +1,54 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Date;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.model.MigrationJob;
+
+public class MigrationJobPersistenceTest
+{
+	@Test
+	public void testNewJobRoundTrip()
+	{
+		MigrationJob job = new MigrationJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(),
+				MigrationJob.Type.METADATA, new Date());
+		job.setUpdated(new Date());
+
+		MigrationJob restored = MigrationJobPersistence.fromJson(MigrationJobPersistence.toJson(job));
+
+		assertThat(restored.getId(), equalTo(job.getId()));
+		assertThat(restored.getType(), equalTo(MigrationJob.Type.METADATA));
+		assertThat(restored.getStatus(), equalTo(MigrationJob.Status.RUNNING));
+		assertThat(restored.getStarted(), equalTo(job.getStarted()));
+		assertThat(restored.getUpdated(), equalTo(job.getUpdated()));
+		assertThat(restored.getSwitched(), nullValue());
+		assertThat(restored.getError(), nullValue());
+		assertThat(restored.isRunning(), is(true));
+	}
+
+	@Test
+	public void testSwitchedRoundTrip()
+	{
+		MigrationJob job = new MigrationJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(),
+				MigrationJob.Type.METADATA, new Date());
+		job.setUpdated(new Date());
+		job.setMigrated(5000000000L);
+		job.setSwitched(new Date());
+		job.setStatus(MigrationJob.Status.FAILED);
+		job.setError("Timed out");
+
+		MigrationJob restored = MigrationJobPersistence.fromJson(MigrationJobPersistence.toJson(job));
+
+		assertThat(restored.getMigrated(), equalTo(5000000000L));
+		assertThat(restored.getSwitched(), equalTo(job.getSwitched()));
+		assertThat(restored.getStatus(), equalTo(MigrationJob.Status.FAILED));
+		assertThat(restored.getError(), equalTo("Timed out"));
+		assertThat(restored.isRunning(), is(false));
+	}
+}
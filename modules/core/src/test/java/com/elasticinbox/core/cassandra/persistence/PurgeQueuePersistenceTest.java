@@ -0,0 +1,34 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+public class PurgeQueuePersistenceTest
+{
+	@Test
+	public void testBucket()
+	{
+		long time = 1351728000000L;
+
+		assertThat(PurgeQueuePersistence.getBucket(time),
+				equalTo(PurgeQueuePersistence.getBucket(time + PurgeQueuePersistence.BUCKET_SIZE - 1)));
+		assertThat(PurgeQueuePersistence.getBucket(time + PurgeQueuePersistence.BUCKET_SIZE),
+				equalTo(PurgeQueuePersistence.getBucket(time) + 1));
+	}
+
+	@Test
+	public void testShardAndKey()
+	{
+		String mailbox = "test@elasticinbox.com";
+		int shard = PurgeQueuePersistence.getShard(mailbox);
+
+		assertThat(shard, greaterThanOrEqualTo(0));
+		assertThat(shard, lessThan(PurgeQueuePersistence.SHARDS));
+		assertThat(PurgeQueuePersistence.getShard(mailbox), equalTo(shard));
+
+		// never clashes with label index keys of mailboxes
+		assertThat(PurgeQueuePersistence.getKey(375480L, 3), equalTo("#purge:375480:3"));
+	}
+}
@@ -0,0 +1,58 @@
+package com.elasticinbox.core.cassandra.persistence;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Date;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.model.Label;
+import com.elasticinbox.core.model.LabelCounters;
+import com.elasticinbox.core.model.ScrubJob;
+
+public class ScrubJobPersistenceTest
+{
+	@Test
+	public void testNewJobRoundTrip()
+	{
+		ScrubJob job = new ScrubJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(), true, new Date());
+		ScrubJob restored = ScrubJobPersistence.fromJson(ScrubJobPersistence.toJson(job));
+
+		assertThat(restored.getId(), equalTo(job.getId()));
+		assertThat(restored.isRebuildIndex(), is(true));
+		assertThat(restored.getStatus(), equalTo(ScrubJob.Status.RUNNING));
+		assertThat(restored.getCheckpoint(), nullValue());
+		assertThat(restored.getStarted(), equalTo(job.getStarted()));
+		assertThat(restored.getError(), nullValue());
+		assertThat(restored.getCounters().getIds().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testCheckpointRoundTrip()
+	{
+		ScrubJob job = new ScrubJob(TimeUUIDUtils.getUniqueTimeUUIDinMillis(), false, new Date());
+		job.setCheckpoint(TimeUUIDUtils.getUniqueTimeUUIDinMillis());
+		job.setScanned(250L);
+		job.setStatus(ScrubJob.Status.FAILED);
+		job.setError("Timed out: \"retry\"");
+
+		LabelCounters counters = new LabelCounters();
+		counters.setTotalBytes(1024L);
+		counters.setTotalMessages(3L);
+		counters.setUnreadMessages(1L);
+		job.getCounters().put(new Label(1).setCounters(counters));
+		job.getCounters().put(new Label(20).setCounters(new LabelCounters()));
+
+		ScrubJob restored = ScrubJobPersistence.fromJson(ScrubJobPersistence.toJson(job));
+
+		assertThat(restored.getCheckpoint(), equalTo(job.getCheckpoint()));
+		assertThat(restored.getScanned(), equalTo(250L));
+		assertThat(restored.getStatus(), equalTo(ScrubJob.Status.FAILED));
+		assertThat(restored.getError(), equalTo("Timed out: \"retry\""));
+		assertThat(restored.getCounters().get(1).getCounters(), equalTo(counters));
+		assertThat(restored.getCounters().get(20).getCounters(), equalTo(new LabelCounters()));
+	}
+}
@@ -0,0 +1,31 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AdaptiveThrottleTest
+{
+	@Test
+	public void testAdditiveIncreaseMultiplicativeDecrease()
+	{
+		AdaptiveThrottle throttle = new AdaptiveThrottle(1000.0, 100, 50L);
+
+		// latency under target increases rate and batch size
+		throttle.onSuccess(10000L);
+		assertEquals(1100.0, throttle.getRate(), 0.001);
+		assertEquals(110, throttle.getBatchSize());
+
+		// latency over target halves rate and batch size
+		throttle.onSuccess(100000L);
+		assertEquals(550.0, throttle.getRate(), 0.001);
+		assertEquals(55, throttle.getBatchSize());
+		assertEquals(1L, throttle.getBackoffCount());
+
+		// repeated failure within cooldown is counted but does not back off again
+		throttle.onFailure();
+		assertEquals(550.0, throttle.getRate(), 0.001);
+		assertEquals(1L, throttle.getBackoffCount());
+		assertEquals(1L, throttle.getFailureCount());
+	}
+}
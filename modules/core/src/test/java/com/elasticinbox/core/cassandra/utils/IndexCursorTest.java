@@ -0,0 +1,88 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.junit.Test;
+
+public class IndexCursorTest
+{
+	/**
+	 * In-memory index, start is inclusive as in Cassandra slices
+	 */
+	private static class ListCursor extends IndexCursor<UUID>
+	{
+		private final List<UUID> index;
+		private int reads = 0;
+
+		public ListCursor(List<UUID> index, int pageSize) {
+			super(pageSize);
+			this.index = index;
+		}
+
+		@Override
+		protected List<UUID> readPage(UUID start, int count)
+		{
+			reads++;
+			int from = (start == null) ? 0 : index.indexOf(start);
+			return new ArrayList<UUID>(index.subList(from, Math.min(from + count, index.size())));
+		}
+
+		@Override
+		protected UUID getToken(UUID element) {
+			return element;
+		}
+	}
+
+	private static List<UUID> createIndex(int size)
+	{
+		List<UUID> index = new ArrayList<UUID>(size);
+		for (int i = 0; i < size; i++) {
+			index.add(TimeUUIDUtils.getTimeUUID(1351728000000L + i));
+		}
+		return index;
+	}
+
+	@Test
+	public void testIterateAllPages()
+	{
+		List<UUID> index = createIndex(25);
+		ListCursor cursor = new ListCursor(index, 10);
+
+		List<UUID> result = new ArrayList<UUID>();
+		while (cursor.hasNext()) {
+			result.add(cursor.next());
+		}
+
+		// each element returned once, in order
+		assertEquals(index, result);
+		assertEquals(3, cursor.reads);
+	}
+
+	@Test
+	public void testExactPageBoundary()
+	{
+		List<UUID> index = createIndex(22);
+		ListCursor cursor = new ListCursor(index, 10);
+
+		List<UUID> result = new ArrayList<UUID>();
+		while (cursor.hasNext()) {
+			result.add(cursor.next());
+		}
+
+		assertEquals(index, result);
+	}
+
+	@Test
+	public void testEmptyIndex()
+	{
+		ListCursor cursor = new ListCursor(new ArrayList<UUID>(), 10);
+		assertFalse(cursor.hasNext());
+		assertEquals(1, cursor.reads);
+	}
+}
@@ -0,0 +1,30 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyTrackerTest
+{
+	@Test
+	public void testPercentile()
+	{
+		LatencyTracker tracker = new LatencyTracker(1000, 0.95);
+
+		for (int i = 1; i < 100; i++) {
+			tracker.record(i);
+		}
+
+		// not enough samples yet
+		assertEquals(0L, tracker.getPercentile());
+
+		tracker.record(100);
+		assertEquals(95L, tracker.getPercentile());
+
+		// only most recent samples are kept
+		for (int i = 0; i < 1000; i++) {
+			tracker.record(10);
+		}
+		assertEquals(10L, tracker.getPercentile());
+	}
+}
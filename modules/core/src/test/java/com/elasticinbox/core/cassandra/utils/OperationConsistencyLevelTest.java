@@ -0,0 +1,39 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import me.prettyprint.cassandra.service.OperationType;
+import me.prettyprint.hector.api.HConsistencyLevel;
+
+import org.junit.Test;
+
+import com.elasticinbox.core.cassandra.CassandraDAOFactory;
+
+public class OperationConsistencyLevelTest
+{
+	@Test
+	public void testConsistencyLevels() throws Exception
+	{
+		final OperationConsistencyLevel clp = new OperationConsistencyLevel();
+
+		assertEquals(HConsistencyLevel.ONE, clp.get(OperationType.READ, CassandraDAOFactory.CF_BLOB));
+		assertEquals(HConsistencyLevel.QUORUM, clp.get(OperationType.WRITE, CassandraDAOFactory.CF_BLOB));
+		assertEquals(HConsistencyLevel.QUORUM, clp.get(OperationType.READ, CassandraDAOFactory.CF_METADATA));
+		assertEquals(HConsistencyLevel.QUORUM, clp.get(OperationType.READ, CassandraDAOFactory.CF_COUNTERS));
+		assertEquals(HConsistencyLevel.QUORUM, clp.get(OperationType.WRITE));
+
+		// fallback reads
+		HConsistencyLevel level = OperationConsistencyLevel.withQuorumReads(
+				new Callable<HConsistencyLevel>() {
+					@Override
+					public HConsistencyLevel call() {
+						return clp.get(OperationType.READ, CassandraDAOFactory.CF_BLOB);
+					}
+				});
+
+		assertEquals(HConsistencyLevel.QUORUM, level);
+		assertEquals(HConsistencyLevel.ONE, clp.get(OperationType.READ, CassandraDAOFactory.CF_BLOB));
+	}
+}
@@ -0,0 +1,154 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+public class SingleFlightTest
+{
+	@Test
+	public void testConcurrentQueriesAreShared() throws Exception
+	{
+		final SingleFlight<String, List<Integer>> flight = new SingleFlight<String, List<Integer>>(
+				"SingleFlightTest", new Function<List<Integer>, List<Integer>>() {
+					@Override
+					public List<Integer> apply(List<Integer> input) {
+						return new ArrayList<Integer>(input);
+					}
+				});
+
+		final AtomicInteger queries = new AtomicInteger();
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final Callable<List<Integer>> query = new Callable<List<Integer>>() {
+			@Override
+			public List<Integer> call() throws Exception {
+				queries.incrementAndGet();
+				running.countDown();
+				release.await();
+				List<Integer> result = new ArrayList<Integer>();
+				result.add(1);
+				return result;
+			}
+		};
+
+		Callable<List<Integer>> call = new Callable<List<Integer>>() {
+			@Override
+			public List<Integer> call() {
+				return flight.execute("key", query);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<List<Integer>> first = executor.submit(call);
+			running.await();
+			Future<List<Integer>> second = executor.submit(call);
+
+			// wait until second call joins the flight
+			while (flight.getSharedCalls() == 0) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+
+			List<Integer> firstResult = first.get();
+			List<Integer> secondResult = second.get();
+
+			assertEquals(1, queries.get());
+			assertEquals(firstResult, secondResult);
+			assertNotSame(firstResult, secondResult);
+			assertEquals(2L, flight.getCalls());
+			assertEquals(0, flight.getInFlight());
+		} finally {
+			executor.shutdown();
+		}
+
+		// completed query is not reused
+		flight.execute("key", query);
+		assertEquals(2, queries.get());
+	}
+
+	@Test(expected = HectorException.class)
+	public void testFailure()
+	{
+		SingleFlight<String, String> flight = new SingleFlight<String, String>("SingleFlightTestFailure", null);
+
+		flight.execute("key", new Callable<String>() {
+			@Override
+			public String call() {
+				throw new HectorException("failed");
+			}
+		});
+	}
+
+	@Test
+	public void testErrorCompletesSharedFlight() throws Exception
+	{
+		final SingleFlight<String, String> flight = new SingleFlight<String, String>("SingleFlightTestError", null);
+
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final Callable<String> query = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				running.countDown();
+				release.await();
+				throw new AssertionError("failed");
+			}
+		};
+
+		Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() {
+				return flight.execute("key", query);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(call);
+			running.await();
+			Future<String> second = executor.submit(call);
+
+			// wait until second call joins the flight
+			while (flight.getSharedCalls() == 0) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+
+			try {
+				first.get(5, TimeUnit.SECONDS);
+				fail("Error expected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof AssertionError);
+			}
+
+			// waiting caller receives failure instead of blocking
+			try {
+				second.get(5, TimeUnit.SECONDS);
+				fail("Failure expected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof HectorException);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
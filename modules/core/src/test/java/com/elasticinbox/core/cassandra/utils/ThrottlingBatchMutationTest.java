@@ -0,0 +1,75 @@
+package com.elasticinbox.core.cassandra.utils;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.junit.Test;
+
+public class ThrottlingBatchMutationTest
+{
+	@Test
+	public void testEstimatedSize()
+	{
+		ThrottlingBatchMutation<String> batch =
+				new ThrottlingBatchMutation<String>(StringSerializer.get(), 10);
+
+		Column column = new Column(ByteBuffer.wrap(new byte[10]));
+		column.setValue(ByteBuffer.wrap(new byte[1000]));
+		column.setTimestamp(1L);
+
+		batch.addInsertion("key", Arrays.asList("CF"), column);
+		long afterColumn = batch.getEstimatedSize();
+
+		// row key and column family are counted once
+		assertTrue(afterColumn >= 3 + 2 + 10 + 1000);
+
+		batch.addInsertion("key", Arrays.asList("CF"), column);
+		assertEquals(afterColumn * 2 - 5, batch.getEstimatedSize());
+
+		// counters are small compared to columns with values
+		batch.addCounterInsertion("key", Arrays.asList("CF"),
+				new CounterColumn(ByteBuffer.wrap(new byte[10]), 1L));
+		assertTrue(batch.getEstimatedSize() - (afterColumn * 2 - 5) < 100);
+
+		assertEquals(3, batch.getMutationsCount());
+		assertEquals(batch.getEstimatedSize(), batch.makeCopy().getEstimatedSize());
+	}
+
+	@Test
+	public void testSplitByTokenRange()
+	{
+		ThrottlingBatchMutation<String> batch =
+				new ThrottlingBatchMutation<String>(StringSerializer.get(), 10);
+
+		for (int i = 0; i < 50; i++) {
+			batch.addCounterInsertion("key" + i, Arrays.asList("CF"),
+					new CounterColumn(ByteBuffer.wrap(new byte[1]), 1L));
+		}
+
+		List<Map<ByteBuffer, Map<String, List<Mutation>>>> parts = batch.split(4);
+		assertTrue(parts.size() > 1 && parts.size() <= 4);
+
+		// each row belongs to exactly one sub-batch
+		Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+		for (Map<ByteBuffer, Map<String, List<Mutation>>> part : parts) {
+			assertFalse(part.isEmpty());
+			for (ByteBuffer key : part.keySet()) {
+				assertTrue(keys.add(key));
+				assertEquals(ThrottlingBatchMutation.getTokenRange(key, 4),
+						ThrottlingBatchMutation.getTokenRange(key.duplicate(), 4));
+			}
+		}
+		assertEquals(50, keys.size());
+	}
+}
@@ -61,4 +61,34 @@ public class LabelMapTest
 		assertEquals(labels.get(labelId).getCounters().getUnreadMessages().intValue(), 32+5);
 	}
 
+	@Test
+	public void testContainsName()
+	{
+		LabelMap labels = new LabelMap();
+		labels.put(new Label(100, "Work"));
+
+		assertTrue(labels.containsName("work"));
+		assertTrue(labels.containsName("WORK"));
+		assertFalse(labels.containsName("Home"));
+
+		// renamed label is indexed by the new name only
+		labels.put(new Label(100, "Home"));
+		assertTrue(labels.containsName("home"));
+		assertFalse(labels.containsName("work"));
+	}
+
+	@Test
+	public void testCopy()
+	{
+		LabelMap labels = new LabelMap();
+		labels.put(new Label(100, "Work").addAttribute("color", "red"));
+
+		LabelMap copy = new LabelMap(labels);
+		copy.get(100).addAttribute("color", "blue");
+		copy.get(100).setCounters(new LabelCounters());
+
+		assertTrue(copy.containsName("work"));
+		assertEquals("red", labels.get(100).getAttributes().get("color"));
+		assertNull(labels.get(100).getCounters());
+	}
 }
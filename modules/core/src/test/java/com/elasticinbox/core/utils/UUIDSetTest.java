@@ -0,0 +1,57 @@
+package com.elasticinbox.core.utils;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.utils.TimeUUIDUtils;
+
+import org.junit.Test;
+
+public class UUIDSetTest
+{
+	@Test
+	public void testContains()
+	{
+		UUIDSet set = new UUIDSet(2);
+		List<UUID> added = new ArrayList<UUID>();
+
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = (i % 2 == 0) ? UUID.randomUUID() : TimeUUIDUtils.getUniqueTimeUUIDinMillis();
+			added.add(uuid);
+			set.add(uuid);
+		}
+
+		for (UUID uuid : added) {
+			assertThat(set.contains(uuid), is(true));
+		}
+
+		assertThat(set.contains(UUID.randomUUID()), is(false));
+		assertThat(set.size(), equalTo(1000));
+	}
+
+	@Test
+	public void testDuplicatesAndAddAfterLookup()
+	{
+		UUIDSet set = new UUIDSet();
+		UUID uuid1 = UUID.randomUUID();
+		UUID uuid2 = UUID.randomUUID();
+
+		assertThat(set.isEmpty(), is(true));
+		assertThat(set.contains(uuid1), is(false));
+
+		set.add(uuid1);
+		set.add(uuid1);
+		assertThat(set.contains(uuid1), is(true));
+		assertThat(set.size(), equalTo(1));
+
+		// added after sort
+		set.add(uuid2);
+		assertThat(set.contains(uuid2), is(true));
+		assertThat(set.contains(uuid1), is(true));
+		assertThat(set.size(), equalTo(2));
+	}
+}
@@ -45,7 +45,7 @@ import com.elasticinbox.common.utils.CRLFInputStream;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.MessageModification;
 import com.elasticinbox.core.model.Mailbox;
-import com.elasticinbox.core.model.Message;
+import com.elasticinbox.core.model.MessageSummary;
 import com.elasticinbox.core.model.ReservedLabels;
 import com.elasticinbox.core.utils.Base64UUIDUtils;
 
@@ -152,14 +152,14 @@ public class ElasticInboxMailboxHandler implements org.apache.james.protocols.po
 	 */
 	private List<MessageMetaData> getPOP3MessageList()
 	{
-		// get list of messages
-		Map<UUID, Message> messages = dao.getMessageIdsWithMetadata(
-				mailbox, ReservedLabels.POP3.getId(), null, MAX_POP3_SESSION_MESSAGES, true, false);
+		// get list of messages, sizes are served from the label index
+		Map<UUID, MessageSummary> messages = dao.getMessageSummaries(
+				mailbox, ReservedLabels.POP3.getId(), null, MAX_POP3_SESSION_MESSAGES, true);
 
 		// convert to James Protocols list
 		List<MessageMetaData> list = new ArrayList<MessageMetaData>(messages.size());
 
-		for (Map.Entry<UUID, Message> entry : messages.entrySet())
+		for (Map.Entry<UUID, MessageSummary> entry : messages.entrySet())
 		{
 			MessageMetaData md = new MessageMetaData(
 					Base64UUIDUtils.encode(entry.getKey()), entry.getValue().getSize());
@@ -57,6 +57,7 @@ import com.elasticinbox.core.ExistingLabelException;
 import com.elasticinbox.core.IllegalLabelException;
 import com.elasticinbox.core.LabelDAO;
 import com.elasticinbox.core.MessageDAO;
+import com.elasticinbox.core.MessageProjection;
 import com.elasticinbox.core.model.Label;
 import com.elasticinbox.core.model.Mailbox;
 import com.elasticinbox.rest.BadRequestException;
@@ -92,6 +93,17 @@ public final class LabelResource
 	 * @param account
 	 * @param labelId
 	 * @param withMetadata
+	 * @param includeBody
+	 * @param fields
+	 *            Comma separated list of message fields to return with
+	 *            metadata (e.g. <code>from,subject,labels</code>). Overrides
+	 *            includebody.
+	 * @param withSummary
+	 *            If true, return message summaries (size, date, seen and
+	 *            attachments flags) from the label index instead of metadata.
+	 * @param unreadOnly
+	 *            If true, return only unread messages. Cannot be combined
+	 *            with summary.
 	 * @param reverse
 	 * @param start
 	 * @param count
@@ -106,17 +118,44 @@ public final class LabelResource
 			@PathParam("id") Integer labelId,
 			@QueryParam("metadata") @DefaultValue("false") boolean withMetadata,
 			@QueryParam("includebody") @DefaultValue("false") boolean includeBody,
+			@QueryParam("fields") String fields,
+			@QueryParam("summary") @DefaultValue("false") boolean withSummary,
+			@QueryParam("unread") @DefaultValue("false") boolean unreadOnly,
 			@QueryParam("reverse") @DefaultValue("true") boolean reverse,
 			@QueryParam("start") UUID start,
 			@QueryParam("count") @DefaultValue("50") int count)
 	{
 		Mailbox mailbox = new Mailbox(user, domain);
+		MessageProjection projection;
 		byte[] response;
-		
+
+		if (fields != null) {
+			try {
+				projection = MessageProjection.fromString(fields);
+			} catch (IllegalArgumentException iae) {
+				throw new BadRequestException(iae.getMessage());
+			}
+		} else {
+			projection = includeBody ? MessageProjection.ALL : MessageProjection.HEADERS;
+		}
+
+		if (withSummary && unreadOnly) {
+			throw new BadRequestException("Summary cannot be combined with unread");
+		}
+
 		try {
-			if (withMetadata) {
+			if (withSummary) {
+				response = JSONUtils.fromObject(messageDAO.getMessageSummaries(mailbox,
+						labelId, start, count, reverse));
+			} else if (unreadOnly && withMetadata) {
+				response = JSONUtils.fromObject(messageDAO.getUnreadMessageIdsWithMetadata(mailbox,
+						labelId, start, count, reverse, projection));
+			} else if (unreadOnly) {
+				response = JSONUtils.fromObject(messageDAO.getUnreadMessageIds(mailbox,
+						labelId, start, count, reverse));
+			} else if (withMetadata) {
 				response = JSONUtils.fromObject(messageDAO.getMessageIdsWithMetadata(mailbox,
-						labelId, start, count, reverse, includeBody));
+						labelId, start, count, reverse, projection));
 			} else {
 				response = JSONUtils.fromObject(messageDAO.getMessageIds(mailbox,
 						labelId, start, count, reverse));
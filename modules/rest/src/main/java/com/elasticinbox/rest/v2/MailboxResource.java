@@ -38,8 +38,12 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +53,7 @@ import com.elasticinbox.core.DAOFactory;
 import com.elasticinbox.core.LabelDAO;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.model.Mailbox;
+import com.google.common.hash.Hashing;
 
 /**
  * This JAX-RS resource is responsible for mailbox operations such as listing
@@ -75,6 +80,10 @@ public final class MailboxResource
 	/**
 	 * Get list of all labels in the mailbox. Optionally returns number of new
 	 * and total messages, and total size of messages for each label.
+	 * <p>
+	 * Response is tagged with ETag. If labels did not change since the
+	 * response with the tag given in <code>If-None-Match</code>, 304 (Not
+	 * Modified) is returned.
 	 * 
 	 * @param account
 	 * @param getMetadata
@@ -85,6 +94,7 @@ public final class MailboxResource
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response getLabels(
+			@Context Request request,
 			@PathParam("user") final String user,
 			@PathParam("domain") final String domain,
 			@QueryParam("metadata") @DefaultValue("false") boolean getMetadata)
@@ -103,7 +113,14 @@ public final class MailboxResource
 			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
 		}
 
-		return Response.ok(response).build();
+		EntityTag etag = new EntityTag(Hashing.md5().hashBytes(response).toString());
+		ResponseBuilder notModified = request.evaluatePreconditions(etag);
+
+		if (notModified != null) {
+			return notModified.build();
+		}
+
+		return Response.ok(response).tag(etag).build();
 	}
 
 	/**
@@ -28,20 +28,35 @@
 
 package com.elasticinbox.rest.v2;
 
+import java.net.URI;
+import java.util.UUID;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticinbox.common.utils.JSONUtils;
 import com.elasticinbox.core.DAOFactory;
+import com.elasticinbox.core.JobDAO;
 import com.elasticinbox.core.LabelDAO;
 import com.elasticinbox.core.MessageDAO;
 import com.elasticinbox.core.model.LabelMap;
 import com.elasticinbox.core.model.Mailbox;
+import com.elasticinbox.core.model.MigrationJob;
+import com.elasticinbox.core.model.ScrubJob;
+import com.elasticinbox.rest.BadRequestException;
 
 /**
  * This JAX-RS resource is responsible for maintaining mailbox consitency
@@ -54,6 +69,10 @@ public class ScrubResource
 {
 	private final MessageDAO messageDAO;
 	private final LabelDAO labelDAO;
+	private final JobDAO jobDAO;
+
+	private final static Logger logger = 
+			LoggerFactory.getLogger(ScrubResource.class);
 
 	@Context UriInfo uriInfo;
 
@@ -61,10 +80,12 @@ public class ScrubResource
 		DAOFactory dao = DAOFactory.getDAOFactory();
 		messageDAO = dao.getMessageDAO();
 		labelDAO = dao.getLabelDAO();
+		jobDAO = dao.getJobDAO();
 	}
 
 	/**
-	 * Scrub mailbox and recalculate counters
+	 * Scrub mailbox and recalculate counters. If async is set, scrub is
+	 * started in background and job status is returned.
 	 * 
 	 * @param account
 	 * @return
@@ -74,10 +95,15 @@ public class ScrubResource
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response scrubCounters(
 			@PathParam("user") final String user,
-			@PathParam("domain") final String domain)
+			@PathParam("domain") final String domain,
+			@QueryParam("async") @DefaultValue("false") boolean async)
 	{
 		Mailbox mailbox = new Mailbox(user, domain);
 
+		if (async) {
+			return startJob(user, domain, false);
+		}
+
 		LabelMap calculatedCounters = messageDAO.scrub(mailbox, false);
 		labelDAO.setCounters(mailbox, calculatedCounters);
 
@@ -85,7 +111,8 @@ public class ScrubResource
 	}
 
 	/**
-	 * Scrub mailbox, rebuild indexes and recalculate counters
+	 * Scrub mailbox, rebuild indexes and recalculate counters. If async is
+	 * set, scrub is started in background and job status is returned.
 	 * 
 	 * @param account
 	 * @return
@@ -95,14 +122,247 @@ public class ScrubResource
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response scrubIndexes(
 			@PathParam("user") final String user,
-			@PathParam("domain") final String domain)
+			@PathParam("domain") final String domain,
+			@QueryParam("async") @DefaultValue("false") boolean async)
 	{
 		Mailbox mailbox = new Mailbox(user, domain);
 
+		if (async) {
+			return startJob(user, domain, true);
+		}
+
 		LabelMap calculatedCounters = messageDAO.scrub(mailbox, true);
 		labelDAO.setCounters(mailbox, calculatedCounters);
 
 		return Response.noContent().build();
 	}
 
+	/**
+	 * Get status of the background scrub job
+	 * 
+	 * @param account
+	 * @param jobId
+	 * @return
+	 */
+	@GET
+	@Path("jobs/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getJob(
+			@PathParam("user") final String user,
+			@PathParam("domain") final String domain,
+			@PathParam("jobId") UUID jobId)
+	{
+		Mailbox mailbox = new Mailbox(user, domain);
+		byte[] response;
+
+		checkJobsSupported();
+
+		ScrubJob job = jobDAO.getScrubJob(mailbox, jobId);
+
+		if (job == null) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+
+		try {
+			response = JSONUtils.fromObject(job);
+		} catch (Exception e) {
+			logger.error("Failed to get scrub job status:", e);
+			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+		}
+
+		return Response.ok(response).build();
+	}
+
+	/**
+	 * Start background scrub job and return its status with location
+	 * 
+	 * @param user
+	 * @param domain
+	 * @param rebuildIndex
+	 * @return
+	 */
+	private Response startJob(final String user, final String domain,
+			final boolean rebuildIndex)
+	{
+		Mailbox mailbox = new Mailbox(user, domain);
+		ScrubJob job;
+		byte[] response;
+
+		checkJobsSupported();
+
+		try {
+			job = jobDAO.startScrub(mailbox, rebuildIndex);
+			response = JSONUtils.fromObject(job);
+		} catch (Exception e) {
+			logger.error("Failed to start scrub job:", e);
+			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+		}
+
+		URI jobUri = uriInfo.getBaseUriBuilder().path(ScrubResource.class)
+				.path("jobs").path(job.getId().toString())
+				.build(domain, user);
+
+		return Response.status(Response.Status.ACCEPTED).location(jobUri)
+				.entity(response).build();
+	}
+
+	/**
+	 * Background jobs are available only with database drivers which
+	 * checkpoint job state, i.e. "cassandra". Other drivers support only
+	 * synchronous scrub.
+	 */
+	private void checkJobsSupported()
+	{
+		if (jobDAO == null) {
+			throw new BadRequestException(
+					"Background jobs are not supported by configured database driver");
+		}
+	}
+
+	/**
+	 * Start background migration of message metadata to the storage layout
+	 * enabled in configuration and return its status with location. Returns
+	 * no content if mailbox is already migrated.
+	 * 
+	 * @param account
+	 * @return
+	 */
+	@POST
+	@Path("metadata")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response migrateMetadata(
+			@PathParam("user") final String user,
+			@PathParam("domain") final String domain)
+	{
+		return startMigration(user, domain, MigrationJob.Type.METADATA, "metadata");
+	}
+
+	/**
+	 * Get status of the background metadata migration job
+	 * 
+	 * @param account
+	 * @param jobId
+	 * @return
+	 */
+	@GET
+	@Path("metadata/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getMetadataMigration(
+			@PathParam("user") final String user,
+			@PathParam("domain") final String domain,
+			@PathParam("jobId") UUID jobId)
+	{
+		return getMigration(user, domain, MigrationJob.Type.METADATA, jobId);
+	}
+
+	/**
+	 * Start background migration of label indexes to the bucketed layout
+	 * enabled in configuration and return its status with location. Returns
+	 * no content if mailbox is already migrated.
+	 * 
+	 * @param account
+	 * @return
+	 */
+	@POST
+	@Path("buckets")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response migrateIndexes(
+			@PathParam("user") final String user,
+			@PathParam("domain") final String domain)
+	{
+		return startMigration(user, domain, MigrationJob.Type.INDEXES, "buckets");
+	}
+
+	/**
+	 * Get status of the background label index migration job
+	 * 
+	 * @param account
+	 * @param jobId
+	 * @return
+	 */
+	@GET
+	@Path("buckets/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getIndexMigration(
+			@PathParam("user") final String user,
+			@PathParam("domain") final String domain,
+			@PathParam("jobId") UUID jobId)
+	{
+		return getMigration(user, domain, MigrationJob.Type.INDEXES, jobId);
+	}
+
+	/**
+	 * Start background migration job and return its status with location
+	 * 
+	 * @param user
+	 * @param domain
+	 * @param type
+	 * @param path
+	 * @return
+	 */
+	private Response startMigration(final String user, final String domain,
+			final MigrationJob.Type type, final String path)
+	{
+		Mailbox mailbox = new Mailbox(user, domain);
+		MigrationJob job;
+		byte[] response;
+
+		checkJobsSupported();
+
+		try {
+			job = jobDAO.startMigration(mailbox, type);
+
+			if (job == null) {
+				// already migrated
+				return Response.noContent().build();
+			}
+
+			response = JSONUtils.fromObject(job);
+		} catch (IllegalStateException ise) {
+			throw new BadRequestException(ise.getMessage());
+		} catch (Exception e) {
+			logger.error("Failed to start " + type + " migration job:", e);
+			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+		}
+
+		URI jobUri = uriInfo.getBaseUriBuilder().path(ScrubResource.class)
+				.path(path).path(job.getId().toString())
+				.build(domain, user);
+
+		return Response.status(Response.Status.ACCEPTED).location(jobUri)
+				.entity(response).build();
+	}
+
+	/**
+	 * Get status of the background migration job
+	 * 
+	 * @param user
+	 * @param domain
+	 * @param type
+	 * @param jobId
+	 * @return
+	 */
+	private Response getMigration(final String user, final String domain,
+			final MigrationJob.Type type, final UUID jobId)
+	{
+		Mailbox mailbox = new Mailbox(user, domain);
+		byte[] response;
+
+		checkJobsSupported();
+
+		MigrationJob job = jobDAO.getMigrationJob(mailbox, type, jobId);
+
+		if (job == null) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+
+		try {
+			response = JSONUtils.fromObject(job);
+		} catch (Exception e) {
+			logger.error("Failed to get " + type + " migration job status:", e);
+			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+		}
+
+		return Response.ok(response).build();
+	}
 }